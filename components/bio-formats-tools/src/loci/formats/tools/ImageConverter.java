@@ -573,6 +573,7 @@ public final class ImageConverter {
         count++;
       }
     }
+    long closeStart = System.currentTimeMillis();
     writer.close();
     long end = System.currentTimeMillis();
     LOGGER.info("[done]");
@@ -582,8 +583,8 @@ public final class ImageConverter {
     long initial = mid - start;
     float readAvg = (float) read / total;
     float writeAvg = (float) write / total;
-    LOGGER.info("{}s elapsed ({}+{}ms per plane, {}ms overhead)",
-      new Object[] {sec, readAvg, writeAvg, initial});
+    LOGGER.info("{}s elapsed ({}+{}ms per plane, {}ms overhead, {}ms close)",
+      new Object[] {sec, readAvg, writeAvg, initial, end - closeStart});
 
     return true;
   }
@@ -517,7 +517,11 @@ public abstract class FormatReader extends FormatHandler
     return readPlane(s, x, y, w, h, 0, buf);
   }
 
-  /** Reads a raw plane from disk. */
+  /**
+   * Reads a raw plane from disk.  Regions narrower than the plane are read
+   * with {@link RandomAccessInputStream#readStrided}, which reads many rows
+   * at a time.
+   */
   protected byte[] readPlane(RandomAccessInputStream s, int x, int y,
     int w, int h, int scanlinePad, byte[] buf) throws IOException
   {
@@ -528,51 +532,26 @@ public abstract class FormatReader extends FormatHandler
     {
       s.read(buf);
     }
-    else if (x == 0 && w == getSizeX() && scanlinePad == 0) {
-      if (isInterleaved()) {
-        s.skipBytes(y * w * bpp * c);
-        s.read(buf, 0, h * w * bpp * c);
-      }
-      else {
-        int rowLen = w * bpp;
-        for (int channel=0; channel<c; channel++) {
-          s.skipBytes(y * rowLen);
-          s.read(buf, channel * h * rowLen, h * rowLen);
-          if (channel < c - 1) {
-            // no need to skip bytes after reading final channel
-            s.skipBytes((getSizeY() - y - h) * rowLen);
-          }
-        }
-      }
+    else if (x == 0 && w == getSizeX() && scanlinePad == 0 && isInterleaved())
+    {
+      s.skipBytes(y * w * bpp * c);
+      s.read(buf, 0, h * w * bpp * c);
     }
     else {
-      int scanlineWidth = getSizeX() + scanlinePad;
+      long start = s.getFilePointer();
+      long scanlineWidth = getSizeX() + scanlinePad;
       if (isInterleaved()) {
-        s.skipBytes(y * scanlineWidth * bpp * c);
-        for (int row=0; row<h; row++) {
-          s.skipBytes(x * bpp * c);
-          s.read(buf, row * w * bpp * c, w * bpp * c);
-          if (row < h - 1) {
-            // no need to skip bytes after reading final row
-            s.skipBytes(bpp * c * (scanlineWidth - w - x));
-          }
-        }
+        int pixel = bpp * c;
+        s.readStrided(start + (y * scanlineWidth + x) * pixel, w * pixel,
+          scanlineWidth * pixel, h, buf, 0);
       }
       else {
+        long planeSize = scanlineWidth * getSizeY() * bpp;
+        int rowLen = w * bpp;
         for (int channel=0; channel<c; channel++) {
-          s.skipBytes(y * scanlineWidth * bpp);
-          for (int row=0; row<h; row++) {
-            s.skipBytes(x * bpp);
-            s.read(buf, channel * w * h * bpp + row * w * bpp, w * bpp);
-            if (row < h - 1 || channel < c - 1) {
-              // no need to skip bytes after reading final row of final channel
-              s.skipBytes(bpp * (scanlineWidth - w - x));
-            }
-          }
-          if (channel < c - 1) {
-            // no need to skip bytes after reading final channel
-            s.skipBytes(scanlineWidth * bpp * (getSizeY() - y - h));
-          }
+          s.readStrided(start + channel * planeSize +
+            (y * scanlineWidth + x) * bpp, rowLen, scanlineWidth * bpp, h,
+            buf, channel * h * rowLen);
         }
       }
     }
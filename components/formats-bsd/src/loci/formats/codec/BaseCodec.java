@@ -185,6 +185,49 @@ public abstract class BaseCodec implements Codec {
     }
   }
 
+  /**
+   * Decompresses a block of data into the given buffer.  At most
+   * <code>destCapacity</code> bytes are written; for codecs that use
+   * {@link CodecOptions#maxBytes}, decoding stops once that many bytes have
+   * been produced.
+   *
+   * This default implementation decompresses the data with
+   * {@link #decompress(byte[], CodecOptions)} and copies the result into
+   * <code>dest</code>, so codecs should override it if they can decode
+   * directly into the buffer without allocating an output array.
+   *
+   * @param src The array containing the data to be decompressed.
+   * @param srcOffset The index of the first compressed byte in
+   *   <code>src</code>.
+   * @param srcLength The number of compressed bytes.
+   * @param dest The array into which the data is decompressed.
+   * @param destOffset The index in <code>dest</code> of the first
+   *   decompressed byte.
+   * @param destCapacity The maximum number of bytes to write to
+   *   <code>dest</code>.
+   * @param options Options to be used during decompression.
+   * @return The number of bytes written to <code>dest</code>.
+   * @throws FormatException If data is not valid compressed data for this
+   *   decompressor.
+   */
+  public int decompress(byte[] src, int srcOffset, int srcLength,
+    byte[] dest, int destOffset, int destCapacity, CodecOptions options)
+    throws FormatException
+  {
+    byte[] data = src;
+    if (srcOffset != 0 || srcLength != src.length) {
+      data = new byte[srcLength];
+      System.arraycopy(src, srcOffset, data, 0, srcLength);
+    }
+    byte[] decompressed = decompress(data, options);
+    if (decompressed == null) {
+      return 0;
+    }
+    int length = Math.min(decompressed.length, destCapacity);
+    System.arraycopy(decompressed, 0, dest, destOffset, length);
+    return length;
+  }
+
   /* @see Codec#decompress(RandomAccessInputStream, CodecOptions) */
   @Override
   public abstract byte[] decompress(RandomAccessInputStream in,
@@ -100,6 +100,15 @@ public class LZWCodec extends BaseCodec {
   private static final int[] DECOMPR_MASKS =
     {0x00, 0x01, 0x03, 0x07, 0x0f, 0x1f, 0x3f, 0x7f};
 
+  /** Code table used by each thread to decompress into caller buffers. */
+  private static final ThreadLocal<CodeTable> CODE_TABLE =
+    new ThreadLocal<CodeTable>() {
+      @Override
+      protected CodeTable initialValue() {
+        return new CodeTable();
+      }
+    };
+
   /* @see Codec#compress(byte[], CodecOptions) */
   @Override
   public byte[] compress(byte[] input, CodecOptions options)
@@ -409,4 +418,178 @@ public class LZWCodec extends BaseCodec {
     catch (EOFException e) { }
     return output;
   }
+
+  /**
+   * Decompresses directly into the given buffer.  Decoding stops at the end
+   * of information code, at the end of the input, at a code that is not in
+   * the code table, or once <code>destCapacity</code> bytes (or
+   * {@link CodecOptions#maxBytes}, if it is set) have been written.  Unlike
+   * {@link #decompress(RandomAccessInputStream, CodecOptions)}, a string
+   * that does not fit is written as far as it fits.  The code table is kept
+   * per thread, so no memory is allocated.
+   *
+   * @see BaseCodec#decompress(byte[], int, int, byte[], int, int,
+   *   CodecOptions)
+   */
+  @Override
+  public int decompress(byte[] src, int srcOffset, int srcLength,
+    byte[] dest, int destOffset, int destCapacity, CodecOptions options)
+    throws FormatException
+  {
+    if (srcLength == 0) return 0;
+    int limit = destCapacity;
+    if (options != null && options.maxBytes > 0) {
+      limit = Math.min(limit, options.maxBytes);
+    }
+
+    // End of the output and position in it to write next byte to
+    int outEnd = destOffset + limit;
+    int currOutPos = destOffset;
+    // End of the input and position in it to read next byte from
+    int inEnd = srcOffset + srcLength;
+    int currInPos = srcOffset;
+
+    CodeTable table = CODE_TABLE.get();
+    int[] anotherCodes = table.anotherCodes;
+    byte[] newBytes = table.newBytes;
+    int[] lengths = table.lengths;
+
+    int currCodeLength = 9;
+    int nextCode = FIRST_CODE;
+    int currRead = 0;
+    int bitsRead = 0;
+    int currCode;
+    int oldCode = 0;
+
+    do {
+      // read next code
+      {
+        int bitsLeft = currCodeLength - bitsRead;
+        if (currInPos + (bitsLeft > 8 ? 2 : 1) > inEnd) break;
+        if (bitsLeft > 8) {
+          currRead = (currRead << 8) | (src[currInPos++] & 0xff);
+          bitsLeft -= 8;
+        }
+        bitsRead = 8 - bitsLeft;
+        int nextByte = src[currInPos++] & 0xff;
+        currCode = (currRead << bitsLeft) | (nextByte >> bitsRead);
+        currRead = nextByte & DECOMPR_MASKS[bitsRead];
+      }
+
+      if (currCode == EOI_CODE) break;
+
+      if (currCode == CLEAR_CODE) {
+        // initialize table -- nothing to do
+        nextCode = FIRST_CODE;
+        currCodeLength = 9;
+        // read next code
+        {
+          int bitsLeft = currCodeLength - bitsRead;
+          if (currInPos + (bitsLeft > 8 ? 2 : 1) > inEnd) break;
+          if (bitsLeft > 8) {
+            currRead = (currRead << 8) | (src[currInPos++] & 0xff);
+            bitsLeft -= 8;
+          }
+          bitsRead = 8 - bitsLeft;
+          int nextByte = src[currInPos++] & 0xff;
+          currCode = (currRead << bitsLeft) | (nextByte >> bitsRead);
+          currRead = nextByte & DECOMPR_MASKS[bitsRead];
+        }
+        if (currCode == EOI_CODE) break;
+        // write string[curr_code] to output
+        // -- but here we are sure that string consists of a single byte
+        if (currOutPos >= outEnd) break;
+        dest[currOutPos++] = newBytes[currCode];
+        oldCode = currCode;
+      }
+      else if (currCode < nextCode) {
+        // Code is already in the table
+        // 1) Write strin[curr_code] to output
+        int outLength = lengths[currCode];
+        int i = currOutPos + outLength;
+        int tablePos = currCode;
+        while (i > outEnd) {
+          tablePos = anotherCodes[tablePos];
+          i--;
+        }
+        while (i > currOutPos) {
+          dest[--i] = newBytes[tablePos];
+          tablePos = anotherCodes[tablePos];
+        }
+        if (i >= outEnd) break;
+        currOutPos += outLength;
+        // 2) Add string[old_code]+firstByte(string[curr_code]) to the table
+        if (nextCode >= anotherCodes.length) break;
+        anotherCodes[nextCode] = oldCode;
+        newBytes[nextCode] = dest[i];
+        lengths[nextCode] = lengths[oldCode] + 1;
+        oldCode = currCode;
+        nextCode++;
+      }
+      else if (currCode == nextCode) {
+        // Special case: code is not in the table
+        // 1) Write string[old_code] to output, or as much of it as fits
+        int outLength = lengths[oldCode];
+        int i = currOutPos + outLength;
+        int tablePos = oldCode;
+        while (i > outEnd) {
+          tablePos = anotherCodes[tablePos];
+          i--;
+        }
+        while (i > currOutPos) {
+          dest[--i] = newBytes[tablePos];
+          tablePos = anotherCodes[tablePos];
+        }
+        currOutPos += outLength;
+        // 2) Write firstByte(string[old_code]) to output
+        if (currOutPos >= outEnd) break;
+        dest[currOutPos++] = dest[i];
+        // 3) Add string[old_code]+firstByte(string[old_code]) to the table
+        anotherCodes[nextCode] = oldCode;
+        newBytes[nextCode] = dest[i];
+        lengths[nextCode] = outLength + 1;
+        oldCode = currCode;
+        nextCode++;
+      }
+      else {
+        // the code is beyond the end of the table; the data is invalid
+        break;
+      }
+      // Increase length of code if needed
+      switch (nextCode) {
+        case 511:
+          currCodeLength = 10;
+          break;
+        case 1023:
+          currCodeLength = 11;
+          break;
+        case 2047:
+          currCodeLength = 12;
+          break;
+      }
+    } while (currOutPos < outEnd && currInPos < inEnd);
+    return Math.min(currOutPos, outEnd) - destOffset;
+  }
+
+  // -- Helper classes --
+
+  /**
+   * Table mapping codes to strings, as in
+   * {@link #decompress(RandomAccessInputStream, CodecOptions)}.  The entries
+   * for the first 256 codes are never changed, so a table can be reused
+   * without being initialized again.
+   */
+  private static class CodeTable {
+    final int[] anotherCodes = new int[4096];
+    final byte[] newBytes = new byte[4096];
+    final int[] lengths = new int[4096];
+
+    CodeTable() {
+      for (int i=0; i<256; i++) {
+        newBytes[i] = (byte) i;
+        lengths[i] = 1;
+      }
+    }
+  }
+
 }
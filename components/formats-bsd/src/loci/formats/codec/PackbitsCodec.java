@@ -35,6 +35,7 @@ package loci.formats.codec;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 import loci.common.RandomAccessInputStream;
 import loci.formats.FormatException;
@@ -96,4 +97,53 @@ public class PackbitsCodec extends BaseCodec {
     if (fp + nread < in.length()) in.seek(fp + nread);
     return output.toByteArray();
   }
+
+  /**
+   * Decompresses directly into the given buffer.  Decoding stops once
+   * <code>destCapacity</code> bytes (or {@link CodecOptions#maxBytes}, if it
+   * is set) have been written.  As with
+   * {@link #decompress(RandomAccessInputStream, CodecOptions)}, bytes read
+   * beyond the end of the data are treated as 0xff.
+   *
+   * @see BaseCodec#decompress(byte[], int, int, byte[], int, int,
+   *   CodecOptions)
+   */
+  @Override
+  public int decompress(byte[] src, int srcOffset, int srcLength,
+    byte[] dest, int destOffset, int destCapacity, CodecOptions options)
+    throws FormatException
+  {
+    int limit = destCapacity;
+    if (options != null && options.maxBytes > 0) {
+      limit = Math.min(limit, options.maxBytes);
+    }
+    int inPos = srcOffset;
+    int inEnd = srcOffset + srcLength;
+    int outPos = destOffset;
+    int outEnd = destOffset + limit;
+    // Adapted from the TIFF 6.0 specification, page 42.
+    while (outPos < outEnd) {
+      int n = inPos < inEnd ? src[inPos] : -1;
+      inPos++;
+      if (n >= 0) { // 0 <= n <= 127
+        int len = Math.min(n + 1, outEnd - outPos);
+        int available = Math.max(0, Math.min(len, inEnd - inPos));
+        if (available > 0) {
+          System.arraycopy(src, inPos, dest, outPos, available);
+        }
+        Arrays.fill(dest, outPos + available, outPos + len, (byte) 0);
+        inPos += n + 1;
+        outPos += len;
+      }
+      else if (n != -128) { // -127 <= n <= -1
+        int len = Math.min(-n + 1, outEnd - outPos);
+        byte inp = inPos < inEnd ? src[inPos] : (byte) -1;
+        inPos++;
+        Arrays.fill(dest, outPos, outPos + len, inp);
+        outPos += len;
+      }
+    }
+    return outPos - destOffset;
+  }
+
 }
@@ -52,6 +52,18 @@ public class PassthroughCodec extends BaseCodec {
     return data;
   }
 
+  /* (non-Javadoc)
+   * @see loci.formats.codec.BaseCodec#decompress(byte[], int, int, byte[], int, int, loci.formats.codec.CodecOptions)
+   */
+  @Override
+  public int decompress(byte[] src, int srcOffset, int srcLength,
+      byte[] dest, int destOffset, int destCapacity, CodecOptions options)
+      throws FormatException {
+    int length = Math.min(srcLength, destCapacity);
+    System.arraycopy(src, srcOffset, dest, destOffset, length);
+    return length;
+  }
+
   /* (non-Javadoc)
    * @see loci.formats.codec.BaseCodec#decompress(loci.common.RandomAccessInputStream, loci.formats.codec.CodecOptions)
    */
@@ -34,7 +34,10 @@ package loci.formats.codec;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 import loci.common.RandomAccessInputStream;
@@ -47,6 +50,22 @@ import loci.formats.FormatException;
  */
 public class ZlibCodec extends BaseCodec {
 
+  // -- Constants --
+
+  /** Maximum number of idle inflaters kept for reuse. */
+  private static final int MAX_IDLE_INFLATERS =
+    Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Idle inflaters used to decompress into caller-supplied buffers, so that
+   * native decompression state is not allocated for every call.  Inflaters
+   * that are not kept are ended, releasing their native memory.
+   */
+  private static final ArrayDeque<Inflater> INFLATERS =
+    new ArrayDeque<Inflater>();
+
+  // -- Codec API methods --
+
   /* @see Codec#compress(byte[], CodecOptions) */
   @Override
   public byte[] compress(byte[] data, CodecOptions options)
@@ -84,4 +103,67 @@ public class ZlibCodec extends BaseCodec {
     return bytes.toByteArray();
   }
 
+  /**
+   * Decompresses directly into the given buffer.  As with
+   * {@link #decompress(RandomAccessInputStream, CodecOptions)}, truncated
+   * data is decompressed as far as possible.
+   *
+   * @see BaseCodec#decompress(byte[], int, int, byte[], int, int,
+   *   CodecOptions)
+   */
+  @Override
+  public int decompress(byte[] src, int srcOffset, int srcLength,
+    byte[] dest, int destOffset, int destCapacity, CodecOptions options)
+    throws FormatException
+  {
+    Inflater inflater = takeInflater();
+    inflater.setInput(src, srcOffset, srcLength);
+    int length = 0;
+    try {
+      while (length < destCapacity && !inflater.finished()) {
+        int r = inflater.inflate(dest, destOffset + length,
+          destCapacity - length);
+        if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        length += r;
+      }
+    }
+    catch (DataFormatException e) {
+      throw new FormatException(e);
+    }
+    finally {
+      releaseInflater(inflater);
+    }
+    return length;
+  }
+
+  // -- Helper methods --
+
+  /** Gets an idle inflater, or a new one if none is idle. */
+  private static Inflater takeInflater() {
+    synchronized (INFLATERS) {
+      Inflater inflater = INFLATERS.poll();
+      if (inflater != null) {
+        return inflater;
+      }
+    }
+    return new Inflater();
+  }
+
+  /**
+   * Resets the given inflater and keeps it for reuse, or ends it if enough
+   * inflaters are idle.
+   */
+  private static void releaseInflater(Inflater inflater) {
+    inflater.reset();
+    synchronized (INFLATERS) {
+      if (INFLATERS.size() < MAX_IDLE_INFLATERS) {
+        INFLATERS.push(inflater);
+        return;
+      }
+    }
+    inflater.end();
+  }
+
 }
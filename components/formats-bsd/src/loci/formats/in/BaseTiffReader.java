@@ -96,6 +96,7 @@ public abstract class BaseTiffReader extends MinimalTiffReader {
   /** Populates the metadata hashtable and metadata store. */
   protected void initMetadata() throws FormatException, IOException {
     initStandardMetadata();
+    updateSubResolutionMetadata();
     initMetadataStore();
   }
 
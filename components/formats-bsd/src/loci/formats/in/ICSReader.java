@@ -32,7 +32,7 @@
 
 package loci.formats.in;
 
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -40,9 +40,9 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.StringTokenizer;
 import java.util.Vector;
-import java.util.zip.GZIPInputStream;
 
 import loci.common.DateTools;
+import loci.common.IndexedGZipInputStream;
 import loci.common.Location;
 import loci.common.RandomAccessInputStream;
 import loci.formats.CoreMetadata;
@@ -526,7 +526,8 @@ public class ICSReader extends FormatReader {
   /** Whether or not the pixels are GZIP-compressed. */
   private boolean gzip;
 
-  private GZIPInputStream gzipStream;
+  /** Stream of decompressed pixels, with random access. */
+  private IndexedGZipInputStream gzipStream;
 
   /** Whether or not the image is inverted along the Y axis. */
   private boolean invertY;
@@ -619,20 +620,14 @@ public class ICSReader extends FormatReader {
       in.seek(offset + no * (long) len);
     }
     else {
-      long toSkip = (no - prevImage - 1) * (long) len;
-      if (gzipStream == null || no <= prevImage) {
-        FileInputStream fis = null;
-        toSkip = no * (long) len;
-        if (versionTwo) {
-          fis = new FileInputStream(currentIcsId);
-          fis.skip(offset);
-        }
-        else {
-          fis = new FileInputStream(currentIdsId);
-          toSkip += offset;
-        }
+      if (gzipStream == null) {
         try {
-          gzipStream = new GZIPInputStream(fis);
+          if (versionTwo) {
+            gzipStream = new IndexedGZipInputStream(currentIcsId, offset);
+          }
+          else {
+            gzipStream = new IndexedGZipInputStream(currentIdsId);
+          }
         }
         catch (IOException e) {
           // the 'gzip' flag is set erroneously
@@ -643,14 +638,16 @@ public class ICSReader extends FormatReader {
       }
 
       if (gzipStream != null) {
-        while (toSkip > 0) {
-          toSkip -= gzipStream.skip(toSkip);
-        }
+        gzipStream.seek((versionTwo ? 0 : offset) + no * (long) len);
 
         data = new byte[len * (storedRGB ? getSizeC() : 1)];
         int toRead = data.length;
         while (toRead > 0) {
-          toRead -= gzipStream.read(data, data.length - toRead, toRead);
+          int n = gzipStream.read(data, data.length - toRead, toRead);
+          if (n < 0) {
+            throw new EOFException();
+          }
+          toRead -= n;
         }
       }
     }
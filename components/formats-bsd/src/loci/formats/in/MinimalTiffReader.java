@@ -53,6 +53,7 @@ import loci.formats.meta.MetadataStore;
 import loci.formats.tiff.IFD;
 import loci.formats.tiff.IFDList;
 import loci.formats.tiff.PhotoInterp;
+import loci.formats.tiff.TiffCompressedTile;
 import loci.formats.tiff.TiffCompression;
 import loci.formats.tiff.TiffIFDEntry;
 import loci.formats.tiff.TiffParser;
@@ -101,6 +102,12 @@ public class MinimalTiffReader extends FormatReader {
   /** Codec options to use when decoding JPEG 2000 data. */
   private JPEG2000CodecOptions j2kCodecOptions;
 
+  /**
+   * Whether or not <code>subResolutionIFDs</code> holds reduced-resolution
+   * images stored as SubIFDs.
+   */
+  private boolean subIFDPyramid = false;
+
   // -- Constructors --
 
   /** Constructs a new MinimalTiffReader. */
@@ -132,6 +139,34 @@ public class MinimalTiffReader extends FormatReader {
     return thumbnailIFDs;
   }
 
+  /**
+   * Returns the stored bytes of a tile of the given plane at the current
+   * resolution, so that they can be passed on without being decoded.
+   * <code>tileX</code> and <code>tileY</code> are the column and row of the
+   * tile in the TIFF, or 0 and the strip index for images stored in strips;
+   * the size of the tiles is given by the returned tile.
+   *
+   * @return the compressed tile, or null if the tile cannot be passed
+   *   through and must be read with <code>openBytes</code> instead.
+   * @see TiffParser#getCompressedTile(IFD, int, int)
+   */
+  public TiffCompressedTile openCompressedTile(int no, int tileX, int tileY)
+    throws FormatException, IOException
+  {
+    FormatTools.assertId(currentId, true, 1);
+    if (no < 0 || no >= getImageCount()) {
+      throw new IllegalArgumentException("Invalid image number: " + no);
+    }
+    IFD ifd = getCompressedTileIFD(no);
+    if (ifd == null) {
+      return null;
+    }
+    if (tiffParser == null) {
+      initTiffParser();
+    }
+    return tiffParser.getCompressedTile(ifd, tileY, tileX);
+  }
+
   // -- IFormatReader API methods --
 
   /* @see loci.formats.IFormatReader#isThisType(RandomAccessInputStream) */
@@ -291,6 +326,9 @@ public class MinimalTiffReader extends FormatReader {
       }
       setResolutionLevel(ifd);
     }
+    else if (subIFDPyramid && getCoreIndex() > 0) {
+      ifd = subResolutionIFDs.get(no).get(getCoreIndex() - 1);
+    }
 
     if (tiffParser == null) {
       initTiffParser();
@@ -379,6 +417,7 @@ public class MinimalTiffReader extends FormatReader {
       tiffParser = null;
       resolutionLevels = null;
       j2kCodecOptions = null;
+      subIFDPyramid = false;
     }
   }
 
@@ -387,7 +426,7 @@ public class MinimalTiffReader extends FormatReader {
   public int getOptimalTileWidth() {
     FormatTools.assertId(currentId, true, 1);
     try {
-      return (int) ifds.get(0).getTileWidth();
+      return (int) getResolutionIFD().getTileWidth();
     }
     catch (FormatException e) {
       LOGGER.debug("Could not retrieve tile width", e);
@@ -400,7 +439,7 @@ public class MinimalTiffReader extends FormatReader {
   public int getOptimalTileHeight() {
     FormatTools.assertId(currentId, true, 1);
     try {
-      int height = (int) ifds.get(0).getTileLength();
+      int height = (int) getResolutionIFD().getTileLength();
       if (height <= 0) {
         height = getSizeY();
       }
@@ -449,14 +488,36 @@ public class MinimalTiffReader extends FormatReader {
     ifds = new IFDList();
     thumbnailIFDs = new IFDList();
     subResolutionIFDs = new ArrayList<IFDList>();
-    for (IFD ifd : allIFDs) {
-      Number subfile = (Number) ifd.getIFDValue(IFD.NEW_SUBFILE_TYPE);
-      int subfileType = subfile == null ? 0 : subfile.intValue();
-      if (subfileType != 1 || allIFDs.size() <= 1) {
-        ifds.add(ifd);
+    IFDList mainIFDs = new IFDList();
+    List<IFDList> subIFDs = new ArrayList<IFDList>();
+    subIFDPyramid = !noSubresolutions &&
+      groupSubIFDs(allIFDs, mainIFDs, subIFDs) &&
+      isSubIFDPyramid(mainIFDs, subIFDs);
+    if (subIFDPyramid) {
+      // reduced-resolution SubIFDs become resolutions of their parent IFD
+      // instead of separate planes or thumbnails
+      LOGGER.debug("Found SubIFD pyramid with {} resolutions",
+        subIFDs.get(0).size() + 1);
+      for (int i=0; i<mainIFDs.size(); i++) {
+        IFD ifd = mainIFDs.get(i);
+        if (getSubfileType(ifd) == 1 && subIFDs.get(i).size() == 0) {
+          thumbnailIFDs.add(ifd);
+        }
+        else {
+          ifds.add(ifd);
+          subResolutionIFDs.add(subIFDs.get(i));
+        }
       }
-      else if (subfileType == 1) {
-        thumbnailIFDs.add(ifd);
+    }
+    else {
+      for (IFD ifd : allIFDs) {
+        int subfileType = getSubfileType(ifd);
+        if (subfileType != 1 || allIFDs.size() <= 1) {
+          ifds.add(ifd);
+        }
+        else if (subfileType == 1) {
+          thumbnailIFDs.add(ifd);
+        }
       }
     }
 
@@ -467,8 +528,15 @@ public class MinimalTiffReader extends FormatReader {
     ms0.imageCount = ifds.size();
 
     tiffParser.setAssumeEqualStrips(equalStrips);
-    for (IFD ifd : ifds) {
+    for (int i=0; i<ifds.size(); i++) {
+      IFD ifd = ifds.get(i);
       tiffParser.fillInIFD(ifd);
+      if (subIFDPyramid) {
+        for (IFD sub : subResolutionIFDs.get(i)) {
+          tiffParser.fillInIFD(sub);
+        }
+        continue;
+      }
       if ((ifd.getCompression() == TiffCompression.JPEG_2000
           || ifd.getCompression() == TiffCompression.JPEG_2000_LOSSY) &&
           ifd.getImageWidth() == ifds.get(0).getImageWidth()) {
@@ -599,6 +667,20 @@ public class MinimalTiffReader extends FormatReader {
         ms.resolutionCount = 1;
       }
     }
+    else if (subIFDPyramid) {
+      IFDList levels = subResolutionIFDs.get(0);
+      if (!hasFlattenedResolutions()) {
+        ms0.resolutionCount = levels.size() + 1;
+      }
+      for (IFD ifd : levels) {
+        CoreMetadata ms = new CoreMetadata(this, 0);
+        core.add(ms);
+        ms.sizeX = (int) ifd.getImageWidth();
+        ms.sizeY = (int) ifd.getImageLength();
+        ms.thumbnail = true;
+        ms.resolutionCount = 1;
+      }
+    }
 
     MetadataStore store = makeFilterMetadata();
     MetadataTools.populatePixels(store, this);
@@ -624,6 +706,68 @@ public class MinimalTiffReader extends FormatReader {
   }
 
 
+  /**
+   * Copies the dimensions of the full resolution image to the core metadata
+   * of each SubIFD sub-resolution.  Subclasses that change the core metadata
+   * of the full resolution image after {@link #initFile(String)} should call
+   * this before populating the metadata store.
+   */
+  protected void updateSubResolutionMetadata() {
+    if (!subIFDPyramid ||
+      core.size() != subResolutionIFDs.get(0).size() + 1)
+    {
+      return;
+    }
+    CoreMetadata ms0 = core.get(0);
+    for (int i=1; i<core.size(); i++) {
+      CoreMetadata ms = new CoreMetadata(ms0);
+      ms.sizeX = core.get(i).sizeX;
+      ms.sizeY = core.get(i).sizeY;
+      ms.thumbnail = true;
+      ms.resolutionCount = 1;
+      core.set(i, ms);
+    }
+  }
+
+  /**
+   * Returns the IFD read by <code>openBytes</code> for the given plane at
+   * the current resolution, or null if the plane's tiles cannot be passed
+   * through by {@link #openCompressedTile(int, int, int)}.  Returns null
+   * unless {@link #supportsCompressedTiles()} is true; subclasses with their
+   * own <code>openBytes</code> may override this method instead.
+   */
+  protected IFD getCompressedTileIFD(int no) throws FormatException {
+    if (!supportsCompressedTiles()) {
+      return null;
+    }
+    if (resolutionLevels != null && getCoreIndex() > 0) {
+      // JPEG 2000 sub-resolutions are decoded from the full resolution tiles
+      return null;
+    }
+    if (subIFDPyramid && getCoreIndex() > 0) {
+      return subResolutionIFDs.get(no).get(getCoreIndex() - 1);
+    }
+    IFD ifd = ifds.get(no);
+    if (getPixelType() == FormatTools.FLOAT &&
+      ifd.getBitsPerSample()[0] < 32)
+    {
+      // 16 and 24-bit floats are converted by openBytes
+      return null;
+    }
+    return ifd;
+  }
+
+  /**
+   * Returns true if planes are read by MinimalTiffReader's
+   * <code>openBytes</code>, so that the default
+   * {@link #getCompressedTileIFD(int)} can pass their tiles through.
+   * Subclasses that do not change how planes are read opt in by overriding
+   * this method.
+   */
+  protected boolean supportsCompressedTiles() {
+    return getClass() == MinimalTiffReader.class;
+  }
+
   /** Reinitialize the underlying TiffParser. */
   protected void initTiffParser() {
     if (in == null) {
@@ -639,4 +783,118 @@ public class MinimalTiffReader extends FormatReader {
     tiffParser.setUse64BitOffsets(use64Bit);
   }
 
+  // -- Helper methods --
+
+  /** Returns the IFD of the first plane at the current resolution. */
+  private IFD getResolutionIFD() {
+    if (subIFDPyramid && getCoreIndex() > 0) {
+      return subResolutionIFDs.get(0).get(getCoreIndex() - 1);
+    }
+    return ifds.get(0);
+  }
+
+  /** Returns the value of the NewSubfileType tag, or 0 if it is missing. */
+  private static int getSubfileType(IFD ifd) {
+    Number subfile = (Number) ifd.getIFDValue(IFD.NEW_SUBFILE_TYPE);
+    return subfile == null ? 0 : subfile.intValue();
+  }
+
+  /**
+   * Splits the IFDs returned by {@link TiffParser#getIFDs()} into the IFDs
+   * of the main IFD chain and the SubIFDs of each of them.  The given IFDs
+   * are kept as they are; the main IFD chain is only read again to find
+   * which of them are SubIFDs.
+   * @return false if none of the IFDs has SubIFDs, or if some of the IFDs
+   *   are not SubIFDs of an image in the main IFD chain.
+   */
+  private boolean groupSubIFDs(IFDList allIFDs, IFDList mainIFDs,
+    List<IFDList> subIFDs)
+    throws IOException
+  {
+    boolean hasSubIFDs = false;
+    for (IFD ifd : allIFDs) {
+      if (ifd.containsKey(IFD.SUB_IFD)) {
+        hasSubIFDs = true;
+        break;
+      }
+    }
+    if (!hasSubIFDs) {
+      return false;
+    }
+
+    // getIFDs() lists each image of the main IFD chain followed by its
+    // SubIFDs, and also the SubIFDs of IFDs that are not images
+    int index = 0;
+    for (IFD ifd : tiffParser.getMainIFDs()) {
+      int count = tiffParser.getSubIFDs(ifd).size();
+      if (index + count >= allIFDs.size()) {
+        return false;
+      }
+      mainIFDs.add(allIFDs.get(index));
+      IFDList subs = new IFDList();
+      subs.addAll(allIFDs.subList(index + 1, index + count + 1));
+      subIFDs.add(subs);
+      index += count + 1;
+    }
+    return index == allIFDs.size();
+  }
+
+  /**
+   * Checks whether the SubIFDs of each full resolution IFD form a pyramid:
+   * every full resolution IFD has the same number of SubIFDs, each SubIFD is
+   * flagged as a reduced-resolution image, and each level is no larger than
+   * the previous one in both dimensions while matching its samples and
+   * pixel type.  The levels must have the same size for every plane.
+   */
+  private boolean isSubIFDPyramid(IFDList mainIFDs, List<IFDList> subIFDs)
+    throws FormatException
+  {
+    IFDList first = null;
+    IFD firstIFD = null;
+    for (int i=0; i<mainIFDs.size(); i++) {
+      IFD ifd = mainIFDs.get(i);
+      IFDList levels = subIFDs.get(i);
+      if (getSubfileType(ifd) == 1 && levels.size() == 0) {
+        continue;
+      }
+      if (levels.size() == 0 ||
+        (first != null && levels.size() != first.size()))
+      {
+        return false;
+      }
+      long width = ifd.getImageWidth();
+      long height = ifd.getImageLength();
+      for (int level=0; level<levels.size(); level++) {
+        IFD sub = levels.get(level);
+        long subWidth = sub.getImageWidth();
+        long subHeight = sub.getImageLength();
+        if ((getSubfileType(sub) & 1) == 0 ||
+          subWidth > width || subHeight > height ||
+          (subWidth == width && subHeight == height) ||
+          sub.getSamplesPerPixel() != ifd.getSamplesPerPixel() ||
+          sub.getPixelType() != ifd.getPixelType())
+        {
+          return false;
+        }
+        if (first != null && (subWidth != first.get(level).getImageWidth() ||
+          subHeight != first.get(level).getImageLength()))
+        {
+          return false;
+        }
+        width = subWidth;
+        height = subHeight;
+      }
+      if (first == null) {
+        first = levels;
+        firstIFD = ifd;
+      }
+      else if (ifd.getImageWidth() != firstIFD.getImageWidth() ||
+        ifd.getImageLength() != firstIFD.getImageLength())
+      {
+        return false;
+      }
+    }
+    return first != null;
+  }
+
 }
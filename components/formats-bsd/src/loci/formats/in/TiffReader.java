@@ -122,6 +122,14 @@ public class TiffReader extends BaseTiffReader {
     }
   }
 
+  // -- Internal MinimalTiffReader API methods --
+
+  /* @see loci.formats.in.MinimalTiffReader#supportsCompressedTiles() */
+  @Override
+  protected boolean supportsCompressedTiles() {
+    return true;
+  }
+
   // -- Internal BaseTiffReader API methods --
 
   /* @see BaseTiffReader#initStandardMetadata() */
@@ -36,7 +36,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import loci.common.IRandomAccess;
 import loci.common.Location;
@@ -147,14 +146,10 @@ public class ZipReader extends FormatReader {
     IRandomAccess rawHandle = Location.getHandle(id, false, false);
     in = new RandomAccessInputStream(rawHandle, id);
 
-    ZipInputStream zip = new ZipInputStream(in);
-    ZipEntry ze = null;
+    // list entries using the central directory, without decompressing them
     entryName = null;
     boolean matchFound = false;
-    while (true) {
-      ze = zip.getNextEntry();
-      if (ze == null) break;
-
+    for (ZipEntry ze : ZipHandle.getEntries(id)) {
       if (entryName == null) {
         entryName = ze.getName();
       }
@@ -34,6 +34,7 @@ package loci.formats.out;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +43,7 @@ import java.util.UUID;
 import ome.xml.model.primitives.NonNegativeInteger;
 import ome.xml.model.primitives.PositiveInteger;
 
+import loci.common.Constants;
 import loci.common.Location;
 import loci.common.RandomAccessInputStream;
 import loci.common.RandomAccessOutputStream;
@@ -71,6 +73,15 @@ public class OMETiffWriter extends TiffWriter {
     "before doing so. For more information, see the OME-TIFF web site: " +
     FormatTools.URL_OME_TIFF + ". -->";
 
+  /**
+   * Reserved comment size indicating that the size of the OME-XML is
+   * estimated from the metadata.
+   */
+  public static final int ESTIMATED_COMMENT_SIZE = -1;
+
+  /** Estimated number of bytes in each TiffData element, without names. */
+  private static final int TIFF_DATA_SIZE = 160;
+
   // -- Fields --
 
   private String[][] imageLocations;
@@ -80,6 +91,18 @@ public class OMETiffWriter extends TiffWriter {
 
   private Map<String, String> uuids = new HashMap<String, String>();
 
+  /** The number of bytes to reserve for the OME-XML in each file. */
+  private int reservedCommentSize = ESTIMATED_COMMENT_SIZE;
+
+  /** The comment that is written until the OME-XML is known. */
+  private String commentPlaceholder;
+
+  /** The index of the image whose IFD holds the current file's comment. */
+  private int commentIndex = -1;
+
+  /** The position of the next offset of the last IFD of each file. */
+  private Map<String, Long> lastIFDPositions = new HashMap<String, Long>();
+
   // -- Constructor --
 
   public OMETiffWriter() {
@@ -94,6 +117,9 @@ public class OMETiffWriter extends TiffWriter {
   public void close() throws IOException {
     try {
       if (currentId != null) {
+        long start = System.currentTimeMillis();
+        flushIFDs();
+        rememberLastIFD();
         setupServiceAndMetadata();
 
         // remove any BinData elements from the OME-XML
@@ -117,6 +143,8 @@ public class OMETiffWriter extends TiffWriter {
             }
           }
         }
+        LOGGER.debug("Wrote OME-XML to {} files in {} ms", files.size(),
+          System.currentTimeMillis() - start);
       }
     }
     catch (DependencyException de) {
@@ -160,6 +188,8 @@ public class OMETiffWriter extends TiffWriter {
         omeMeta = null;
         service = null;
         ifdCounts.clear();
+        lastIFDPositions.clear();
+        commentPlaceholder = null;
       }
       else {
         for(String k : ifdCounts.keySet())
@@ -207,6 +237,8 @@ public class OMETiffWriter extends TiffWriter {
   @Override
   public void setId(String id) throws FormatException, IOException {
     if (id.equals(currentId)) return;
+    rememberLastIFD();
+    commentIndex = -1;
     super.setId(id);
     if (imageLocations == null) {
       MetadataRetrieve r = getMetadataRetrieve();
@@ -219,8 +251,121 @@ public class OMETiffWriter extends TiffWriter {
     }
   }
 
+  // -- OMETiffWriter API methods --
+
+  /**
+   * Sets the number of bytes to reserve for the OME-XML comment in each
+   * file.  The OME-XML is only known once all files have been written, so
+   * space is reserved for it when the first image of each file is written;
+   * if the OME-XML then fits, close() overwrites the reserved space without
+   * rewriting the file.  Otherwise the OME-XML is appended to the file.
+   *
+   * @param size the number of bytes to reserve, 0 to reserve no space, or
+   *   {@link #ESTIMATED_COMMENT_SIZE} (the default) to estimate the size of
+   *   the OME-XML from the metadata
+   */
+  public void setReservedCommentSize(int size) {
+    FormatTools.assertId(currentId, false, 1);
+    if (size < ESTIMATED_COMMENT_SIZE) {
+      throw new IllegalArgumentException("Invalid comment size: " + size);
+    }
+    reservedCommentSize = size;
+    commentPlaceholder = null;
+  }
+
+  /** Gets the number of bytes to reserve for the OME-XML comment. */
+  public int getReservedCommentSize() {
+    return reservedCommentSize;
+  }
+
+  // -- TiffWriter API methods --
+
+  /* @see TiffWriter#prepareToWriteImage(int, byte[], IFD, int, int, int, int) */
+  @Override
+  protected int prepareToWriteImage(
+      int no, byte[] buf, IFD ifd, int x, int y, int w, int h)
+  throws IOException, FormatException {
+    // nothing but the header has been written to a new file
+    boolean first = out.length() <= (isBigTiff ? 16 : 8);
+    int index = super.prepareToWriteImage(no, buf, ifd, x, y, w, h);
+    if (index >= 0 && (first || index == commentIndex)) {
+      String placeholder = getCommentPlaceholder();
+      if (placeholder != null) {
+        ifd.putIFDValue(IFD.IMAGE_DESCRIPTION, placeholder);
+        commentIndex = index;
+      }
+    }
+    return index;
+  }
+
   // -- Helper methods --
 
+  /**
+   * Gets the comment that reserves space for the OME-XML, or null if no
+   * space is reserved.
+   */
+  private String getCommentPlaceholder() {
+    if (reservedCommentSize == 0) {
+      return null;
+    }
+    if (commentPlaceholder == null) {
+      int size = reservedCommentSize;
+      if (size == ESTIMATED_COMMENT_SIZE) {
+        size = estimateCommentSize();
+      }
+      char[] spaces = new char[size];
+      Arrays.fill(spaces, ' ');
+      commentPlaceholder = new String(spaces);
+    }
+    return commentPlaceholder;
+  }
+
+  /**
+   * Estimates the size of the OME-XML that will be written to each file,
+   * with room for the TiffData elements that are added on close.
+   */
+  private int estimateCommentSize() {
+    long size = WARNING_COMMENT.length();
+    try {
+      setupServiceAndMetadata();
+      service.removeBinData(omeMeta);
+      size += service.getOMEXML(omeMeta).getBytes(Constants.ENCODING).length;
+    }
+    catch (DependencyException e) {
+      LOGGER.debug("Could not estimate the size of the OME-XML", e);
+    }
+    catch (ServiceException e) {
+      LOGGER.debug("Could not estimate the size of the OME-XML", e);
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not estimate the size of the OME-XML", e);
+    }
+
+    long planes = 0;
+    for (int i=0; i<imageLocations.length; i++) {
+      planes += getPlaneCount(i);
+    }
+    int name = new Location(currentId).getName().length();
+    size += planes * (TIFF_DATA_SIZE + 2 * name);
+
+    // leave room for differences between the estimate and the OME-XML
+    size += size / 8 + 1024;
+    return (int) Math.min(size, Integer.MAX_VALUE - 1);
+  }
+
+  /**
+   * Records where the IFD chain of the current file ends, so that the chain
+   * can be ended on close without reading the file.
+   */
+  private void rememberLastIFD() {
+    if (currentId != null && tiffSaver != null) {
+      long position = tiffSaver.getLastNextOffsetPosition();
+      if (position >= 0) {
+        lastIFDPositions.put(currentId, position);
+      }
+    }
+  }
+
   /** Gets the UUID corresponding to the given filename. */
   private String getUUID(String filename) {
     String uuid = uuids.get(filename);
@@ -266,6 +411,7 @@ public class OMETiffWriter extends TiffWriter {
   }
 
   private void saveComment(String file, String xml) throws IOException {
+    long start = System.currentTimeMillis();
     if (out != null) out.close();
     out = new RandomAccessOutputStream(file);
     RandomAccessInputStream in = null;
@@ -273,8 +419,25 @@ public class OMETiffWriter extends TiffWriter {
       TiffSaver saver = new TiffSaver(out, file);
       saver.setBigTiff(isBigTiff);
       in = new RandomAccessInputStream(file);
-      saver.overwriteLastIFDOffset(in);
-      saver.overwriteComment(in, xml);
+      if (!isAppendOnly()) {
+        // append-only files always end their IFD chain, and the end of the
+        // chain is known for files without sub-resolutions
+        Long position = getResolutionCount() == 1 ?
+          lastIFDPositions.get(file) : null;
+        if (position != null) {
+          saver.overwriteNextOffset(position, 0);
+        }
+        else {
+          saver.overwriteLastIFDOffset(in);
+        }
+      }
+      if (!saver.overwriteCommentInPlace(in, xml)) {
+        LOGGER.debug("OME-XML does not fit in the space reserved in {}",
+          file);
+        saver.overwriteComment(in, xml);
+      }
+      LOGGER.debug("Wrote OME-XML to {} in {} ms", file,
+        System.currentTimeMillis() - start);
     }
     catch (FormatException exc) {
       IOException io = new IOException("Unable to append OME-XML comment");
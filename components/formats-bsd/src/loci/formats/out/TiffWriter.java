@@ -46,6 +46,7 @@ import loci.formats.meta.MetadataRetrieve;
 import loci.formats.tiff.IFD;
 import loci.formats.tiff.TiffCompression;
 import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffPyramidSaver;
 import loci.formats.tiff.TiffRational;
 import loci.formats.tiff.TiffSaver;
 
@@ -96,6 +97,26 @@ public class TiffWriter extends FormatWriter {
   /** Whether or not to check the parameters passed to saveBytes. */
   protected boolean checkParams = true;
 
+  /** Whether or not files are written without reading them back. */
+  private boolean appendOnly = false;
+
+  /** The number of resolutions to write for each plane. */
+  private int resolutionCount = 1;
+
+  /** The size of the tiles of pyramids. */
+  private int tileSizeX = TiffPyramidSaver.DEFAULT_TILE_SIZE;
+  private int tileSizeY = TiffPyramidSaver.DEFAULT_TILE_SIZE;
+
+  /** The method used to compute the reduced resolutions of pyramids. */
+  private TiffPyramidSaver.Downsampling downsampling =
+    TiffPyramidSaver.Downsampling.AVERAGE;
+
+  /**
+   * The saver that writes each plane with its reduced resolutions, or null
+   * if only full resolution planes are written.
+   */
+  protected TiffPyramidSaver pyramidSaver;
+
   /**
    * Sets the compression code for the specified IFD.
    * 
@@ -147,6 +168,14 @@ public class TiffWriter extends FormatWriter {
   /* @see loci.formats.FormatWriter#setId(String) */
   @Override
   public void setId(String id) throws FormatException, IOException {
+    if (appendOnly && tiffSaver != null && id.equals(currentId)) {
+      // a new saver would lose the IFDs that have not yet been written
+      return;
+    }
+    if (tiffSaver != null && currentId != null && !id.equals(currentId)) {
+      // complete the previous file before its stream is closed
+      flushIFDs();
+    }
     super.setId(id);
 
     // if a BigTIFF extension is used, or we know that
@@ -182,6 +211,14 @@ public class TiffWriter extends FormatWriter {
     synchronized (this) {
       setupTiffSaver();
     }
+
+    // the IFDs already in the file cannot be read back, so the first IFD
+    // written would replace them
+    int headerLength = isBigTiff ? 16 : 8;
+    if (appendOnly && out.length() > headerLength) {
+      throw new FormatException("Cannot write to existing file " + id +
+        " in append-only mode");
+    }
   }
 
   // -- TiffWriter API methods --
@@ -225,6 +262,11 @@ public class TiffWriter extends FormatWriter {
       }
     }
 
+    if (pyramidSaver != null) {
+      pyramidSaver.writeTile(index, buf, ifd, type, x, y, w, h);
+      return;
+    }
+
     tiffSaver.writeImage(buf, ifd, index, type, x, y, w, h,
       no == getPlaneCount() - 1 && getSeries() == retrieve.getImageCount() - 1);
   }
@@ -248,14 +290,12 @@ public class TiffWriter extends FormatWriter {
       if (no < initialized[series].length && !initialized[series][no]) {
         initialized[series][no] = true;
 
-        RandomAccessInputStream tmp = new RandomAccessInputStream(currentId);
-        if (tmp.length() == 0) {
+        if (out.length() == 0) {
           synchronized (this) {
             // write TIFF header
             tiffSaver.writeHeader();
           }
         }
-        tmp.close();
       }
     }
 
@@ -383,7 +423,12 @@ public class TiffWriter extends FormatWriter {
    */
   @Override
   public void close() throws IOException {
+    flushIFDs();
     super.close();
+    if (pyramidSaver != null && !pyramidSaver.isPlaneComplete()) {
+      LOGGER.warn("The last plane is incomplete; it will not be readable");
+    }
+    pyramidSaver = null;
     if (in != null) {
       in.close();
     }
@@ -422,7 +467,7 @@ public class TiffWriter extends FormatWriter {
     throws FormatException, IOException
   {
     IFD ifd = new IFD();
-    if (!sequential) {
+    if (!sequential && !appendOnly && pyramidSaver == null) {
       TiffParser parser = new TiffParser(currentId);
       try {
         long[] ifdOffsets = parser.getIFDOffsets();
@@ -473,8 +518,113 @@ public class TiffWriter extends FormatWriter {
     isBigTiff = bigTiff;
   }
 
+  /**
+   * Sets whether or not files are written append-only, without ever reading
+   * back what has been written.  Each file must be new, and must be
+   * complete before the next file is started; the IFDs of each file are
+   * written together when the file is complete.  Calling
+   * {@link #setId(String)} with a file that already contains images throws
+   * a {@link FormatException}, including when a file written earlier by this
+   * writer is revisited.
+   * This flag is not reset when close() is called.
+   *
+   * @see TiffSaver#setAppendOnly(boolean)
+   */
+  public void setAppendOnly(boolean appendOnly) {
+    FormatTools.assertId(currentId, false, 1);
+    this.appendOnly = appendOnly;
+  }
+
+  /** Returns whether or not files are written append-only. */
+  public boolean isAppendOnly() {
+    return appendOnly;
+  }
+
+  /**
+   * Sets the number of resolutions to write for each plane, including the
+   * full resolution.  If more than one resolution is written, each plane is
+   * tiled and its reduced resolutions are stored as SubIFDs of the plane.
+   * The reduced resolutions are computed while the plane is written, so the
+   * tiles of each plane must be written one row of tiles at a time.
+   * This flag is not reset when close() is called.
+   *
+   * @see TiffPyramidSaver
+   */
+  public void setResolutionCount(int resolutionCount) {
+    FormatTools.assertId(currentId, false, 1);
+    if (resolutionCount < 1) {
+      throw new IllegalArgumentException(
+        "Invalid resolution count: " + resolutionCount);
+    }
+    this.resolutionCount = resolutionCount;
+  }
+
+  /** Gets the number of resolutions to write for each plane. */
+  public int getResolutionCount() {
+    return resolutionCount;
+  }
+
+  /**
+   * Sets the size of the tiles used when more than one resolution is
+   * written.  Tile dimensions must be positive multiples of 16.
+   * This flag is not reset when close() is called.
+   */
+  public void setTileSize(int tileSizeX, int tileSizeY) {
+    FormatTools.assertId(currentId, false, 1);
+    if (tileSizeX <= 0 || tileSizeX % 16 != 0 ||
+      tileSizeY <= 0 || tileSizeY % 16 != 0)
+    {
+      throw new IllegalArgumentException("Invalid tile size: " +
+        tileSizeX + "x" + tileSizeY);
+    }
+    this.tileSizeX = tileSizeX;
+    this.tileSizeY = tileSizeY;
+  }
+
+  /** Gets the width of the tiles used when writing pyramids. */
+  public int getTileSizeX() {
+    return tileSizeX;
+  }
+
+  /** Gets the height of the tiles used when writing pyramids. */
+  public int getTileSizeY() {
+    return tileSizeY;
+  }
+
+  /**
+   * Sets the method used to compute reduced resolutions.
+   * This flag is not reset when close() is called.
+   */
+  public void setDownsampling(TiffPyramidSaver.Downsampling downsampling) {
+    FormatTools.assertId(currentId, false, 1);
+    if (downsampling == null) {
+      throw new IllegalArgumentException("Downsampling cannot be null");
+    }
+    this.downsampling = downsampling;
+  }
+
+  /** Gets the method used to compute reduced resolutions. */
+  public TiffPyramidSaver.Downsampling getDownsampling() {
+    return downsampling;
+  }
+
   // -- Helper methods --
 
+  /** Writes any IFDs held by an append-only TIFF saver. */
+  protected void flushIFDs() throws IOException {
+    if (tiffSaver == null) {
+      return;
+    }
+    try {
+      tiffSaver.flushIFDs();
+    }
+    catch (FormatException exc) {
+      IOException io = new IOException("Unable to write IFDs");
+      io.initCause(exc);
+      throw io;
+    }
+  }
+
   protected void setupTiffSaver() throws IOException {
     out.close();
     out = new RandomAccessOutputStream(currentId);
@@ -485,10 +635,18 @@ public class TiffWriter extends FormatWriter {
     boolean littleEndian = bigEndian == null ?
       false : !bigEndian.booleanValue();
 
-    tiffSaver.setWritingSequentially(sequential);
+    tiffSaver.setWritingSequentially(sequential || appendOnly);
+    tiffSaver.setAppendOnly(appendOnly);
     tiffSaver.setLittleEndian(littleEndian);
     tiffSaver.setBigTiff(isBigTiff);
     tiffSaver.setCodecOptions(options);
+
+    pyramidSaver = null;
+    if (resolutionCount > 1) {
+      pyramidSaver = new TiffPyramidSaver(tiffSaver, resolutionCount);
+      pyramidSaver.setTileSize(tileSizeX, tileSizeY);
+      pyramidSaver.setDownsampling(downsampling);
+    }
   }
 
 }
@@ -34,8 +34,16 @@ package loci.formats.tiff;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import loci.common.DebugTools;
 import loci.formats.FormatException;
@@ -47,6 +55,23 @@ import org.slf4j.LoggerFactory;
 /**
  * Data structure for working with TIFF Image File Directories (IFDs).
  *
+ * Although an IFD is a {@link HashMap} for compatibility, its entries are not
+ * kept in hash buckets.  Tags are stored in a sorted <code>int</code> array,
+ * and Boolean, Byte, Short, Integer and Long values are stored as primitives
+ * and only boxed when they are retrieved through the {@link Map} API; other
+ * values, including strip offset and byte count arrays, are stored as they
+ * are.  Iteration is in ascending tag order, after the <code>null</code> key
+ * if there is one.
+ *
+ * The methods added to {@link HashMap} in Java 8 that take functional
+ * arguments (<code>forEach</code>, <code>replaceAll</code>,
+ * <code>compute</code>, <code>computeIfAbsent</code>,
+ * <code>computeIfPresent</code> and <code>merge</code>) cannot be overridden
+ * while the library is built for Java 6, and do not see the tag storage, so
+ * must not be used on an IFD.  Relying on an IFD being a {@link HashMap} is
+ * deprecated; a future release may make it a {@link Map} that is not a
+ * {@link HashMap}.
+ *
  * @author Curtis Rueden ctrueden at wisc.edu
  * @author Eric Kjellman egkjellman at wisc.edu
  * @author Melissa Linkert melissa at glencoesoftware.com
@@ -197,14 +222,317 @@ public class IFD extends HashMap<Integer, Object> {
   public static final int SHARPNESS = 41994;
   public static final int SUBJECT_DISTANCE_RANGE = 41996;
 
+  // storage types of directory entry values
+  private static final byte KIND_OBJECT = 0;
+  private static final byte KIND_BOOLEAN = 1;
+  private static final byte KIND_BYTE = 2;
+  private static final byte KIND_SHORT = 3;
+  private static final byte KIND_INTEGER = 4;
+  private static final byte KIND_LONG = 5;
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  // -- Fields --
+
+  /** Tags of the directory entries, in ascending order. */
+  private int[] tags;
+
+  /** Values of the entries that are not stored as primitives. */
+  private Object[] values;
+
+  /** Values of the entries that are stored as primitives. */
+  private long[] numbers;
+
+  /** Storage type of each entry's value. */
+  private byte[] kinds;
+
+  /** Number of directory entries. */
+  private int entries;
+
+  /** Number of insertions and removals, for detecting concurrent changes. */
+  private transient int modifications;
+
   // -- Constructors --
 
   public IFD() {
-    super();
+    this(DEFAULT_CAPACITY);
+  }
+
+  /** Constructs an IFD with room for the given number of entries. */
+  public IFD(int initialCapacity) {
+    super(0);
+    if (initialCapacity < 0) {
+      throw new IllegalArgumentException(
+        "Illegal capacity: " + initialCapacity);
+    }
+    tags = new int[initialCapacity];
+    values = new Object[initialCapacity];
+    numbers = new long[initialCapacity];
+    kinds = new byte[initialCapacity];
   }
 
   public IFD(IFD ifd) {
-    super(ifd);
+    super(0);
+    copyEntries(ifd);
+  }
+
+  // -- Map API methods --
+
+  /* @see java.util.Map#size() */
+  @Override
+  public int size() {
+    return entries + super.size();
+  }
+
+  /* @see java.util.Map#isEmpty() */
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /* @see java.util.Map#containsKey(Object) */
+  @Override
+  public boolean containsKey(Object key) {
+    if (key == null) return super.containsKey(null);
+    return indexOf(key) >= 0;
+  }
+
+  /* @see java.util.Map#containsValue(Object) */
+  @Override
+  public boolean containsValue(Object value) {
+    for (int i=0; i<entries; i++) {
+      Object v = valueAt(i);
+      if (value == null ? v == null : value.equals(v)) return true;
+    }
+    return super.containsValue(value);
+  }
+
+  /* @see java.util.Map#get(Object) */
+  @Override
+  public Object get(Object key) {
+    if (key == null) return super.get(null);
+    int index = indexOf(key);
+    return index < 0 ? null : valueAt(index);
+  }
+
+  /* @see java.util.Map#put(Object, Object) */
+  @Override
+  public Object put(Integer key, Object value) {
+    if (key == null) {
+      // the null key is not a tag, so it is kept in the hash table
+      if (!super.containsKey(null)) modifications++;
+      return super.put(null, value);
+    }
+    return put(key.intValue(), value);
+  }
+
+  /* @see java.util.Map#putAll(Map) */
+  @Override
+  public void putAll(Map<? extends Integer, ? extends Object> map) {
+    if (map instanceof IFD && isEmpty()) {
+      copyEntries((IFD) map);
+      return;
+    }
+    for (Map.Entry<? extends Integer, ? extends Object> e : map.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
+  /* @see java.util.Map#remove(Object) */
+  @Override
+  public Object remove(Object key) {
+    if (key == null) {
+      if (!super.containsKey(null)) return null;
+      modifications++;
+      return super.remove(null);
+    }
+    int index = indexOf(key);
+    if (index < 0) return null;
+    Object value = valueAt(index);
+    removeAt(index);
+    return value;
+  }
+
+  /* @see java.util.Map#clear() */
+  @Override
+  public void clear() {
+    super.clear();
+    Arrays.fill(values, 0, entries, null);
+    entries = 0;
+    modifications++;
+  }
+
+  /* @see java.util.Map#keySet() */
+  @Override
+  public Set<Integer> keySet() {
+    return new AbstractSet<Integer>() {
+      @Override
+      public Iterator<Integer> iterator() {
+        return new EntryIterator<Integer>() {
+          @Override
+          public Integer next() {
+            return keyAt(nextIndex());
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return IFD.this.size();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return containsKey(o);
+      }
+
+      @Override
+      public boolean remove(Object o) {
+        if (!containsKey(o)) return false;
+        IFD.this.remove(o);
+        return true;
+      }
+
+      @Override
+      public void clear() {
+        IFD.this.clear();
+      }
+    };
+  }
+
+  /* @see java.util.Map#values() */
+  @Override
+  public Collection<Object> values() {
+    return new AbstractCollection<Object>() {
+      @Override
+      public Iterator<Object> iterator() {
+        return new EntryIterator<Object>() {
+          @Override
+          public Object next() {
+            return valueAt(nextIndex());
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return IFD.this.size();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return containsValue(o);
+      }
+
+      @Override
+      public void clear() {
+        IFD.this.clear();
+      }
+    };
+  }
+
+  /* @see java.util.Map#entrySet() */
+  @Override
+  public Set<Map.Entry<Integer, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<Integer, Object>>() {
+      @Override
+      public Iterator<Map.Entry<Integer, Object>> iterator() {
+        return new EntryIterator<Map.Entry<Integer, Object>>() {
+          @Override
+          public Map.Entry<Integer, Object> next() {
+            return new DirectoryEntry(keyAt(nextIndex()));
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return IFD.this.size();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        if (!(o instanceof Map.Entry)) return false;
+        Map.Entry e = (Map.Entry) o;
+        if (!containsKey(e.getKey())) return false;
+        Object v = get(e.getKey());
+        return v == null ? e.getValue() == null : v.equals(e.getValue());
+      }
+
+      @Override
+      public boolean remove(Object o) {
+        if (!contains(o)) return false;
+        IFD.this.remove(((Map.Entry) o).getKey());
+        return true;
+      }
+
+      @Override
+      public void clear() {
+        IFD.this.clear();
+      }
+    };
+  }
+
+  /* @see java.util.Map#getOrDefault(Object, Object) */
+  public Object getOrDefault(Object key, Object defaultValue) {
+    return containsKey(key) ? get(key) : defaultValue;
+  }
+
+  /* @see java.util.Map#putIfAbsent(Object, Object) */
+  public Object putIfAbsent(Integer key, Object value) {
+    Object v = get(key);
+    if (v == null) {
+      v = put(key, value);
+    }
+    return v;
+  }
+
+  /* @see java.util.Map#remove(Object, Object) */
+  public boolean remove(Object key, Object value) {
+    if (!containsKey(key)) return false;
+    Object v = get(key);
+    if (value == null ? v != null : !value.equals(v)) return false;
+    remove(key);
+    return true;
+  }
+
+  /* @see java.util.Map#replace(Object, Object) */
+  public Object replace(Integer key, Object value) {
+    if (!containsKey(key)) return null;
+    return put(key, value);
+  }
+
+  /* @see java.util.Map#replace(Object, Object, Object) */
+  public boolean replace(Integer key, Object oldValue, Object newValue) {
+    if (!containsKey(key)) return false;
+    Object v = get(key);
+    if (oldValue == null ? v != null : !oldValue.equals(v)) return false;
+    put(key, newValue);
+    return true;
+  }
+
+  /* @see java.lang.Object#clone() */
+  @Override
+  public Object clone() {
+    IFD ifd = (IFD) super.clone();
+    ifd.modifications = 0;
+    ifd.copyEntries(this);
+    return ifd;
+  }
+
+  // -- IFD API methods --
+
+  /**
+   * Trims the capacity of this IFD to its number of entries.  This is
+   * useful for IFDs that are kept in memory once they have been populated.
+   */
+  public void trimToSize() {
+    if (tags.length > entries) {
+      tags = Arrays.copyOf(tags, entries);
+      values = Arrays.copyOf(values, entries);
+      numbers = Arrays.copyOf(numbers, entries);
+      kinds = Arrays.copyOf(kinds, entries);
+    }
   }
 
   // -- Tag retrieval methods --
@@ -221,7 +549,8 @@ public class IFD extends HashMap<Integer, Object> {
 
   /** Gets the given directory entry value from this IFD. */
   public Object getIFDValue(int tag) {
-    return get(new Integer(tag));
+    int index = indexOf(tag);
+    return index < 0 ? null : valueAt(index);
   }
 
   /**
@@ -229,7 +558,7 @@ public class IFD extends HashMap<Integer, Object> {
    * performing some error checking.
    */
   public Object getIFDValue(int tag, Class checkClass) throws FormatException {
-    Object value = get(new Integer(tag));
+    Object value = getIFDValue(tag);
     if (checkClass != null && value != null && !checkClass.isInstance(value)) {
       // wrap object in array of length 1, if appropriate
       Class cType = checkClass.getComponentType();
@@ -302,6 +631,8 @@ public class IFD extends HashMap<Integer, Object> {
    */
   public long getIFDLongValue(int tag, long defaultValue) throws FormatException
   {
+    int index = indexOf(tag);
+    if (index >= 0 && kinds[index] > KIND_BOOLEAN) return numbers[index];
     long value = defaultValue;
     Number number = (Number) getIFDValue(tag, Number.class);
     if (number != null) value = number.longValue();
@@ -326,6 +657,8 @@ public class IFD extends HashMap<Integer, Object> {
    * performing some error checking.
    */
   public int getIFDIntValue(int tag, int defaultValue) throws FormatException {
+    int index = indexOf(tag);
+    if (index >= 0 && kinds[index] > KIND_BOOLEAN) return (int) numbers[index];
     int value = defaultValue;
     Number number = (Number) getIFDValue(tag, Number.class);
     if (number != null) value = number.intValue();
@@ -523,8 +856,8 @@ public class IFD extends HashMap<Integer, Object> {
   }
 
   public boolean isTiled() throws FormatException {
-    Object offsets = get(new Integer(STRIP_OFFSETS));
-    Object tileWidth = get(new Integer(TILE_WIDTH));
+    Object offsets = getIFDValue(STRIP_OFFSETS);
+    Object tileWidth = getIFDValue(TILE_WIDTH);
     return offsets == null && tileWidth != null;
   }
 
@@ -934,22 +1267,22 @@ public class IFD extends HashMap<Integer, Object> {
 
   /** Adds a directory entry to this IFD. */
   public void putIFDValue(int tag, Object value) {
-    put(new Integer(tag), value);
+    put(tag, value);
   }
 
   /** Adds a directory entry of type BYTE to this IFD. */
   public void putIFDValue(int tag, short value) {
-    putIFDValue(tag, new Short(value));
+    setValueAt(slot(tag), KIND_SHORT, value);
   }
 
   /** Adds a directory entry of type SHORT to this IFD. */
   public void putIFDValue(int tag, int value) {
-    putIFDValue(tag, new Integer(value));
+    setValueAt(slot(tag), KIND_INTEGER, value);
   }
 
   /** Adds a directory entry of type LONG to this IFD. */
   public void putIFDValue(int tag, long value) {
-    putIFDValue(tag, new Long(value));
+    setValueAt(slot(tag), KIND_LONG, value);
   }
 
   // -- Debugging --
@@ -996,4 +1329,253 @@ public class IFD extends HashMap<Integer, Object> {
     return DebugTools.getFieldName(IFD.class, value);
   }
 
+  // -- Helper methods --
+
+  /** Gets the index of the given tag, or a negative number if absent. */
+  private int indexOf(int tag) {
+    return Arrays.binarySearch(tags, 0, entries, tag);
+  }
+
+  /** Gets the index of the given key, or a negative number if absent. */
+  private int indexOf(Object key) {
+    return key instanceof Integer ? indexOf(((Integer) key).intValue()) : -1;
+  }
+
+  /**
+   * Gets the key of the entry at the given index.  Index -1 is the
+   * <code>null</code> key, which is kept in the hash table.
+   */
+  private Integer keyAt(int index) {
+    return index < 0 ? null : Integer.valueOf(tags[index]);
+  }
+
+  /** Gets the value of the entry at the given index. */
+  private Object valueAt(int index) {
+    if (index < 0) return super.get(null);
+    long n = numbers[index];
+    switch (kinds[index]) {
+      case KIND_BOOLEAN:
+        return Boolean.valueOf(n != 0);
+      case KIND_BYTE:
+        return Byte.valueOf((byte) n);
+      case KIND_SHORT:
+        return Short.valueOf((short) n);
+      case KIND_INTEGER:
+        return Integer.valueOf((int) n);
+      case KIND_LONG:
+        return Long.valueOf(n);
+      default:
+        return values[index];
+    }
+  }
+
+  /** Sets the value of the entry at the given index. */
+  private void setValueAt(int index, Object value) {
+    Class c = value == null ? null : value.getClass();
+    if (c == Integer.class) {
+      setValueAt(index, KIND_INTEGER, ((Integer) value).intValue());
+    }
+    else if (c == Long.class) {
+      setValueAt(index, KIND_LONG, ((Long) value).longValue());
+    }
+    else if (c == Short.class) {
+      setValueAt(index, KIND_SHORT, ((Short) value).shortValue());
+    }
+    else if (c == Boolean.class) {
+      setValueAt(index, KIND_BOOLEAN, ((Boolean) value).booleanValue() ? 1 : 0);
+    }
+    else if (c == Byte.class) {
+      setValueAt(index, KIND_BYTE, ((Byte) value).byteValue());
+    }
+    else {
+      kinds[index] = KIND_OBJECT;
+      numbers[index] = 0;
+      values[index] = value;
+    }
+  }
+
+  /** Sets the primitive value of the entry at the given index. */
+  private void setValueAt(int index, byte kind, long value) {
+    kinds[index] = kind;
+    numbers[index] = value;
+    values[index] = null;
+  }
+
+  /** Adds or replaces an entry, returning the previous value. */
+  private Object put(int tag, Object value) {
+    int index = indexOf(tag);
+    Object previous = null;
+    if (index >= 0) {
+      previous = valueAt(index);
+    }
+    else {
+      index = insertAt(-index - 1, tag);
+    }
+    setValueAt(index, value);
+    return previous;
+  }
+
+  /** Gets the index of the given tag, inserting an entry if absent. */
+  private int slot(int tag) {
+    int index = indexOf(tag);
+    return index >= 0 ? index : insertAt(-index - 1, tag);
+  }
+
+  /** Inserts an entry for the given tag at the given index. */
+  private int insertAt(int index, int tag) {
+    if (entries == tags.length) {
+      int capacity = Math.max(entries + (entries >> 1), entries + 4);
+      tags = Arrays.copyOf(tags, capacity);
+      values = Arrays.copyOf(values, capacity);
+      numbers = Arrays.copyOf(numbers, capacity);
+      kinds = Arrays.copyOf(kinds, capacity);
+    }
+    int n = entries - index;
+    System.arraycopy(tags, index, tags, index + 1, n);
+    System.arraycopy(values, index, values, index + 1, n);
+    System.arraycopy(numbers, index, numbers, index + 1, n);
+    System.arraycopy(kinds, index, kinds, index + 1, n);
+    tags[index] = tag;
+    entries++;
+    modifications++;
+    return index;
+  }
+
+  /** Removes the entry at the given index. */
+  private void removeAt(int index) {
+    int n = entries - index - 1;
+    System.arraycopy(tags, index + 1, tags, index, n);
+    System.arraycopy(values, index + 1, values, index, n);
+    System.arraycopy(numbers, index + 1, numbers, index, n);
+    System.arraycopy(kinds, index + 1, kinds, index, n);
+    entries--;
+    values[entries] = null;
+    modifications++;
+  }
+
+  /** Replaces the entries of this IFD with copies of the given IFD's. */
+  private void copyEntries(IFD ifd) {
+    // HashMap.clone() copies every entry into the clone's hash table
+    clearTable();
+    if (ifd.containsKey(null)) {
+      putInTable(ifd.get(null));
+    }
+    entries = ifd.entries;
+    tags = Arrays.copyOf(ifd.tags, entries);
+    values = Arrays.copyOf(ifd.values, entries);
+    numbers = Arrays.copyOf(ifd.numbers, entries);
+    kinds = Arrays.copyOf(ifd.kinds, entries);
+    modifications++;
+  }
+
+  /** Empties the hash table, which only holds the <code>null</code> key. */
+  private void clearTable() {
+    super.clear();
+  }
+
+  /** Sets the value of the <code>null</code> key in the hash table. */
+  private void putInTable(Object value) {
+    super.put(null, value);
+  }
+
+  // -- Helper classes --
+
+  /** Iterator over the entries of this IFD, in ascending tag order. */
+  private abstract class EntryIterator<T> implements Iterator<T> {
+    private int next = containsKey(null) ? -1 : 0;
+    private boolean canRemove = false;
+    private int expectedModifications = modifications;
+
+    /* @see java.util.Iterator#hasNext() */
+    @Override
+    public boolean hasNext() {
+      return next < entries;
+    }
+
+    /* @see java.util.Iterator#remove() */
+    @Override
+    public void remove() {
+      if (!canRemove) throw new IllegalStateException();
+      checkModifications();
+      int last = next - 1;
+      if (last < 0) {
+        IFD.this.remove(null);
+      }
+      else {
+        removeAt(last);
+        next = last;
+      }
+      canRemove = false;
+      expectedModifications = modifications;
+    }
+
+    /**
+     * Advances to the next entry and returns its index, which is -1 for the
+     * <code>null</code> key.
+     */
+    protected int nextIndex() {
+      checkModifications();
+      if (next >= entries) throw new NoSuchElementException();
+      canRemove = true;
+      return next++;
+    }
+
+    private void checkModifications() {
+      if (modifications != expectedModifications) {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+
+  /** Directory entry that reads and writes through to this IFD. */
+  private class DirectoryEntry implements Map.Entry<Integer, Object> {
+    private final Integer key;
+
+    DirectoryEntry(Integer key) {
+      this.key = key;
+    }
+
+    /* @see java.util.Map.Entry#getKey() */
+    @Override
+    public Integer getKey() {
+      return key;
+    }
+
+    /* @see java.util.Map.Entry#getValue() */
+    @Override
+    public Object getValue() {
+      return get(key);
+    }
+
+    /* @see java.util.Map.Entry#setValue(Object) */
+    @Override
+    public Object setValue(Object value) {
+      return put(key, value);
+    }
+
+    /* @see java.lang.Object#equals(Object) */
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry)) return false;
+      Map.Entry e = (Map.Entry) o;
+      Object v = getValue();
+      return (key == null ? e.getKey() == null : key.equals(e.getKey())) &&
+        (v == null ? e.getValue() == null : v.equals(e.getValue()));
+    }
+
+    /* @see java.lang.Object#hashCode() */
+    @Override
+    public int hashCode() {
+      Object v = getValue();
+      return (key == null ? 0 : key.hashCode()) ^
+        (v == null ? 0 : v.hashCode());
+    }
+
+    /* @see java.lang.Object#toString() */
+    @Override
+    public String toString() {
+      return key + "=" + getValue();
+    }
+  }
+
 }
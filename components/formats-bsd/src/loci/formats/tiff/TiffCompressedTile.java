@@ -0,0 +1,139 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package loci.formats.tiff;
+
+/**
+ * The stored bytes of a single TIFF tile or strip, together with the
+ * metadata needed to decode them without a {@link TiffParser}.
+ *
+ * JPEG tiles include the tables from the IFD's JPEGTables entry, so that
+ * the data is a complete JPEG stream.  The samples of each pixel are
+ * interleaved, as they are stored in the file.
+ *
+ * @see TiffParser#getCompressedTile(IFD, int, int)
+ */
+public class TiffCompressedTile {
+
+  // -- Fields --
+
+  private byte[] data;
+
+  private TiffCompression compression;
+
+  private PhotoInterp photoInterp;
+
+  private int width;
+
+  private int height;
+
+  private int samplesPerPixel;
+
+  private int bitsPerSample;
+
+  private boolean littleEndian;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a new compressed tile.
+   * @param data the stored bytes of the tile
+   * @param compression the compression scheme of <code>data</code>
+   * @param photoInterp the photometric interpretation of the samples
+   * @param width the width of the tile in pixels
+   * @param height the height of the tile in pixels
+   * @param samplesPerPixel the number of interleaved samples per pixel
+   * @param bitsPerSample the number of bits in each sample
+   * @param littleEndian the byte order of decompressed samples
+   */
+  public TiffCompressedTile(byte[] data, TiffCompression compression,
+    PhotoInterp photoInterp, int width, int height, int samplesPerPixel,
+    int bitsPerSample, boolean littleEndian)
+  {
+    this.data = data;
+    this.compression = compression;
+    this.photoInterp = photoInterp;
+    this.width = width;
+    this.height = height;
+    this.samplesPerPixel = samplesPerPixel;
+    this.bitsPerSample = bitsPerSample;
+    this.littleEndian = littleEndian;
+  }
+
+  // -- TiffCompressedTile API methods --
+
+  /** Returns the stored bytes of the tile. */
+  public byte[] getData() {
+    return data;
+  }
+
+  /** Returns the compression scheme of the stored bytes. */
+  public TiffCompression getCompression() {
+    return compression;
+  }
+
+  /** Returns the photometric interpretation of the samples. */
+  public PhotoInterp getPhotometricInterpretation() {
+    return photoInterp;
+  }
+
+  /** Returns the width of the tile in pixels. */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Returns the height of the tile in pixels.  This is less than the tile
+   * height of the IFD for the last strip of an image.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /** Returns the number of interleaved samples in each pixel. */
+  public int getSamplesPerPixel() {
+    return samplesPerPixel;
+  }
+
+  /** Returns the number of bits in each sample. */
+  public int getBitsPerSample() {
+    return bitsPerSample;
+  }
+
+  /**
+   * Returns true if multi-byte samples are little-endian once the tile is
+   * decompressed.
+   */
+  public boolean isLittleEndian() {
+    return littleEndian;
+  }
+
+}
@@ -42,6 +42,7 @@ import loci.common.enumeration.CodedEnum;
 import loci.common.enumeration.EnumException;
 import loci.formats.FormatException;
 import loci.formats.UnsupportedCompressionException;
+import loci.formats.codec.BaseCodec;
 import loci.formats.codec.Codec;
 import loci.formats.codec.CodecOptions;
 import loci.formats.codec.JPEG2000Codec;
@@ -200,6 +201,18 @@ public enum TiffCompression implements CodedEnum {
   private static final Logger LOGGER =
     LoggerFactory.getLogger(TiffCompression.class);
 
+  /** Predictor value for data stored without differencing. */
+  public static final int PREDICTOR_NONE = 1;
+
+  /** Predictor value for horizontal differencing of integer samples. */
+  public static final int PREDICTOR_HORIZONTAL = 2;
+
+  /**
+   * Predictor value for horizontal differencing of the bytes of floating
+   * point samples, as described in Adobe Photoshop TIFF Technical Note 3.
+   */
+  public static final int PREDICTOR_FLOATING_POINT = 3;
+
   /** Code for the TIFF compression in the actual TIFF file. */
   private int code;
 
@@ -279,32 +292,109 @@ public enum TiffCompression implements CodedEnum {
     return codec.decompress(input, options);
   }
 
+  /**
+   * Decodes a strip of data into the given buffer.  Codecs that do not
+   * extend {@link BaseCodec} decode into a new array, which is then copied.
+   * @return the number of bytes written to <code>output</code>
+   * @see BaseCodec#decompress(byte[], int, int, byte[], int, int,
+   *   CodecOptions)
+   */
+  public int decompress(byte[] input, int inputOffset, int inputLength,
+    byte[] output, int outputOffset, int outputCapacity, CodecOptions options)
+    throws FormatException, IOException
+  {
+    if (codec == null) {
+      throw new UnsupportedCompressionException(
+          "Sorry, " + getCodecName() + " compression mode is not supported");
+    }
+    if (codec instanceof BaseCodec) {
+      return ((BaseCodec) codec).decompress(input, inputOffset, inputLength,
+        output, outputOffset, outputCapacity, options);
+    }
+    byte[] data = input;
+    if (inputOffset != 0 || inputLength != input.length) {
+      data = new byte[inputLength];
+      System.arraycopy(input, inputOffset, data, 0, inputLength);
+    }
+    byte[] decompressed = codec.decompress(data, options);
+    if (decompressed == null) {
+      return 0;
+    }
+    int length = Math.min(decompressed.length, outputCapacity);
+    System.arraycopy(decompressed, 0, output, outputOffset, length);
+    return length;
+  }
+
   /** Undoes in-place differencing according to the given predictor value. */
   public static void undifference(byte[] input, IFD ifd)
     throws FormatException
   {
-    int predictor = ifd.getIFDIntValue(IFD.PREDICTOR, 1);
-    if (predictor == 2) {
-      LOGGER.debug("reversing horizontal differencing");
-      int[] bitsPerSample = ifd.getBitsPerSample();
-      int len = bitsPerSample.length;
-      long width = ifd.getImageWidth();
-      boolean little = ifd.isLittleEndian();
-      int planarConfig = ifd.getPlanarConfiguration();
+    undifference(input, input.length, ifd);
+  }
 
+  /**
+   * Undoes in-place differencing of the first <code>length</code> bytes of
+   * the given array, according to the given predictor value.
+   */
+  public static void undifference(byte[] input, int length, IFD ifd)
+    throws FormatException
+  {
+    int predictor = ifd.getIFDIntValue(IFD.PREDICTOR, PREDICTOR_NONE);
+    if (predictor == PREDICTOR_HORIZONTAL) {
+      LOGGER.debug("reversing horizontal differencing");
       int bytes = ifd.getBytesPerSample()[0];
-
-      if (planarConfig == 2 || bitsPerSample[len - 1] == 0) len = 1;
-      len *= bytes;
-
-      for (int b=0; b<=input.length-bytes; b+=bytes) {
-        if (b / len % width == 0) continue;
-        int value = DataTools.bytesToInt(input, b, bytes, little);
-        value += DataTools.bytesToInt(input, b - len, bytes, little);
-        DataTools.unpackBytes(value, input, b, bytes, little);
+      int stride = getPixelStride(ifd) * bytes;
+      int rowBytes = getRowBytes(ifd, stride);
+      boolean little = ifd.isLittleEndian();
+      for (int row=0; row<length; row+=rowBytes) {
+        int end = Math.min(row + rowBytes, length);
+        switch (bytes) {
+          case 1:
+            for (int b=row+stride; b<end; b++) {
+              input[b] += input[b - stride];
+            }
+            break;
+          case 2:
+            accumulateShorts(input, row + stride, end, stride, little);
+            break;
+          case 4:
+            accumulateInts(input, row + stride, end, stride, little);
+            break;
+          default:
+            for (int b=row+stride; b<=end-bytes; b+=bytes) {
+              int value = DataTools.bytesToInt(input, b, bytes, little);
+              value += DataTools.bytesToInt(input, b - stride, bytes, little);
+              DataTools.unpackBytes(value, input, b, bytes, little);
+            }
+        }
+      }
+    }
+    else if (predictor == PREDICTOR_FLOATING_POINT) {
+      LOGGER.debug("reversing floating point differencing");
+      int bytes = getFloatingPointBytes(ifd);
+      int stride = getPixelStride(ifd);
+      int rowBytes = getRowBytes(ifd, stride * bytes);
+      boolean little = ifd.isLittleEndian();
+      byte[] row = new byte[rowBytes];
+      int samples = rowBytes / bytes;
+      for (int start=0; start+rowBytes<=length; start+=rowBytes) {
+        int end = start + rowBytes;
+        for (int b=start+stride; b<end; b++) {
+          input[b] += input[b - stride];
+        }
+        // the bytes of each sample are stored as planes, most significant
+        // byte first, whatever the byte order of the file
+        System.arraycopy(input, start, row, 0, rowBytes);
+        for (int plane=0; plane<bytes; plane++) {
+          int b = start + (little ? bytes - plane - 1 : plane);
+          int src = plane * samples;
+          for (int sample=0; sample<samples; sample++, b+=bytes) {
+            input[b] = row[src + sample];
+          }
+        }
       }
     }
-    else if (predictor != 1) {
+    else if (predictor != PREDICTOR_NONE) {
       throw new FormatException("Unknown Predictor (" + predictor + ")");
     }
   }
@@ -358,26 +448,185 @@ public enum TiffCompression implements CodedEnum {
 
   /** Performs in-place differencing according to the given predictor value. */
   public static void difference(byte[] input, IFD ifd) throws FormatException {
-    int predictor = ifd.getIFDIntValue(IFD.PREDICTOR, 1);
-    if (predictor == 2) {
+    int predictor = ifd.getIFDIntValue(IFD.PREDICTOR, PREDICTOR_NONE);
+    if (predictor == PREDICTOR_HORIZONTAL) {
       LOGGER.debug("performing horizontal differencing");
-      int[] bitsPerSample = ifd.getBitsPerSample();
-      long width = ifd.getImageWidth();
-      boolean little = ifd.isLittleEndian();
-      int planarConfig = ifd.getPlanarConfiguration();
       int bytes = ifd.getBytesPerSample()[0];
-      int len = bytes * (planarConfig == 2 ? 1 : bitsPerSample.length);
-
-      for (int b=input.length-bytes; b>=0; b-=bytes) {
-        if (b / len % width == 0) continue;
-        int value = DataTools.bytesToInt(input, b, bytes, little);
-        value -= DataTools.bytesToInt(input, b - len, bytes, little);
-        DataTools.unpackBytes(value, input, b, bytes, little);
+      int stride = getPixelStride(ifd) * bytes;
+      int rowBytes = getRowBytes(ifd, stride);
+      boolean little = ifd.isLittleEndian();
+      for (int row=0; row<input.length; row+=rowBytes) {
+        int end = Math.min(row + rowBytes, input.length);
+        switch (bytes) {
+          case 1:
+            for (int b=end-1; b>=row+stride; b--) {
+              input[b] -= input[b - stride];
+            }
+            break;
+          case 2:
+            differenceShorts(input, row + stride, end, stride, little);
+            break;
+          case 4:
+            differenceInts(input, row + stride, end, stride, little);
+            break;
+          default:
+            for (int b=end-(end-row)%bytes-bytes; b>=row+stride; b-=bytes) {
+              int value = DataTools.bytesToInt(input, b, bytes, little);
+              value -= DataTools.bytesToInt(input, b - stride, bytes, little);
+              DataTools.unpackBytes(value, input, b, bytes, little);
+            }
+        }
       }
     }
-    else if (predictor != 1) {
+    else if (predictor == PREDICTOR_FLOATING_POINT) {
+      LOGGER.debug("performing floating point differencing");
+      int bytes = getFloatingPointBytes(ifd);
+      int stride = getPixelStride(ifd);
+      int rowBytes = getRowBytes(ifd, stride * bytes);
+      boolean little = ifd.isLittleEndian();
+      byte[] row = new byte[rowBytes];
+      int samples = rowBytes / bytes;
+      for (int start=0; start+rowBytes<=input.length; start+=rowBytes) {
+        System.arraycopy(input, start, row, 0, rowBytes);
+        for (int plane=0; plane<bytes; plane++) {
+          int b = little ? bytes - plane - 1 : plane;
+          int dest = start + plane * samples;
+          for (int sample=0; sample<samples; sample++, b+=bytes) {
+            input[dest + sample] = row[b];
+          }
+        }
+        for (int b=start+rowBytes-1; b>=start+stride; b--) {
+          input[b] -= input[b - stride];
+        }
+      }
+    }
+    else if (predictor != PREDICTOR_NONE) {
       throw new FormatException("Unknown Predictor (" + predictor + ")");
     }
   }
 
+  // -- Helper methods --
+
+  /** Returns the number of interleaved samples in each pixel of a row. */
+  private static int getPixelStride(IFD ifd) throws FormatException {
+    int[] bitsPerSample = ifd.getBitsPerSample();
+    if (ifd.getPlanarConfiguration() == 2 ||
+      bitsPerSample[bitsPerSample.length - 1] == 0)
+    {
+      return 1;
+    }
+    return bitsPerSample.length;
+  }
+
+  /**
+   * Returns the number of bytes in each row of a strip or tile, whose pixels
+   * are <code>pixelBytes</code> bytes long.
+   */
+  private static int getRowBytes(IFD ifd, int pixelBytes)
+    throws FormatException
+  {
+    return (int) Math.min(Integer.MAX_VALUE, ifd.getTileWidth() * pixelBytes);
+  }
+
+  /**
+   * Returns the number of bytes in each floating point sample, checking that
+   * the samples can be used with the floating point predictor.
+   */
+  private static int getFloatingPointBytes(IFD ifd) throws FormatException {
+    int bits = ifd.getBitsPerSample()[0];
+    if (bits % 8 != 0 || bits == 0) {
+      throw new FormatException("Floating point predictor is not supported " +
+        "with " + bits + " bits per sample");
+    }
+    return bits / 8;
+  }
+
+  /**
+   * Adds each 16-bit sample between <code>start</code> and <code>end</code>
+   * to the sample <code>stride</code> bytes before it.
+   */
+  private static void accumulateShorts(byte[] input, int start, int end,
+    int stride, boolean little)
+  {
+    int lo = little ? 0 : 1;
+    int hi = 1 - lo;
+    for (int b=start; b<=end-2; b+=2) {
+      int p = b - stride;
+      int value = ((input[b + hi] & 0xff) << 8) | (input[b + lo] & 0xff);
+      value += ((input[p + hi] & 0xff) << 8) | (input[p + lo] & 0xff);
+      input[b + lo] = (byte) value;
+      input[b + hi] = (byte) (value >> 8);
+    }
+  }
+
+  /**
+   * Subtracts from each 16-bit sample between <code>start</code> and
+   * <code>end</code> the sample <code>stride</code> bytes before it, working
+   * backwards.
+   */
+  private static void differenceShorts(byte[] input, int start, int end,
+    int stride, boolean little)
+  {
+    int lo = little ? 0 : 1;
+    int hi = 1 - lo;
+    for (int b=end-(end-start)%2-2; b>=start; b-=2) {
+      int p = b - stride;
+      int value = ((input[b + hi] & 0xff) << 8) | (input[b + lo] & 0xff);
+      value -= ((input[p + hi] & 0xff) << 8) | (input[p + lo] & 0xff);
+      input[b + lo] = (byte) value;
+      input[b + hi] = (byte) (value >> 8);
+    }
+  }
+
+  /**
+   * Adds each 32-bit sample between <code>start</code> and <code>end</code>
+   * to the sample <code>stride</code> bytes before it.
+   */
+  private static void accumulateInts(byte[] input, int start, int end,
+    int stride, boolean little)
+  {
+    for (int b=start; b<=end-4; b+=4) {
+      int value = getInt(input, b, little) + getInt(input, b - stride, little);
+      putInt(input, b, value, little);
+    }
+  }
+
+  /**
+   * Subtracts from each 32-bit sample between <code>start</code> and
+   * <code>end</code> the sample <code>stride</code> bytes before it, working
+   * backwards.
+   */
+  private static void differenceInts(byte[] input, int start, int end,
+    int stride, boolean little)
+  {
+    for (int b=end-(end-start)%4-4; b>=start; b-=4) {
+      int value = getInt(input, b, little) - getInt(input, b - stride, little);
+      putInt(input, b, value, little);
+    }
+  }
+
+  private static int getInt(byte[] input, int b, boolean little) {
+    if (little) {
+      return (input[b] & 0xff) | ((input[b + 1] & 0xff) << 8) |
+        ((input[b + 2] & 0xff) << 16) | (input[b + 3] << 24);
+    }
+    return (input[b] << 24) | ((input[b + 1] & 0xff) << 16) |
+      ((input[b + 2] & 0xff) << 8) | (input[b + 3] & 0xff);
+  }
+
+  private static void putInt(byte[] input, int b, int value, boolean little) {
+    if (little) {
+      input[b] = (byte) value;
+      input[b + 1] = (byte) (value >> 8);
+      input[b + 2] = (byte) (value >> 16);
+      input[b + 3] = (byte) (value >> 24);
+    }
+    else {
+      input[b] = (byte) (value >> 24);
+      input[b + 1] = (byte) (value >> 16);
+      input[b + 2] = (byte) (value >> 8);
+      input[b + 3] = (byte) value;
+    }
+  }
+
 }
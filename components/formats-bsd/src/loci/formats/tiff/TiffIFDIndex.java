@@ -0,0 +1,270 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.tiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Offsets of the IFDs in a TIFF file.  Only the offsets are indexed; the
+ * IFDs themselves are still read from the TIFF file when they are needed.
+ *
+ * An index can be saved to a sidecar file so that reopening a file with many
+ * IFDs does not need to walk the IFD chain again.  Sidecar files are named
+ * after the TIFF file with a leading '.' and a <code>.ifdindex</code>
+ * extension, and are stored next to the TIFF file unless another directory
+ * is set with {@link #setDirectory(File)} or the
+ * <code>tiffIFDIndexDirectory</code> system property.  A sidecar file is
+ * ignored if the size or modification time of the TIFF file has changed
+ * since it was written.
+ *
+ * @see TiffParser#setUseIFDIndex(boolean)
+ */
+public class TiffIFDIndex {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(TiffIFDIndex.class);
+
+  /** Identifies sidecar index files. */
+  private static final int MAGIC = 0x54494458; // "TIDX"
+
+  /** Version of the sidecar file layout. */
+  private static final int VERSION = 2;
+
+  /**
+   * Size of the smallest possible IFD: an entry count and the offset of the
+   * next IFD.
+   */
+  private static final int MIN_IFD_SIZE = 6;
+
+  // -- Static fields --
+
+  /** Directory in which sidecar files are stored, or null. */
+  private static File directory;
+
+  static {
+    String dir = System.getProperty("tiffIFDIndexDirectory");
+    if (dir != null) {
+      directory = new File(dir);
+    }
+  }
+
+  // -- Fields --
+
+  /** Offsets of the IFDs, in chain order. */
+  private long[] offsets;
+
+  /** Number of IFDs. */
+  private int count;
+
+  // -- Constructors --
+
+  /** Constructs an empty index. */
+  TiffIFDIndex() {
+    this(new long[16]);
+    count = 0;
+  }
+
+  private TiffIFDIndex(long[] offsets) {
+    this.offsets = offsets;
+    this.count = offsets.length;
+  }
+
+  // -- TiffIFDIndex API methods --
+
+  /** Gets the number of IFDs in the index. */
+  public int getIFDCount() {
+    return count;
+  }
+
+  /** Gets the offsets of the IFDs, in chain order. */
+  public long[] getOffsets() {
+    return Arrays.copyOf(offsets, count);
+  }
+
+  /**
+   * Sets the directory in which sidecar files are stored, or null to store
+   * them next to the TIFF files.
+   */
+  public static synchronized void setDirectory(File dir) {
+    directory = dir;
+  }
+
+  /** Gets the directory in which sidecar files are stored, or null. */
+  public static synchronized File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Gets the sidecar file for the given TIFF file.  Within the directory set
+   * by {@link #setDirectory(File)}, the full path of the TIFF file is
+   * reproduced.
+   */
+  public static File getIndexFile(String path) {
+    File file = new File(path).getAbsoluteFile();
+    File dir = getDirectory();
+    File parent = file.getParentFile();
+    if (dir != null) {
+      // strip the root (or drive letter) from the absolute path
+      String p = file.getParent();
+      p = p.substring(p.indexOf(File.separator) + 1);
+      parent = new File(dir, p);
+    }
+    return new File(parent, "." + file.getName() + ".ifdindex");
+  }
+
+  /**
+   * Reads the sidecar index of the given TIFF file.
+   * @param path The path of the TIFF file.
+   * @param header Values describing the layout of the file, such as the
+   *   byte order and the offset of the first IFD; the sidecar file is only
+   *   used if they match the values it was written with.
+   * @return the index, or null if there is no sidecar file, or if it is
+   *   invalid or out of date.
+   */
+  static TiffIFDIndex read(String path, long[] header) {
+    File file = new File(path);
+    File indexFile = getIndexFile(path);
+    if (!file.isFile() || !indexFile.isFile()) {
+      return null;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(indexFile)));
+      if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+        in.readLong() != file.length() ||
+        in.readLong() != file.lastModified())
+      {
+        LOGGER.debug("IFD index {} is out of date", indexFile);
+        return null;
+      }
+      for (long h : header) {
+        if (in.readLong() != h) {
+          return null;
+        }
+      }
+      int n = in.readInt();
+      // a corrupt count must not allocate more than the files can hold
+      long headerBytes = 28 + 8L * header.length;
+      if (n < 0 || n > (indexFile.length() - headerBytes) / 8 ||
+        n > file.length() / MIN_IFD_SIZE)
+      {
+        LOGGER.debug("IFD index {} is corrupt", indexFile);
+        return null;
+      }
+      long[] offsets = new long[n];
+      for (int i=0; i<offsets.length; i++) {
+        offsets[i] = in.readLong();
+      }
+      return new TiffIFDIndex(offsets);
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not read IFD index " + indexFile, e);
+      return null;
+    }
+    finally {
+      if (in != null) {
+        try {
+          in.close();
+        }
+        catch (IOException e) { }
+      }
+    }
+  }
+
+  /**
+   * Saves this index as the sidecar index of the given TIFF file.  The
+   * sidecar file is written under a temporary name and then renamed, so that
+   * concurrent readers never see a partial index.
+   * @param path The path of the TIFF file.
+   * @param header See {@link #read(String, long[])}.
+   */
+  void write(String path, long[] header) throws IOException {
+    File file = new File(path);
+    File indexFile = getIndexFile(path);
+    File dir = indexFile.getParentFile();
+    if (!file.isFile() || (!dir.exists() && !dir.mkdirs())) {
+      return;
+    }
+    File tmp = File.createTempFile(indexFile.getName(), ".tmp", dir);
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(file.length());
+      out.writeLong(file.lastModified());
+      for (long h : header) {
+        out.writeLong(h);
+      }
+      out.writeInt(count);
+      for (int i=0; i<count; i++) {
+        out.writeLong(offsets[i]);
+      }
+    }
+    finally {
+      out.close();
+    }
+    if (!tmp.renameTo(indexFile)) {
+      indexFile.delete();
+      if (!tmp.renameTo(indexFile)) {
+        tmp.delete();
+        throw new IOException("Could not write " + indexFile);
+      }
+    }
+  }
+
+  // -- Package-private methods --
+
+  /** Adds the offset of the next IFD in the chain to the index. */
+  void add(long offset) {
+    if (count == offsets.length) {
+      offsets = Arrays.copyOf(offsets, offsets.length * 2);
+    }
+    offsets[count++] = offset;
+  }
+
+}
@@ -33,10 +33,21 @@
 package loci.formats.tiff;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import loci.common.ByteArrayHandle;
 import loci.common.Constants;
@@ -46,6 +57,7 @@ import loci.common.Region;
 import loci.common.enumeration.EnumException;
 import loci.formats.FormatException;
 import loci.formats.codec.CodecOptions;
+import loci.formats.codec.JPEG2000CodecOptions;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,6 +77,68 @@ public class TiffParser {
   private static final Logger LOGGER =
     LoggerFactory.getLogger(TiffParser.class);
 
+  /** Size of the blocks read when walking the IFD chain. */
+  private static final int SCAN_BLOCK_SIZE = 256 * 1024;
+
+  /**
+   * Maximum size of the buffer used to separate the channels of
+   * uncompressed, interleaved samples.
+   */
+  private static final int INTERLEAVED_BUFFER_SIZE = 1024 * 1024;
+
+  // -- Static fields --
+
+  /**
+   * Executor used by newly constructed parsers to decode tiles in parallel,
+   * or null if tiles are decoded on the calling thread.
+   */
+  private static ExecutorService defaultExecutor;
+
+  /**
+   * Cache of decoded tiles used by newly constructed parsers, or null if
+   * decoded tiles are not cached.
+   */
+  private static TiffTileCache defaultTileCache;
+
+  /** Whether newly constructed parsers use sidecar IFD indexes. */
+  private static boolean defaultUseIFDIndex =
+    Boolean.parseBoolean(System.getProperty("tiffIFDIndex"));
+
+  static {
+    String threads = System.getProperty("tiffParserThreads");
+    if (threads != null) {
+      try {
+        int count = Integer.parseInt(threads);
+        if (count > 1) {
+          defaultExecutor = Executors.newFixedThreadPool(count,
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TiffParser");
+                t.setDaemon(true);
+                return t;
+              }
+            });
+        }
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid tiffParserThreads: {}", threads);
+      }
+    }
+    String cacheSize = System.getProperty("tiffTileCacheSize");
+    if (cacheSize != null) {
+      try {
+        long size = Long.parseLong(cacheSize);
+        if (size > 0) {
+          defaultTileCache = new TiffTileCache(size);
+        }
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid tiffTileCacheSize: {}", cacheSize);
+      }
+    }
+  }
+
   // -- Fields --
 
   /** Input source from which to parse TIFF data. */
@@ -73,6 +147,15 @@ public class TiffParser {
   /** Cached tile buffer to avoid re-allocations when reading tiles. */
   private byte[] cachedTileBuffer;
 
+  /** Buffer reused for compressed tiles read on the calling thread. */
+  private byte[] compressedTileBuffer;
+
+  /** Buffer reused for tiles that must be unpacked after decompression. */
+  private byte[] decodedTileBuffer;
+
+  /** Buffer reused for compressed tiles prefixed with their JPEG tables. */
+  private byte[] jpegTileBuffer;
+
   /** Whether or not the TIFF file contains BigTIFF data. */
   private boolean bigTiff;
 
@@ -96,6 +179,15 @@ public class TiffParser {
   /** Codec options to be used when decoding compressed pixel data. */
   private CodecOptions codecOptions = CodecOptions.getDefaultOptions();
 
+  /** Executor used to decode tiles in parallel, or null. */
+  private ExecutorService executor = defaultExecutor;
+
+  /** Cache of decoded tiles, or null. */
+  private TiffTileCache tileCache = defaultTileCache;
+
+  /** Whether to read and save sidecar IFD indexes. */
+  private boolean useIFDIndex = defaultUseIFDIndex;
+
   // -- Constructors --
 
   /** Constructs a new TIFF parser from the given file name. */
@@ -142,6 +234,89 @@ public class TiffParser {
     return codecOptions;
   }
 
+  /**
+   * Sets the executor used by newly constructed parsers to decode tiles in
+   * parallel.  Parallel decoding can also be enabled for all parsers by
+   * setting the <code>tiffParserThreads</code> system property to a number
+   * of threads greater than 1.
+   * @see #setExecutor(ExecutorService)
+   */
+  public static synchronized void setDefaultExecutor(
+    ExecutorService executor)
+  {
+    defaultExecutor = executor;
+  }
+
+  /**
+   * Sets the executor used to decode tiles in parallel when reading a region
+   * that intersects several tiles or strips.  Compressed tiles are read on
+   * the calling thread, decompressed and unpacked on the executor, and then
+   * copied into the destination in the same order as when decoding serially.
+   * @param executor The executor to use, or null to decode all tiles on the
+   *   calling thread (the default).
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /** Gets the executor used to decode tiles in parallel, or null. */
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Sets the cache of decoded tiles used by newly constructed parsers.
+   * A process-wide cache can also be enabled by setting the
+   * <code>tiffTileCacheSize</code> system property to the maximum number of
+   * bytes to cache.
+   * @see #setTileCache(TiffTileCache)
+   */
+  public static synchronized void setDefaultTileCache(TiffTileCache cache) {
+    defaultTileCache = cache;
+  }
+
+  /** Gets the cache of decoded tiles used by newly constructed parsers. */
+  public static synchronized TiffTileCache getDefaultTileCache() {
+    return defaultTileCache;
+  }
+
+  /**
+   * Sets the cache in which decoded tiles and strips are kept, so that
+   * reading overlapping regions does not decompress the same tiles again.
+   * The cache may be shared with parsers reading the same file or other
+   * files.  Tiles are only cached if the stream was opened from a file path.
+   * @param cache The cache to use, or null to disable caching (the default).
+   */
+  public void setTileCache(TiffTileCache cache) {
+    tileCache = cache;
+  }
+
+  /** Gets the cache of decoded tiles, or null. */
+  public TiffTileCache getTileCache() {
+    return tileCache;
+  }
+
+  /**
+   * Sets whether newly constructed parsers use sidecar IFD indexes.
+   * Sidecar indexes can also be enabled for all parsers by setting the
+   * <code>tiffIFDIndex</code> system property to true.
+   * @see #setUseIFDIndex(boolean)
+   */
+  public static synchronized void setDefaultUseIFDIndex(boolean use) {
+    defaultUseIFDIndex = use;
+  }
+
+  /**
+   * Sets whether the offsets of the IFDs are read from, and saved to, a
+   * sidecar index next to the file, so that reopening a file does not walk
+   * the IFD chain again.  Sidecar indexes are only used for streams opened
+   * from a file path.
+   * @see TiffIFDIndex
+   */
+  public void setUseIFDIndex(boolean useIFDIndex) {
+    this.useIFDIndex = useIFDIndex;
+  }
+
   /** Sets whether or not IFD entries should be cached. */
   public void setDoCaching(boolean doCaching) {
     this.doCaching = doCaching;
@@ -223,28 +398,53 @@ public class TiffParser {
       IFD ifd = getIFD(offset);
       if (ifd == null) continue;
       if (ifd.containsKey(IFD.IMAGE_WIDTH)) ifds.add(ifd);
-      long[] subOffsets = null;
-      try {
-        if (!doCaching && ifd.containsKey(IFD.SUB_IFD)) {
-          fillInIFD(ifd);
-        }
-        subOffsets = ifd.getIFDLongArray(IFD.SUB_IFD);
-      }
-      catch (FormatException e) { }
-      if (subOffsets != null) {
-        for (long subOffset : subOffsets) {
-          IFD sub = getIFD(subOffset);
-          if (sub != null) {
-            ifds.add(sub);
-          }
-        }
-      }
+      ifds.addAll(getSubIFDs(ifd));
     }
     if (doCaching) ifdList = ifds;
 
     return ifds;
   }
 
+  /**
+   * Returns the IFDs in the main IFD chain, without the IFDs referenced
+   * through {@link IFD#SUB_IFD}.
+   */
+  public IFDList getMainIFDs() throws IOException {
+    long[] offsets = getIFDOffsets();
+    IFDList ifds = new IFDList();
+    for (long offset : offsets) {
+      IFD ifd = getIFD(offset);
+      if (ifd != null && ifd.containsKey(IFD.IMAGE_WIDTH)) ifds.add(ifd);
+    }
+    return ifds;
+  }
+
+  /**
+   * Returns the IFDs referenced by the {@link IFD#SUB_IFD} tag of the given
+   * IFD, in the order in which they are listed.  The list is empty if the
+   * IFD has no SubIFDs.
+   */
+  public IFDList getSubIFDs(IFD ifd) throws IOException {
+    IFDList subIFDs = new IFDList();
+    long[] subOffsets = null;
+    try {
+      if (!doCaching && ifd.containsKey(IFD.SUB_IFD)) {
+        fillInIFD(ifd);
+      }
+      subOffsets = ifd.getIFDLongArray(IFD.SUB_IFD);
+    }
+    catch (FormatException e) { }
+    if (subOffsets != null) {
+      for (long subOffset : subOffsets) {
+        IFD sub = getIFD(subOffset);
+        if (sub != null) {
+          subIFDs.add(sub);
+        }
+      }
+    }
+    return subIFDs;
+  }
+
   /** Returns thumbnail IFDs. */
   public IFDList getThumbnailIFDs() throws IOException {
     IFDList ifds = getIFDs();
@@ -291,27 +491,39 @@ public class TiffParser {
 
   /** Gets the offsets to every IFD in the file. */
   public long[] getIFDOffsets() throws IOException {
-    // check TIFF header
-    int bytesPerEntry = bigTiff ? TiffConstants.BIG_TIFF_BYTES_PER_ENTRY :
-      TiffConstants.BYTES_PER_ENTRY;
+    long[] f = getIFDIndex().getOffsets();
+    ifdCount = f.length;
+    return f;
+  }
 
-    final List<Long> offsets = new ArrayList<Long>();
-    long offset = getFirstOffset();
-    while (offset > 0 && offset < in.length()) {
-      in.seek(offset);
-      offsets.add(offset);
-      int nEntries = bigTiff ? (int) in.readLong() : in.readUnsignedShort();
-      in.skipBytes(nEntries * bytesPerEntry);
-      offset = getNextOffset(offset);
+  /**
+   * Gets the offsets to every IFD in the file.  If sidecar indexes are enabled, an up to
+   * date sidecar index is used instead of walking the IFD chain, and the
+   * sidecar index is saved otherwise.
+   * @see #setUseIFDIndex(boolean)
+   */
+  public TiffIFDIndex getIFDIndex() throws IOException {
+    long firstOffset = getFirstOffset();
+    String file = useIFDIndex ? in.getFileName() : null;
+    long[] header = null;
+    if (file != null) {
+      header = new long[] {in.isLittleEndian() ? 1 : 0, bigTiff ? 1 : 0,
+        fakeBigTiff ? 1 : 0, firstOffset};
+      TiffIFDIndex index = TiffIFDIndex.read(file, header);
+      if (index != null) {
+        return index;
+      }
     }
-
-    long[] f = new long[offsets.size()];
-    for (int i=0; i<f.length; i++) {
-      f[i] = offsets.get(i).longValue();
+    TiffIFDIndex index = scanIFDs(firstOffset);
+    if (file != null) {
+      try {
+        index.write(file, header);
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not save IFD index for " + file, e);
+      }
     }
-    ifdCount = f.length;
-
-    return f;
+    return index;
   }
 
   /**
@@ -389,12 +601,27 @@ public class TiffParser {
       TiffConstants.BIG_TIFF_BYTES_PER_ENTRY : TiffConstants.BYTES_PER_ENTRY;
     int baseOffset = bigTiff ? 8 : 2;
 
-    for (int i=0; i<numEntries; i++) {
-      in.seek(offset + baseOffset + bytesPerEntry * i);
+    // read all of the entries at once, unless the directory is truncated
+    byte[] directory = null;
+    long directorySize = numEntries * bytesPerEntry;
+    if (!fakeBigTiff && directorySize <= Integer.MAX_VALUE &&
+      offset + baseOffset + directorySize <= in.length())
+    {
+      directory = new byte[(int) directorySize];
+      in.readFully(directory);
+    }
 
+    for (int i=0; i<numEntries; i++) {
+      long entryOffset = offset + baseOffset + bytesPerEntry * i;
       TiffIFDEntry entry = null;
       try {
-        entry = readTiffIFDEntry();
+        if (directory == null) {
+          in.seek(entryOffset);
+          entry = readTiffIFDEntry();
+        }
+        else {
+          entry = readTiffIFDEntry(directory, bytesPerEntry * i, entryOffset);
+        }
       }
       catch (EnumException e) {
         LOGGER.debug("", e);
@@ -405,9 +632,14 @@ public class TiffParser {
       long pointer = entry.getValueOffset();
       int bpe = entry.getType().getBytesPerElement();
 
+      // position of the stream after reading the entry
+      long entryEnd = entryOffset + (bigTiff ? 12 : 8);
+      if (count * bpe > (bigTiff ? 8 : 4)) {
+        entryEnd += bigTiff || fakeBigTiff ? 8 : 4;
+      }
+
       if (count < 0 || bpe <= 0) {
         // invalid data
-        in.skipBytes(bytesPerEntry - 4 - (bigTiff ? 8 : 4));
         continue;
       }
       Object value = null;
@@ -422,7 +654,7 @@ public class TiffParser {
       }
       if (count < 0 || count > in.length()) break;
 
-      if (pointer != in.getFilePointer() && !doCaching) {
+      if (pointer != entryEnd && !doCaching) {
         value = entry;
       }
       else value = getIFDValue(entry);
@@ -440,6 +672,7 @@ public class TiffParser {
       in.seek(in.length());
     }
 
+    ifd.trimToSize();
     return ifd;
   }
 
@@ -654,121 +887,128 @@ public class TiffParser {
   public byte[] getTile(IFD ifd, byte[] buf, int row, int col)
     throws FormatException, IOException
   {
-    byte[] jpegTable = (byte[]) ifd.getIFDValue(IFD.JPEG_TABLES);
-
     codecOptions.interleaved = true;
     codecOptions.littleEndian = ifd.isLittleEndian();
 
-    long tileWidth = ifd.getTileWidth();
-    long tileLength = ifd.getTileLength();
-    int samplesPerPixel = ifd.getSamplesPerPixel();
-    int planarConfig = ifd.getPlanarConfiguration();
-    TiffCompression compression = ifd.getCompression();
-
-    long numTileCols = ifd.getTilesPerRow();
-
-    int pixel = ifd.getBytesPerSample()[0];
-    int effectiveChannels = planarConfig == 2 ? 1 : samplesPerPixel;
-
-    if (ifd.get(IFD.STRIP_BYTE_COUNTS) instanceof OnDemandLongArray) {
-      OnDemandLongArray counts = (OnDemandLongArray) ifd.get(IFD.STRIP_BYTE_COUNTS);
-      if (counts != null && counts.getStream() == null) {
-        counts.setStream(in);
+    if (buf == null) buf = new byte[getTileSize(ifd)];
+    if (getCacheFile() != null) {
+      byte[] cached = getCachedTile(ifd, getImageOffset(ifd),
+        getTileDecoding(ifd, codecOptions), row, col);
+      if (cached != null) {
+        System.arraycopy(
+          cached, 0, buf, 0, Math.min(cached.length, buf.length));
       }
+      return buf;
     }
-    if (ifd.get(IFD.TILE_BYTE_COUNTS) instanceof OnDemandLongArray) {
-      OnDemandLongArray counts = (OnDemandLongArray) ifd.get(IFD.TILE_BYTE_COUNTS);
-      if (counts != null && counts.getStream() == null) {
-        counts.setStream(in);
-      }
+    int length = readTileToBuffer(ifd, row, col);
+    if (length < 0) {
+      return buf;
     }
+    decodeTile(ifd, compressedTileBuffer, length, buf,
+      getTileChannel(ifd, row), codecOptions, true);
+    return buf;
+  }
 
-    long[] stripByteCounts = ifd.getStripByteCounts();
-    long[] rowsPerStrip = ifd.getRowsPerStrip();
-
-    int offsetIndex = (int) (row * numTileCols + col);
-    int countIndex = offsetIndex;
-    if (equalStrips) {
-      countIndex = 0;
-    }
-    if (stripByteCounts[countIndex] == (rowsPerStrip[0] * tileWidth) &&
-      pixel > 1)
+  /**
+   * Returns the stored bytes of the given tile or strip, so that they can be
+   * passed on without being decoded and re-encoded.  JPEG tables are merged
+   * into JPEG tiles.  LZW tiles may be followed by unused bytes, as the
+   * stored byte counts of LZW tiles are not trusted.
+   *
+   * Null is returned if the tile cannot be passed through, because decoding
+   * it with a standard decoder for its compression scheme would not give the
+   * samples returned by {@link #getSamples(IFD, byte[])}; callers should
+   * then decode the tile with {@link #getTile(IFD, byte[], int, int)}.  This
+   * is the case for:
+   * <ul>
+   *   <li>empty tiles and tiles beyond the end of the file</li>
+   *   <li>old-style JPEG and vendor-specific compression schemes</li>
+   *   <li>JPEG tiles whose YCbCr samples are converted to RGB by this
+   *   parser after decoding</li>
+   *   <li>other tiles whose samples are not whole bytes, need a predictor
+   *   or are WhiteIsZero, CMYK or YCbCr</li>
+   *   <li>tiles holding one channel of a planar image with several
+   *   channels</li>
+   * </ul>
+   *
+   * @param row the row of the tile, or the index of the strip
+   * @param col the column of the tile, or 0 for strips
+   */
+  public TiffCompressedTile getCompressedTile(IFD ifd, int row, int col)
+    throws FormatException, IOException
+  {
+    if (row < 0 || col < 0 || row >= ifd.getTilesPerColumn() ||
+      col >= ifd.getTilesPerRow())
     {
-      stripByteCounts[countIndex] *= pixel;
+      throw new IllegalArgumentException(
+        "Invalid tile (row=" + row + ", col=" + col + ")");
     }
-    else if (stripByteCounts[countIndex] < 0 && countIndex > 0) {
-      LOGGER.debug("byte count #{} was {}; correcting to {}", countIndex,
-        stripByteCounts[countIndex], stripByteCounts[countIndex - 1]);
-      stripByteCounts[countIndex] = stripByteCounts[countIndex - 1];
+    int samplesPerPixel = ifd.getSamplesPerPixel();
+    if (ifd.getPlanarConfiguration() == 2 && samplesPerPixel > 1) {
+      return null;
     }
 
-    long stripOffset = 0;
-    long nStrips = 0;
-
-    if (ifd.getOnDemandStripOffsets() != null) {
-      OnDemandLongArray stripOffsets = ifd.getOnDemandStripOffsets();
-      if (stripOffsets.getStream() == null) {
-        stripOffsets.setStream(in);
-      }
-      stripOffset = stripOffsets.get(offsetIndex);
-      nStrips = stripOffsets.size();
-    }
-    else {
-      long[] stripOffsets = ifd.getStripOffsets();
-      stripOffset = stripOffsets[offsetIndex];
-      nStrips = stripOffsets.length;
+    TiffCompression compression = ifd.getCompression();
+    PhotoInterp photoInterp = ifd.getPhotometricInterpretation();
+    boolean jpeg = false;
+    switch (compression) {
+      case JPEG:
+      case ALT_JPEG:
+        if (photoInterp == PhotoInterp.Y_CB_CR &&
+          ifd.getIFDIntValue(IFD.Y_CB_CR_SUB_SAMPLING) == 1 && ycbcrCorrection)
+        {
+          return null;
+        }
+        jpeg = true;
+        break;
+      case JPEG_2000:
+      case JPEG_2000_LOSSY:
+      case ALT_JPEG2000:
+      case OLYMPUS_JPEG2000:
+        break;
+      case DEFAULT_UNCOMPRESSED:
+      case UNCOMPRESSED:
+      case LZW:
+      case PACK_BITS:
+      case DEFLATE:
+      case PROPRIETARY_DEFLATE:
+        int bits = ifd.getBitsPerSample()[0];
+        int predictor = ifd.getIFDIntValue(IFD.PREDICTOR,
+          TiffCompression.PREDICTOR_NONE);
+        if (bits == 0 || (bits % 8) != 0 ||
+          predictor != TiffCompression.PREDICTOR_NONE ||
+          photoInterp == PhotoInterp.WHITE_IS_ZERO ||
+          photoInterp == PhotoInterp.CMYK || photoInterp == PhotoInterp.Y_CB_CR)
+        {
+          return null;
+        }
+        break;
+      default:
+        return null;
     }
 
-    int size = (int) (tileWidth * tileLength * pixel * effectiveChannels);
-
-    if (buf == null) buf = new byte[size];
-    if (stripByteCounts[countIndex] == 0 || stripOffset >= in.length()) {
-      return buf;
+    byte[] tile = readTile(ifd, row, col);
+    if (tile == null) {
+      return null;
     }
-    byte[] tile = new byte[(int) stripByteCounts[countIndex]];
-
-    LOGGER.debug("Reading tile Length {} Offset {}", tile.length, stripOffset);
-    in.seek(stripOffset);
-    in.read(tile);
-
-    codecOptions.maxBytes = (int) Math.max(size, tile.length);
-    codecOptions.ycbcr =
-      ifd.getPhotometricInterpretation() == PhotoInterp.Y_CB_CR &&
-      ifd.getIFDIntValue(IFD.Y_CB_CR_SUB_SAMPLING) == 1 && ycbcrCorrection;
-
-    if (jpegTable != null) {
+    byte[] jpegTable = (byte[]) ifd.getIFDValue(IFD.JPEG_TABLES);
+    if (jpeg && jpegTable != null) {
+      // replace the end of the tables and the start of the tile
       byte[] q = new byte[jpegTable.length + tile.length - 4];
       System.arraycopy(jpegTable, 0, q, 0, jpegTable.length - 2);
       System.arraycopy(tile, 2, q, jpegTable.length - 2, tile.length - 2);
-      tile = compression.decompress(q, codecOptions);
-    }
-    else tile = compression.decompress(tile, codecOptions);
-    TiffCompression.undifference(tile, ifd);
-    unpackBytes(buf, 0, tile, ifd);
-
-    if (planarConfig == 2 && !ifd.isTiled() && ifd.getSamplesPerPixel() > 1) {
-      int channel = (int) (row % nStrips);
-      if (channel < ifd.getBytesPerSample().length) {
-        int realBytes = ifd.getBytesPerSample()[channel];
-        if (realBytes != pixel) {
-          // re-pack pixels to account for differing bits per sample
-
-          boolean littleEndian = ifd.isLittleEndian();
-          int[] samples = new int[buf.length / pixel];
-          for (int i=0; i<samples.length; i++) {
-            samples[i] =
-              DataTools.bytesToInt(buf, i * realBytes, realBytes, littleEndian);
-          }
-
-          for (int i=0; i<samples.length; i++) {
-            DataTools.unpackBytes(
-              samples[i], buf, i * pixel, pixel, littleEndian);
-          }
-        }
-      }
+      tile = q;
     }
 
-    return buf;
+    long tileLength = ifd.getTileLength();
+    int height = (int) Math.min(tileLength,
+      ifd.getImageLength() - row * tileLength);
+    if (ifd.isTiled() || height <= 0) {
+      height = (int) tileLength;
+    }
+    return new TiffCompressedTile(tile, compression, photoInterp,
+      (int) ifd.getTileWidth(), height, samplesPerPixel,
+      ifd.getBitsPerSample()[0], ifd.isLittleEndian());
   }
 
   public byte[] getSamples(IFD ifd, byte[] buf)
@@ -807,7 +1047,6 @@ public class TiffParser {
     long numTileRows = ifd.getTilesPerColumn();
     long numTileCols = ifd.getTilesPerRow();
 
-    PhotoInterp photoInterp = ifd.getPhotometricInterpretation();
     int planarConfig = ifd.getPlanarConfiguration();
     int pixel = ifd.getBytesPerSample()[0];
     int effectiveChannels = planarConfig == 2 ? 1 : samplesPerPixel;
@@ -846,7 +1085,6 @@ public class TiffParser {
     else codecOptions = compression.getCompressionCodecOptions(ifd);
     codecOptions.interleaved = true;
     codecOptions.littleEndian = ifd.isLittleEndian();
-    long imageLength = ifd.getImageLength();
 
     long[] stripOffsets = null;
 
@@ -876,67 +1114,12 @@ public class TiffParser {
 
     long[] stripByteCounts = ifd.getStripByteCounts();
 
-    // special case: if we only need one tile, and that tile doesn't need
-    // any special handling, then we can just read it directly and return
-    if (effectiveChannels == 1 && (ifd.getBitsPerSample()[0] % 8) == 0 &&
-      photoInterp != PhotoInterp.WHITE_IS_ZERO &&
-      photoInterp != PhotoInterp.CMYK && photoInterp != PhotoInterp.Y_CB_CR &&
-      compression == TiffCompression.UNCOMPRESSED &&
-      numTileRows * numTileCols == 1 && stripOffsets != null && stripByteCounts != null &&
-      in.length() >= stripOffsets[0] + stripByteCounts[0])
+    // special case: uncompressed, byte-aligned samples that don't need any
+    // special handling can be copied straight from the file
+    if (overlapX == 0 && overlapY == 0 &&
+      readUncompressedSamples(ifd, buf, x, y, (int) width, (int) height,
+      stripOffsets, stripByteCounts))
     {
-      long column = x / tileWidth;
-      int firstTile = (int) ((y / tileLength) * numTileCols + column);
-      int lastTile =
-        (int) (((y + height) / tileLength) * numTileCols + column);
-      lastTile = (int) Math.min(lastTile, stripOffsets.length - 1);
-      if (planarConfig == 2) {
-        lastTile = stripOffsets.length - 1;
-      }
-
-      int offset = 0;
-      for (int tile=firstTile; tile<=lastTile; tile++) {
-        long byteCount =
-          equalStrips ? stripByteCounts[0] : stripByteCounts[tile];
-        if (byteCount == numSamples && pixel > 1) {
-          byteCount *= pixel;
-        }
-
-        if (stripOffsets[tile] < in.length()) {
-          in.seek(stripOffsets[tile]);
-        }
-        else {
-          continue;
-        }
-
-        if (width == tileWidth && height == imageLength) {
-          // we want to entire tile, so just read the whole thing directly
-          int len = (int) Math.min(buf.length - offset, byteCount);
-          in.read(buf, offset, len);
-          offset += len;
-        }
-        else {
-          // we only want a piece of the tile, so read each row separately
-          // this is especially necessary for large single-tile images
-          int bpp = ifd.getBitsPerSample()[0] / 8;
-          in.skipBytes((int) (y * bpp * tileWidth));
-          for (int row=0; row<height; row++) {
-            in.skipBytes(x * bpp);
-            int len = (int) Math.min(buf.length - offset, width * bpp);
-            if (len > 0) {
-              in.read(buf, offset, len);
-              offset += len;
-              int skip = (int) (bpp * (tileWidth - x - width));
-              if (skip + in.getFilePointer() < in.length()) {
-                in.skipBytes(skip);
-              }
-            }
-            else {
-              break;
-            }
-          }
-        }
-      }
       return buf;
     }
 
@@ -966,6 +1149,8 @@ public class TiffParser {
 
     Region tileBounds = new Region(0, 0, (int) tileWidth, (int) tileLength);
 
+    // find the tiles that intersect the requested region
+    List<int[]> tiles = new ArrayList<int[]>();
     for (int row=0; row<numTileRows; row++) {
       // make the first row shorter to account for row overlap
       if (row == 0) {
@@ -985,9 +1170,47 @@ public class TiffParser {
           tileBounds.y = (int) ((row % nrows) * (tileLength - overlapY));
         }
 
-        if (!imageBounds.intersects(tileBounds)) continue;
+        if (imageBounds.intersects(tileBounds)) {
+          tiles.add(new int[] {row, col, tileBounds.x, tileBounds.y});
+        }
+      }
+    }
+
+    boolean cache = getCacheFile() != null && stripOffsets.length > 0;
+    long image = cache ? stripOffsets[0] : 0;
+    TileDecoding decoding = cache ? getTileDecoding(ifd, codecOptions) : null;
+
+    TileDecoder decoder = null;
+    if (executor != null && tiles.size() > 1 &&
+      compression != TiffCompression.LURAWAVE)
+    {
+      CodecOptions options = copyCodecOptions(codecOptions);
+      if (options != null) {
+        decoder = new TileDecoder(ifd, tiles, options, cachedTileBuffer,
+          cache ? getCacheFile() : null, image, decoding);
+      }
+    }
 
-        getTile(ifd, cachedTileBuffer, row, col);
+    try {
+      byte[] tileBuffer = cachedTileBuffer;
+      for (int[] t : tiles) {
+        int row = t[0];
+        tileBounds.x = t[2];
+        tileBounds.y = t[3];
+
+        if (decoder != null) {
+          tileBuffer = decoder.next();
+        }
+        else if (cache) {
+          // an empty tile leaves the previous tile in place, as below
+          byte[] cached = getCachedTile(ifd, image, decoding, row, t[1]);
+          if (cached != null) {
+            tileBuffer = cached;
+          }
+        }
+        else {
+          tileBuffer = getTile(ifd, cachedTileBuffer, row, t[1]);
+        }
 
         // adjust tile bounds, if necessary
 
@@ -1022,11 +1245,11 @@ public class TiffParser {
           // otherwise, we may be overwriting a previous tile
           // (or the current tile may be overwritten by a subsequent tile)
           if (rowLen == outputRowLen && overlapX == 0 && overlapY == 0) {
-            System.arraycopy(cachedTileBuffer, src, buf, dest, copy * theight);
+            System.arraycopy(tileBuffer, src, buf, dest, copy * theight);
           }
           else {
             for (int tileRow=0; tileRow<theight; tileRow++) {
-              System.arraycopy(cachedTileBuffer, src, buf, dest, copy);
+              System.arraycopy(tileBuffer, src, buf, dest, copy);
               src += rowLen;
               dest += outputRowLen;
             }
@@ -1034,31 +1257,776 @@ public class TiffParser {
         }
       }
     }
+    finally {
+      if (decoder != null) {
+        decoder.cancel();
+      }
+    }
 
     return buf;
   }
 
-  // -- Utility methods - byte stream decoding --
+  // -- Helper methods - image reading --
+
+  /** Gets the size in bytes of a decoded tile. */
+  private int getTileSize(IFD ifd) throws FormatException {
+    int samplesPerPixel = ifd.getSamplesPerPixel();
+    int effectiveChannels =
+      ifd.getPlanarConfiguration() == 2 ? 1 : samplesPerPixel;
+    int pixel = ifd.getBytesPerSample()[0];
+    return (int) (ifd.getTileWidth() * ifd.getTileLength() * pixel *
+      effectiveChannels);
+  }
 
   /**
-   * Extracts pixel information from the given byte array according to the
-   * bits per sample, photometric interpretation and color map IFD directory
-   * entry values, and the specified byte ordering.
-   * No error checking is performed.
+   * Gets the channel stored in the given row of strips of a planar image,
+   * or -1 if the samples of the row do not need to be re-packed.
    */
-  public static void unpackBytes(byte[] samples, int startIndex, byte[] bytes,
-    IFD ifd) throws FormatException
+  private int getTileChannel(IFD ifd, int row) throws FormatException {
+    if (ifd.getPlanarConfiguration() != 2 || ifd.isTiled() ||
+      ifd.getSamplesPerPixel() <= 1)
+    {
+      return -1;
+    }
+    OnDemandLongArray stripOffsets = ifd.getOnDemandStripOffsets();
+    long nStrips = stripOffsets != null ? stripOffsets.size() :
+      ifd.getStripOffsets().length;
+    return (int) (row % nStrips);
+  }
+
+  /**
+   * Reads the compressed bytes of the given tile into a new array.
+   * @return the compressed tile, or null if the tile is empty or lies beyond
+   *   the end of the file.
+   */
+  private byte[] readTile(IFD ifd, int row, int col)
+    throws FormatException, IOException
   {
-    boolean planar = ifd.getPlanarConfiguration() == 2;
+    int length = seekTile(ifd, row, col);
+    if (length < 0) {
+      return null;
+    }
+    byte[] tile = new byte[length];
+    in.read(tile);
+    return tile;
+  }
 
-    TiffCompression compression = ifd.getCompression();
-    PhotoInterp photoInterp = ifd.getPhotometricInterpretation();
-    if (compression == TiffCompression.JPEG) photoInterp = PhotoInterp.RGB;
+  /**
+   * Reads the compressed bytes of the given tile into the parser's
+   * compressed tile buffer, which is grown if necessary.
+   * @return the number of compressed bytes, or -1 if the tile is empty or
+   *   lies beyond the end of the file.
+   */
+  private int readTileToBuffer(IFD ifd, int row, int col)
+    throws FormatException, IOException
+  {
+    int length = seekTile(ifd, row, col);
+    if (length < 0) {
+      return -1;
+    }
+    if (compressedTileBuffer == null || compressedTileBuffer.length < length) {
+      compressedTileBuffer = new byte[length];
+    }
+    int read = Math.max(0, in.read(compressedTileBuffer, 0, length));
+    if (read < length) {
+      // as with a newly allocated array, bytes past the end of the file are 0
+      Arrays.fill(compressedTileBuffer, read, length, (byte) 0);
+    }
+    return length;
+  }
+
+  /**
+   * Seeks to the compressed bytes of the given tile.
+   * @return the number of compressed bytes, or -1 if the tile is empty or
+   *   lies beyond the end of the file.
+   */
+  private int seekTile(IFD ifd, int row, int col)
+    throws FormatException, IOException
+  {
+    long tileWidth = ifd.getTileWidth();
+    long numTileCols = ifd.getTilesPerRow();
+    int pixel = ifd.getBytesPerSample()[0];
+
+    if (ifd.get(IFD.STRIP_BYTE_COUNTS) instanceof OnDemandLongArray) {
+      OnDemandLongArray counts = (OnDemandLongArray) ifd.get(IFD.STRIP_BYTE_COUNTS);
+      if (counts != null && counts.getStream() == null) {
+        counts.setStream(in);
+      }
+    }
+    if (ifd.get(IFD.TILE_BYTE_COUNTS) instanceof OnDemandLongArray) {
+      OnDemandLongArray counts = (OnDemandLongArray) ifd.get(IFD.TILE_BYTE_COUNTS);
+      if (counts != null && counts.getStream() == null) {
+        counts.setStream(in);
+      }
+    }
+
+    long[] stripByteCounts = ifd.getStripByteCounts();
+    long[] rowsPerStrip = ifd.getRowsPerStrip();
+
+    int offsetIndex = (int) (row * numTileCols + col);
+    int countIndex = offsetIndex;
+    if (equalStrips) {
+      countIndex = 0;
+    }
+    if (stripByteCounts[countIndex] == (rowsPerStrip[0] * tileWidth) &&
+      pixel > 1)
+    {
+      stripByteCounts[countIndex] *= pixel;
+    }
+    else if (stripByteCounts[countIndex] < 0 && countIndex > 0) {
+      LOGGER.debug("byte count #{} was {}; correcting to {}", countIndex,
+        stripByteCounts[countIndex], stripByteCounts[countIndex - 1]);
+      stripByteCounts[countIndex] = stripByteCounts[countIndex - 1];
+    }
+
+    long stripOffset = 0;
+
+    if (ifd.getOnDemandStripOffsets() != null) {
+      OnDemandLongArray stripOffsets = ifd.getOnDemandStripOffsets();
+      if (stripOffsets.getStream() == null) {
+        stripOffsets.setStream(in);
+      }
+      stripOffset = stripOffsets.get(offsetIndex);
+    }
+    else {
+      long[] stripOffsets = ifd.getStripOffsets();
+      stripOffset = stripOffsets[offsetIndex];
+    }
+
+    if (stripByteCounts[countIndex] == 0 || stripOffset >= in.length()) {
+      return -1;
+    }
+    int length = (int) stripByteCounts[countIndex];
+
+    LOGGER.debug("Reading tile Length {} Offset {}", length, stripOffset);
+    in.seek(stripOffset);
+    return length;
+  }
+
+  /**
+   * Decompresses, undifferences and unpacks a tile read by
+   * {@link #readTile(IFD, int, int)} into the given buffer.  The input
+   * stream is not used, so tiles can be decoded concurrently as long as each
+   * has its own buffer and codec options.
+   *
+   * Tiles whose samples are stored exactly as they are returned are
+   * decompressed straight into the given buffer.  Other tiles are
+   * decompressed into an intermediate buffer and then unpacked.
+   *
+   * @param tile The array containing the compressed tile.
+   * @param length The number of compressed bytes at the start of
+   *   <code>tile</code>.
+   * @param channel The channel returned by
+   *   {@link #getTileChannel(IFD, int)}.
+   * @param reuse true if the parser's intermediate buffers may be used,
+   *   which is only the case on the calling thread.
+   */
+  private void decodeTile(IFD ifd, byte[] tile, int length, byte[] buf,
+    int channel, CodecOptions options, boolean reuse)
+    throws FormatException, IOException
+  {
+    byte[] jpegTable = (byte[]) ifd.getIFDValue(IFD.JPEG_TABLES);
+    TiffCompression compression = ifd.getCompression();
+    int pixel = ifd.getBytesPerSample()[0];
+    int tileSize = getTileSize(ifd);
+
+    options.maxBytes = Math.max(tileSize, length);
+    options.ycbcr =
+      ifd.getPhotometricInterpretation() == PhotoInterp.Y_CB_CR &&
+      ifd.getIFDIntValue(IFD.Y_CB_CR_SUB_SAMPLING) == 1 && ycbcrCorrection;
+
+    if (jpegTable != null) {
+      int tablesLength = jpegTable.length + length - 4;
+      byte[] q = reuse ? jpegTileBuffer : null;
+      if (q == null || q.length < tablesLength) {
+        q = new byte[tablesLength];
+        if (reuse) {
+          jpegTileBuffer = q;
+        }
+      }
+      System.arraycopy(jpegTable, 0, q, 0, jpegTable.length - 2);
+      System.arraycopy(tile, 2, q, jpegTable.length - 2, length - 2);
+      tile = q;
+      length = tablesLength;
+    }
+
+    byte[] decoded = buf;
+    int capacity = Math.min(options.maxBytes, buf.length);
+    if (!isStoredUnpacked(ifd, channel)) {
+      capacity = options.maxBytes;
+      decoded = reuse ? decodedTileBuffer : null;
+      if (decoded == null || decoded.length < capacity) {
+        decoded = new byte[capacity];
+        if (reuse) {
+          decodedTileBuffer = decoded;
+        }
+      }
+    }
+    int decodedLength =
+      compression.decompress(tile, 0, length, decoded, 0, capacity, options);
+    int end = Math.min(tileSize, capacity);
+    if (decodedLength < end) {
+      // missing samples are 0, whichever buffer was decompressed into
+      Arrays.fill(decoded, decodedLength, end, (byte) 0);
+      decodedLength = end;
+    }
+    TiffCompression.undifference(decoded, decodedLength, ifd);
+    if (decoded != buf) {
+      unpackBytes(buf, 0, decoded, decodedLength, ifd);
+    }
+
+    if (channel >= 0 && channel < ifd.getBytesPerSample().length) {
+      int realBytes = ifd.getBytesPerSample()[channel];
+      if (realBytes != pixel) {
+        // re-pack pixels to account for differing bits per sample
+
+        boolean littleEndian = ifd.isLittleEndian();
+        int[] samples = new int[buf.length / pixel];
+        for (int i=0; i<samples.length; i++) {
+          samples[i] =
+            DataTools.bytesToInt(buf, i * realBytes, realBytes, littleEndian);
+        }
+
+        for (int i=0; i<samples.length; i++) {
+          DataTools.unpackBytes(
+            samples[i], buf, i * pixel, pixel, littleEndian);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns true if {@link #unpackBytes(byte[], int, byte[], IFD)} would
+   * copy the decompressed samples of a tile unchanged, so that the tile can
+   * be decompressed directly into the destination buffer.
+   */
+  private boolean isStoredUnpacked(IFD ifd, int channel)
+    throws FormatException
+  {
+    int[] bitsPerSample = ifd.getBitsPerSample();
+    if ((ifd.getPlanarConfiguration() != 2 && bitsPerSample.length != 1) ||
+      bitsPerSample[0] == 0 || (bitsPerSample[0] % 8) != 0)
+    {
+      return false;
+    }
+    PhotoInterp photoInterp = ifd.getPhotometricInterpretation();
+    if (ifd.getCompression() == TiffCompression.JPEG) {
+      photoInterp = PhotoInterp.RGB;
+    }
+    if (photoInterp == PhotoInterp.WHITE_IS_ZERO ||
+      photoInterp == PhotoInterp.CMYK || photoInterp == PhotoInterp.Y_CB_CR)
+    {
+      return false;
+    }
+    int[] bytesPerSample = ifd.getBytesPerSample();
+    return channel < 0 || channel >= bytesPerSample.length ||
+      bytesPerSample[channel] == bytesPerSample[0];
+  }
+
+  /**
+   * Copies the requested region of an uncompressed image directly from the
+   * file into the given buffer, reading consecutive rows with a single read
+   * wherever they are contiguous both in the file and in the buffer.
+   * Multi-strip, tiled and planar images are supported, as long as each
+   * sample is a whole number of bytes that can be copied unchanged.
+   * @return true if the region was copied, or false if the image must be
+   *   decoded tile by tile.
+   */
+  private boolean readUncompressedSamples(IFD ifd, byte[] buf, int x, int y,
+    int width, int height, long[] stripOffsets, long[] stripByteCounts)
+    throws FormatException, IOException
+  {
+    if (ifd.getCompression() != TiffCompression.UNCOMPRESSED ||
+      stripOffsets == null || stripByteCounts == null ||
+      stripByteCounts.length == 0 ||
+      ifd.getIFDIntValue(IFD.PREDICTOR, 1) != 1)
+    {
+      return false;
+    }
+    PhotoInterp photoInterp = ifd.getPhotometricInterpretation();
+    if (photoInterp == PhotoInterp.WHITE_IS_ZERO ||
+      photoInterp == PhotoInterp.CMYK || photoInterp == PhotoInterp.Y_CB_CR)
+    {
+      return false;
+    }
+    int[] bitsPerSample = ifd.getBitsPerSample();
+    for (int bits : bitsPerSample) {
+      if (bits != bitsPerSample[0] || (bits % 8) != 0 || bits == 0) {
+        return false;
+      }
+    }
+
+    int samplesPerPixel = ifd.getSamplesPerPixel();
+    boolean planar = ifd.getPlanarConfiguration() == 2;
+    int channels = planar ? 1 : samplesPerPixel;
+    int pixel = bitsPerSample[0] / 8;
+    long tileWidth = ifd.getTileWidth();
+    long tileLength = ifd.getTileLength();
+    if (tileLength <= 0) {
+      tileLength = height;
+    }
+    long numTileCols = ifd.getTilesPerRow();
+    long nrows = ifd.getTilesPerColumn();
+    long numTileRows = planar ? nrows * samplesPerPixel : nrows;
+    long tileRowLen = tileWidth * channels * pixel;
+    int outputRowLen = width * pixel;
+    int planeSize = outputRowLen * height;
+    long tiles = numTileRows * numTileCols;
+    if (tileWidth <= 0 || tiles > stripOffsets.length ||
+      (!equalStrips && tiles > stripByteCounts.length) ||
+      x < 0 || y < 0 || width <= 0 || height <= 0 ||
+      x + width > ifd.getImageWidth() || y + height > ifd.getImageLength() ||
+      (long) planeSize * samplesPerPixel > buf.length)
+    {
+      return false;
+    }
+    long[] rowsPerStrip = ifd.getRowsPerStrip();
+
+    int firstRow = (int) (y / tileLength);
+    int lastRow = (int) ((y + height - 1) / tileLength);
+    int firstCol = (int) (x / tileWidth);
+    int lastCol = (int) ((x + width - 1) / tileWidth);
+    long fileLength = in.length();
+
+    // make sure that every row is present before copying anything,
+    // so that the tile by tile path can handle truncated images
+    for (int plane=0; plane<(planar ? samplesPerPixel : 1); plane++) {
+      for (int row=firstRow; row<=lastRow; row++) {
+        long tileY = Math.max(row * tileLength, y);
+        long lastY = Math.min((row + 1) * tileLength, y + height) - 1;
+        for (int col=firstCol; col<=lastCol; col++) {
+          int tile = (int) ((plane * nrows + row) * numTileCols + col);
+          long count = stripByteCounts[equalStrips ? 0 : tile];
+          if (count == rowsPerStrip[0] * tileWidth && pixel > 1) {
+            count *= pixel;
+          }
+          long tileX = Math.max(col * tileWidth, x);
+          long lastX = Math.min((col + 1) * tileWidth, x + width);
+          long needed = (lastY % tileLength) * tileRowLen +
+            (lastX - col * tileWidth) * channels * pixel;
+          if (count < needed || stripOffsets[tile] < 0 ||
+            stripOffsets[tile] + needed > fileLength || tileY > lastY ||
+            tileX >= lastX)
+          {
+            return false;
+          }
+        }
+      }
+    }
+
+    RowCopier copier =
+      new RowCopier(buf, channels, pixel, planeSize, in.getFilePointer());
+    for (int plane=0; plane<(planar ? samplesPerPixel : 1); plane++) {
+      for (int row=firstRow; row<=lastRow; row++) {
+        int tileY = (int) Math.max(row * tileLength, y);
+        int realY = (int) (tileY % tileLength);
+        int theight = (int) Math.min(y + height - tileY, tileLength - realY);
+        for (int col=firstCol; col<=lastCol; col++) {
+          int tile = (int) ((plane * nrows + row) * numTileCols + col);
+          int tileX = (int) Math.max(col * tileWidth, x);
+          int realX = (int) (tileX % tileWidth);
+          int twidth = (int) Math.min(x + width - tileX, tileWidth - realX);
+
+          long src = stripOffsets[tile] + realY * tileRowLen +
+            (long) realX * channels * pixel;
+          int dest = plane * planeSize + pixel * (tileX - x) +
+            outputRowLen * (tileY - y);
+          for (int tileRow=0; tileRow<theight; tileRow++) {
+            copier.append(src, dest, twidth);
+            src += tileRowLen;
+            dest += outputRowLen;
+          }
+        }
+      }
+    }
+    copier.flush();
+    return true;
+  }
+
+  /**
+   * Gets the path used to identify the parser's file in the tile cache,
+   * or null if decoded tiles are not cached.
+   */
+  private String getCacheFile() {
+    return tileCache == null ? null : in.getFileName();
+  }
+
+  /** Gets the offset of the first tile of the given image. */
+  private long getImageOffset(IFD ifd) throws FormatException, IOException {
+    OnDemandLongArray stripOffsets = ifd.getOnDemandStripOffsets();
+    if (stripOffsets != null) {
+      if (stripOffsets.getStream() == null) {
+        stripOffsets.setStream(in);
+      }
+      return stripOffsets.get(0);
+    }
+    return ifd.getStripOffsets()[0];
+  }
+
+  /**
+   * Describes how the tiles of the given image are decoded with the given
+   * codec options, so that tiles decoded differently from the same bytes
+   * are cached separately.
+   */
+  private TileDecoding getTileDecoding(IFD ifd, CodecOptions options)
+    throws FormatException
+  {
+    Integer resolution = options instanceof JPEG2000CodecOptions ?
+      ((JPEG2000CodecOptions) options).resolution : null;
+    return new TileDecoding(ifd.getTileWidth(), ifd.getTileLength(),
+      getTileSize(ifd), resolution == null ? -1 : resolution.intValue(),
+      ycbcrCorrection);
+  }
+
+  /**
+   * Gets the given tile from the tile cache, decoding and caching it with
+   * the parser's codec options if it is not cached.
+   * @param image The offset returned by {@link #getImageOffset(IFD)}.
+   * @param decoding The value returned by
+   *   {@link #getTileDecoding(IFD, CodecOptions)}.
+   * @return the decoded tile, which must not be modified, or null if the
+   *   tile is empty or lies beyond the end of the file.
+   */
+  private byte[] getCachedTile(IFD ifd, long image, TileDecoding decoding,
+    int row, int col)
+    throws FormatException, IOException
+  {
+    String file = getCacheFile();
+    int index = (int) (row * ifd.getTilesPerRow() + col);
+    byte[] tile = tileCache.get(file, image, decoding, index);
+    if (tile == null) {
+      int length = readTileToBuffer(ifd, row, col);
+      if (length < 0) {
+        return null;
+      }
+      tile = new byte[getTileSize(ifd)];
+      decodeTile(ifd, compressedTileBuffer, length, tile,
+        getTileChannel(ifd, row), codecOptions, true);
+      tileCache.put(file, image, decoding, index, tile);
+    }
+    return tile;
+  }
+
+  /**
+   * Copies codec options so that they can be used by another thread.
+   * @return the copy, or null if the options are of a type that cannot be
+   *   copied.
+   */
+  private static CodecOptions copyCodecOptions(CodecOptions options) {
+    if (options.getClass() == CodecOptions.class) {
+      return new CodecOptions(options);
+    }
+    if (options.getClass() == JPEG2000CodecOptions.class) {
+      return new JPEG2000CodecOptions(options);
+    }
+    return null;
+  }
+
+  // -- Helper classes --
+
+  /**
+   * The tile geometry and decoding options that determine the decoded
+   * samples of a tile, as part of the tile cache key.
+   */
+  private static class TileDecoding {
+    private final long tileWidth;
+    private final long tileLength;
+    private final int tileSize;
+    private final int resolution;
+    private final boolean ycbcrCorrection;
+
+    TileDecoding(long tileWidth, long tileLength, int tileSize,
+      int resolution, boolean ycbcrCorrection)
+    {
+      this.tileWidth = tileWidth;
+      this.tileLength = tileLength;
+      this.tileSize = tileSize;
+      this.resolution = resolution;
+      this.ycbcrCorrection = ycbcrCorrection;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof TileDecoding)) return false;
+      TileDecoding d = (TileDecoding) o;
+      return tileWidth == d.tileWidth && tileLength == d.tileLength &&
+        tileSize == d.tileSize && resolution == d.resolution &&
+        ycbcrCorrection == d.ycbcrCorrection;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = (int) (tileWidth * 31 + tileLength);
+      hash = (hash * 31 + tileSize) * 31 + resolution;
+      return hash * 2 + (ycbcrCorrection ? 1 : 0);
+    }
+  }
+
+  /**
+   * Decodes the tiles intersecting a region on the parser's executor.
+   * Compressed tiles are read on the calling thread a few tiles ahead of
+   * the tile being copied, and each tile is decoded into its own buffer.
+   */
+  private class TileDecoder {
+    private final IFD ifd;
+    private final List<int[]> tiles;
+    private final CodecOptions options;
+    private final int tileSize;
+    private final int window;
+
+    /** Path of the file in the tile cache, or null if tiles are not cached. */
+    private final String file;
+
+    /** Offset of the first tile of the image, for the tile cache. */
+    private final long image;
+
+    /** How the tiles are decoded, for the tile cache. */
+    private final TileDecoding decoding;
+
+    /** Placeholder for a tile that is empty or beyond the end of the file. */
+    private final FutureTask<byte[]> emptyTile =
+      new FutureTask<byte[]>(new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+          return null;
+        }
+      });
+
+    /** Tiles being decoded, in the order in which they are copied. */
+    private final ArrayDeque<Future<byte[]>> pending =
+      new ArrayDeque<Future<byte[]>>();
+
+    /** Index of the next tile to read. */
+    private int nextTile = 0;
+
+    /**
+     * The buffer returned for the previous tile.  An empty tile leaves the
+     * buffer of the serial path untouched, so the previous tile is returned
+     * again in its place.
+     */
+    private byte[] previous;
+
+    TileDecoder(IFD ifd, List<int[]> tiles, CodecOptions options,
+      byte[] initial, String file, long image, TileDecoding decoding)
+      throws FormatException
+    {
+      this.ifd = ifd;
+      this.tiles = tiles;
+      this.options = options;
+      this.tileSize = initial.length;
+      this.previous = initial;
+      this.file = file;
+      this.image = image;
+      this.decoding = decoding;
+      int threads = Runtime.getRuntime().availableProcessors();
+      if (executor instanceof ThreadPoolExecutor) {
+        threads = Math.min(threads,
+          ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+      }
+      // keep a bounded number of decoded tiles in memory
+      this.window = 2 * Math.max(1, threads);
+      emptyTile.run();
+    }
+
+    /** Returns the next decoded tile. */
+    byte[] next() throws FormatException, IOException {
+      while (pending.size() < window && nextTile < tiles.size()) {
+        submit(tiles.get(nextTile++));
+      }
+      Future<byte[]> task = pending.poll();
+      byte[] tile;
+      try {
+        tile = task.get();
+      }
+      catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof FormatException) {
+          throw (FormatException) cause;
+        }
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        throw new FormatException(cause);
+      }
+      if (tile != null) {
+        previous = tile;
+      }
+      return previous;
+    }
+
+    /** Cancels the tiles that have not been decoded yet. */
+    void cancel() {
+      for (Future<byte[]> task : pending) {
+        task.cancel(false);
+      }
+      pending.clear();
+    }
+
+    private void submit(int[] t) throws FormatException, IOException {
+      final int row = t[0];
+      final int index = (int) (row * ifd.getTilesPerRow() + t[1]);
+      if (file != null) {
+        final byte[] cached = tileCache.get(file, image, decoding, index);
+        if (cached != null) {
+          FutureTask<byte[]> task = new FutureTask<byte[]>(
+            new Callable<byte[]>() {
+              @Override
+              public byte[] call() {
+                return cached;
+              }
+            });
+          task.run();
+          pending.add(task);
+          return;
+        }
+      }
+      final byte[] compressed = readTile(ifd, row, t[1]);
+      if (compressed == null) {
+        pending.add(emptyTile);
+        return;
+      }
+      final int channel = getTileChannel(ifd, row);
+      final TiffTileCache cache = file == null ? null : tileCache;
+      pending.add(executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws FormatException, IOException {
+          byte[] buf = new byte[tileSize];
+          decodeTile(ifd, compressed, compressed.length, buf, channel,
+            copyCodecOptions(options), false);
+          if (cache != null) {
+            cache.put(file, image, decoding, index, buf);
+          }
+          return buf;
+        }
+      }));
+    }
+  }
+
+  /**
+   * Copies runs of uncompressed pixels from the input stream into an image
+   * buffer.  Runs that are contiguous both in the file and in the buffer
+   * are merged and read with a single call; interleaved channels are read
+   * into a bounded buffer and separated into planes.
+   */
+  private class RowCopier {
+    private final byte[] buf;
+    private final int channels;
+    private final int pixel;
+    private final int planeSize;
+    private byte[] interleaved;
+
+    /** File offset, buffer offset and number of pixels of the pending run. */
+    private long runSource;
+    private int runDest;
+    private int runPixels = 0;
+
+    /** Current position of the input stream, to avoid redundant seeks. */
+    private long position;
+
+    RowCopier(byte[] buf, int channels, int pixel, int planeSize,
+      long position)
+    {
+      this.buf = buf;
+      this.channels = channels;
+      this.pixel = pixel;
+      this.planeSize = planeSize;
+      this.position = position;
+    }
+
+    /** Copies the given number of pixels from the file to the buffer. */
+    void append(long source, int dest, int pixels) throws IOException {
+      if (runPixels > 0 &&
+        source == runSource + (long) runPixels * channels * pixel &&
+        dest == runDest + runPixels * pixel)
+      {
+        runPixels += pixels;
+        return;
+      }
+      flush();
+      runSource = source;
+      runDest = dest;
+      runPixels = pixels;
+    }
+
+    /** Copies the pending run. */
+    void flush() throws IOException {
+      if (runPixels == 0) {
+        return;
+      }
+      if (position != runSource) {
+        in.seek(runSource);
+      }
+      int stride = channels * pixel;
+      position = runSource + (long) runPixels * stride;
+      if (channels == 1) {
+        in.readFully(buf, runDest, runPixels * pixel);
+        runPixels = 0;
+        return;
+      }
+
+      if (interleaved == null) {
+        int size = (int) Math.min((long) runPixels * stride,
+          Math.max(stride, INTERLEAVED_BUFFER_SIZE -
+            INTERLEAVED_BUFFER_SIZE % stride));
+        interleaved = new byte[size];
+      }
+      int dest = runDest;
+      int remaining = runPixels;
+      while (remaining > 0) {
+        int pixels = Math.min(remaining, interleaved.length / stride);
+        in.readFully(interleaved, 0, pixels * stride);
+        for (int c=0; c<channels; c++) {
+          int src = c * pixel;
+          int end = dest + c * planeSize + pixels * pixel;
+          for (int i=dest + c * planeSize; i<end; i+=pixel) {
+            for (int b=0; b<pixel; b++) {
+              buf[i + b] = interleaved[src + b];
+            }
+            src += stride;
+          }
+        }
+        dest += pixels * pixel;
+        remaining -= pixels;
+      }
+      runPixels = 0;
+    }
+  }
+
+  // -- Utility methods - byte stream decoding --
+
+  /**
+   * Extracts pixel information from the given byte array according to the
+   * bits per sample, photometric interpretation and color map IFD directory
+   * entry values, and the specified byte ordering.
+   * No error checking is performed.
+   */
+  public static void unpackBytes(byte[] samples, int startIndex, byte[] bytes,
+    IFD ifd) throws FormatException
+  {
+    unpackBytes(samples, startIndex, bytes, bytes.length, ifd);
+  }
+
+  /**
+   * Extracts pixel information from the first <code>length</code> bytes of
+   * the given byte array.
+   * @see #unpackBytes(byte[], int, byte[], IFD)
+   */
+  public static void unpackBytes(byte[] samples, int startIndex, byte[] bytes,
+    int length, IFD ifd) throws FormatException
+  {
+    boolean planar = ifd.getPlanarConfiguration() == 2;
+
+    TiffCompression compression = ifd.getCompression();
+    PhotoInterp photoInterp = ifd.getPhotometricInterpretation();
+    if (compression == TiffCompression.JPEG) photoInterp = PhotoInterp.RGB;
 
     int[] bitsPerSample = ifd.getBitsPerSample();
     int nChannels = bitsPerSample.length;
 
-    int sampleCount = (int) (((long) 8 * bytes.length) / bitsPerSample[0]);
+    int sampleCount = (int) (((long) 8 * length) / bitsPerSample[0]);
     if (photoInterp == PhotoInterp.Y_CB_CR) sampleCount *= 3;
     if (planar) {
       nChannels = 1;
@@ -1070,7 +2038,7 @@ public class TiffParser {
     LOGGER.trace(
       "unpacking {} samples (startIndex={}; totalBits={}; numBytes={})",
       new Object[] {sampleCount, startIndex, nChannels * bitsPerSample[0],
-      bytes.length});
+      length});
 
     long imageWidth = ifd.getImageWidth();
     long imageHeight = ifd.getImageLength();
@@ -1080,36 +2048,54 @@ public class TiffParser {
     int nSamples = samples.length / (nChannels * numBytes);
 
     boolean noDiv8 = bps0 % 8 != 0;
-    boolean bps8 = bps0 == 8;
-    boolean bps16 = bps0 == 16;
 
     boolean littleEndian = ifd.isLittleEndian();
 
-    // Hyper optimisation that takes any 8-bit or 16-bit data, where there is
-    // only one channel, the source byte buffer's size is less than or equal to
-    // that of the destination buffer and for which no special unpacking is
-    // required and performs a simple array copy. Over the course of reading
-    // semi-large datasets this can save **billions** of method calls.
-    // Wed Aug  5 19:04:59 BST 2009
-    // Chris Allan <callan@glencoesoftware.com>
-    if ((bps8 || bps16) && bytes.length <= samples.length && nChannels == 1
-        && photoInterp != PhotoInterp.WHITE_IS_ZERO
-        && photoInterp != PhotoInterp.CMYK
-        && photoInterp != PhotoInterp.Y_CB_CR) {
-      System.arraycopy(bytes, 0, samples, 0, bytes.length);
-      return;
-    }
-
     long maxValue = (long) Math.pow(2, bps0) - 1;
     if (photoInterp == PhotoInterp.CMYK) maxValue = Integer.MAX_VALUE;
 
     int skipBits = (int) (8 - ((imageWidth * bps0 * nChannels) % 8));
     if (skipBits == 8 ||
-      (bytes.length * 8 < bps0 * (nChannels * imageWidth + imageHeight)))
+      (length * 8 < bps0 * (nChannels * imageWidth + imageHeight)))
     {
       skipBits = 0;
     }
 
+    // The common layouts are handled by dedicated loops instead of the
+    // general per-sample loop below.  Samples keep the byte order of the
+    // file, so whole-byte samples only need to be copied or de-interleaved;
+    // WhiteIsZero inversion of whole-byte samples is a bitwise complement.
+    if (photoInterp != PhotoInterp.Y_CB_CR &&
+      photoInterp != PhotoInterp.CMYK)
+    {
+      boolean invert = photoInterp == PhotoInterp.WHITE_IS_ZERO;
+      int count = Math.min(sampleCount, nSamples - startIndex);
+      if (!noDiv8 && (!invert || numBytes <= 4)) {
+        if (count <= 0) return;
+        if (nChannels == 1) {
+          copySamples(samples, startIndex * numBytes, bytes, count * numBytes,
+            invert);
+        }
+        else {
+          deinterleaveSamples(samples, startIndex, bytes, count, nSamples,
+            nChannels, numBytes, invert);
+        }
+        return;
+      }
+      if (nChannels == 1 && photoInterp != PhotoInterp.CFA_ARRAY) {
+        if (bps0 == 1) {
+          unpackBits1(samples, startIndex, bytes, length, count, imageWidth,
+            skipBits, invert);
+          return;
+        }
+        if (bps0 == 12) {
+          unpackBits12(samples, startIndex, bytes, length, count, imageWidth,
+            skipBits, invert, littleEndian);
+          return;
+        }
+      }
+    }
+
     // set up YCbCr-specific values
     float lumaRed = PhotoInterp.LUMA_RED;
     float lumaGreen = PhotoInterp.LUMA_GREEN;
@@ -1134,7 +2120,10 @@ public class TiffParser {
 
     RandomAccessInputStream bb = null;
     try {
-      bb = new RandomAccessInputStream(new ByteArrayHandle(bytes));
+      if (noDiv8) {
+        bb = new RandomAccessInputStream(
+          new ByteArrayHandle(ByteBuffer.wrap(bytes, 0, length)));
+      }
       // unpack pixels
       for (int sample=0; sample<sampleCount; sample++) {
         int ndx = startIndex + sample;
@@ -1189,7 +2178,7 @@ public class TiffParser {
               int lumaIndex = sample + (2 * (sample / block));
               int chromaIndex = (sample / block) * (block + 2) + block;
 
-              if (chromaIndex + 1 >= bytes.length) break;
+              if (chromaIndex + 1 >= length) break;
 
               int tile = ndx / block;
               int pixel = ndx % block;
@@ -1232,6 +2221,140 @@ public class TiffParser {
     }
   }
 
+  /**
+   * Copies the first <code>n</code> bytes of whole-byte samples of a single
+   * channel, complementing each byte if <code>invert</code> is set.
+   */
+  private static void copySamples(byte[] samples, int offset, byte[] bytes,
+    int n, boolean invert)
+  {
+    if (!invert) {
+      System.arraycopy(bytes, 0, samples, offset, n);
+      return;
+    }
+    for (int i=0; i<n; i++) {
+      samples[offset + i] = (byte) ~bytes[i];
+    }
+  }
+
+  /**
+   * Splits <code>count</code> interleaved pixels of whole-byte samples into
+   * one plane per channel, complementing each byte if <code>invert</code>
+   * is set.
+   */
+  private static void deinterleaveSamples(byte[] samples, int startIndex,
+    byte[] bytes, int count, int nSamples, int nChannels, int numBytes,
+    boolean invert)
+  {
+    int mask = invert ? 0xff : 0;
+    int stride = nChannels * numBytes;
+    for (int channel=0; channel<nChannels; channel++) {
+      int src = channel * numBytes;
+      int dest = (channel * nSamples + startIndex) * numBytes;
+      if (numBytes == 1) {
+        for (int i=0; i<count; i++, src+=stride) {
+          samples[dest + i] = (byte) (bytes[src] ^ mask);
+        }
+      }
+      else if (numBytes == 2) {
+        int end = dest + count * 2;
+        for (int i=dest; i<end; i+=2, src+=stride) {
+          samples[i] = (byte) (bytes[src] ^ mask);
+          samples[i + 1] = (byte) (bytes[src + 1] ^ mask);
+        }
+      }
+      else {
+        int end = dest + count * numBytes;
+        for (int i=dest; i<end; i+=numBytes, src+=stride) {
+          for (int b=0; b<numBytes; b++) {
+            samples[i + b] = (byte) (bytes[src + b] ^ mask);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Unpacks <code>count</code> 1-bit samples of a single channel into one
+   * byte per sample.  Each row of <code>imageWidth</code> samples is followed
+   * by <code>skipBits</code> bits of padding; samples past the end of the
+   * data are 0 before inversion.
+   */
+  private static void unpackBits1(byte[] samples, int startIndex,
+    byte[] bytes, int length, int count, long imageWidth, int skipBits,
+    boolean invert)
+  {
+    long totalBits = (long) length * 8;
+    long bit = 0;
+    long column = startIndex % imageWidth;
+    int mask = invert ? 1 : 0;
+    int end = startIndex + count;
+    for (int ndx=startIndex; ndx<end; ndx++) {
+      int value = 0;
+      if (bit < totalBits) {
+        value = (bytes[(int) (bit >> 3)] >> (7 - (int) (bit & 7))) & 1;
+      }
+      bit++;
+      if (++column == imageWidth) {
+        column = 0;
+        bit += skipBits;
+      }
+      samples[ndx] = (byte) (value ^ mask);
+    }
+  }
+
+  /**
+   * Unpacks <code>count</code> 12-bit samples of a single channel into two
+   * bytes per sample, in the given byte order.  Rows are padded as in
+   * {@link #unpackBits1}; a sample that is cut off by the end of the data
+   * holds the remaining bits.
+   */
+  private static void unpackBits12(byte[] samples, int startIndex,
+    byte[] bytes, int length, int count, long imageWidth, int skipBits,
+    boolean invert, boolean littleEndian)
+  {
+    long totalBits = (long) length * 8;
+    long bit = 0;
+    long column = startIndex % imageWidth;
+    int end = startIndex + count;
+    for (int ndx=startIndex; ndx<end; ndx++) {
+      int value;
+      int index = (int) (bit >> 3);
+      if (bit + 12 <= totalBits && (bit & 7) == 0) {
+        value = ((bytes[index] & 0xff) << 4) | ((bytes[index + 1] & 0xff) >> 4);
+      }
+      else if (bit + 12 <= totalBits && (bit & 7) == 4) {
+        value = ((bytes[index] & 0xf) << 8) | (bytes[index + 1] & 0xff);
+      }
+      else {
+        // the last, truncated sample or an unaligned row start
+        value = 0;
+        long last = Math.min(bit + 12, totalBits);
+        for (long b=bit; b<last; b++) {
+          int shift = 7 - (int) (b & 7);
+          value = (value << 1) | ((bytes[(int) (b >> 3)] >> shift) & 1);
+        }
+      }
+      bit += 12;
+      if (++column == imageWidth) {
+        column = 0;
+        bit += skipBits;
+      }
+      if (invert) {
+        value = 4095 - value;
+      }
+      int outputIndex = ndx * 2;
+      if (littleEndian) {
+        samples[outputIndex] = (byte) value;
+        samples[outputIndex + 1] = (byte) (value >> 8);
+      }
+      else {
+        samples[outputIndex] = (byte) (value >> 8);
+        samples[outputIndex + 1] = (byte) value;
+      }
+    }
+  }
+
   /**
    * Read a file offset.
    * For bigTiff, a 64-bit number is read.  For other Tiffs, a 32-bit number
@@ -1242,7 +2365,15 @@ public class TiffParser {
     if (bigTiff || fakeBigTiff) {
       return in.readLong();
     }
-    long offset = (previous & ~0xffffffffL) | (in.readInt() & 0xffffffffL);
+    return adjustOffset(previous, in.readInt() & 0xffffffffL);
+  }
+
+  /**
+   * Converts a 32-bit offset read after the given offset into a file
+   * offset, accounting for a possible carry-over from the previous offset.
+   */
+  private long adjustOffset(long previous, long value) throws IOException {
+    long offset = (previous & ~0xffffffffL) | value;
 
     // Only adjust the offset if we know that the file is too large for 32-bit
     // offsets to be accurate; otherwise, we're making the incorrect assumption
@@ -1280,4 +2411,119 @@ public class TiffParser {
     return new TiffIFDEntry(entryTag, entryType, valueCount, offset);
   }
 
+  /**
+   * Parses a directory entry from an array holding the entries of an IFD,
+   * in the same way as {@link #readTiffIFDEntry()}.
+   * @param directory The entries of the IFD.
+   * @param index The index of the entry in the array.
+   * @param position The file offset of the entry.
+   */
+  private TiffIFDEntry readTiffIFDEntry(byte[] directory, int index,
+    long position) throws IOException
+  {
+    boolean little = in.isLittleEndian();
+    int entryTag = DataTools.bytesToInt(directory, index, 2, little);
+    IFDType entryType =
+      IFDType.get(DataTools.bytesToInt(directory, index + 2, 2, little));
+
+    int valueCount = bigTiff ?
+      (int) DataTools.bytesToLong(directory, index + 4, 8, little) :
+      DataTools.bytesToInt(directory, index + 4, 4, little);
+    if (valueCount < 0) {
+      throw new RuntimeException("Count of '" + valueCount + "' unexpected.");
+    }
+
+    int nValueBytes = valueCount * entryType.getBytesPerElement();
+    int threshhold = bigTiff ? 8 : 4;
+    int valueIndex = index + (bigTiff ? 12 : 8);
+    long offset = position + valueIndex - index;
+    if (nValueBytes > threshhold) {
+      offset = bigTiff ?
+        DataTools.bytesToLong(directory, valueIndex, 8, little) :
+        adjustOffset(0,
+          DataTools.bytesToInt(directory, valueIndex, 4, little) & 0xffffffffL);
+    }
+
+    return new TiffIFDEntry(entryTag, entryType, valueCount, offset);
+  }
+
+  /**
+   * Walks the IFD chain starting at the given offset.  The file is read in
+   * large blocks, so that IFDs stored close together are parsed from memory
+   * without further reads.
+   */
+  private TiffIFDIndex scanIFDs(long offset) throws IOException {
+    boolean little = in.isLittleEndian();
+    int bytesPerEntry = bigTiff ? TiffConstants.BIG_TIFF_BYTES_PER_ENTRY :
+      TiffConstants.BYTES_PER_ENTRY;
+    int countSize = bigTiff ? 8 : 2;
+    int pointerSize = bigTiff || fakeBigTiff ? 8 : 4;
+    long length = in.length();
+
+    TiffIFDIndex index = new TiffIFDIndex();
+    HashSet<Long> visited = new HashSet<Long>();
+    byte[] block = new byte[0];
+    long blockStart = 0;
+    int blockLength = 0;
+    while (offset > 0 && offset < length) {
+      if (!visited.add(offset)) {
+        LOGGER.warn("IFD chain loops back to offset {}", offset);
+        break;
+      }
+      index.add(offset);
+
+      long nEntries = -1;
+      if (offset + countSize <= length) {
+        if (offset < blockStart ||
+          offset + countSize > blockStart + blockLength)
+        {
+          blockStart = offset;
+          blockLength = (int) Math.min(SCAN_BLOCK_SIZE, length - offset);
+          block = readBlock(block, blockStart, blockLength);
+        }
+        int pos = (int) (offset - blockStart);
+        nEntries = bigTiff ?
+          (int) DataTools.bytesToLong(block, pos, 8, little) :
+          DataTools.bytesToInt(block, pos, 2, little);
+      }
+      long size = countSize + nEntries * bytesPerEntry + pointerSize;
+      if (nEntries < 0 || offset + size > length) {
+        // the directory is truncated; read it as the stream allows
+        in.seek(offset);
+        int n = bigTiff ? (int) in.readLong() : in.readUnsignedShort();
+        in.skipBytes(n * bytesPerEntry);
+        offset = getNextOffset(offset);
+        continue;
+      }
+      if (offset + size > blockStart + blockLength) {
+        blockStart = offset;
+        blockLength = (int) Math.min(Math.max(size, SCAN_BLOCK_SIZE),
+          length - offset);
+        block = readBlock(block, blockStart, blockLength);
+      }
+
+      int pos = (int) (offset - blockStart + size - pointerSize);
+      offset = pointerSize == 8 ?
+        DataTools.bytesToLong(block, pos, 8, little) :
+        adjustOffset(offset,
+          DataTools.bytesToInt(block, pos, 4, little) & 0xffffffffL);
+    }
+    return index;
+  }
+
+  /**
+   * Reads the given range of the file into the given array, or into a new
+   * array if it is too small.
+   */
+  private byte[] readBlock(byte[] block, long offset, int length)
+    throws IOException
+  {
+    if (block.length < length) {
+      block = new byte[length];
+    }
+    in.seek(offset);
+    in.readFully(block, 0, length);
+    return block;
+  }
+
 }
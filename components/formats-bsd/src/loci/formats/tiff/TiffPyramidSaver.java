@@ -0,0 +1,527 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package loci.formats.tiff;
+
+import java.io.IOException;
+
+import loci.common.DataTools;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes tiled TIFF planes together with reduced resolution versions of each
+ * plane, in a single pass over the full resolution data.
+ *
+ * Each plane is written as a tiled IFD in the main IFD chain.  The reduced
+ * resolutions are computed while the plane is written, by halving the width
+ * and height of the previous resolution, and are stored in tiled IFDs that
+ * are referenced by the SubIFDs entry of the plane's IFD.
+ *
+ * Only one row of tiles of each resolution is held in memory.  The tiles
+ * of a plane must therefore be written one row of tiles at a time, from the
+ * top of the plane to the bottom; within a row, tiles may be written in any
+ * order, but must not overlap.  Each plane must be complete before the next
+ * plane is written, and the file must not contain any IFDs other than those
+ * written by this class.
+ */
+public class TiffPyramidSaver {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(TiffPyramidSaver.class);
+
+  /** Default width and height of the tiles. */
+  public static final int DEFAULT_TILE_SIZE = 256;
+
+  /** Methods of computing the pixels of a reduced resolution. */
+  public enum Downsampling {
+    /** Average each 2x2 block of pixels. */
+    AVERAGE,
+    /** Use the top left pixel of each 2x2 block of pixels. */
+    NEAREST
+  }
+
+  // -- Fields --
+
+  private TiffSaver saver;
+
+  private int resolutionCount;
+
+  private int tileWidth = DEFAULT_TILE_SIZE;
+
+  private int tileHeight = DEFAULT_TILE_SIZE;
+
+  private Downsampling downsampling = Downsampling.AVERAGE;
+
+  /** The resolutions of the plane being written, or null between planes. */
+  private Level[] levels;
+
+  /** The index of the plane being written. */
+  private int plane;
+
+  private int pixelType;
+
+  private int bytesPerPixel;
+
+  private int nChannels;
+
+  private boolean interleaved;
+
+  private boolean littleEndian;
+
+  /**
+   * The position of the offset that will point to the next plane's IFD,
+   * or -1 if no plane has been written.
+   */
+  private long nextOffsetPosition = -1;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a new pyramid saver.
+   * @param saver the saver for the file, to which the TIFF header has
+   * already been written
+   * @param resolutionCount the number of resolutions of each plane,
+   * including the full resolution
+   */
+  public TiffPyramidSaver(TiffSaver saver, int resolutionCount) {
+    if (resolutionCount < 1) {
+      throw new IllegalArgumentException(
+        "Invalid resolution count: " + resolutionCount);
+    }
+    this.saver = saver;
+    this.resolutionCount = resolutionCount;
+  }
+
+  // -- TiffPyramidSaver API methods --
+
+  /** Gets the number of resolutions of each plane. */
+  public int getResolutionCount() {
+    return resolutionCount;
+  }
+
+  /**
+   * Sets the size of the tiles of every resolution.  Tile dimensions must
+   * be positive multiples of 16.
+   */
+  public void setTileSize(int tileWidth, int tileHeight) {
+    if (tileWidth <= 0 || tileWidth % 16 != 0 ||
+      tileHeight <= 0 || tileHeight % 16 != 0)
+    {
+      throw new IllegalArgumentException("Invalid tile size: " +
+        tileWidth + "x" + tileHeight);
+    }
+    if (levels != null) {
+      throw new IllegalStateException(
+        "Tile size cannot be changed while a plane is being written");
+    }
+    this.tileWidth = tileWidth;
+    this.tileHeight = tileHeight;
+  }
+
+  /** Gets the width of the tiles. */
+  public int getTileWidth() {
+    return tileWidth;
+  }
+
+  /** Gets the height of the tiles. */
+  public int getTileHeight() {
+    return tileHeight;
+  }
+
+  /** Sets the method used to compute the reduced resolutions. */
+  public void setDownsampling(Downsampling downsampling) {
+    if (downsampling == null) {
+      throw new IllegalArgumentException("Downsampling cannot be null");
+    }
+    this.downsampling = downsampling;
+  }
+
+  /** Gets the method used to compute the reduced resolutions. */
+  public Downsampling getDownsampling() {
+    return downsampling;
+  }
+
+  /** Returns true if every plane that has been started is complete. */
+  public boolean isPlaneComplete() {
+    return levels == null;
+  }
+
+  /**
+   * Writes a region of a full resolution plane.  The plane's IFDs are
+   * written once the last row of the plane has been written.
+   * @param no the index of the plane
+   * @param buf the pixels of the region, with the channels stored as
+   * described by the IFD's planar configuration
+   * @param ifd the IFD of the full resolution plane; it is copied when the
+   * first region of the plane is written, and is not modified
+   * @param pixelType the pixel type of the plane
+   * @param x the X coordinate of the region
+   * @param y the Y coordinate of the region
+   * @param w the width of the region
+   * @param h the height of the region
+   */
+  public synchronized void writeTile(int no, byte[] buf, IFD ifd,
+    int pixelType, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    if (buf == null) {
+      throw new FormatException("Image data cannot be null");
+    }
+    if (ifd == null) {
+      throw new FormatException("IFD cannot be null");
+    }
+    if (levels == null) {
+      startPlane(no, buf, ifd, pixelType, w, h);
+    }
+    else if (no != plane) {
+      throw new FormatException("Cannot write plane " + no +
+        " before plane " + plane + " is complete");
+    }
+
+    Level level = levels[0];
+    if (x < 0 || y < 0 || w <= 0 || h <= 0 ||
+      x + w > level.width || y + h > level.height)
+    {
+      throw new FormatException("Invalid region: x=" + x + ", y=" + y +
+        ", w=" + w + ", h=" + h);
+    }
+    if ((long) w * h * nChannels * bytesPerPixel > buf.length) {
+      throw new FormatException("Image data is too small for the region");
+    }
+
+    int row = y;
+    while (row < y + h) {
+      if (row < level.bandY || row >= level.bandY + level.bandRows) {
+        throw new FormatException("Row " + row + " of plane " + plane +
+          " cannot be written after row " + level.bandY + "; tiles must be " +
+          "written one row of tiles at a time");
+      }
+      int rows = Math.min(y + h, level.bandY + level.bandRows) - row;
+      level.copy(buf, w, h, x, row - y, row - level.bandY, rows);
+      level.pixels += (long) w * rows;
+      row += rows;
+      if (level.pixels == (long) level.width * level.bandRows) {
+        flushBand(0);
+      }
+    }
+
+    if (level.bandRows == 0) {
+      finishPlane();
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Allocates the resolutions of a new plane. */
+  private void startPlane(int no, byte[] buf, IFD ifd, int pixelType,
+    int w, int h)
+    throws FormatException, IOException
+  {
+    if (nextOffsetPosition < 0 &&
+      saver.getStream().length() > (saver.isBigTiff() ? 16 : 8))
+    {
+      throw new FormatException(
+        "Pyramids can only be written to new files");
+    }
+    plane = no;
+    this.pixelType = pixelType;
+    bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+    nChannels = buf.length / (w * h * bytesPerPixel);
+    if (nChannels == 0) {
+      throw new FormatException("Image data is too small for the region");
+    }
+    interleaved = ifd.getPlanarConfiguration() == 1;
+    Object little = ifd.get(IFD.LITTLE_ENDIAN);
+    littleEndian = little == null ?
+      saver.isLittleEndian() : ((Boolean) little).booleanValue();
+
+    levels = new Level[resolutionCount];
+    int width = (int) ifd.getImageWidth();
+    int height = (int) ifd.getImageLength();
+    for (int i=0; i<levels.length; i++) {
+      IFD levelIFD = new IFD(ifd);
+      levelIFD.remove(IFD.STRIP_OFFSETS);
+      levelIFD.remove(IFD.STRIP_BYTE_COUNTS);
+      levelIFD.remove(IFD.ROWS_PER_STRIP);
+      levelIFD.remove(IFD.TILE_OFFSETS);
+      levelIFD.remove(IFD.TILE_BYTE_COUNTS);
+      levelIFD.remove(IFD.SUB_IFD);
+      levelIFD.remove(IFD.REUSE);
+      levelIFD.putIFDValue(IFD.TILE_WIDTH, (long) tileWidth);
+      levelIFD.putIFDValue(IFD.TILE_LENGTH, (long) tileHeight);
+      if (i > 0) {
+        width = (width + 1) / 2;
+        height = (height + 1) / 2;
+        levelIFD.remove(IFD.IMAGE_DESCRIPTION);
+        levelIFD.putIFDValue(IFD.IMAGE_WIDTH, (long) width);
+        levelIFD.putIFDValue(IFD.IMAGE_LENGTH, (long) height);
+        levelIFD.putIFDValue(IFD.NEW_SUBFILE_TYPE, 1L);
+      }
+      levels[i] = new Level(levelIFD, width, height);
+    }
+  }
+
+  /**
+   * Compresses and writes the current row of tiles of a resolution, and
+   * downsamples it into the next resolution.
+   */
+  private void flushBand(int index) throws FormatException, IOException {
+    Level level = levels[index];
+    byte[] band = level.band;
+    if (!interleaved && level.bandRows < tileHeight) {
+      // the channels of a partial row of tiles must be contiguous
+      int channelBytes = level.width * level.bandRows * bytesPerPixel;
+      band = new byte[channelBytes * nChannels];
+      for (int c=0; c<nChannels; c++) {
+        System.arraycopy(level.band, level.offset(0, 0, c),
+          band, c * channelBytes, channelBytes);
+      }
+    }
+    byte[][] strips = saver.makeStrips(band, level.ifd, pixelType,
+      level.width, level.bandRows, nChannels, false);
+
+    int tileRow = level.bandY / tileHeight;
+    int tilesPerRow = (int) level.ifd.getTilesPerRow();
+    int tilesPerChannel = tilesPerRow * (int) level.ifd.getTilesPerColumn();
+    synchronized (saver) {
+      RandomAccessOutputStream out = saver.getStream();
+      for (int i=0; i<strips.length; i++) {
+        int tile = (i / tilesPerRow) * tilesPerChannel +
+          tileRow * tilesPerRow + (i % tilesPerRow);
+        out.seek(out.length());
+        level.offsets[tile] = out.getFilePointer();
+        level.byteCounts[tile] = strips[i].length;
+        out.write(strips[i]);
+      }
+    }
+    LOGGER.debug("Wrote row {} of tiles of resolution {}", tileRow, index);
+
+    Level next = index + 1 < levels.length ? levels[index + 1] : null;
+    if (next != null) {
+      int first = level.bandY / 2;
+      int last = (level.bandY + level.bandRows + 1) / 2;
+      for (int row=first; row<last; row++) {
+        downsampleRow(level, next, row);
+      }
+      next.pixels += (long) next.width * (last - first);
+    }
+
+    level.bandY += level.bandRows;
+    level.bandRows = Math.min(tileHeight, level.height - level.bandY);
+    level.pixels = 0;
+
+    if (next != null && next.pixels == (long) next.width * next.bandRows) {
+      flushBand(index + 1);
+    }
+  }
+
+  /**
+   * Computes one row of a resolution from the current row of tiles of the
+   * previous resolution.
+   */
+  private void downsampleRow(Level src, Level dest, int row) {
+    int srcRow = row * 2 - src.bandY;
+    int rows = Math.min(2, src.bandRows - srcRow);
+    int destRow = row - dest.bandY;
+    for (int c=0; c<nChannels; c++) {
+      for (int x=0; x<dest.width; x++) {
+        int destOffset = dest.offset(x, destRow, c);
+        if (downsampling == Downsampling.NEAREST) {
+          System.arraycopy(src.band, src.offset(x * 2, srcRow, c),
+            dest.band, destOffset, bytesPerPixel);
+          continue;
+        }
+        int cols = Math.min(2, src.width - x * 2);
+        double sum = 0;
+        for (int dy=0; dy<rows; dy++) {
+          for (int dx=0; dx<cols; dx++) {
+            sum += getSample(src.band, src.offset(x * 2 + dx, srcRow + dy, c));
+          }
+        }
+        setSample(dest.band, destOffset, sum / (rows * cols));
+      }
+    }
+  }
+
+  private double getSample(byte[] buf, int offset) {
+    switch (pixelType) {
+      case FormatTools.INT8:
+        return buf[offset];
+      case FormatTools.INT16:
+        return DataTools.bytesToShort(buf, offset, 2, littleEndian);
+      case FormatTools.UINT16:
+        return DataTools.bytesToInt(buf, offset, 2, littleEndian);
+      case FormatTools.INT32:
+        return DataTools.bytesToInt(buf, offset, 4, littleEndian);
+      case FormatTools.UINT32:
+        return DataTools.bytesToLong(buf, offset, 4, littleEndian);
+      case FormatTools.FLOAT:
+        return DataTools.bytesToFloat(buf, offset, 4, littleEndian);
+      case FormatTools.DOUBLE:
+        return DataTools.bytesToDouble(buf, offset, 8, littleEndian);
+      default:
+        return buf[offset] & 0xff;
+    }
+  }
+
+  private void setSample(byte[] buf, int offset, double value) {
+    long bits;
+    if (pixelType == FormatTools.FLOAT) {
+      bits = Float.floatToIntBits((float) value);
+    }
+    else if (pixelType == FormatTools.DOUBLE) {
+      bits = Double.doubleToLongBits(value);
+    }
+    else {
+      bits = Math.round(value);
+    }
+    DataTools.unpackBytes(bits, buf, offset, bytesPerPixel, littleEndian);
+  }
+
+  /**
+   * Writes the IFDs of the completed plane, and links the plane's IFD to
+   * the previous plane's IFD.
+   */
+  private void finishPlane() throws FormatException, IOException {
+    synchronized (saver) {
+      RandomAccessOutputStream out = saver.getStream();
+      long[] subIFDs = new long[levels.length - 1];
+      for (int i=1; i<levels.length; i++) {
+        subIFDs[i - 1] = writeIFD(out, levels[i]);
+      }
+      Level level = levels[0];
+      if (subIFDs.length > 0) {
+        level.ifd.putIFDValue(IFD.SUB_IFD, subIFDs);
+      }
+      long offset = writeIFD(out, level);
+
+      saver.overwriteNextOffset(nextOffsetPosition < 0 ?
+        (saver.isBigTiff() ? 8 : 4) : nextOffsetPosition, offset);
+      nextOffsetPosition = saver.getNextOffsetPosition(level.ifd, offset);
+      out.seek(out.length());
+    }
+    LOGGER.debug("Wrote plane {} with {} resolutions", plane, levels.length);
+    levels = null;
+  }
+
+  /** Writes the IFD of a resolution at the end of the file. */
+  private long writeIFD(RandomAccessOutputStream out, Level level)
+    throws FormatException, IOException
+  {
+    level.ifd.putIFDValue(IFD.TILE_OFFSETS, level.offsets);
+    level.ifd.putIFDValue(IFD.TILE_BYTE_COUNTS, level.byteCounts);
+    out.seek(out.length());
+    if ((out.getFilePointer() & 1) != 0) {
+      // IFDs must begin on a word boundary
+      out.writeByte(0);
+    }
+    long offset = out.getFilePointer();
+    saver.writeIFD(level.ifd, 0);
+    return offset;
+  }
+
+  // -- Helper classes --
+
+  /** The state of one resolution of the plane being written. */
+  private class Level {
+    private IFD ifd;
+    private int width;
+    private int height;
+
+    /** The current row of tiles, with the channels of each pixel stored
+     *  as in the full resolution plane. */
+    private byte[] band;
+
+    /** The first row of the current row of tiles. */
+    private int bandY;
+
+    /** The number of image rows in the current row of tiles. */
+    private int bandRows;
+
+    /** The number of pixels of the current row of tiles written so far. */
+    private long pixels;
+
+    private long[] offsets;
+    private long[] byteCounts;
+
+    Level(IFD ifd, int width, int height) throws FormatException {
+      this.ifd = ifd;
+      this.width = width;
+      this.height = height;
+      band = new byte[width * tileHeight * nChannels * bytesPerPixel];
+      bandRows = Math.min(tileHeight, height);
+      int tiles = (int) (ifd.getTilesPerRow() * ifd.getTilesPerColumn());
+      if (!interleaved) tiles *= nChannels;
+      offsets = new long[tiles];
+      byteCounts = new long[tiles];
+    }
+
+    /** Gets the offset of a sample in the current row of tiles. */
+    int offset(int x, int row, int c) {
+      if (interleaved) {
+        return ((row * width + x) * nChannels + c) * bytesPerPixel;
+      }
+      return ((c * tileHeight + row) * width + x) * bytesPerPixel;
+    }
+
+    /**
+     * Copies rows of a region of the full resolution plane into the current
+     * row of tiles.
+     */
+    void copy(byte[] buf, int w, int h, int x, int srcRow, int row,
+      int rows)
+    {
+      if (interleaved) {
+        int pixelBytes = nChannels * bytesPerPixel;
+        for (int r=0; r<rows; r++) {
+          System.arraycopy(buf, (srcRow + r) * w * pixelBytes,
+            band, offset(x, row + r, 0), w * pixelBytes);
+        }
+      }
+      else {
+        for (int c=0; c<nChannels; c++) {
+          for (int r=0; r<rows; r++) {
+            System.arraycopy(buf, ((c * h) + srcRow + r) * w * bytesPerPixel,
+              band, offset(x, row + r, c), w * bytesPerPixel);
+          }
+        }
+      }
+    }
+  }
+
+}
@@ -32,14 +32,20 @@
 
 package loci.formats.tiff;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import loci.common.ByteArrayHandle;
 import loci.common.Constants;
@@ -66,6 +72,37 @@ public class TiffSaver {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TiffSaver.class);
 
+  // -- Static fields --
+
+  /**
+   * Executor used by newly constructed savers to compress strips and tiles
+   * in parallel, or null if they are compressed on the calling thread.
+   */
+  private static ExecutorService defaultExecutor;
+
+  static {
+    String threads = System.getProperty("tiffSaverThreads");
+    if (threads != null) {
+      try {
+        int count = Integer.parseInt(threads);
+        if (count > 1) {
+          defaultExecutor = Executors.newFixedThreadPool(count,
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TiffSaver");
+                t.setDaemon(true);
+                return t;
+              }
+            });
+        }
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid tiffSaverThreads: {}", threads);
+      }
+    }
+  }
+
   // -- Fields --
 
   /** Output stream to use when saving TIFF data. */
@@ -81,9 +118,30 @@ public class TiffSaver {
   private boolean bigTiff = false;
   private boolean sequentialWrite = false;
 
+  /** Whether or not the file is written without reading it back. */
+  private boolean appendOnly = false;
+
+  /**
+   * The IFDs of an append-only file that have not been written yet, keyed
+   * by image index.
+   */
+  private Map<Integer, IFD> pendingIFDs = new LinkedHashMap<Integer, IFD>();
+
+  /** The offset of the last IFD in the file, or -1 if none was written. */
+  private long lastIFDOffset = -1;
+
+  /**
+   * The position of the next IFD offset of the last IFD in the file, or -1
+   * if no IFD has been written.
+   */
+  private long nextOffsetPosition = -1;
+
   /** The codec options if set. */
   private CodecOptions options;
 
+  /** Executor used to compress strips and tiles in parallel, or null. */
+  private ExecutorService executor = defaultExecutor;
+
   // -- Constructors --
   /**
    * Constructs a new TIFF saver from the given filename.
@@ -111,6 +169,11 @@ public class TiffSaver {
     }
     this.out = out;
     this.filename = filename;
+    // tiles of the file's previous contents may still be cached
+    TiffTileCache cache = TiffParser.getDefaultTileCache();
+    if (cache != null) {
+      cache.invalidate(filename);
+    }
   }
 
   /**
@@ -140,6 +203,14 @@ public class TiffSaver {
    */
   public void close() throws IOException {
     if (out != null) {
+      try {
+        flushIFDs();
+      }
+      catch (FormatException exc) {
+        IOException io = new IOException("Unable to write IFDs");
+        io.initCause(exc);
+        throw io;
+      }
       out.close();
     }
   }
@@ -153,6 +224,28 @@ public class TiffSaver {
     sequentialWrite = sequential;
   }
 
+  /**
+   * Sets whether or not the file is written append-only.  An append-only
+   * saver never reads the file back: strips and tiles are appended to the
+   * end of the file, and the IFDs are held in memory until
+   * {@link #flushIFDs()} or {@link #close()} is called, or until every
+   * strip or tile of the last image, and of every image before it, has been
+   * written.  The IFDs are then appended together, already linked, and
+   * only the offset that points to the first of them is overwritten.
+   *
+   * Images may be written in pieces and in any order, but the saver must
+   * be writing a new file, and each image is appended to the IFD chain in
+   * the order in which it was first written.
+   */
+  public void setAppendOnly(boolean appendOnly) {
+    this.appendOnly = appendOnly;
+  }
+
+  /** Returns whether or not the file is written append-only. */
+  public boolean isAppendOnly() {
+    return appendOnly;
+  }
+
   /** Gets the stream from which TIFF data is being saved. */
   public RandomAccessOutputStream getStream() {
     return out;
@@ -184,6 +277,36 @@ public class TiffSaver {
     this.options = options;
   }
 
+  /**
+   * Sets the executor used by newly constructed savers to compress strips
+   * and tiles in parallel.  Parallel compression can also be enabled for all
+   * savers by setting the <code>tiffSaverThreads</code> system property to a
+   * number of threads greater than 1.
+   * @see #setExecutor(ExecutorService)
+   */
+  public static synchronized void setDefaultExecutor(
+    ExecutorService executor)
+  {
+    defaultExecutor = executor;
+  }
+
+  /**
+   * Sets the executor used to compress the strips or tiles of each image in
+   * parallel.  All strips of an image are compressed before any of them is
+   * written, and they are then written in order, so the file is identical to
+   * one written with serial compression.
+   * @param executor The executor to use, or null to compress all strips on
+   *   the calling thread (the default).
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /** Gets the executor used to compress strips in parallel, or null. */
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
   /** Writes the TIFF file header. */
   public void writeHeader() throws IOException {
     // write endianness indicator
@@ -288,17 +411,53 @@ public class TiffSaver {
       throw new FormatException("IFD cannot be null");
     }
 
+    if (nChannels == null) {
+      int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+      nChannels = buf.length / (w * h * bytesPerPixel);
+    }
+    byte[][] strips =
+      makeStrips(buf, ifd, pixelType, w, h, nChannels, copyDirectly);
+
+    // This operation is synchronized
+    synchronized (this) {
+      if (appendOnly) {
+        appendImage(ifd, no, strips, nChannels, x, y);
+        if (last && isImageComplete()) flushIFDs();
+      }
+      else {
+        writeImageIFD(ifd, no, strips, nChannels, last, x ,y);
+      }
+    }
+  }
+
+  /**
+   * Splits an image into the strips or tiles described by the given IFD, and
+   * compresses each of them.  The IFD is completed as by
+   * {@link #writeImage(byte[], IFD, int, int, int, int, int, int, boolean)},
+   * but nothing is written to the output stream.
+   * @param buf The image, or the region of the image that is being written.
+   * @param ifd The IFD of the image.  Mustn't be <code>null</code>.
+   * @param pixelType The pixel type of the image.
+   * @param w The width of the region.
+   * @param h The height of the region.
+   * @param nChannels The number of channels in the region.
+   * @param copyDirectly Whether a region consisting of a single strip can be
+   * used as is.
+   * @return the compressed strips or tiles, in the order in which they are
+   * stored in the file.
+   */
+  byte[][] makeStrips(byte[] buf, IFD ifd, int pixelType, int w, int h,
+    int nChannels, boolean copyDirectly)
+    throws FormatException, IOException
+  {
     // These operations are synchronized
     TiffCompression compression;
     int tileWidth, tileHeight, nStrips;
     boolean interleaved;
-    ByteArrayOutputStream[] stripBuf;
+    byte[][] strips;
     synchronized (this) {
       int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
       int blockSize = w * h * bytesPerPixel;
-      if (nChannels == null) {
-        nChannels = buf.length / (w * h * bytesPerPixel);
-      }
       interleaved = ifd.getPlanarConfiguration() == 1;
 
       makeValidIFD(ifd, pixelType, nChannels);
@@ -309,63 +468,40 @@ public class TiffSaver {
       tileWidth = (int) ifd.getTileWidth();
       tileHeight = (int) ifd.getTileLength();
       int tilesPerRow = (int) ifd.getTilesPerRow();
-      int rowsPerStrip = (int) ifd.getRowsPerStrip()[0];
-      int stripSize = rowsPerStrip * tileWidth * bytesPerPixel;
       nStrips =
         ((w + tileWidth - 1) / tileWidth) * ((h + tileHeight - 1) / tileHeight);
 
-      if (interleaved) stripSize *= nChannels;
-      else nStrips *= nChannels;
+      if (!interleaved) nStrips *= nChannels;
 
-      stripBuf = new ByteArrayOutputStream[nStrips];
-      DataOutputStream[] stripOut = new DataOutputStream[nStrips];
-      for (int strip=0; strip<nStrips; strip++) {
-        stripBuf[strip] = new ByteArrayOutputStream(stripSize);
-        stripOut[strip] = new DataOutputStream(stripBuf[strip]);
-      }
-      int[] bps = ifd.getBitsPerSample();
-      int off;
+      strips = new byte[nStrips][];
 
-      // write pixel strips to output buffers
+      // copy pixel strips to output buffers
       int effectiveStrips = !interleaved ? nStrips / nChannels : nStrips;
       if (effectiveStrips == 1 && copyDirectly) {
-        stripOut[0].write(buf);
+        strips[0] = buf.clone();
+        for (int strip=1; strip<nStrips; strip++) {
+          strips[strip] = new byte[0];
+        }
+      }
+      else if (interleaved) {
+        int pixelBytes = bytesPerPixel * nChannels;
+        for (int strip=0; strip<nStrips; strip++) {
+          strips[strip] = new byte[tileWidth * tileHeight * pixelBytes];
+          copyTile(buf, 0, w, h, strips[strip],
+            (strip % tilesPerRow) * tileWidth,
+            (strip / tilesPerRow) * tileHeight,
+            tileWidth, tileHeight, pixelBytes);
+        }
       }
       else {
-        for (int strip = 0; strip < effectiveStrips; strip++) {
-          int xOffset = (strip % tilesPerRow) * tileWidth;
-          int yOffset = (strip / tilesPerRow) * tileHeight;
-          for (int row=0; row<tileHeight; row++) {
-            for (int col=0; col<tileWidth; col++) {
-              int ndx = ((row+yOffset) * w + col + xOffset) * bytesPerPixel;
-              for (int c=0; c<nChannels; c++) {
-                for (int n=0; n<bps[c]/8; n++) {
-                  if (interleaved) {
-                    off = ndx * nChannels + c * bytesPerPixel + n;
-                    if (row >= h || col >= w) {
-                      stripOut[strip].writeByte(0);
-                    } else if (off < buf.length) {
-                      stripOut[strip].writeByte(buf[off]);
-                    }
-                    else {
-                      stripOut[strip].writeByte(0);
-                    }
-                  }
-                  else {
-                    off = c * blockSize + ndx + n;
-                    if (row >= h || col >= w) {
-                      stripOut[strip].writeByte(0);
-                    } else if (off < buf.length) {
-                      stripOut[c * (nStrips / nChannels) + strip].writeByte(
-                          buf[off]);
-                    }
-                    else {
-                      stripOut[strip].writeByte(0);
-                    }
-                  }
-                }
-              }
-            }
+        for (int c=0; c<nChannels; c++) {
+          for (int strip=0; strip<effectiveStrips; strip++) {
+            byte[] tile = new byte[tileWidth * tileHeight * bytesPerPixel];
+            copyTile(buf, c * blockSize, w, h, tile,
+              (strip % tilesPerRow) * tileWidth,
+              (strip / tilesPerRow) * tileHeight,
+              tileWidth, tileHeight, bytesPerPixel);
+            strips[c * effectiveStrips + strip] = tile;
           }
         }
       }
@@ -375,27 +511,23 @@ public class TiffSaver {
     // this operation is NOT synchronized and is the ONLY portion of the
     // TiffWriter.saveBytes() --> TiffSaver.writeImage() stack that is NOT
     // synchronized.
-    byte[][] strips = new byte[nStrips][];
-    for (int strip=0; strip<nStrips; strip++) {
-      strips[strip] = stripBuf[strip].toByteArray();
-      TiffCompression.difference(strips[strip], ifd);
-      CodecOptions codecOptions = compression.getCompressionCodecOptions(
-          ifd, options);
-      codecOptions.height = tileHeight;
-      codecOptions.width = tileWidth;
-      codecOptions.channels = interleaved ? nChannels : 1;
-
-      strips[strip] = compression.compress(strips[strip], codecOptions);
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.debug(String.format("Compressed strip %d/%d length %d",
-            strip + 1, nStrips, strips[strip].length));
-      }
+    int channels = interleaved ? nChannels : 1;
+    ExecutorService service = executor;
+    if (service != null && nStrips > 1 &&
+      compression != TiffCompression.UNCOMPRESSED &&
+      compression != TiffCompression.LURAWAVE)
+    {
+      compressStrips(service, strips, ifd, compression, tileWidth,
+        tileHeight, channels);
     }
-
-    // This operation is synchronized
-    synchronized (this) {
-      writeImageIFD(ifd, no, strips, nChannels, last, x ,y);
+    else {
+      for (int strip=0; strip<nStrips; strip++) {
+        strips[strip] = compressStrip(strips[strip], ifd, compression,
+          tileWidth, tileHeight, channels);
+        logStrip(strip, strips);
+      }
     }
+    return strips;
   }
 
   /**
@@ -539,25 +671,143 @@ public class TiffSaver {
     if (LOGGER.isDebugEnabled()) {
       LOGGER.debug("Offset after IFD write: {}", out.getFilePointer());
     }
+    if (fp >= lastIFDOffset) {
+      // IFDs of new images are written after those of earlier images
+      lastIFDOffset = fp;
+      nextOffsetPosition = getNextOffsetPosition(ifd, fp);
+    }
   }
 
-  public void writeIFD(IFD ifd, long nextOffset)
+  /**
+   * Appends the strips or tiles of an image to an append-only file, and
+   * records their offsets in the image's pending IFD.
+   */
+  private void appendImage(IFD ifd, int no, byte[][] strips, int nChannels,
+    int x, int y)
     throws FormatException, IOException
   {
-    TreeSet<Integer> keys = new TreeSet<Integer>(ifd.keySet());
-    int keyCount = keys.size();
+    boolean isTiled = ifd.isTiled();
+    int offsetsTag = isTiled ? IFD.TILE_OFFSETS : IFD.STRIP_OFFSETS;
+    int byteCountsTag = isTiled ? IFD.TILE_BYTE_COUNTS : IFD.STRIP_BYTE_COUNTS;
+
+    IFD pending = pendingIFDs.get(no);
+    if (pending == null) {
+      long totalTiles = ifd.getTilesPerRow() * ifd.getTilesPerColumn();
+      if (ifd.getPlanarConfiguration() != 1) {
+        totalTiles *= nChannels;
+      }
+      ifd.remove(IFD.STRIP_OFFSETS);
+      ifd.remove(IFD.STRIP_BYTE_COUNTS);
+      ifd.remove(IFD.TILE_OFFSETS);
+      ifd.remove(IFD.TILE_BYTE_COUNTS);
+      ifd.putIFDValue(offsetsTag, new long[(int) totalTiles]);
+      ifd.putIFDValue(byteCountsTag, new long[(int) totalTiles]);
+      pending = ifd;
+      pendingIFDs.put(no, pending);
+    }
+    long[] offsets = pending.getIFDLongArray(offsetsTag);
+    long[] byteCounts = pending.getIFDLongArray(byteCountsTag);
 
-    if (ifd.containsKey(new Integer(IFD.LITTLE_ENDIAN))) keyCount--;
-    if (ifd.containsKey(new Integer(IFD.BIG_TIFF))) keyCount--;
-    if (ifd.containsKey(new Integer(IFD.REUSE))) keyCount--;
+    int firstOffset = (y / (int) pending.getTileLength()) *
+      (int) pending.getTilesPerRow() + (x / (int) pending.getTileWidth());
+    out.seek(out.length());
+    for (int i=0; i<strips.length; i++) {
+      offsets[firstOffset + i] = out.getFilePointer();
+      byteCounts[firstOffset + i] = strips[i].length;
+      out.write(strips[i]);
+    }
+    pending.putIFDValue(offsetsTag, offsets);
+    pending.putIFDValue(byteCountsTag, byteCounts);
+  }
+
+  /**
+   * Returns whether every strip or tile of the images held by an
+   * append-only saver has been written.
+   */
+  private boolean isImageComplete() throws FormatException {
+    for (IFD ifd : pendingIFDs.values()) {
+      long[] offsets = ifd.getIFDLongArray(
+        ifd.isTiled() ? IFD.TILE_OFFSETS : IFD.STRIP_OFFSETS);
+      for (long offset : offsets) {
+        // strips and tiles are never written at the start of the file
+        if (offset == 0) return false;
+      }
+    }
+    return true;
+  }
 
+  /**
+   * Appends the IFDs held by an append-only saver to the end of the file.
+   * The IFDs are linked to each other, and to the IFDs written by any
+   * previous call, so that the file is complete once this method returns.
+   * This method does nothing if no IFDs are held.
+   */
+  public synchronized void flushIFDs() throws FormatException, IOException {
+    if (pendingIFDs.isEmpty()) {
+      return;
+    }
+    out.seek(out.length());
+    if ((out.getFilePointer() & 1) != 0) {
+      // IFDs must begin on a word boundary
+      out.writeByte(0);
+    }
     long fp = out.getFilePointer();
+
+    // write every IFD to memory, then to the file in a single block
+    ByteArrayHandle buffer = new ByteArrayHandle();
+    RandomAccessOutputStream ifdOut = new RandomAccessOutputStream(buffer);
+    ifdOut.order(isLittleEndian());
+    long previous = -1;
+    for (IFD ifd : pendingIFDs.values()) {
+      if ((ifdOut.length() & 1) != 0) {
+        ifdOut.writeByte(0);
+      }
+      long offset = fp + ifdOut.length();
+      if (previous >= 0) {
+        ifdOut.seek(previous - fp);
+        writeIntValue(ifdOut, offset);
+        ifdOut.seek(offset - fp);
+      }
+      writeIFD(ifdOut, ifd, offset, 0);
+      previous = getNextOffsetPosition(ifd, offset);
+      lastIFDOffset = offset;
+    }
+    out.write(buffer.getBytes(), 0, (int) buffer.length());
+    LOGGER.debug("Appended {} IFDs at {}", pendingIFDs.size(), fp);
+
+    overwriteNextOffset(nextOffsetPosition < 0 ?
+      (bigTiff ? 8 : 4) : nextOffsetPosition, fp);
+    nextOffsetPosition = previous;
+    out.seek(out.length());
+    pendingIFDs.clear();
+  }
+
+  public void writeIFD(IFD ifd, long nextOffset)
+    throws FormatException, IOException
+  {
+    writeIFD(out, ifd, out.getFilePointer(), nextOffset);
+  }
+
+  /**
+   * Writes an IFD to the given stream.
+   * @param ifdOut the stream to which the IFD is written
+   * @param ifd the IFD to write
+   * @param fp the offset in the file at which the IFD is stored
+   * @param nextOffset the offset of the next IFD
+   */
+  private void writeIFD(RandomAccessOutputStream ifdOut, IFD ifd, long fp,
+    long nextOffset)
+    throws FormatException, IOException
+  {
+    TreeSet<Integer> keys = new TreeSet<Integer>(ifd.keySet());
+    int keyCount = getEntryCount(ifd);
+
     int bytesPerEntry = bigTiff ? TiffConstants.BIG_TIFF_BYTES_PER_ENTRY :
       TiffConstants.BYTES_PER_ENTRY;
     int ifdBytes = (bigTiff ? 16 : 6) + bytesPerEntry * keyCount;
 
-    if (bigTiff) out.writeLong(keyCount);
-    else out.writeShort(keyCount);
+    if (bigTiff) ifdOut.writeLong(keyCount);
+    else ifdOut.writeShort(keyCount);
 
     ByteArrayHandle extra = new ByteArrayHandle();
     RandomAccessOutputStream extraStream = new RandomAccessOutputStream(extra);
@@ -567,11 +817,44 @@ public class TiffSaver {
           key.equals(IFD.REUSE)) continue;
 
       Object value = ifd.get(key);
-      writeIFDValue(extraStream, ifdBytes + fp, key.intValue(), value);
+      writeIFDValue(ifdOut, extraStream, ifdBytes + fp, key.intValue(),
+        value);
     }
-    if (bigTiff) out.seek(out.getFilePointer());
+    if (bigTiff) ifdOut.seek(ifdOut.getFilePointer());
+    writeIntValue(ifdOut, nextOffset);
+    ifdOut.write(extra.getBytes(), 0, (int) extra.length());
+  }
+
+  /**
+   * Gets the position of the next IFD offset of the given IFD, once it has
+   * been written at the given offset by {@link #writeIFD(IFD, long)}.
+   */
+  long getNextOffsetPosition(IFD ifd, long ifdOffset) {
+    int bytesPerEntry = bigTiff ? TiffConstants.BIG_TIFF_BYTES_PER_ENTRY :
+      TiffConstants.BYTES_PER_ENTRY;
+    return ifdOffset + (bigTiff ? 8 : 2) +
+      (long) bytesPerEntry * getEntryCount(ifd);
+  }
+
+  /**
+   * Gets the position of the next IFD offset of the last IFD in the file
+   * that was written by this saver, or -1 if no IFD has been written.
+   * Overwriting this offset with 0 ends the IFD chain without reading the
+   * file, as {@link #overwriteLastIFDOffset(RandomAccessInputStream)} does.
+   */
+  public long getLastNextOffsetPosition() {
+    return nextOffsetPosition;
+  }
+
+  /**
+   * Overwrites the next IFD offset, or the offset of the first IFD in the
+   * header, stored at the given position.
+   */
+  public void overwriteNextOffset(long position, long nextOffset)
+    throws IOException
+  {
+    out.seek(position);
     writeIntValue(out, nextOffset);
-    out.write(extra.getBytes(), 0, (int) extra.length());
   }
 
   /**
@@ -584,6 +867,17 @@ public class TiffSaver {
   public void writeIFDValue(RandomAccessOutputStream extraOut, long offset,
     int tag, Object value)
     throws FormatException, IOException
+  {
+    writeIFDValue(out, extraOut, offset, tag, value);
+  }
+
+  /**
+   * Writes the given IFD value, with its directory entry written to the
+   * given stream.
+   */
+  private void writeIFDValue(RandomAccessOutputStream out,
+    RandomAccessOutputStream extraOut, long offset, int tag, Object value)
+    throws FormatException, IOException
   {
     extraOut.order(isLittleEndian());
 
@@ -874,6 +1168,66 @@ public class TiffSaver {
     overwriteIFDValue(in, 0, IFD.IMAGE_DESCRIPTION, value);
   }
 
+  /**
+   * Overwrites the comment of the first IFD in place, if it fits in the
+   * space used by the current comment.  Only the header and the first IFD
+   * are read, and the file is never extended, so a comment can be replaced
+   * cheaply if space was reserved for it when the file was written.
+   * The count of the entry is reduced to the length of the new comment, so
+   * that the unused space is not read as further strings.
+   * @return true if the comment was overwritten, or false if it does not fit;
+   *   in that case nothing is written, and
+   *   {@link #overwriteComment(RandomAccessInputStream, Object)} can be used
+   *   instead
+   */
+  public boolean overwriteCommentInPlace(RandomAccessInputStream in,
+    String comment)
+    throws FormatException, IOException
+  {
+    if (in == null)
+      throw new FormatException("Output cannot be null");
+    TiffParser parser = new TiffParser(in);
+    long ifdOffset = parser.getFirstOffset();
+    if (ifdOffset < 0) {
+      throw new FormatException("Invalid TIFF header");
+    }
+    boolean bigTiff = parser.isBigTiff();
+    setLittleEndian(in.isLittleEndian());
+    setBigTiff(bigTiff);
+
+    int bytesPerEntry = bigTiff ?
+      TiffConstants.BIG_TIFF_BYTES_PER_ENTRY : TiffConstants.BYTES_PER_ENTRY;
+    in.seek(ifdOffset);
+    long num = bigTiff ? in.readLong() : in.readUnsignedShort();
+    for (int i=0; i<num; i++) {
+      long entryOffset = ifdOffset + (bigTiff ? 8 : 2) + bytesPerEntry * i;
+      in.seek(entryOffset);
+      TiffIFDEntry entry = parser.readTiffIFDEntry();
+      if (entry.getTag() != IFD.IMAGE_DESCRIPTION) {
+        continue;
+      }
+
+      // both the old and new values must be stored outside of the entry
+      byte[] bytes = comment.getBytes(Charset.forName(Constants.ENCODING));
+      int inlineBytes = bigTiff ? 8 : 4;
+      int count = entry.getValueCount();
+      if (entry.getType() != IFDType.ASCII || count <= inlineBytes ||
+        bytes.length + 1 <= inlineBytes || bytes.length + 1 > count)
+      {
+        return false;
+      }
+      LOGGER.debug("Overwriting comment of {} bytes with {} bytes in place",
+        count, bytes.length + 1);
+      out.seek(entry.getValueOffset());
+      out.write(bytes);
+      out.write(new byte[count - bytes.length]);
+      out.seek(entryOffset + 4);
+      writeIntValue(out, bytes.length + 1);
+      return true;
+    }
+    return false;
+  }
+
   // -- Helper methods --
 
   /**
@@ -890,6 +1244,15 @@ public class TiffSaver {
     return toReturn;
   }
 
+  /** Gets the number of entries that {@link #writeIFD} writes for an IFD. */
+  private int getEntryCount(IFD ifd) {
+    int keyCount = ifd.size();
+    if (ifd.containsKey(new Integer(IFD.LITTLE_ENDIAN))) keyCount--;
+    if (ifd.containsKey(new Integer(IFD.BIG_TIFF))) keyCount--;
+    if (ifd.containsKey(new Integer(IFD.REUSE))) keyCount--;
+    return keyCount;
+  }
+
   /**
    * Write the given value to the given RandomAccessOutputStream.
    * If the 'bigTiff' flag is set, then the value will be written as an 8 byte
@@ -953,4 +1316,104 @@ public class TiffSaver {
     }
   }
 
+  /**
+   * Copies one strip or tile of an image, one row at a time.  Parts of the
+   * tile that lie beyond the right or bottom edge of the image are left as
+   * zeros.
+   * @param buf the image, with the samples of each pixel stored together
+   * @param offset the offset of the image in <code>buf</code>
+   * @param w the width of the image
+   * @param h the height of the image
+   * @param tile the zero-filled tile
+   * @param x the X-coordinate of the tile in the image
+   * @param y the Y-coordinate of the tile in the image
+   * @param pixelBytes the number of bytes in each pixel of the image
+   */
+  private static void copyTile(byte[] buf, int offset, int w, int h,
+    byte[] tile, int x, int y, int tileWidth, int tileHeight, int pixelBytes)
+  {
+    int rowBytes = tileWidth * pixelBytes;
+    int copyBytes = Math.min(tileWidth, w - x) * pixelBytes;
+    int rows = Math.min(tileHeight, h - y);
+    for (int row=0; row<rows; row++) {
+      int src = offset + ((y + row) * w + x) * pixelBytes;
+      int length = Math.min(copyBytes, buf.length - src);
+      if (length <= 0) {
+        break;
+      }
+      System.arraycopy(buf, src, tile, row * rowBytes, length);
+    }
+  }
+
+  /**
+   * Applies the predictor to a strip or tile in place and compresses it.
+   * A new set of codec options is created for each strip, so that strips
+   * can be compressed on several threads at once.
+   */
+  private byte[] compressStrip(byte[] strip, IFD ifd,
+    TiffCompression compression, int tileWidth, int tileHeight, int channels)
+    throws FormatException, IOException
+  {
+    TiffCompression.difference(strip, ifd);
+    CodecOptions codecOptions = compression.getCompressionCodecOptions(
+        ifd, options);
+    codecOptions.height = tileHeight;
+    codecOptions.width = tileWidth;
+    codecOptions.channels = channels;
+    return compression.compress(strip, codecOptions);
+  }
+
+  /**
+   * Compresses all strips or tiles of an image on the given executor.
+   * Each compressed strip replaces the uncompressed one at the same index.
+   */
+  private void compressStrips(ExecutorService service, final byte[][] strips,
+    final IFD ifd, final TiffCompression compression, final int tileWidth,
+    final int tileHeight, final int channels)
+    throws FormatException, IOException
+  {
+    List<Future<byte[]>> tasks = new ArrayList<Future<byte[]>>(strips.length);
+    try {
+      for (int strip=0; strip<strips.length; strip++) {
+        final byte[] data = strips[strip];
+        tasks.add(service.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws FormatException, IOException {
+            return compressStrip(data, ifd, compression, tileWidth,
+              tileHeight, channels);
+          }
+        }));
+      }
+      for (int strip=0; strip<strips.length; strip++) {
+        strips[strip] = tasks.get(strip).get();
+        logStrip(strip, strips);
+      }
+    }
+    catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof FormatException) {
+        throw (FormatException) cause;
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new FormatException(cause);
+    }
+    finally {
+      for (Future<byte[]> task : tasks) {
+        task.cancel(false);
+      }
+    }
+  }
+
+  private void logStrip(int strip, byte[][] strips) {
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug(String.format("Compressed strip %d/%d length %d",
+          strip + 1, strips.length, strips[strip].length));
+    }
+  }
+
 }
@@ -0,0 +1,253 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.tiff;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least-recently-used cache of decoded TIFF tiles and strips, bounded by the
+ * total number of bytes held.
+ *
+ * Tiles are keyed by the path, length and modification time of the file,
+ * the offset of the first tile of the image in the file, the way in which
+ * the tile was decoded, and the index of the tile, so one cache can be
+ * shared by every {@link TiffParser} that reads the same file, and tiles of
+ * a file that was since rewritten are not returned.  The way in which a tile was decoded covers the
+ * tile geometry and decoding options such as the JPEG 2000 resolution
+ * level, as IFDs that share tiles (e.g. JPEG 2000 sub-resolutions) decode
+ * them differently.  Cached tiles are never modified.  Files without a path
+ * (e.g. byte arrays) are not cached.  As a file may be modified without
+ * changing its length or modification time, {@link TiffSaver} also
+ * invalidates the default cache's tiles of each file that it opens.
+ *
+ * @see TiffParser#setTileCache(TiffTileCache)
+ */
+public class TiffTileCache {
+
+  // -- Fields --
+
+  /** Decoded tiles, in access order. */
+  private final LinkedHashMap<Key, byte[]> tiles =
+    new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+
+  /** Maximum number of bytes of decoded tiles held by the cache. */
+  private long maximumSize;
+
+  /** Number of bytes of decoded tiles currently held by the cache. */
+  private long size = 0;
+
+  /** Number of lookups that found a tile. */
+  private long hits = 0;
+
+  /** Number of lookups that did not find a tile. */
+  private long misses = 0;
+
+  /** Number of tiles discarded to stay within the budget. */
+  private long evictions = 0;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a cache holding at most the given number of bytes of decoded
+   * tiles.
+   */
+  public TiffTileCache(long maximumSize) {
+    this.maximumSize = maximumSize;
+  }
+
+  // -- TiffTileCache API methods --
+
+  /**
+   * Retrieves a decoded tile.
+   * @param file The path of the file containing the tile.
+   * @param image The offset of the first tile of the image.
+   * @param decoding Identifies the way in which the tile is decoded; tiles
+   *   decoded in different ways are cached separately.  Must implement
+   *   equals and hashCode, and may be null.
+   * @param tile The index of the tile within the image.
+   * @return the decoded tile, which must not be modified, or null if the
+   *   tile is not in the cache.
+   */
+  public byte[] get(String file, long image, Object decoding, int tile) {
+    Key key = new Key(file, image, decoding, tile);
+    synchronized (this) {
+      byte[] data = tiles.get(key);
+      if (data == null) {
+        misses++;
+      }
+      else {
+        hits++;
+      }
+      return data;
+    }
+  }
+
+  /**
+   * Adds a decoded tile to the cache, discarding the least recently used
+   * tiles if necessary.  Tiles larger than the budget are not cached.
+   * The tile must not be modified afterwards.
+   */
+  public void put(String file, long image, Object decoding, int tile,
+    byte[] data)
+  {
+    Key key = new Key(file, image, decoding, tile);
+    synchronized (this) {
+      if (data.length > maximumSize) {
+        return;
+      }
+      byte[] previous = tiles.put(key, data);
+      if (previous != null) {
+        size -= previous.length;
+      }
+      size += data.length;
+      trim(maximumSize);
+    }
+  }
+
+  /** Discards all tiles of the given file. */
+  public synchronized void invalidate(String file) {
+    Iterator<Map.Entry<Key, byte[]>> entries = tiles.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<Key, byte[]> entry = entries.next();
+      if (entry.getKey().file.equals(file)) {
+        size -= entry.getValue().length;
+        entries.remove();
+      }
+    }
+  }
+
+  /**
+   * Sets the maximum number of bytes of decoded tiles held by the cache.
+   * Tiles are discarded until the cache fits within the new budget.
+   */
+  public synchronized void setMaximumSize(long maximumSize) {
+    this.maximumSize = maximumSize;
+    trim(maximumSize);
+  }
+
+  /** Gets the maximum number of bytes of decoded tiles held by the cache. */
+  public synchronized long getMaximumSize() {
+    return maximumSize;
+  }
+
+  /** Gets the number of bytes of decoded tiles held by the cache. */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /** Gets the number of tiles held by the cache. */
+  public synchronized int getTileCount() {
+    return tiles.size();
+  }
+
+  /** Gets the number of lookups that found a tile. */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /** Gets the number of lookups that did not find a tile. */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /** Gets the number of tiles discarded to stay within the budget. */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  /** Discards all tiles and resets the usage counters. */
+  public synchronized void clear() {
+    tiles.clear();
+    size = 0;
+    hits = 0;
+    misses = 0;
+    evictions = 0;
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Discards the least recently used tiles until at most the given number
+   * of bytes are held.
+   */
+  private void trim(long budget) {
+    Iterator<Map.Entry<Key, byte[]>> entries = tiles.entrySet().iterator();
+    while (size > budget && entries.hasNext()) {
+      size -= entries.next().getValue().length;
+      entries.remove();
+      evictions++;
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Identifies a tile within a version of a file. */
+  private static class Key {
+    private final String file;
+    private final long length;
+    private final long modified;
+    private final long image;
+    private final Object decoding;
+    private final int tile;
+
+    Key(String file, long image, Object decoding, int tile) {
+      this.file = file;
+      File f = new File(file);
+      length = f.length();
+      modified = f.lastModified();
+      this.image = image;
+      this.decoding = decoding;
+      this.tile = tile;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key k = (Key) o;
+      return image == k.image && tile == k.tile && file.equals(k.file) &&
+        length == k.length && modified == k.modified &&
+        (decoding == null ? k.decoding == null : decoding.equals(k.decoding));
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = file.hashCode() * 31 + (int) (image ^ (image >>> 32));
+      hash = hash * 31 + (decoding == null ? 0 : decoding.hashCode());
+      return hash * 31 + tile;
+    }
+  }
+
+}
@@ -0,0 +1,289 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffRational;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for the {@link java.util.Map} behaviour of {@link IFD}.
+ */
+public class IFDTest {
+
+  private IFD ifd;
+
+  private HashMap<Integer, Object> expected;
+
+  @BeforeMethod
+  public void setUp() {
+    ifd = new IFD();
+    expected = new HashMap<Integer, Object>();
+    put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+    put(IFD.IMAGE_WIDTH, new Long(4096));
+    put(IFD.IMAGE_LENGTH, new Integer(2048));
+    put(IFD.BITS_PER_SAMPLE, new int[] {16});
+    put(IFD.COMPRESSION, new Integer(1));
+    put(IFD.IMAGE_DESCRIPTION, "description");
+    put(IFD.STRIP_OFFSETS, new long[] {8, 1024, 2048});
+    put(IFD.SAMPLES_PER_PIXEL, new Short((short) 1));
+    put(IFD.X_RESOLUTION, new TiffRational(72, 1));
+    put(IFD.PREDICTOR, new Byte((byte) 2));
+    put(IFD.SOFTWARE, null);
+  }
+
+  private void put(int tag, Object value) {
+    ifd.put(tag, value);
+    expected.put(tag, value);
+  }
+
+  @Test
+  public void testEquals() {
+    assertEquals(expected.size(), ifd.size());
+    assertTrue(ifd.equals(expected));
+    assertTrue(expected.equals(ifd));
+    assertEquals(expected.hashCode(), ifd.hashCode());
+  }
+
+  @Test
+  public void testValueTypes() {
+    for (Map.Entry<Integer, Object> e : expected.entrySet()) {
+      Object value = ifd.get(e.getKey());
+      if (e.getValue() == null) {
+        assertNull(value);
+      }
+      else {
+        assertEquals(e.getValue().getClass(), value.getClass());
+      }
+    }
+    assertTrue(ifd.get(IFD.STRIP_OFFSETS) == expected.get(IFD.STRIP_OFFSETS));
+  }
+
+  @Test
+  public void testContains() {
+    assertTrue(ifd.containsKey(IFD.SOFTWARE));
+    assertFalse(ifd.containsKey(IFD.ARTIST));
+    assertFalse(ifd.containsKey("256"));
+    assertTrue(ifd.containsValue(new Integer(2048)));
+    assertFalse(ifd.containsValue(new Long(2048)));
+    assertTrue(ifd.containsValue(null));
+    assertNull(ifd.get(null));
+  }
+
+  @Test
+  public void testSortedIteration() {
+    List<Integer> keys = new ArrayList<Integer>(ifd.keySet());
+    for (int i=1; i<keys.size(); i++) {
+      assertTrue(keys.get(i - 1) < keys.get(i));
+    }
+    assertEquals(expected.keySet(), ifd.keySet());
+  }
+
+  @Test
+  public void testReplaceAndRemove() {
+    assertEquals(new Integer(1), ifd.put(IFD.COMPRESSION, "invalid"));
+    assertEquals("invalid", ifd.get(IFD.COMPRESSION));
+    assertEquals(new Long(4096), ifd.remove(IFD.IMAGE_WIDTH));
+    assertNull(ifd.remove(IFD.IMAGE_WIDTH));
+    assertEquals(expected.size() - 1, ifd.size());
+    ifd.clear();
+    assertTrue(ifd.isEmpty());
+    assertNull(ifd.get(IFD.IMAGE_LENGTH));
+  }
+
+  @Test
+  public void testIteratorRemove() {
+    Iterator<Map.Entry<Integer, Object>> entries = ifd.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<Integer, Object> e = entries.next();
+      if (e.getValue() instanceof Number) {
+        entries.remove();
+        expected.remove(e.getKey());
+      }
+    }
+    assertEquals(expected, ifd);
+    assertFalse(ifd.containsKey(IFD.IMAGE_WIDTH));
+  }
+
+  @Test
+  public void testEntrySetValue() {
+    for (Map.Entry<Integer, Object> e : ifd.entrySet()) {
+      if (e.getKey() == IFD.IMAGE_LENGTH) {
+        assertEquals(new Integer(2048), e.setValue(new Long(1024)));
+      }
+    }
+    assertEquals(new Long(1024), ifd.get(IFD.IMAGE_LENGTH));
+  }
+
+  @Test
+  public void testPrimitivePut() throws Exception {
+    IFD values = new IFD();
+    values.putIFDValue(IFD.IMAGE_WIDTH, 512);
+    values.putIFDValue(IFD.IMAGE_LENGTH, 5000000000L);
+    values.putIFDValue(IFD.FILL_ORDER, (short) 1);
+    assertEquals(new Integer(512), values.get(IFD.IMAGE_WIDTH));
+    assertEquals(new Long(5000000000L), values.get(IFD.IMAGE_LENGTH));
+    assertEquals(new Short((short) 1), values.get(IFD.FILL_ORDER));
+    assertEquals(512, values.getIFDIntValue(IFD.IMAGE_WIDTH));
+    assertEquals(5000000000L, values.getIFDLongValue(IFD.IMAGE_LENGTH, 0));
+    assertEquals(-1, values.getIFDIntValue(IFD.ARTIST));
+  }
+
+  @Test
+  public void testGetters() throws Exception {
+    assertTrue(ifd.isLittleEndian());
+    assertEquals(4096, ifd.getImageWidth());
+    assertEquals(2048, ifd.getImageLength());
+    assertEquals(16, ifd.getBitsPerSample()[0]);
+    assertEquals("description", ifd.getComment());
+    assertEquals(3, ifd.getStripOffsets().length);
+    assertEquals(1024, ifd.getIFDLongArray(IFD.STRIP_OFFSETS)[1]);
+    assertEquals(72.0, ifd.getIFDRationalValue(IFD.X_RESOLUTION).doubleValue());
+  }
+
+  @Test
+  public void testCopies() {
+    IFD copy = new IFD(ifd);
+    IFD clone = (IFD) ifd.clone();
+    ifd.trimToSize();
+    ifd.put(IFD.IMAGE_WIDTH, new Long(1));
+    ifd.remove(IFD.IMAGE_LENGTH);
+    assertEquals(expected, copy);
+    assertEquals(expected, clone);
+    copy.putAll(ifd);
+    assertEquals(new Long(1), copy.get(IFD.IMAGE_WIDTH));
+    assertEquals(new Integer(2048), copy.get(IFD.IMAGE_LENGTH));
+  }
+
+  @Test
+  public void testGrowth() {
+    IFD values = new IFD(0);
+    for (int tag=1000; tag>0; tag-=3) {
+      values.putIFDValue(tag, tag);
+    }
+    assertEquals(334, values.size());
+    int previous = 0;
+    for (Map.Entry<Integer, Object> e : values.entrySet()) {
+      assertTrue(e.getKey() > previous);
+      assertEquals(e.getKey(), e.getValue());
+      previous = e.getKey();
+    }
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    ifd.remove(IFD.X_RESOLUTION);
+    expected.remove(IFD.X_RESOLUTION);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(ifd);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(
+      new ByteArrayInputStream(bytes.toByteArray()));
+    IFD copy = (IFD) in.readObject();
+    in.close();
+    assertEquals(expected.keySet(), copy.keySet());
+    assertEquals("description", copy.getComment());
+    copy.put(IFD.ARTIST, "artist");
+    assertEquals(expected.size() + 1, copy.size());
+  }
+
+  @Test
+  public void testDefaultMethods() {
+    assertEquals("description", ifd.getOrDefault(IFD.IMAGE_DESCRIPTION, "x"));
+    assertEquals("x", ifd.getOrDefault(IFD.ARTIST, "x"));
+    assertEquals("description", ifd.putIfAbsent(IFD.IMAGE_DESCRIPTION, "x"));
+    assertNull(ifd.putIfAbsent(IFD.ARTIST, "artist"));
+    assertEquals("artist", ifd.getIFDValue(IFD.ARTIST));
+  }
+
+  @Test
+  public void testHashMap() {
+    Map<Integer, Object> map = ifd;
+    assertTrue(map instanceof HashMap);
+    HashMap<Integer, Object> copy = new HashMap<Integer, Object>(ifd);
+    assertEquals(expected, copy);
+    assertNull(ifd.putIfAbsent(IFD.ARTIST, "x"));
+    assertEquals("x", ifd.replace(IFD.ARTIST, "y"));
+    assertTrue(ifd.replace(IFD.ARTIST, "y", "z"));
+    assertFalse(ifd.remove(IFD.ARTIST, "y"));
+    assertTrue(ifd.remove(IFD.ARTIST, "z"));
+    assertEquals(expected, ifd);
+  }
+
+  @Test
+  public void testNullKey() {
+    assertNull(ifd.put(null, "null"));
+    assertEquals("null", ifd.put(null, "value"));
+    expected.put(null, "value");
+    assertTrue(ifd.containsKey(null));
+    assertTrue(ifd.containsValue("value"));
+    assertEquals("value", ifd.get(null));
+    assertEquals(expected.size(), ifd.size());
+    assertNull(ifd.keySet().iterator().next());
+    assertTrue(ifd.equals(expected));
+    assertEquals(expected.hashCode(), ifd.hashCode());
+    assertEquals(expected, ifd.clone());
+    assertEquals(expected, new IFD(ifd));
+
+    Iterator<Integer> keys = ifd.keySet().iterator();
+    keys.next();
+    keys.remove();
+    assertFalse(ifd.containsKey(null));
+    assertEquals(expected.size() - 1, ifd.size());
+    ifd.put(null, "value");
+    assertEquals("value", ifd.remove(null));
+    assertNull(ifd.remove(null));
+    ifd.put(null, "value");
+    ifd.clear();
+    assertTrue(ifd.isEmpty());
+  }
+
+}
@@ -0,0 +1,324 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import loci.common.ByteArrayHandle;
+import loci.common.DataTools;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.in.MinimalTiffReader;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffCompressedTile;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests reading reduced-resolution images stored as SubIFDs.
+ */
+public class SubIFDPyramidTest {
+
+  private static final int PLANES = 2;
+
+  private static final int LEVELS = 3;
+
+  private static final int IMAGE_WIDTH = 64;
+
+  private static final int IMAGE_LENGTH = 48;
+
+  private File file;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    file = File.createTempFile("subifds", ".tif");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    file.delete();
+  }
+
+  private byte[] getPlane(int plane, int level) {
+    int width = IMAGE_WIDTH >> level;
+    int height = IMAGE_LENGTH >> level;
+    byte[] data = new byte[width * height];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (plane * 64 + level * 16 + i);
+    }
+    return data;
+  }
+
+  /**
+   * Writes each plane followed by its reduced resolutions, then moves the
+   * reduced resolutions out of the IFD chain and into the SUB_IFD values of
+   * their plane.
+   */
+  private void writeFile(boolean reducedResolution)
+    throws FormatException, IOException
+  {
+    writeFile(reducedResolution, true);
+  }
+
+  /**
+   * Writes the file as above; if <code>firstWidth</code> is false, the
+   * ImageWidth tag of the first plane is replaced by the SubfileType tag.
+   */
+  private void writeFile(boolean reducedResolution, boolean firstWidth)
+    throws FormatException, IOException
+  {
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+    int no = 0;
+    for (int plane=0; plane<PLANES; plane++) {
+      for (int level=0; level<LEVELS; level++) {
+        IFD ifd = new IFD();
+        ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH >> level);
+        ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH >> level);
+        ifd.put(IFD.LITTLE_ENDIAN, true);
+        if (level == 0) {
+          ifd.put(IFD.SUB_IFD, new long[LEVELS - 1]);
+        }
+        else if (reducedResolution) {
+          ifd.put(IFD.NEW_SUBFILE_TYPE, 1);
+        }
+        saver.writeImage(getPlane(plane, level), ifd, no, FormatTools.UINT8,
+          no == PLANES * LEVELS - 1);
+        no++;
+      }
+    }
+    out.close();
+
+    byte[] bytes = handle.getBytes();
+    RandomAccessInputStream in = new RandomAccessInputStream(handle);
+    long[] offsets = new TiffParser(in).getIFDOffsets();
+    in.close();
+    assertEquals(PLANES * LEVELS, offsets.length);
+    for (int plane=0; plane<PLANES; plane++) {
+      long main = offsets[plane * LEVELS];
+      int entries = DataTools.bytesToInt(bytes, (int) main, 2, true);
+      for (int entry=0; entry<entries; entry++) {
+        int pos = (int) main + 2 + entry * 12;
+        int tag = DataTools.bytesToInt(bytes, pos, 2, true);
+        if (tag == IFD.IMAGE_WIDTH && plane == 0 && !firstWidth) {
+          DataTools.unpackBytes(IFD.SUBFILE_TYPE, bytes, pos, 2, true);
+        }
+        if (tag == IFD.SUB_IFD) {
+          int values = DataTools.bytesToInt(bytes, pos + 8, 4, true);
+          for (int level=1; level<LEVELS; level++) {
+            DataTools.unpackBytes(offsets[plane * LEVELS + level], bytes,
+              values + (level - 1) * 4, 4, true);
+          }
+        }
+      }
+      long next = plane == PLANES - 1 ? 0 : offsets[(plane + 1) * LEVELS];
+      DataTools.unpackBytes(next, bytes, (int) main + 2 + entries * 12, 4,
+        true);
+    }
+
+    FileOutputStream stream = new FileOutputStream(file);
+    stream.write(bytes, 0, (int) handle.length());
+    stream.close();
+  }
+
+  @Test
+  public void testParser() throws FormatException, IOException {
+    writeFile(true);
+    TiffParser parser = new TiffParser(file.getAbsolutePath());
+    IFDList mainIFDs = parser.getMainIFDs();
+    assertEquals(PLANES, mainIFDs.size());
+    for (IFD ifd : mainIFDs) {
+      assertEquals(IMAGE_WIDTH, ifd.getImageWidth());
+      IFDList subIFDs = parser.getSubIFDs(ifd);
+      assertEquals(LEVELS - 1, subIFDs.size());
+      for (int level=1; level<LEVELS; level++) {
+        assertEquals(IMAGE_WIDTH >> level,
+          subIFDs.get(level - 1).getImageWidth());
+      }
+      assertEquals(0, parser.getSubIFDs(subIFDs.get(0)).size());
+    }
+    assertEquals(PLANES * LEVELS, parser.getIFDs().size());
+    parser.getStream().close();
+  }
+
+  @Test
+  public void testResolutions() throws FormatException, IOException {
+    writeFile(true);
+    MinimalTiffReader reader = new MinimalTiffReader();
+    reader.setFlattenedResolutions(false);
+    reader.setId(file.getAbsolutePath());
+    try {
+      assertEquals(1, reader.getSeriesCount());
+      assertEquals(LEVELS, reader.getResolutionCount());
+      assertEquals(PLANES, reader.getImageCount());
+      for (int level=0; level<LEVELS; level++) {
+        reader.setResolution(level);
+        assertEquals(IMAGE_WIDTH >> level, reader.getSizeX());
+        assertEquals(IMAGE_LENGTH >> level, reader.getSizeY());
+        assertEquals(PLANES, reader.getImageCount());
+        for (int plane=0; plane<PLANES; plane++) {
+          assertTrue(Arrays.equals(getPlane(plane, level),
+            reader.openBytes(plane)));
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testCompressedTiles() throws FormatException, IOException {
+    writeFile(true);
+    MinimalTiffReader reader = new MinimalTiffReader();
+    reader.setFlattenedResolutions(false);
+    reader.setId(file.getAbsolutePath());
+    try {
+      for (int level=0; level<LEVELS; level++) {
+        reader.setResolution(level);
+        int width = IMAGE_WIDTH >> level;
+        for (int plane=0; plane<PLANES; plane++) {
+          // the uncompressed strips hold the plane's rows in order
+          byte[] strips = new byte[width * (IMAGE_LENGTH >> level)];
+          int offset = 0;
+          for (int strip=0; offset<strips.length; strip++) {
+            TiffCompressedTile tile =
+              reader.openCompressedTile(plane, 0, strip);
+            assertEquals(TiffCompression.UNCOMPRESSED, tile.getCompression());
+            assertEquals(width, tile.getWidth());
+            byte[] data = tile.getData();
+            System.arraycopy(data, 0, strips, offset, data.length);
+            offset += data.length;
+          }
+          assertTrue(Arrays.equals(getPlane(plane, level), strips));
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testCompressedTilesOptIn() throws FormatException, IOException {
+    // subclasses only pass tiles through if they opt in
+    writeFile(true);
+    MinimalTiffReader reader = new MinimalTiffReader() { };
+    reader.setId(file.getAbsolutePath());
+    try {
+      assertNull(reader.openCompressedTile(0, 0, 0));
+    }
+    finally {
+      reader.close();
+    }
+    reader = new MinimalTiffReader() {
+      @Override
+      protected boolean supportsCompressedTiles() {
+        return true;
+      }
+    };
+    reader.setId(file.getAbsolutePath());
+    try {
+      assertNotNull(reader.openCompressedTile(0, 0, 0));
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testFullResolutionSubIFDs() throws FormatException, IOException {
+    // SubIFDs that are not flagged as reduced resolutions are not a pyramid
+    writeFile(false);
+    MinimalTiffReader reader = new MinimalTiffReader();
+    reader.setFlattenedResolutions(false);
+    reader.setId(file.getAbsolutePath());
+    try {
+      assertEquals(1, reader.getResolutionCount());
+      assertEquals(PLANES * LEVELS, reader.getIFDs().size());
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testMainIFDWithoutWidth() throws FormatException, IOException {
+    // the SubIFDs of an IFD that is not an image are still read as images
+    writeFile(false, false);
+    MinimalTiffReader reader = new MinimalTiffReader();
+    reader.setFlattenedResolutions(false);
+    reader.setId(file.getAbsolutePath());
+    try {
+      assertEquals(1, reader.getResolutionCount());
+      assertEquals(PLANES * LEVELS - 1, reader.getIFDs().size());
+    }
+    finally {
+      reader.close();
+    }
+
+    // and are not mistaken for a pyramid when flagged as reduced resolutions
+    writeFile(true, false);
+    reader = new MinimalTiffReader();
+    reader.setFlattenedResolutions(false);
+    reader.setId(file.getAbsolutePath());
+    try {
+      assertEquals(1, reader.getResolutionCount());
+      assertEquals(PLANES * LEVELS - 1,
+        reader.getIFDs().size() + reader.getThumbnailIFDs().size());
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+}
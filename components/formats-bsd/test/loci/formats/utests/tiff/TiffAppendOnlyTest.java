@@ -0,0 +1,277 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests writing TIFF files append-only with {@link TiffSaver}.
+ */
+public class TiffAppendOnlyTest {
+
+  private static final int PAGES = 20;
+
+  private static final int TILE_SIZE = 16;
+
+  /**
+   * Records every seek to a position before the end of the data, and fails
+   * on any attempt to read the data back.
+   */
+  private static class WriteOnlyHandle extends ByteArrayHandle {
+    private List<Long> rewrites = new ArrayList<Long>();
+
+    @Override
+    public void seek(long pos) throws IOException {
+      if (pos < length()) {
+        rewrites.add(pos);
+      }
+      super.seek(pos);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      throw new IOException("Data was read back");
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+      throw new IOException("Data was read back");
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+      throw new IOException("Data was read back");
+    }
+  }
+
+  private WriteOnlyHandle handle;
+
+  private TiffSaver saver;
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    return new Object[][] {{false, false}, {false, true}, {true, true}};
+  }
+
+  private void createSaver(boolean bigTiff, boolean littleEndian)
+    throws IOException
+  {
+    handle = new WriteOnlyHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    saver = new TiffSaver(out, handle);
+    saver.setBigTiff(bigTiff);
+    saver.setLittleEndian(littleEndian);
+    saver.setAppendOnly(true);
+    saver.writeHeader();
+    handle.rewrites.clear();
+  }
+
+  private byte[] getPlane(int no, int width, int height) {
+    byte[] plane = new byte[width * height];
+    for (int i=0; i<plane.length; i++) {
+      plane[i] = (byte) (no * 17 + i);
+    }
+    return plane;
+  }
+
+  /** Gets the width of a page; pages have different widths. */
+  private int getWidth(int no) {
+    return 8 + (no % 5);
+  }
+
+  private void writePages(int first, int count, boolean last)
+    throws FormatException, IOException
+  {
+    for (int i=first; i<first + count; i++) {
+      TiffCompression compression =
+        i % 2 == 1 ? TiffCompression.LZW : TiffCompression.UNCOMPRESSED;
+      IFD ifd = TiffTestTools.createIFD(getWidth(i), 6,
+        saver.isLittleEndian(), compression, 0);
+      saver.writeImage(getPlane(i, getWidth(i), 6), ifd, i,
+        FormatTools.UINT8, last && i == first + count - 1);
+    }
+  }
+
+  private TiffParser openCopy() throws IOException {
+    byte[] bytes = Arrays.copyOf(handle.getBytes(), (int) handle.length());
+    return new TiffParser(new RandomAccessInputStream(bytes));
+  }
+
+  private void checkPages(int count) throws FormatException, IOException {
+    TiffParser parser = openCopy();
+    long[] ifdOffsets = parser.getIFDOffsets();
+    IFDList ifds = parser.getIFDs();
+    assertEquals(count, ifds.size());
+    for (int i=0; i<count; i++) {
+      IFD ifd = ifds.get(i);
+      int width = getWidth(i);
+      assertEquals(width, ifd.getImageWidth());
+      byte[] buf = new byte[width * 6];
+      parser.getSamples(ifd, buf);
+      assertTrue(Arrays.equals(getPlane(i, width, 6), buf));
+      for (long offset : ifd.getStripOffsets()) {
+        assertTrue(offset < ifdOffsets[i]);
+      }
+    }
+    parser.getStream().close();
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testAppendOnly(boolean bigTiff, boolean littleEndian)
+    throws FormatException, IOException
+  {
+    createSaver(bigTiff, littleEndian);
+    writePages(0, PAGES, false);
+    saver.flushIFDs();
+    checkPages(PAGES);
+
+    // only the offset of the first IFD is written before the end of the file
+    assertEquals(Arrays.asList(bigTiff ? 8L : 4L), handle.rewrites);
+  }
+
+  @Test
+  public void testMultipleFlushes() throws FormatException, IOException {
+    createSaver(false, true);
+    writePages(0, 3, false);
+    saver.flushIFDs();
+    TiffParser parser = openCopy();
+    long[] offsets = parser.getIFDOffsets();
+    parser.getStream().close();
+    assertEquals(3, offsets.length);
+
+    // the last image triggers a flush
+    writePages(3, 2, true);
+    checkPages(5);
+    assertEquals(2, handle.rewrites.size());
+    assertTrue(handle.rewrites.get(1) > offsets[2]);
+
+    saver.flushIFDs();
+    assertEquals(2, handle.rewrites.size());
+  }
+
+  @Test
+  public void testTiles() throws FormatException, IOException {
+    createSaver(false, false);
+    int width = 40;
+    int height = 35;
+    byte[][] planes = {getPlane(0, width, height), getPlane(1, width, height)};
+
+    // alternate between the tiles of two images
+    for (int y=0; y<height; y+=TILE_SIZE) {
+      for (int x=0; x<width; x+=TILE_SIZE) {
+        for (int no=0; no<planes.length; no++) {
+          writeTile(planes[no], no, width, height, x, y, false);
+        }
+      }
+    }
+    saver.close();
+    checkTiledPages(planes, width, height);
+  }
+
+  @Test
+  public void testLastPlaneTiles() throws FormatException, IOException {
+    createSaver(false, true);
+    int width = 40;
+    int height = 35;
+    byte[][] planes = {getPlane(0, width, height), getPlane(1, width, height)};
+
+    // every tile of the last image is written as the last image, as by
+    // TiffWriter; the IFDs are written once the last tile is written
+    for (int no=0; no<planes.length; no++) {
+      for (int y=0; y<height; y+=TILE_SIZE) {
+        for (int x=0; x<width; x+=TILE_SIZE) {
+          assertEquals(0, handle.rewrites.size());
+          writeTile(planes[no], no, width, height, x, y,
+            no == planes.length - 1);
+        }
+      }
+    }
+    assertEquals(1, handle.rewrites.size());
+    checkTiledPages(planes, width, height);
+
+    saver.close();
+    assertEquals(1, handle.rewrites.size());
+  }
+
+  /** Writes the tile of the given plane whose top left corner is (x, y). */
+  private void writeTile(byte[] plane, int no, int width, int height, int x,
+    int y, boolean last)
+    throws FormatException, IOException
+  {
+    int w = Math.min(TILE_SIZE, width - x);
+    int h = Math.min(TILE_SIZE, height - y);
+    byte[] tile = new byte[w * h];
+    for (int row=0; row<h; row++) {
+      System.arraycopy(plane, (y + row) * width + x, tile, row * w, w);
+    }
+    IFD ifd = TiffTestTools.createIFD(width, height, saver.isLittleEndian(),
+      TiffCompression.UNCOMPRESSED, TILE_SIZE);
+    saver.writeImage(tile, ifd, no, FormatTools.UINT8, x, y, w, h, last);
+  }
+
+  private void checkTiledPages(byte[][] planes, int width, int height)
+    throws FormatException, IOException
+  {
+    TiffParser parser = openCopy();
+    IFDList ifds = parser.getIFDs();
+    assertEquals(planes.length, ifds.size());
+    for (int no=0; no<planes.length; no++) {
+      assertEquals(TILE_SIZE, ifds.get(no).getTileWidth());
+      byte[] buf = new byte[width * height];
+      parser.getSamples(ifds.get(no), buf);
+      assertTrue(Arrays.equals(planes[no], buf));
+    }
+    parser.getStream().close();
+  }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.codec.CodecOptions;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.PhotoInterp;
+import loci.formats.tiff.TiffCompressedTile;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link TiffParser#getCompressedTile(IFD, int, int)}.
+ */
+public class TiffCompressedTileTest {
+
+  private static final int IMAGE_WIDTH = 50;
+
+  private static final int IMAGE_LENGTH = 40;
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    // compression, bytes per sample, channels, tile size
+    return new Object[][] {
+      {TiffCompression.UNCOMPRESSED, 1, 1, 0},
+      {TiffCompression.UNCOMPRESSED, 2, 3, 16},
+      {TiffCompression.LZW, 1, 3, 0},
+      {TiffCompression.LZW, 2, 1, 16},
+      {TiffCompression.DEFLATE, 1, 1, 16},
+      {TiffCompression.DEFLATE, 4, 1, 0},
+    };
+  }
+
+  private IFD createIFD(TiffCompression compression, int bytes, int channels,
+    int tileSize)
+  {
+    IFD ifd = TiffTestTools.createIFD(IMAGE_WIDTH, IMAGE_LENGTH, true,
+      compression, tileSize);
+    TiffTestTools.setSamples(ifd, bytes * 8, channels, false);
+    return ifd;
+  }
+
+  /** Writes an image and returns a parser for the written file. */
+  private TiffParser write(IFD ifd, int bytes, int channels)
+    throws FormatException, IOException
+  {
+    byte[] pixels = new byte[IMAGE_WIDTH * IMAGE_LENGTH * bytes * channels];
+    new Random(bytes * 10 + channels).nextBytes(pixels);
+    int pixelType = FormatTools.pixelTypeFromBytes(bytes, false, false);
+
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+    saver.writeImage(pixels, ifd, 0, pixelType, true);
+    out.close();
+    byte[] file = Arrays.copyOf(handle.getBytes(), (int) handle.length());
+    return new TiffParser(
+      new RandomAccessInputStream(new ByteArrayHandle(file)));
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testDecodedTiles(TiffCompression compression, int bytes,
+    int channels, int tileSize) throws FormatException, IOException
+  {
+    TiffParser parser =
+      write(createIFD(compression, bytes, channels, tileSize), bytes,
+      channels);
+    IFD ifd = parser.getFirstIFD();
+    int rows = (int) ifd.getTilesPerColumn();
+    int cols = (int) ifd.getTilesPerRow();
+    for (int row=0; row<rows; row++) {
+      for (int col=0; col<cols; col++) {
+        TiffCompressedTile tile = parser.getCompressedTile(ifd, row, col);
+        assertNotNull(tile);
+        assertEquals(compression, tile.getCompression());
+        assertEquals(ifd.getTileWidth(), tile.getWidth());
+        assertEquals(channels, tile.getSamplesPerPixel());
+        assertEquals(bytes * 8, tile.getBitsPerSample());
+        assertTrue(tile.isLittleEndian());
+        if (tileSize > 0) {
+          assertEquals(tileSize, tile.getHeight());
+        }
+        else {
+          long rowsPerStrip = ifd.getRowsPerStrip()[0];
+          assertEquals(Math.min(rowsPerStrip,
+            IMAGE_LENGTH - row * rowsPerStrip), tile.getHeight());
+        }
+
+        int tileBytes =
+          tile.getWidth() * tile.getHeight() * channels * bytes;
+        byte[] expected = new byte[tileBytes];
+        parser.getTile(ifd, expected, row, col);
+        CodecOptions options = compression.getCompressionCodecOptions(ifd);
+        options.maxBytes = tileBytes;
+        byte[] decoded = compression.decompress(tile.getData(), options);
+        assertTrue(decoded.length >= tileBytes);
+
+        // the parser returns the channels of a tile one after another
+        int pixels = tile.getWidth() * tile.getHeight();
+        byte[] separated = new byte[tileBytes];
+        for (int p=0; p<pixels; p++) {
+          for (int c=0; c<channels; c++) {
+            System.arraycopy(decoded, (p * channels + c) * bytes, separated,
+              (c * pixels + p) * bytes, bytes);
+          }
+        }
+        assertTrue(Arrays.equals(expected, separated));
+      }
+    }
+    parser.getStream().close();
+  }
+
+  @Test
+  public void testUnsupportedLayouts() throws FormatException, IOException {
+    IFD ifd = createIFD(TiffCompression.LZW, 2, 1, 16);
+    ifd.put(IFD.PREDICTOR, TiffCompression.PREDICTOR_HORIZONTAL);
+    TiffParser parser = write(ifd, 2, 1);
+    assertNull(parser.getCompressedTile(parser.getFirstIFD(), 0, 0));
+    parser.getStream().close();
+
+    ifd = createIFD(TiffCompression.DEFLATE, 1, 3, 0);
+    ifd.put(IFD.PLANAR_CONFIGURATION, 2);
+    parser = write(ifd, 1, 3);
+    assertNull(parser.getCompressedTile(parser.getFirstIFD(), 0, 0));
+    parser.getStream().close();
+
+    parser = write(createIFD(TiffCompression.UNCOMPRESSED, 1, 1, 0), 1, 1);
+    ifd = parser.getFirstIFD();
+    ifd.putIFDValue(IFD.PHOTOMETRIC_INTERPRETATION,
+      PhotoInterp.WHITE_IS_ZERO.getCode());
+    assertNull(parser.getCompressedTile(ifd, 0, 0));
+    parser.getStream().close();
+  }
+
+  @Test
+  public void testJPEGTables() throws FormatException, IOException {
+    TiffParser parser =
+      write(createIFD(TiffCompression.UNCOMPRESSED, 1, 1, 16), 1, 1);
+    IFD ifd = parser.getFirstIFD();
+    byte[] stored = new byte[16 * 16];
+    parser.getTile(ifd, stored, 1, 2);
+
+    // the stored tile stands in for an abbreviated JPEG stream
+    byte[] tables = {(byte) 0xff, (byte) 0xd8, 1, 2, 3, (byte) 0xff,
+      (byte) 0xd9};
+    ifd.putIFDValue(IFD.COMPRESSION, TiffCompression.JPEG.getCode());
+    ifd.putIFDValue(IFD.JPEG_TABLES, tables);
+    TiffCompressedTile tile = parser.getCompressedTile(ifd, 1, 2);
+    assertEquals(TiffCompression.JPEG, tile.getCompression());
+
+    byte[] expected = new byte[tables.length + stored.length - 4];
+    System.arraycopy(tables, 0, expected, 0, tables.length - 2);
+    System.arraycopy(stored, 2, expected, tables.length - 2,
+      stored.length - 2);
+    assertTrue(Arrays.equals(expected, tile.getData()));
+    parser.getStream().close();
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidTile() throws FormatException, IOException {
+    TiffParser parser =
+      write(createIFD(TiffCompression.UNCOMPRESSED, 1, 1, 16), 1, 1);
+    try {
+      parser.getCompressedTile(parser.getFirstIFD(), 0, 4);
+    }
+    finally {
+      parser.getStream().close();
+    }
+  }
+
+}
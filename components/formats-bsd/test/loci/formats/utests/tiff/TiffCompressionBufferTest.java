@@ -0,0 +1,205 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import loci.formats.FormatException;
+import loci.formats.codec.CodecOptions;
+import loci.formats.tiff.TiffCompression;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests decompression of TIFF data into caller-supplied buffers.
+ */
+public class TiffCompressionBufferTest {
+
+  private static final int SIZE = 20000;
+
+  private static final int OFFSET = 7;
+
+  private static final byte SENTINEL = (byte) 0xa5;
+
+  private static byte[] createData() {
+    byte[] data = new byte[SIZE];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) ((i / 50) * 3 + (i % 7 == 0 ? i : 0));
+    }
+    return data;
+  }
+
+  private static CodecOptions createOptions(int maxBytes) {
+    CodecOptions options = new CodecOptions();
+    options.width = 100;
+    options.height = SIZE / 100;
+    options.bitsPerSample = 8;
+    options.maxBytes = maxBytes;
+    return options;
+  }
+
+  @DataProvider(name = "compressions")
+  public Object[][] createCompressions() {
+    return new Object[][] {
+      {TiffCompression.UNCOMPRESSED},
+      {TiffCompression.LZW},
+      {TiffCompression.DEFLATE},
+    };
+  }
+
+  /** Decompresses into the middle of a buffer filled with sentinels. */
+  private byte[] decompress(TiffCompression compression, byte[] compressed,
+    int length, int capacity, int[] written)
+    throws FormatException, IOException
+  {
+    byte[] src = new byte[length + 2 * OFFSET];
+    System.arraycopy(compressed, 0, src, OFFSET, length);
+    byte[] dest = new byte[capacity + 2 * OFFSET];
+    Arrays.fill(dest, SENTINEL);
+    written[0] = compression.decompress(src, OFFSET, length, dest, OFFSET,
+      capacity, createOptions(SIZE));
+    for (int i=0; i<OFFSET; i++) {
+      assertEquals(SENTINEL, dest[i]);
+    }
+    for (int i=OFFSET + written[0]; i<dest.length; i++) {
+      assertEquals(SENTINEL, dest[i]);
+    }
+    return Arrays.copyOfRange(dest, OFFSET, OFFSET + written[0]);
+  }
+
+  @Test(dataProvider = "compressions")
+  public void testRoundTrip(TiffCompression compression)
+    throws FormatException, IOException
+  {
+    byte[] data = createData();
+    byte[] compressed = compression.compress(data, createOptions(SIZE));
+    int[] written = new int[1];
+    byte[] decompressed = decompress(compression, compressed,
+      compressed.length, SIZE, written);
+    assertEquals(SIZE, written[0]);
+    assertTrue(Arrays.equals(data, decompressed));
+  }
+
+  @Test(dataProvider = "compressions")
+  public void testCapacity(TiffCompression compression)
+    throws FormatException, IOException
+  {
+    byte[] data = createData();
+    byte[] compressed = compression.compress(data, createOptions(SIZE));
+    int[] written = new int[1];
+    byte[] decompressed = decompress(compression, compressed,
+      compressed.length, 1234, written);
+    assertEquals(1234, written[0]);
+    assertTrue(Arrays.equals(Arrays.copyOf(data, 1234), decompressed));
+  }
+
+  @Test(dataProvider = "compressions")
+  public void testTruncated(TiffCompression compression)
+    throws FormatException, IOException
+  {
+    byte[] data = createData();
+    byte[] compressed = compression.compress(data, createOptions(SIZE));
+    int length = compressed.length / 2;
+    int[] written = new int[1];
+    byte[] decompressed =
+      decompress(compression, compressed, length, SIZE, written);
+    assertTrue(written[0] > 0 && written[0] < SIZE);
+    assertTrue(Arrays.equals(Arrays.copyOf(data, written[0]), decompressed));
+
+    // the array API decodes as much as the stream API
+    byte[] expected = compression.decompress(
+      Arrays.copyOf(compressed, length), createOptions(SIZE));
+    assertTrue(Arrays.equals(
+      Arrays.copyOf(expected, written[0]), decompressed));
+  }
+
+  @Test
+  public void testLZWPartialString() throws FormatException, IOException {
+    // a run of one value is encoded with codes that are not yet in the
+    // table when they are read, and whose strings grow by one byte each
+    byte[] data = new byte[100];
+    Arrays.fill(data, (byte) 3);
+    TiffCompression compression = TiffCompression.LZW;
+    byte[] compressed = compression.compress(data, createOptions(SIZE));
+    for (int capacity=1; capacity<=data.length; capacity++) {
+      int[] written = new int[1];
+      byte[] decompressed = decompress(compression, compressed,
+        compressed.length, capacity, written);
+      assertEquals(capacity, written[0]);
+      assertTrue(Arrays.equals(Arrays.copyOf(data, capacity), decompressed));
+    }
+  }
+
+  @Test
+  public void testLZWInvalidCode() throws FormatException, IOException {
+    // CLEAR, 'a', a code beyond the end of the table, 'a', END_OF_INFORMATION
+    int[] codes = {256, 97, 300, 97, 257};
+    byte[] compressed = new byte[(codes.length * 9 + 7) / 8];
+    for (int i=0; i<codes.length * 9; i++) {
+      if ((codes[i / 9] & (1 << (8 - i % 9))) != 0) {
+        compressed[i / 8] |= 1 << (7 - i % 8);
+      }
+    }
+    int[] written = new int[1];
+    byte[] decompressed = decompress(TiffCompression.LZW, compressed,
+      compressed.length, 10, written);
+    assertEquals(1, written[0]);
+    assertEquals(97, decompressed[0]);
+  }
+
+  @Test
+  public void testPackbits() throws FormatException, IOException {
+    byte[] compressed = {2, 1, 2, 3, -3, 9, -128, 0, 4};
+    byte[] expected = {1, 2, 3, 9, 9, 9, 9, 4};
+    TiffCompression compression = TiffCompression.PACK_BITS;
+    int[] written = new int[1];
+    byte[] decompressed = decompress(compression, compressed,
+      compressed.length, expected.length, written);
+    assertEquals(expected.length, written[0]);
+    assertTrue(Arrays.equals(expected, decompressed));
+
+    // bytes past the end of the data are decoded as by the stream API
+    CodecOptions options = createOptions(12);
+    byte[] dest = new byte[12];
+    assertEquals(12, compression.decompress(
+      compressed, 0, compressed.length, dest, 0, dest.length, options));
+    assertTrue(Arrays.equals(
+      compression.decompress(compressed, options), dest));
+  }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffIFDIndex;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the IFD chain scanner and sidecar IFD indexes of {@link TiffParser}.
+ */
+public class TiffIFDIndexTest {
+
+  private static final int PAGES = 300;
+
+  private File directory;
+
+  private File file;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    directory = File.createTempFile("ifdindex", "");
+    directory.delete();
+    directory.mkdir();
+    file = new File(directory, "pages.tif");
+    TiffIFDIndex.setDirectory(null);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    TiffIFDIndex.setDirectory(null);
+    delete(directory);
+  }
+
+  private void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    return new Object[][] {{false, false}, {false, true}, {true, true}};
+  }
+
+  /** Writes a file whose pages have different widths. */
+  private void writeFile(boolean bigTiff, boolean littleEndian)
+    throws FormatException, IOException
+  {
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setBigTiff(bigTiff);
+    saver.setLittleEndian(littleEndian);
+    saver.writeHeader();
+    for (int i=0; i<PAGES; i++) {
+      int width = 8 + (i % 5);
+      IFD ifd = new IFD();
+      ifd.put(IFD.IMAGE_WIDTH, width);
+      ifd.put(IFD.IMAGE_LENGTH, 4);
+      ifd.put(IFD.LITTLE_ENDIAN, littleEndian);
+      saver.writeImage(new byte[width * 4 * 2], ifd, i, FormatTools.UINT16,
+        i == PAGES - 1);
+    }
+    out.close();
+    FileOutputStream stream = new FileOutputStream(file);
+    stream.write(handle.getBytes(), 0, (int) handle.length());
+    stream.close();
+  }
+
+  /** Walks the IFD chain one IFD at a time. */
+  private long[] walkChain(boolean bigTiff) throws IOException {
+    RandomAccessInputStream in =
+      new RandomAccessInputStream(file.getAbsolutePath());
+    in.order(in.read() == 'I');
+    in.seek(bigTiff ? 8 : 4);
+    long offset = bigTiff ? in.readLong() : in.readInt() & 0xffffffffL;
+    List<Long> offsets = new ArrayList<Long>();
+    while (offset > 0 && offset < in.length()) {
+      offsets.add(offset);
+      in.seek(offset);
+      long n = bigTiff ? in.readLong() : in.readUnsignedShort();
+      in.skipBytes((int) (n * (bigTiff ? 20 : 12)));
+      offset = bigTiff ? in.readLong() : in.readInt() & 0xffffffffL;
+    }
+    in.close();
+    long[] f = new long[offsets.size()];
+    for (int i=0; i<f.length; i++) {
+      f[i] = offsets.get(i);
+    }
+    return f;
+  }
+
+  private TiffParser open(boolean useIndex) throws IOException {
+    TiffParser parser = new TiffParser(file.getAbsolutePath());
+    parser.setUseIFDIndex(useIndex);
+    return parser;
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testScan(boolean bigTiff, boolean littleEndian)
+    throws FormatException, IOException
+  {
+    writeFile(bigTiff, littleEndian);
+    long[] expected = walkChain(bigTiff);
+    assertEquals(PAGES, expected.length);
+
+    TiffParser parser = open(false);
+    assertTrue(Arrays.equals(expected, parser.getIFDOffsets()));
+    TiffIFDIndex index = parser.getIFDIndex();
+    assertEquals(PAGES, index.getIFDCount());
+    assertTrue(Arrays.equals(expected, index.getOffsets()));
+    IFDList ifds = parser.getIFDs();
+    assertEquals(PAGES, ifds.size());
+    for (int i=0; i<PAGES; i++) {
+      assertEquals(8 + (i % 5), ifds.get(i).getImageWidth());
+    }
+    parser.getStream().close();
+    assertFalse(TiffIFDIndex.getIndexFile(file.getAbsolutePath()).exists());
+  }
+
+  @Test
+  public void testSidecar() throws FormatException, IOException {
+    writeFile(false, true);
+    long[] expected = walkChain(false);
+    File indexFile = TiffIFDIndex.getIndexFile(file.getAbsolutePath());
+    assertEquals(directory, indexFile.getParentFile());
+
+    TiffParser parser = open(true);
+    assertTrue(Arrays.equals(expected, parser.getIFDOffsets()));
+    parser.getStream().close();
+    assertTrue(indexFile.exists());
+
+    // the offsets are read from the sidecar file, which is changed here
+    RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+    raf.seek(60);
+    raf.writeLong(12345);
+    raf.close();
+    parser = open(true);
+    assertEquals(12345, parser.getIFDOffsets()[0]);
+    parser.getStream().close();
+
+    // a file of a different size invalidates the sidecar file
+    long modified = file.lastModified();
+    raf = new RandomAccessFile(file, "rw");
+    raf.setLength(raf.length() + 1);
+    raf.close();
+    file.setLastModified(modified);
+    parser = open(true);
+    assertTrue(Arrays.equals(expected, parser.getIFDOffsets()));
+    parser.getStream().close();
+    parser = open(true);
+    assertTrue(Arrays.equals(expected, parser.getIFDOffsets()));
+    assertEquals(PAGES, parser.getIFDs().size());
+    parser.getStream().close();
+  }
+
+  @Test
+  public void testCorruptCount() throws FormatException, IOException {
+    writeFile(false, true);
+    long[] expected = walkChain(false);
+    File indexFile = TiffIFDIndex.getIndexFile(file.getAbsolutePath());
+    TiffParser parser = open(true);
+    parser.getIFDOffsets();
+    parser.getStream().close();
+
+    // counts that the sidecar file cannot hold are ignored
+    for (int count : new int[] {Integer.MAX_VALUE, expected.length + 1}) {
+      RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+      raf.seek(56);
+      raf.writeInt(count);
+      raf.close();
+      parser = open(true);
+      assertTrue(Arrays.equals(expected, parser.getIFDOffsets()));
+      parser.getStream().close();
+    }
+  }
+
+  @Test
+  public void testSidecarDirectory() throws FormatException, IOException {
+    writeFile(false, true);
+    File cache = new File(directory, "cache");
+    TiffIFDIndex.setDirectory(cache);
+    File indexFile = TiffIFDIndex.getIndexFile(file.getAbsolutePath());
+    assertTrue(indexFile.getAbsolutePath().startsWith(
+      cache.getAbsolutePath()));
+
+    TiffParser parser = open(true);
+    long[] offsets = parser.getIFDOffsets();
+    parser.getStream().close();
+    assertTrue(indexFile.exists());
+    assertFalse(TiffIFDIndex.getIndexFile(file.getAbsolutePath()).equals(
+      new File(directory, "." + file.getName() + ".ifdindex")));
+
+    parser = open(true);
+    assertTrue(Arrays.equals(offsets, parser.getIFDOffsets()));
+    parser.getStream().close();
+  }
+
+  @Test
+  public void testLoop() throws FormatException, IOException {
+    writeFile(false, true);
+    long[] expected = walkChain(false);
+
+    // point the last IFD back at the first one
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    long last = expected[expected.length - 1];
+    raf.seek(last);
+    int entries = (raf.read() & 0xff) | ((raf.read() & 0xff) << 8);
+    raf.seek(last + 2 + entries * 12);
+    long first = expected[0];
+    for (int i=0; i<4; i++) {
+      raf.write((int) (first >> (8 * i)));
+    }
+    raf.close();
+
+    TiffParser parser = open(false);
+    assertTrue(Arrays.equals(expected, parser.getIFDOffsets()));
+    parser.getStream().close();
+  }
+
+}
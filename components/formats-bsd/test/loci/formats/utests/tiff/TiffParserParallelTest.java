@@ -0,0 +1,156 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that decoding tiles in parallel with
+ * {@link TiffParser#setExecutor(ExecutorService)} gives the same pixels as
+ * decoding them serially.
+ */
+public class TiffParserParallelTest {
+
+  private static final int IMAGE_WIDTH = 200;
+
+  private static final int IMAGE_LENGTH = 150;
+
+  private ThreadPoolExecutor executor;
+
+  @BeforeClass
+  public void setUp() {
+    executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(4);
+  }
+
+  @AfterClass
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    return new Object[][] {
+      {TiffCompression.UNCOMPRESSED, 64, 1, 1},
+      {TiffCompression.LZW, 64, 1, 2},
+      {TiffCompression.DEFLATE, 32, 3, 1},
+      {TiffCompression.LZW, 48, 3, 1},
+      {TiffCompression.DEFLATE, 0, 1, 2},
+    };
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testRegions(TiffCompression compression, int tileSize,
+    int channels, int bytes) throws FormatException, IOException
+  {
+    int pixelType = bytes == 1 ? FormatTools.UINT8 : FormatTools.UINT16;
+    IFD ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+    ifd.put(IFD.COMPRESSION, compression.getCode());
+    if (tileSize > 0) {
+      ifd.put(IFD.TILE_WIDTH, tileSize);
+      ifd.put(IFD.TILE_LENGTH, tileSize);
+    }
+    else {
+      ifd.put(IFD.ROWS_PER_STRIP, new long[] {16});
+    }
+    byte[] data = new byte[IMAGE_WIDTH * IMAGE_LENGTH * channels * bytes];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i * 7 + i / 1000);
+    }
+
+    ByteArrayHandle savedData = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(savedData);
+    TiffSaver saver = new TiffSaver(out, savedData);
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+    saver.writeImage(data, ifd, 0, pixelType, true);
+    out.close();
+
+    RandomAccessInputStream in = new RandomAccessInputStream(savedData);
+    TiffParser serial = new TiffParser(in);
+    IFD savedIFD = serial.getFirstIFD();
+    TiffParser parallel = new TiffParser(in);
+    parallel.setExecutor(executor);
+    long tasks = executor.getTaskCount();
+
+    int[][] regions = {
+      {0, 0, IMAGE_WIDTH, IMAGE_LENGTH},
+      {10, 20, 150, 100},
+      {63, 0, 2, IMAGE_LENGTH},
+      {0, 100, IMAGE_WIDTH, 50},
+    };
+    for (int[] r : regions) {
+      int size = r[2] * r[3] * channels * bytes;
+      byte[] expected = new byte[size];
+      byte[] actual = new byte[size];
+      serial.getSamples(savedIFD, expected, r[0], r[1], r[2], r[3]);
+      parallel.getSamples(savedIFD, actual, r[0], r[1], r[2], r[3]);
+      assertTrue(Arrays.equals(expected, actual));
+    }
+    if (compression != TiffCompression.UNCOMPRESSED) {
+      // uncompressed samples are copied directly from the file
+      assertTrue(executor.getTaskCount() > tasks);
+    }
+
+    if (channels == 1) {
+      byte[] plane = new byte[data.length];
+      parallel.getSamples(savedIFD, plane);
+      assertTrue(Arrays.equals(data, plane));
+    }
+    in.close();
+  }
+
+}
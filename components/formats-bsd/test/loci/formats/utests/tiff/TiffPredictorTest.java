@@ -0,0 +1,223 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.ByteArrayHandle;
+import loci.common.DataTools;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests horizontal and floating point differencing in
+ * {@link TiffCompression}, and TIFF files written and read with a predictor.
+ */
+public class TiffPredictorTest {
+
+  private static final int IMAGE_WIDTH = 50;
+
+  private static final int IMAGE_LENGTH = 40;
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    // predictor, bytes per sample, channels, planar, tile size
+    return new Object[][] {
+      {TiffCompression.PREDICTOR_HORIZONTAL, 1, 1, false, 0},
+      {TiffCompression.PREDICTOR_HORIZONTAL, 2, 1, false, 0},
+      {TiffCompression.PREDICTOR_HORIZONTAL, 4, 1, false, 16},
+      {TiffCompression.PREDICTOR_HORIZONTAL, 1, 3, false, 0},
+      {TiffCompression.PREDICTOR_HORIZONTAL, 2, 3, false, 16},
+      {TiffCompression.PREDICTOR_HORIZONTAL, 4, 3, true, 0},
+      {TiffCompression.PREDICTOR_HORIZONTAL, 3, 1, false, 0},
+      {TiffCompression.PREDICTOR_FLOATING_POINT, 2, 1, false, 0},
+      {TiffCompression.PREDICTOR_FLOATING_POINT, 4, 1, false, 16},
+      {TiffCompression.PREDICTOR_FLOATING_POINT, 4, 3, false, 0},
+      {TiffCompression.PREDICTOR_FLOATING_POINT, 8, 2, true, 16},
+    };
+  }
+
+  private IFD createIFD(int predictor, int bytes, int channels,
+    boolean planar, int tileSize, boolean littleEndian)
+  {
+    IFD ifd = TiffTestTools.createIFD(IMAGE_WIDTH, IMAGE_LENGTH, littleEndian,
+      TiffCompression.UNCOMPRESSED, tileSize);
+    TiffTestTools.setSamples(ifd, bytes * 8, channels, planar);
+    ifd.put(IFD.PREDICTOR, predictor);
+    return ifd;
+  }
+
+  /** Horizontal differencing of one sample at a time. */
+  private void differenceReference(byte[] data, int bytes, int stride,
+    int rowBytes, boolean littleEndian)
+  {
+    for (int b=data.length-bytes; b>=0; b-=bytes) {
+      if (b % rowBytes < stride) continue;
+      long value = DataTools.bytesToLong(data, b, bytes, littleEndian);
+      value -= DataTools.bytesToLong(data, b - stride, bytes, littleEndian);
+      DataTools.unpackBytes(value, data, b, bytes, littleEndian);
+    }
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testRoundTrip(int predictor, int bytes, int channels,
+    boolean planar, int tileSize) throws FormatException
+  {
+    Random random = new Random(predictor * 100 + bytes * 10 + channels);
+    for (int e=0; e<2; e++) {
+      boolean littleEndian = e == 0;
+      IFD ifd =
+        createIFD(predictor, bytes, channels, planar, tileSize, littleEndian);
+      int width = tileSize > 0 ? tileSize : IMAGE_WIDTH;
+      int stride = (planar ? 1 : channels) * bytes;
+      byte[] data = new byte[width * stride * 7];
+      random.nextBytes(data);
+      byte[] differenced = data.clone();
+      TiffCompression.difference(differenced, ifd);
+      assertTrue(!Arrays.equals(data, differenced));
+
+      if (predictor == TiffCompression.PREDICTOR_HORIZONTAL) {
+        byte[] expected = data.clone();
+        differenceReference(expected, bytes, stride, width * stride,
+          littleEndian);
+        assertTrue(Arrays.equals(expected, differenced));
+      }
+
+      TiffCompression.undifference(differenced, ifd);
+      assertTrue(Arrays.equals(data, differenced));
+    }
+  }
+
+  @Test
+  public void testFloatingPointLayout() throws FormatException {
+    // 1.0 and 2.0 are stored as byte planes, most significant byte first,
+    // and the bytes of the row are then differenced
+    byte[] expected = {0x3f, 0x01, 0x40, (byte) 0x80, 0, 0, 0, 0};
+    for (int e=0; e<2; e++) {
+      boolean littleEndian = e == 0;
+      IFD ifd = createIFD(TiffCompression.PREDICTOR_FLOATING_POINT, 4, 1,
+        false, 0, littleEndian);
+      ifd.put(IFD.IMAGE_WIDTH, 2);
+      byte[] data = new byte[8];
+      DataTools.unpackBytes(Float.floatToIntBits(1f), data, 0, 4,
+        littleEndian);
+      DataTools.unpackBytes(Float.floatToIntBits(2f), data, 4, 4,
+        littleEndian);
+      byte[] row = data.clone();
+      TiffCompression.difference(row, ifd);
+      assertTrue(Arrays.equals(expected, row));
+      TiffCompression.undifference(row, ifd);
+      assertTrue(Arrays.equals(data, row));
+    }
+  }
+
+  @Test(expectedExceptions = FormatException.class)
+  public void testUnknownPredictor() throws FormatException {
+    IFD ifd = createIFD(4, 1, 1, false, 0, true);
+    TiffCompression.undifference(new byte[IMAGE_WIDTH], ifd);
+  }
+
+  private byte[] write(float[] pixels, int predictor, int tileSize)
+    throws FormatException, IOException
+  {
+    IFD ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+    ifd.put(IFD.COMPRESSION, TiffCompression.DEFLATE.getCode());
+    ifd.put(IFD.PREDICTOR, predictor);
+    if (tileSize > 0) {
+      ifd.put(IFD.TILE_WIDTH, tileSize);
+      ifd.put(IFD.TILE_LENGTH, tileSize);
+    }
+
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+    saver.writeImage(DataTools.floatsToBytes(pixels, true), ifd, 0,
+      FormatTools.FLOAT, true);
+    out.close();
+    return Arrays.copyOf(handle.getBytes(), (int) handle.length());
+  }
+
+  private float[] read(byte[] file) throws FormatException, IOException {
+    TiffParser parser = new TiffParser(
+      new RandomAccessInputStream(new ByteArrayHandle(file)));
+    IFD ifd = parser.getFirstIFD();
+    byte[] buf = new byte[IMAGE_WIDTH * IMAGE_LENGTH * 4];
+    parser.getSamples(ifd, buf);
+    parser.getStream().close();
+    return (float[]) DataTools.makeDataArray(buf, 4, true, true);
+  }
+
+  @Test
+  public void testFloatingPointFile() throws FormatException, IOException {
+    float[] pixels = new float[IMAGE_WIDTH * IMAGE_LENGTH];
+    for (int y=0; y<IMAGE_LENGTH; y++) {
+      for (int x=0; x<IMAGE_WIDTH; x++) {
+        pixels[y * IMAGE_WIDTH + x] = (float) (Math.sin(x / 7.0) * y / 3.0);
+      }
+    }
+    for (int tileSize : new int[] {0, 16}) {
+      byte[] plain = write(pixels, TiffCompression.PREDICTOR_NONE, tileSize);
+      byte[] predicted =
+        write(pixels, TiffCompression.PREDICTOR_FLOATING_POINT, tileSize);
+      assertTrue(predicted.length < plain.length);
+      assertTrue(Arrays.equals(pixels, read(plain)));
+      assertTrue(Arrays.equals(pixels, read(predicted)));
+
+      TiffParser parser = new TiffParser(
+        new RandomAccessInputStream(new ByteArrayHandle(predicted)));
+      assertEquals(TiffCompression.PREDICTOR_FLOATING_POINT,
+        parser.getFirstIFD().getIFDIntValue(IFD.PREDICTOR));
+      parser.getStream().close();
+    }
+  }
+
+}
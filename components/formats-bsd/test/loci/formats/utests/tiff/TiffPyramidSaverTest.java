@@ -0,0 +1,361 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+
+import loci.common.ByteArrayHandle;
+import loci.common.DataTools;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffPyramidSaver;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests writing reduced resolutions as SubIFDs with {@link TiffPyramidSaver}.
+ */
+public class TiffPyramidSaverTest {
+
+  private static final int PLANES = 2;
+
+  private static final int LEVELS = 3;
+
+  private static final int WIDTH = 100;
+
+  private static final int HEIGHT = 70;
+
+  private static final int TILE_WIDTH = 32;
+
+  private static final int TILE_HEIGHT = 16;
+
+  private ByteArrayHandle handle;
+
+  private TiffSaver saver;
+
+  private TiffPyramidSaver pyramidSaver;
+
+  private int pixelType;
+
+  private int channels;
+
+  private boolean interleaved;
+
+  private boolean littleEndian;
+
+  private TiffCompression compression;
+
+  @BeforeMethod
+  public void setUp() {
+    pixelType = FormatTools.UINT8;
+    channels = 1;
+    interleaved = true;
+    littleEndian = true;
+    compression = TiffCompression.UNCOMPRESSED;
+  }
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    return new Object[][] {
+      {FormatTools.UINT8, 1, true, true, false, "UNCOMPRESSED", false},
+      {FormatTools.UINT8, 3, true, false, false, "LZW", false},
+      {FormatTools.UINT8, 3, false, true, true, "UNCOMPRESSED", true},
+      {FormatTools.INT16, 1, true, true, false, "UNCOMPRESSED", false},
+      {FormatTools.UINT16, 1, true, false, true, "UNCOMPRESSED", true},
+      {FormatTools.UINT16, 3, false, true, false, "LZW", false},
+    };
+  }
+
+  private void createSaver(boolean bigTiff) throws IOException {
+    handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    saver = new TiffSaver(out, handle);
+    saver.setLittleEndian(littleEndian);
+    saver.setBigTiff(bigTiff);
+    saver.writeHeader();
+    pyramidSaver = new TiffPyramidSaver(saver, LEVELS);
+    pyramidSaver.setTileSize(TILE_WIDTH, TILE_HEIGHT);
+  }
+
+  private IFD createIFD(int plane) {
+    IFD ifd =
+      TiffTestTools.createIFD(WIDTH, HEIGHT, littleEndian, compression, 0);
+    ifd.put(IFD.PLANAR_CONFIGURATION, interleaved ? 1 : 2);
+    ifd.put(IFD.IMAGE_DESCRIPTION, "plane " + plane);
+    return ifd;
+  }
+
+  /** Gets the value of a full resolution sample. */
+  private long getValue(int plane, int c, int x, int y) {
+    long value = x * 7 + y * 13 + c * 50 + plane * 30;
+    if (FormatTools.getBytesPerPixel(pixelType) > 1) {
+      value = x * 311 - y * 509 + c * 1000 + plane * 30;
+    }
+    return normalize(value);
+  }
+
+  private long normalize(long value) {
+    switch (pixelType) {
+      case FormatTools.INT16:
+        return (short) value;
+      case FormatTools.UINT16:
+        return value & 0xffff;
+      default:
+        return value & 0xff;
+    }
+  }
+
+  private long getSample(byte[] buf, int index) {
+    int bpp = FormatTools.getBytesPerPixel(pixelType);
+    return normalize(DataTools.bytesToLong(buf, index * bpp, bpp,
+      littleEndian));
+  }
+
+  /** Gets a region of a full resolution plane, as passed to the saver. */
+  private byte[] getRegion(int plane, int x, int y, int w, int h) {
+    int bpp = FormatTools.getBytesPerPixel(pixelType);
+    byte[] buf = new byte[w * h * channels * bpp];
+    for (int c=0; c<channels; c++) {
+      for (int row=0; row<h; row++) {
+        for (int col=0; col<w; col++) {
+          int index = interleaved ? (row * w + col) * channels + c :
+            (c * h + row) * w + col;
+          DataTools.unpackBytes(getValue(plane, c, x + col, y + row), buf,
+            index * bpp, bpp, littleEndian);
+        }
+      }
+    }
+    return buf;
+  }
+
+  /** Computes the expected samples of each resolution of a plane. */
+  private long[][][] getExpected(int plane, boolean nearest) {
+    long[][][] levels = new long[LEVELS][channels][];
+    int width = WIDTH;
+    int height = HEIGHT;
+    for (int c=0; c<channels; c++) {
+      levels[0][c] = new long[width * height];
+      for (int y=0; y<height; y++) {
+        for (int x=0; x<width; x++) {
+          levels[0][c][y * width + x] = getValue(plane, c, x, y);
+        }
+      }
+    }
+    for (int level=1; level<LEVELS; level++) {
+      int w = (width + 1) / 2;
+      int h = (height + 1) / 2;
+      for (int c=0; c<channels; c++) {
+        long[] src = levels[level - 1][c];
+        long[] dest = new long[w * h];
+        for (int y=0; y<h; y++) {
+          for (int x=0; x<w; x++) {
+            if (nearest) {
+              dest[y * w + x] = src[y * 2 * width + x * 2];
+              continue;
+            }
+            long sum = 0;
+            int n = 0;
+            for (int dy=0; dy<2 && y * 2 + dy < height; dy++) {
+              for (int dx=0; dx<2 && x * 2 + dx < width; dx++) {
+                sum += src[(y * 2 + dy) * width + x * 2 + dx];
+                n++;
+              }
+            }
+            dest[y * w + x] = Math.round((double) sum / n);
+          }
+        }
+        levels[level][c] = dest;
+      }
+      width = w;
+      height = h;
+    }
+    return levels;
+  }
+
+  /** Writes each plane as tiles, or as strips that span rows of tiles. */
+  private void writePlanes(boolean strips) throws FormatException, IOException {
+    for (int plane=0; plane<PLANES; plane++) {
+      IFD ifd = createIFD(plane);
+      if (strips) {
+        for (int y=0; y<HEIGHT; y+=5) {
+          int h = Math.min(5, HEIGHT - y);
+          pyramidSaver.writeTile(plane, getRegion(plane, 0, y, WIDTH, h), ifd,
+            pixelType, 0, y, WIDTH, h);
+        }
+      }
+      else {
+        for (int y=0; y<HEIGHT; y+=TILE_HEIGHT) {
+          // write each row of tiles from right to left
+          for (int x=(WIDTH - 1) / TILE_WIDTH * TILE_WIDTH; x>=0;
+            x-=TILE_WIDTH)
+          {
+            int w = Math.min(TILE_WIDTH, WIDTH - x);
+            int h = Math.min(TILE_HEIGHT, HEIGHT - y);
+            pyramidSaver.writeTile(plane, getRegion(plane, x, y, w, h), ifd,
+              pixelType, x, y, w, h);
+          }
+        }
+      }
+      assertTrue(pyramidSaver.isPlaneComplete());
+    }
+  }
+
+  private void checkPlanes(boolean nearest) throws FormatException, IOException {
+    TiffParser parser = new TiffParser(new RandomAccessInputStream(handle));
+    IFDList mainIFDs = parser.getMainIFDs();
+    assertEquals(PLANES, mainIFDs.size());
+    assertEquals(PLANES, parser.getIFDOffsets().length);
+    for (int plane=0; plane<PLANES; plane++) {
+      IFD ifd = mainIFDs.get(plane);
+      assertEquals("plane " + plane, ifd.getComment());
+      IFDList levels = new IFDList();
+      levels.add(ifd);
+      levels.addAll(parser.getSubIFDs(ifd));
+      assertEquals(LEVELS, levels.size());
+
+      long[][][] expected = getExpected(plane, nearest);
+      int width = WIDTH;
+      int height = HEIGHT;
+      for (int level=0; level<LEVELS; level++) {
+        IFD levelIFD = levels.get(level);
+        assertEquals(width, levelIFD.getImageWidth());
+        assertEquals(height, levelIFD.getImageLength());
+        assertEquals(TILE_WIDTH, levelIFD.getTileWidth());
+        assertEquals(TILE_HEIGHT, levelIFD.getTileLength());
+        assertEquals(channels, levelIFD.getSamplesPerPixel());
+        assertEquals(level == 0 ? 0 : 1,
+          levelIFD.getIFDLongValue(IFD.NEW_SUBFILE_TYPE, 0));
+
+        byte[] buf = new byte[width * height * channels *
+          FormatTools.getBytesPerPixel(pixelType)];
+        parser.getSamples(levelIFD, buf);
+        for (int c=0; c<channels; c++) {
+          for (int i=0; i<width * height; i++) {
+            assertEquals("level " + level + ", channel " + c + ", pixel " + i,
+              expected[level][c][i], getSample(buf, c * width * height + i));
+          }
+        }
+        width = (width + 1) / 2;
+        height = (height + 1) / 2;
+      }
+    }
+    parser.getStream().close();
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testPyramid(int pixelType, int channels, boolean interleaved,
+    boolean littleEndian, boolean bigTiff, String compression,
+    boolean strips)
+    throws FormatException, IOException
+  {
+    this.pixelType = pixelType;
+    this.channels = channels;
+    this.interleaved = interleaved;
+    this.littleEndian = littleEndian;
+    this.compression = TiffCompression.valueOf(compression);
+    createSaver(bigTiff);
+    writePlanes(strips);
+    checkPlanes(false);
+  }
+
+  @Test
+  public void testNearest() throws FormatException, IOException {
+    createSaver(false);
+    pyramidSaver.setDownsampling(TiffPyramidSaver.Downsampling.NEAREST);
+    writePlanes(false);
+    checkPlanes(true);
+  }
+
+  @Test
+  public void testSingleResolution() throws FormatException, IOException {
+    handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    saver = new TiffSaver(out, handle);
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+    pyramidSaver = new TiffPyramidSaver(saver, 1);
+    pyramidSaver.setTileSize(TILE_WIDTH, TILE_HEIGHT);
+    writePlanes(false);
+
+    TiffParser parser = new TiffParser(new RandomAccessInputStream(handle));
+    IFDList ifds = parser.getIFDs();
+    assertEquals(PLANES, ifds.size());
+    assertEquals(null, ifds.get(0).get(IFD.SUB_IFD));
+    parser.getStream().close();
+  }
+
+  @Test(expectedExceptions = FormatException.class)
+  public void testRowsOutOfOrder() throws FormatException, IOException {
+    createSaver(false);
+    IFD ifd = createIFD(0);
+    pyramidSaver.writeTile(0, getRegion(0, 0, 0, TILE_WIDTH, TILE_HEIGHT),
+      ifd, pixelType, 0, 0, TILE_WIDTH, TILE_HEIGHT);
+    pyramidSaver.writeTile(0, getRegion(0, 0, TILE_HEIGHT, TILE_WIDTH,
+      TILE_HEIGHT), ifd, pixelType, 0, TILE_HEIGHT, TILE_WIDTH, TILE_HEIGHT);
+  }
+
+  @Test
+  public void testIncompletePlane() throws FormatException, IOException {
+    createSaver(false);
+    pyramidSaver.writeTile(0, getRegion(0, 0, 0, TILE_WIDTH, TILE_HEIGHT),
+      createIFD(0), pixelType, 0, 0, TILE_WIDTH, TILE_HEIGHT);
+    assertFalse(pyramidSaver.isPlaneComplete());
+    try {
+      pyramidSaver.writeTile(1, getRegion(1, 0, 0, TILE_WIDTH, TILE_HEIGHT),
+        createIFD(1), pixelType, 0, 0, TILE_WIDTH, TILE_HEIGHT);
+      assertTrue(false);
+    }
+    catch (FormatException e) {
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidTileSize() throws IOException {
+    createSaver(false);
+    pyramidSaver.setTileSize(TILE_WIDTH, 10);
+  }
+
+}
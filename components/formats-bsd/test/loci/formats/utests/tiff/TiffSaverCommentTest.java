@@ -0,0 +1,184 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests overwriting the comment of a TIFF file in place with
+ * {@link TiffSaver}.
+ */
+public class TiffSaverCommentTest {
+
+  private static final int PAGES = 3;
+
+  private static final int RESERVED = 256;
+
+  private ByteArrayHandle handle;
+
+  private long lastNextOffsetPosition;
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    return new Object[][] {{false, false}, {false, true}, {true, true}};
+  }
+
+  /** Writes a file whose first comment is padded with spaces. */
+  private void writeFile(boolean bigTiff, boolean littleEndian)
+    throws FormatException, IOException
+  {
+    char[] padding = new char[RESERVED];
+    Arrays.fill(padding, ' ');
+    handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setBigTiff(bigTiff);
+    saver.setLittleEndian(littleEndian);
+    saver.writeHeader();
+    for (int i=0; i<PAGES; i++) {
+      IFD ifd = new IFD();
+      ifd.put(IFD.IMAGE_WIDTH, 8);
+      ifd.put(IFD.IMAGE_LENGTH, 4);
+      ifd.put(IFD.LITTLE_ENDIAN, littleEndian);
+      if (i == 0) {
+        ifd.put(IFD.IMAGE_DESCRIPTION, new String(padding));
+      }
+      saver.writeImage(new byte[8 * 4], ifd, i, FormatTools.UINT8,
+        i == PAGES - 1);
+    }
+    lastNextOffsetPosition = saver.getLastNextOffsetPosition();
+  }
+
+  private TiffSaver openSaver() throws IOException {
+    return new TiffSaver(new RandomAccessOutputStream(handle), handle);
+  }
+
+  private String getComment() throws IOException {
+    TiffParser parser = new TiffParser(new RandomAccessInputStream(handle));
+    return parser.getComment();
+  }
+
+  private byte[] getBytes() {
+    return Arrays.copyOf(handle.getBytes(), (int) handle.length());
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testInPlace(boolean bigTiff, boolean littleEndian)
+    throws FormatException, IOException
+  {
+    writeFile(bigTiff, littleEndian);
+    long length = handle.length();
+    String comment = "<OME>in place</OME>";
+    assertTrue(openSaver().overwriteCommentInPlace(
+      new RandomAccessInputStream(handle), comment));
+    assertEquals(length, handle.length());
+    assertEquals(comment, getComment());
+
+    // the entry now only counts the shorter comment
+    assertFalse(openSaver().overwriteCommentInPlace(
+      new RandomAccessInputStream(handle), comment + " "));
+    comment = "<OME>in place</OME>".replace("in", "at");
+    assertTrue(openSaver().overwriteCommentInPlace(
+      new RandomAccessInputStream(handle), comment));
+    assertEquals(length, handle.length());
+    assertEquals(comment, getComment());
+
+    TiffParser parser = new TiffParser(new RandomAccessInputStream(handle));
+    assertEquals(PAGES, parser.getIFDOffsets().length);
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testTooLong(boolean bigTiff, boolean littleEndian)
+    throws FormatException, IOException
+  {
+    writeFile(bigTiff, littleEndian);
+    byte[] before = getBytes();
+    char[] comment = new char[RESERVED + 1];
+    Arrays.fill(comment, 'x');
+    assertFalse(openSaver().overwriteCommentInPlace(
+      new RandomAccessInputStream(handle), new String(comment)));
+    assertTrue(Arrays.equals(before, getBytes()));
+
+    // a comment short enough to be stored in the entry is not written
+    assertFalse(openSaver().overwriteCommentInPlace(
+      new RandomAccessInputStream(handle), "x"));
+    assertTrue(Arrays.equals(before, getBytes()));
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testLastNextOffsetPosition(boolean bigTiff,
+    boolean littleEndian)
+    throws FormatException, IOException
+  {
+    writeFile(bigTiff, littleEndian);
+    TiffParser parser = new TiffParser(new RandomAccessInputStream(handle));
+    long[] offsets = parser.getIFDOffsets();
+    assertEquals(PAGES, offsets.length);
+    long last = offsets[PAGES - 1];
+    RandomAccessInputStream in = new RandomAccessInputStream(handle);
+    in.order(littleEndian);
+    in.seek(last);
+    long entries = bigTiff ? in.readLong() : in.readUnsignedShort();
+    assertEquals(last + (bigTiff ? 8 + entries * 20 : 2 + entries * 12),
+      lastNextOffsetPosition);
+
+    // pointing the last IFD at the first one and then patching it back
+    // ends the chain without walking it
+    TiffSaver saver = openSaver();
+    saver.setBigTiff(bigTiff);
+    saver.setLittleEndian(littleEndian);
+    saver.overwriteNextOffset(lastNextOffsetPosition, offsets[0]);
+    saver.overwriteNextOffset(lastNextOffsetPosition, 0);
+    parser = new TiffParser(new RandomAccessInputStream(handle));
+    assertTrue(Arrays.equals(offsets, parser.getIFDOffsets()));
+  }
+
+}
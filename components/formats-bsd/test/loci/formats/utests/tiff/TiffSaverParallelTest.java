@@ -0,0 +1,151 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that compressing strips and tiles in parallel with
+ * {@link TiffSaver#setExecutor(ExecutorService)} writes the same file as
+ * compressing them serially.
+ */
+public class TiffSaverParallelTest {
+
+  private static final int IMAGE_WIDTH = 200;
+
+  private static final int IMAGE_LENGTH = 150;
+
+  private static final int PLANES = 3;
+
+  private ThreadPoolExecutor executor;
+
+  @BeforeClass
+  public void setUp() {
+    executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(4);
+  }
+
+  @AfterClass
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    // compression, tile size, channels, bytes per sample, predictor
+    return new Object[][] {
+      {TiffCompression.LZW, 64, 1, 1, 1},
+      {TiffCompression.LZW, 0, 3, 2, 2},
+      {TiffCompression.DEFLATE, 32, 3, 1, 1},
+      {TiffCompression.DEFLATE, 48, 1, 2, 2},
+      {TiffCompression.JPEG, 64, 3, 1, 1},
+      {TiffCompression.UNCOMPRESSED, 64, 1, 1, 1},
+    };
+  }
+
+  private IFD createIFD(TiffCompression compression, int tileSize,
+    int predictor)
+  {
+    IFD ifd = TiffTestTools.createIFD(IMAGE_WIDTH, IMAGE_LENGTH, true,
+      compression, tileSize);
+    ifd.put(IFD.PREDICTOR, predictor);
+    if (tileSize == 0) {
+      ifd.put(IFD.ROWS_PER_STRIP, new long[] {16});
+    }
+    return ifd;
+  }
+
+  private byte[] write(ExecutorService service, TiffCompression compression,
+    int tileSize, int channels, int bytes, int predictor)
+    throws FormatException, IOException
+  {
+    int pixelType = bytes == 1 ? FormatTools.UINT8 : FormatTools.UINT16;
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setExecutor(service);
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+    for (int plane=0; plane<PLANES; plane++) {
+      byte[] data = new byte[IMAGE_WIDTH * IMAGE_LENGTH * channels * bytes];
+      for (int i=0; i<data.length; i++) {
+        data[i] = (byte) (plane + i / 3 + i / 1000);
+      }
+      saver.writeImage(data, createIFD(compression, tileSize, predictor),
+        plane, pixelType, plane == PLANES - 1);
+    }
+    out.close();
+    return Arrays.copyOf(handle.getBytes(), (int) handle.length());
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testIdenticalOutput(TiffCompression compression, int tileSize,
+    int channels, int bytes, int predictor)
+    throws FormatException, IOException
+  {
+    byte[] serial =
+      write(null, compression, tileSize, channels, bytes, predictor);
+    long tasks = executor.getTaskCount();
+    byte[] parallel =
+      write(executor, compression, tileSize, channels, bytes, predictor);
+    assertTrue(Arrays.equals(serial, parallel));
+    if (compression != TiffCompression.UNCOMPRESSED) {
+      assertTrue(executor.getTaskCount() > tasks);
+    }
+  }
+
+  @Test(expectedExceptions = FormatException.class)
+  public void testCompressionError() throws FormatException, IOException {
+    // 16-bit samples cannot be compressed with JPEG
+    write(executor, TiffCompression.JPEG, 64, 1, 2, 1);
+  }
+
+}
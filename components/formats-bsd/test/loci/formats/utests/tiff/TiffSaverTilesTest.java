@@ -0,0 +1,159 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the strips and tiles assembled by
+ * {@link TiffSaver#writeImage(byte[], IFD, int, int, boolean)}, for images
+ * whose size is not a multiple of the tile size.
+ */
+public class TiffSaverTilesTest {
+
+  private static final int IMAGE_WIDTH = 100;
+
+  private static final int IMAGE_LENGTH = 75;
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    // tile size (0 for strips of 16 rows), channels, bytes, planar
+    return new Object[][] {
+      {0, 1, 1, false},
+      {0, 3, 2, false},
+      {0, 3, 1, true},
+      {32, 1, 2, false},
+      {32, 3, 1, false},
+      {48, 3, 2, true},
+      {128, 2, 1, true},
+    };
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testRoundTrip(int tileSize, int channels, int bytes,
+    boolean planar) throws FormatException, IOException
+  {
+    IFD ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+    ifd.put(IFD.PLANAR_CONFIGURATION, planar ? 2 : 1);
+    if (tileSize > 0) {
+      ifd.put(IFD.TILE_WIDTH, tileSize);
+      ifd.put(IFD.TILE_LENGTH, tileSize);
+    }
+    else {
+      ifd.put(IFD.ROWS_PER_STRIP, new long[] {16});
+    }
+    int pixels = IMAGE_WIDTH * IMAGE_LENGTH;
+    byte[] data = new byte[pixels * channels * bytes];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i * 7 + i / 1000 + 1);
+    }
+
+    ByteArrayHandle handle = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(handle);
+    TiffSaver saver = new TiffSaver(out, handle);
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+    int pixelType = FormatTools.pixelTypeFromBytes(bytes, false, false);
+    saver.writeImage(data, ifd, 0, pixelType, true);
+    out.close();
+
+    RandomAccessInputStream in = new RandomAccessInputStream(handle);
+    TiffParser parser = new TiffParser(in);
+    IFD savedIFD = parser.getFirstIFD();
+
+    // the parser returns the channels one after another
+    byte[] expected = data;
+    if (!planar) {
+      expected = new byte[data.length];
+      for (int p=0; p<pixels; p++) {
+        for (int c=0; c<channels; c++) {
+          System.arraycopy(data, (p * channels + c) * bytes, expected,
+            (c * pixels + p) * bytes, bytes);
+        }
+      }
+    }
+    byte[] samples = new byte[data.length];
+    parser.getSamples(savedIFD, samples);
+    assertTrue(Arrays.equals(expected, samples));
+
+    // every tile is complete, and zero beyond the edges of the image
+    int tileWidth = (int) savedIFD.getTileWidth();
+    int tileLength = (int) savedIFD.getTileLength();
+    int pixelBytes = bytes * (planar ? 1 : channels);
+    long[] counts = savedIFD.getStripByteCounts();
+    for (long count : counts) {
+      assertEquals(tileWidth * tileLength * pixelBytes, count);
+    }
+    long[] offsets = savedIFD.getStripOffsets();
+    int rows = (int) savedIFD.getTilesPerColumn();
+    int cols = (int) savedIFD.getTilesPerRow();
+    byte[] stored = new byte[tileWidth * tileLength * pixelBytes];
+    for (int tile=0; tile<offsets.length; tile++) {
+      in.seek(offsets[tile]);
+      in.readFully(stored);
+      int x0 = (tile % cols) * tileWidth;
+      int y0 = ((tile / cols) % rows) * tileLength;
+      for (int y=0; y<tileLength; y++) {
+        for (int x=0; x<tileWidth; x++) {
+          if (x0 + x < IMAGE_WIDTH && y0 + y < IMAGE_LENGTH) {
+            continue;
+          }
+          for (int b=0; b<pixelBytes; b++) {
+            assertEquals(0, stored[(y * tileWidth + x) * pixelBytes + b]);
+          }
+        }
+      }
+    }
+    in.close();
+  }
+
+}
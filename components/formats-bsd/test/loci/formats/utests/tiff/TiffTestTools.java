@@ -0,0 +1,80 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package loci.formats.utests.tiff;
+
+import java.util.Arrays;
+
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+
+/**
+ * Utility methods shared by the TIFF reading and writing tests.
+ */
+public final class TiffTestTools {
+
+  private TiffTestTools() { }
+
+  /**
+   * Creates an IFD with the given dimensions, byte order and compression.
+   * @param tileSize The width and height of the tiles, or 0 for strips.
+   */
+  public static IFD createIFD(int width, int height, boolean littleEndian,
+    TiffCompression compression, int tileSize)
+  {
+    IFD ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, width);
+    ifd.put(IFD.IMAGE_LENGTH, height);
+    ifd.put(IFD.LITTLE_ENDIAN, littleEndian);
+    ifd.put(IFD.COMPRESSION, compression.getCode());
+    if (tileSize > 0) {
+      ifd.put(IFD.TILE_WIDTH, tileSize);
+      ifd.put(IFD.TILE_LENGTH, tileSize);
+    }
+    return ifd;
+  }
+
+  /**
+   * Sets the number of bits in each of the given number of channels, and
+   * whether the channels are stored in separate planes.
+   */
+  public static void setSamples(IFD ifd, int bits, int channels,
+    boolean planar)
+  {
+    int[] bitsPerSample = new int[channels];
+    Arrays.fill(bitsPerSample, bits);
+    ifd.put(IFD.BITS_PER_SAMPLE, bitsPerSample);
+    ifd.put(IFD.PLANAR_CONFIGURATION, planar ? 2 : 1);
+  }
+
+}
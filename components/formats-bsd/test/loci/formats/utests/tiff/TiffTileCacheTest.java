@@ -0,0 +1,372 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import loci.common.ByteArrayHandle;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MissingLibraryException;
+import loci.formats.codec.JPEG2000CodecOptions;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.PhotoInterp;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
+import loci.formats.tiff.TiffTileCache;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests reading overlapping regions through a {@link TiffTileCache}.
+ */
+public class TiffTileCacheTest {
+
+  private static final int IMAGE_WIDTH = 200;
+
+  private static final int IMAGE_LENGTH = 150;
+
+  private static final int TILE_SIZE = 64;
+
+  private static final int[][] REGIONS = {
+    {0, 0, 100, 100},
+    {50, 50, 100, 100},
+    {60, 10, 20, 120},
+    {0, 0, IMAGE_WIDTH, IMAGE_LENGTH},
+  };
+
+  private ExecutorService executor;
+
+  private ByteArrayHandle savedData;
+
+  @BeforeClass
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @AfterClass
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @BeforeMethod
+  public void writeImage() throws FormatException, IOException {
+    writeImage(TiffCompression.LZW, 1);
+  }
+
+  /** Writes a tiled image with the given compression and channel count. */
+  private void writeImage(TiffCompression compression, int channels)
+    throws FormatException, IOException
+  {
+    IFD ifd = new IFD();
+    ifd.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH);
+    ifd.put(IFD.LITTLE_ENDIAN, Boolean.TRUE);
+    ifd.put(IFD.COMPRESSION, compression.getCode());
+    ifd.put(IFD.TILE_WIDTH, TILE_SIZE);
+    ifd.put(IFD.TILE_LENGTH, TILE_SIZE);
+    byte[] data = new byte[IMAGE_WIDTH * IMAGE_LENGTH * channels];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i * 7 + i / 1000);
+    }
+    if (channels == 3) {
+      ifd.put(IFD.Y_CB_CR_SUB_SAMPLING, new int[] {1, 1});
+    }
+
+    savedData = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(savedData);
+    TiffSaver saver = new TiffSaver(out, savedData);
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+    saver.writeImage(data, ifd, 0, FormatTools.UINT8, true);
+    if (channels == 3) {
+      // TiffSaver always writes RGB; mark the samples as YCbCr so that
+      // YCbCr correction changes the decoded tiles
+      saver.overwriteIFDValue(new RandomAccessInputStream(savedData), 0,
+        IFD.PHOTOMETRIC_INTERPRETATION, PhotoInterp.Y_CB_CR.getCode());
+    }
+    out.close();
+  }
+
+  private RandomAccessInputStream open(String file) throws IOException {
+    savedData.seek(0);
+    return new RandomAccessInputStream(savedData, file);
+  }
+
+  private void assertRegions(TiffParser expected, TiffParser actual)
+    throws FormatException, IOException
+  {
+    assertRegions(expected, actual, expected.getFirstIFD());
+  }
+
+  private void assertRegions(TiffParser expected, TiffParser actual, IFD ifd)
+    throws FormatException, IOException
+  {
+    int pixel = ifd.getSamplesPerPixel();
+    byte[] all = new byte[(int) (ifd.getImageWidth() * ifd.getImageLength()) *
+      pixel];
+    byte[] actualAll = new byte[all.length];
+    expected.getSamples(ifd, all);
+    actual.getSamples(ifd, actualAll);
+    assertTrue(Arrays.equals(all, actualAll));
+    for (int[] r : REGIONS) {
+      if (r[0] + r[2] > ifd.getImageWidth() ||
+        r[1] + r[3] > ifd.getImageLength())
+      {
+        continue;
+      }
+      byte[] a = new byte[r[2] * r[3] * pixel];
+      byte[] b = new byte[a.length];
+      expected.getSamples(ifd, a, r[0], r[1], r[2], r[3]);
+      actual.getSamples(ifd, b, r[0], r[1], r[2], r[3]);
+      assertTrue(Arrays.equals(a, b));
+    }
+  }
+
+  @Test
+  public void testSharedCache() throws FormatException, IOException {
+    TiffTileCache cache = new TiffTileCache(1024 * 1024);
+    TiffParser uncached = new TiffParser(open(null));
+    TiffParser first = new TiffParser(open("cache.tif"));
+    first.setTileCache(cache);
+    assertRegions(uncached, first);
+    long misses = cache.getMissCount();
+    assertEquals(12, misses);
+    assertEquals(12, cache.getTileCount());
+    assertTrue(cache.getHitCount() > 0);
+
+    // a second parser on the same file decodes nothing
+    TiffParser second = new TiffParser(open("cache.tif"));
+    second.setTileCache(cache);
+    second.setExecutor(executor);
+    assertRegions(uncached, second);
+    assertEquals(misses, cache.getMissCount());
+
+    byte[] tile = new byte[TILE_SIZE * TILE_SIZE];
+    byte[] cachedTile = new byte[tile.length];
+    IFD ifd = uncached.getFirstIFD();
+    uncached.getTile(ifd, tile, 1, 2);
+    second.getTile(ifd, cachedTile, 1, 2);
+    assertTrue(Arrays.equals(tile, cachedTile));
+    assertEquals(misses, cache.getMissCount());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  @Test
+  public void testParallelPopulation() throws FormatException, IOException {
+    TiffTileCache cache = new TiffTileCache(1024 * 1024);
+    TiffParser uncached = new TiffParser(open(null));
+    TiffParser parallel = new TiffParser(open("parallel.tif"));
+    parallel.setTileCache(cache);
+    parallel.setExecutor(executor);
+    assertRegions(uncached, parallel);
+    assertEquals(12, cache.getTileCount());
+    assertEquals(12, cache.getMissCount());
+  }
+
+  @Test
+  public void testEviction() throws FormatException, IOException {
+    TiffTileCache cache = new TiffTileCache(3 * TILE_SIZE * TILE_SIZE);
+    TiffParser uncached = new TiffParser(open(null));
+    TiffParser cached = new TiffParser(open("eviction.tif"));
+    cached.setTileCache(cache);
+    assertRegions(uncached, cached);
+    assertEquals(3, cache.getTileCount());
+    assertTrue(cache.getEvictionCount() > 0);
+    assertTrue(cache.getSize() <= cache.getMaximumSize());
+
+    cache.setMaximumSize(TILE_SIZE * TILE_SIZE);
+    assertEquals(1, cache.getTileCount());
+    cache.clear();
+    assertEquals(0, cache.getSize());
+    assertEquals(0, cache.getHitCount());
+  }
+
+  @Test
+  public void testStreamWithoutPath() throws FormatException, IOException {
+    TiffTileCache cache = new TiffTileCache(1024 * 1024);
+    TiffParser uncached = new TiffParser(open(null));
+    TiffParser parser = new TiffParser(open(null));
+    parser.setTileCache(cache);
+    assertRegions(uncached, parser);
+    assertEquals(0, cache.getTileCount());
+    assertEquals(0, cache.getMissCount());
+  }
+
+  @Test
+  public void testModifiedFile() throws FormatException, IOException {
+    File file = File.createTempFile("cache", ".tif");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(savedData.getBytes(), 0, (int) savedData.length());
+    out.close();
+
+    TiffTileCache cache = new TiffTileCache(1024 * 1024);
+    TiffParser uncached = new TiffParser(open(null));
+    TiffParser cached =
+      new TiffParser(new RandomAccessInputStream(file.getAbsolutePath()));
+    cached.setTileCache(cache);
+    assertRegions(uncached, cached);
+    cached.getStream().close();
+    assertEquals(12, cache.getMissCount());
+
+    // tiles of the file's previous length are not used
+    out = new FileOutputStream(file, true);
+    out.write(0);
+    out.close();
+    cached =
+      new TiffParser(new RandomAccessInputStream(file.getAbsolutePath()));
+    cached.setTileCache(cache);
+    assertRegions(uncached, cached);
+    cached.getStream().close();
+    assertEquals(24, cache.getMissCount());
+  }
+
+  @Test
+  public void testSaverInvalidates() throws FormatException, IOException {
+    TiffTileCache cache = new TiffTileCache(1024 * 1024);
+    TiffParser uncached = new TiffParser(open(null));
+    TiffParser other = new TiffParser(open("other.tif"));
+    other.setTileCache(cache);
+    assertRegions(uncached, other);
+    TiffParser cached = new TiffParser(open("saved.tif"));
+    cached.setTileCache(cache);
+    assertRegions(uncached, cached);
+    assertEquals(24, cache.getTileCount());
+
+    TiffParser.setDefaultTileCache(cache);
+    try {
+      new TiffSaver(new RandomAccessOutputStream(new ByteArrayHandle()),
+        "saved.tif");
+    }
+    finally {
+      TiffParser.setDefaultTileCache(null);
+    }
+    assertEquals(12, cache.getTileCount());
+    assertEquals(12 * TILE_SIZE * TILE_SIZE, cache.getSize());
+  }
+
+  @Test
+  public void testTileGeometry() throws FormatException, IOException {
+    TiffTileCache cache = new TiffTileCache(1024 * 1024);
+    TiffParser uncached = new TiffParser(open(null));
+    TiffParser cached = new TiffParser(open("geometry.tif"));
+    cached.setTileCache(cache);
+    assertRegions(uncached, cached);
+    assertEquals(12, cache.getTileCount());
+
+    // an IFD that shares the tiles of another IFD but not its geometry
+    IFD half = new IFD(uncached.getFirstIFD());
+    half.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH / 2);
+    half.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH / 2);
+    half.put(IFD.TILE_WIDTH, TILE_SIZE / 2);
+    half.put(IFD.TILE_LENGTH, TILE_SIZE / 2);
+    assertRegions(uncached, cached, half);
+    assertEquals(24, cache.getTileCount());
+  }
+
+  @Test
+  public void testYCbCrCorrection() throws FormatException, IOException {
+    writeImage(TiffCompression.JPEG, 3);
+    TiffTileCache cache = new TiffTileCache(4 * 1024 * 1024);
+    TiffParser corrected = new TiffParser(open("ycbcr.tif"));
+    corrected.setTileCache(cache);
+    assertRegions(new TiffParser(open(null)), corrected);
+
+    TiffParser uncached = new TiffParser(open(null));
+    uncached.setYCbCrCorrection(false);
+    TiffParser uncorrected = new TiffParser(open("ycbcr.tif"));
+    uncorrected.setYCbCrCorrection(false);
+    uncorrected.setTileCache(cache);
+    assertRegions(uncached, uncorrected);
+    assertEquals(24, cache.getTileCount());
+
+    IFD ifd = uncached.getFirstIFD();
+    byte[] a = new byte[IMAGE_WIDTH * IMAGE_LENGTH * 3];
+    byte[] b = new byte[a.length];
+    corrected.getSamples(ifd, a);
+    uncorrected.getSamples(ifd, b);
+    assertFalse(Arrays.equals(a, b));
+  }
+
+  @Test
+  public void testJPEG2000Resolution() throws FormatException, IOException {
+    try {
+      writeImage(TiffCompression.JPEG_2000, 1);
+    }
+    catch (MissingLibraryException e) {
+      throw new SkipException("JPEG 2000 codec is not available");
+    }
+    TiffTileCache cache = new TiffTileCache(1024 * 1024);
+    TiffParser full = new TiffParser(open("j2k.tif"));
+    full.setTileCache(cache);
+    assertRegions(new TiffParser(open(null)), full);
+
+    // sub-resolutions are copies of the full resolution IFD that are
+    // decoded at a lower JPEG 2000 resolution, as in MinimalTiffReader
+    IFD ifd = full.getFirstIFD();
+    IFD half = new IFD(ifd);
+    half.put(IFD.IMAGE_WIDTH, IMAGE_WIDTH / 2);
+    half.put(IFD.IMAGE_LENGTH, IMAGE_LENGTH / 2);
+    half.put(IFD.TILE_WIDTH, TILE_SIZE / 2);
+    half.put(IFD.TILE_LENGTH, TILE_SIZE / 2);
+    TiffParser uncached = new TiffParser(open(null));
+    TiffParser cached = new TiffParser(open("j2k.tif"));
+    cached.setTileCache(cache);
+    for (TiffParser parser : new TiffParser[] {uncached, cached}) {
+      JPEG2000CodecOptions options = JPEG2000CodecOptions.getDefaultOptions();
+      options.resolution = 0;
+      parser.setCodecOptions(options);
+    }
+    assertRegions(uncached, cached, half);
+    assertRegions(uncached, cached, ifd);
+    assertEquals(36, cache.getTileCount());
+  }
+
+}
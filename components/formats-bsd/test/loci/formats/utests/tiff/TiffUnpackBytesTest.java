@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.ByteArrayHandle;
+import loci.common.DataTools;
+import loci.common.RandomAccessInputStream;
+import loci.formats.FormatException;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.PhotoInterp;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that the specialized sample unpacking loops of
+ * {@link TiffParser#unpackBytes} match the general per-sample unpacking.
+ */
+public class TiffUnpackBytesTest {
+
+  private static final int IMAGE_LENGTH = 9;
+
+  @DataProvider(name = "layouts")
+  public Object[][] createLayouts() {
+    // bits per sample, channels, planar, photometric interpretation
+    return new Object[][] {
+      {8, 1, false, PhotoInterp.BLACK_IS_ZERO},
+      {16, 1, false, PhotoInterp.BLACK_IS_ZERO},
+      {32, 1, false, PhotoInterp.BLACK_IS_ZERO},
+      {64, 1, false, PhotoInterp.BLACK_IS_ZERO},
+      {8, 3, false, PhotoInterp.RGB},
+      {16, 3, false, PhotoInterp.RGB},
+      {32, 4, false, PhotoInterp.RGB},
+      {16, 3, true, PhotoInterp.RGB},
+      {8, 1, false, PhotoInterp.WHITE_IS_ZERO},
+      {16, 1, false, PhotoInterp.WHITE_IS_ZERO},
+      {32, 1, false, PhotoInterp.WHITE_IS_ZERO},
+      {8, 2, false, PhotoInterp.WHITE_IS_ZERO},
+      {1, 1, false, PhotoInterp.BLACK_IS_ZERO},
+      {1, 1, false, PhotoInterp.WHITE_IS_ZERO},
+      {12, 1, false, PhotoInterp.BLACK_IS_ZERO},
+      {12, 1, false, PhotoInterp.WHITE_IS_ZERO},
+      {12, 3, true, PhotoInterp.RGB},
+      {4, 1, false, PhotoInterp.BLACK_IS_ZERO},
+    };
+  }
+
+  private IFD createIFD(int bits, int channels, boolean planar,
+    PhotoInterp photoInterp, int width, boolean littleEndian)
+  {
+    IFD ifd = TiffTestTools.createIFD(width, IMAGE_LENGTH, littleEndian,
+      TiffCompression.UNCOMPRESSED, 0);
+    TiffTestTools.setSamples(ifd, bits, channels, planar);
+    ifd.put(IFD.SAMPLES_PER_PIXEL, channels);
+    ifd.put(IFD.PHOTOMETRIC_INTERPRETATION, photoInterp.getCode());
+    return ifd;
+  }
+
+  /** The general unpacking loop, for samples that are not YCbCr. */
+  private void unpackReference(byte[] samples, byte[] bytes, int length,
+    IFD ifd) throws FormatException, IOException
+  {
+    boolean planar = ifd.getPlanarConfiguration() == 2;
+    PhotoInterp photoInterp = ifd.getPhotometricInterpretation();
+    int[] bitsPerSample = ifd.getBitsPerSample();
+    int nChannels = planar ? 1 : bitsPerSample.length;
+    int bps0 = bitsPerSample[0];
+    int sampleCount = (int) (((long) 8 * length) / bps0) / nChannels;
+    long imageWidth = ifd.getImageWidth();
+    long imageHeight = ifd.getImageLength();
+    int numBytes = ifd.getBytesPerSample()[0];
+    int nSamples = samples.length / (nChannels * numBytes);
+    boolean noDiv8 = bps0 % 8 != 0;
+    boolean littleEndian = ifd.isLittleEndian();
+    long maxValue = (long) Math.pow(2, bps0) - 1;
+    int skipBits = (int) (8 - ((imageWidth * bps0 * nChannels) % 8));
+    if (skipBits == 8 ||
+      (length * 8 < bps0 * (nChannels * imageWidth + imageHeight)))
+    {
+      skipBits = 0;
+    }
+
+    RandomAccessInputStream bb = new RandomAccessInputStream(
+      new ByteArrayHandle(Arrays.copyOf(bytes, length)));
+    for (int sample=0; sample<sampleCount && sample<nSamples; sample++) {
+      for (int channel=0; channel<nChannels; channel++) {
+        int index = numBytes * (sample * nChannels + channel);
+        int outputIndex = (channel * nSamples + sample) * numBytes;
+        long value;
+        if (noDiv8) {
+          value = bb.readBits(bps0) & 0xffff;
+          if ((sample % imageWidth) == imageWidth - 1) {
+            bb.skipBits(skipBits);
+          }
+        }
+        else {
+          value = DataTools.bytesToLong(bytes, index, numBytes, littleEndian);
+        }
+        if (photoInterp == PhotoInterp.WHITE_IS_ZERO) {
+          value = maxValue - value;
+        }
+        DataTools.unpackBytes(value, samples, outputIndex, numBytes,
+          littleEndian);
+      }
+    }
+    bb.close();
+  }
+
+  @Test(dataProvider = "layouts")
+  public void testUnpack(int bits, int channels, boolean planar,
+    PhotoInterp photoInterp) throws FormatException, IOException
+  {
+    Random random = new Random(bits * 31 + channels);
+    for (int width=5; width<=8; width++) {
+      for (int e=0; e<2; e++) {
+        IFD ifd =
+          createIFD(bits, channels, planar, photoInterp, width, e == 0);
+        int bytesPerSample = ifd.getBytesPerSample()[0];
+        int planeChannels = planar ? 1 : channels;
+        int rowBits = width * bits * planeChannels;
+        int rowBytes = (rowBits + 7) / 8;
+        int size = width * IMAGE_LENGTH * planeChannels * bytesPerSample;
+
+        // complete data, and data cut off in the middle of a row
+        int[] lengths = {rowBytes * IMAGE_LENGTH, rowBytes * 3 + 1};
+        for (int length : lengths) {
+          byte[] bytes = new byte[length];
+          random.nextBytes(bytes);
+          byte[] expected = new byte[size];
+          byte[] actual = new byte[size];
+          unpackReference(expected, bytes, length, ifd);
+          TiffParser.unpackBytes(actual, 0, bytes, length, ifd);
+          assertTrue("width=" + width + ", length=" + length,
+            Arrays.equals(expected, actual));
+        }
+      }
+    }
+  }
+
+}
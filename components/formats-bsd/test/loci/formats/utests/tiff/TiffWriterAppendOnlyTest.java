@@ -0,0 +1,171 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.tiff;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.out.TiffWriter;
+import loci.formats.services.OMEXMLService;
+import loci.formats.tiff.TiffParser;
+
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.PositiveInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests which files {@link TiffWriter} accepts in append-only mode.
+ */
+public class TiffWriterAppendOnlyTest {
+
+  private static final int SIZE = 16;
+
+  private static final int PLANES = 2;
+
+  private OMEXMLMetadata metadata;
+
+  private File first;
+
+  private File second;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    ServiceFactory factory = new ServiceFactory();
+    OMEXMLService service = factory.getInstance(OMEXMLService.class);
+    metadata = service.createOMEXMLMetadata();
+    metadata.setImageID("Image:0", 0);
+    metadata.setPixelsID("Pixels:0", 0);
+    metadata.setPixelsDimensionOrder(DimensionOrder.XYZCT, 0);
+    metadata.setPixelsSizeX(new PositiveInteger(SIZE), 0);
+    metadata.setPixelsSizeY(new PositiveInteger(SIZE), 0);
+    metadata.setPixelsSizeZ(new PositiveInteger(PLANES), 0);
+    metadata.setPixelsSizeC(new PositiveInteger(1), 0);
+    metadata.setPixelsSizeT(new PositiveInteger(1), 0);
+    metadata.setPixelsType(PixelType.UINT8, 0);
+    metadata.setPixelsBinDataBigEndian(true, 0, 0);
+    metadata.setChannelID("Channel:0:0", 0, 0);
+    metadata.setChannelSamplesPerPixel(new PositiveInteger(1), 0, 0);
+
+    first = File.createTempFile("TiffWriterAppendOnlyTest", ".tif");
+    second = File.createTempFile("TiffWriterAppendOnlyTest", ".tif");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    first.delete();
+    second.delete();
+  }
+
+  private TiffWriter createWriter() {
+    TiffWriter writer = new TiffWriter();
+    writer.setMetadataRetrieve(metadata);
+    writer.setAppendOnly(true);
+    return writer;
+  }
+
+  private void writePlanes(TiffWriter writer, File file)
+    throws FormatException, IOException
+  {
+    for (int no=0; no<PLANES; no++) {
+      writer.setId(file.getAbsolutePath());
+      writer.saveBytes(no, new byte[SIZE * SIZE]);
+    }
+  }
+
+  private int getIFDCount(File file) throws IOException {
+    TiffParser parser = new TiffParser(file.getAbsolutePath());
+    try {
+      return parser.getIFDOffsets().length;
+    }
+    finally {
+      parser.getStream().close();
+    }
+  }
+
+  @Test
+  public void testSameFile() throws FormatException, IOException {
+    TiffWriter writer = createWriter();
+    writePlanes(writer, first);
+    writer.close();
+    assertEquals(PLANES, getIFDCount(first));
+  }
+
+  @Test
+  public void testRevisitedFile() throws FormatException, IOException {
+    TiffWriter writer = createWriter();
+    writePlanes(writer, first);
+    writer.setId(second.getAbsolutePath());
+    try {
+      writer.setId(first.getAbsolutePath());
+      fail("Revisiting a file in append-only mode should fail");
+    }
+    catch (FormatException e) {
+      // expected
+    }
+    finally {
+      writer.close();
+    }
+    assertEquals(PLANES, getIFDCount(first));
+  }
+
+  @Test
+  public void testExistingFile() throws FormatException, IOException {
+    TiffWriter writer = createWriter();
+    writePlanes(writer, first);
+    writer.close();
+
+    writer = createWriter();
+    try {
+      writer.setId(first.getAbsolutePath());
+      fail("Writing to an existing file in append-only mode should fail");
+    }
+    catch (FormatException e) {
+      // expected
+    }
+    finally {
+      writer.close();
+    }
+    assertEquals(PLANES, getIFDCount(first));
+  }
+
+}
@@ -33,20 +33,90 @@
 package loci.common;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * StreamHandle implementation for reading from BZip2-compressed files
  * or byte arrays.  Instances of BZip2Handle are read-only.
  *
+ * The position of every BZip2 block is recorded when the file is first
+ * opened, so that seeking only decompresses the block containing the
+ * target offset.  Reads spanning several blocks decompress the blocks in
+ * parallel.
+ *
  * @see StreamHandle
  *
  * @author Melissa Linkert melissa at glencoesoftware.com
  */
 public class BZip2Handle extends StreamHandle {
 
+  // -- Constants --
+
+  /** Logger for this class. */
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(BZip2Handle.class);
+
+  /** Suffix of persisted block indices. */
+  public static final String INDEX_SUFFIX = ".bfbz2idx";
+
+  /** Identifies persisted block indices. */
+  private static final long INDEX_MAGIC = 0x4246425a49445831L; // BFBZIDX1
+
+  /** Length in bits of the "BZ" magic that precedes the stream. */
+  private static final int MAGIC_BITS = 16;
+
+  /** Maximum number of block indices kept in memory. */
+  private static final int MAX_CACHED_INDICES = 32;
+
+  // -- Static fields --
+
+  /** Whether or not block indices are saved next to the file. */
+  private static boolean persistIndices =
+    Boolean.parseBoolean(System.getProperty("bzip2IndexFiles"));
+
+  /** Number of threads used to decompress blocks in parallel. */
+  private static int threadCount = Runtime.getRuntime().availableProcessors();
+
+  /** Shared pool of decompression threads, created when first needed. */
+  private static ExecutorService executor;
+
+  /** Indices in use or recently used, in access order. */
+  private static final LinkedHashMap<String, Index> indices =
+    new LinkedHashMap<String, Index>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Index> eldest) {
+        return size() > MAX_CACHED_INDICES;
+      }
+    };
+
+  // -- Fields --
+
+  /** Block positions for this file. */
+  private Index index;
+
+  /** Sequential stream of decompressed data. */
+  private BlockInputStream blocks;
+
   // -- Constructor --
 
   /**
@@ -61,17 +131,8 @@ public class BZip2Handle extends StreamHandle {
       throw new HandleException(file + " is not a BZip2 file.");
     }
 
-    resetStream();
-
-    length = 0;
-    while (true) {
-      int skip = stream.skipBytes(1024);
-      if (skip <= 0) {
-        break;
-      }
-      length += skip;
-    }
-
+    index = getIndex(file);
+    length = index.length;
     resetStream();
   }
 
@@ -90,19 +151,438 @@ public class BZip2Handle extends StreamHandle {
     return new String(b, Constants.ENCODING).equals("BZ");
   }
 
+  /**
+   * Sets whether or not block indices are saved next to the compressed
+   * file (with the {@link #INDEX_SUFFIX} suffix), so that the file can later
+   * be opened without decompressing it.
+   */
+  public static synchronized void setPersistIndices(boolean persist) {
+    persistIndices = persist;
+  }
+
+  /**
+   * Sets the number of threads used to decompress reads that span several
+   * blocks.  A count of 1 disables parallel decompression.
+   */
+  public static void setThreadCount(int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("Invalid thread count: " + count);
+    }
+    synchronized (BZip2Handle.class) {
+      threadCount = count;
+      if (executor != null) {
+        executor.shutdown();
+        executor = null;
+      }
+    }
+  }
+
+  /** Discards all block indices held in memory. */
+  public static synchronized void clearIndices() {
+    indices.clear();
+  }
+
+  // -- IRandomAccess API methods --
+
+  /* @see IRandomAccess#seek(long) */
+  @Override
+  public void seek(long pos) throws IOException {
+    pendingFp = -1;
+    blocks.seek(pos);
+    fp = pos;
+  }
+
+  /**
+   * Reads spanning more than one block are decompressed in parallel.
+   * @see IRandomAccess#read(byte[], int, int)
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    restoreFilePointer();
+    long end = Math.min(fp + len, length);
+    int threads;
+    synchronized (BZip2Handle.class) {
+      threads = threadCount;
+    }
+    if (threads <= 1 || end <= fp ||
+      index.findBlock(fp) == index.findBlock(end - 1))
+    {
+      return super.read(b, off, len);
+    }
+    readBlocks(b, off, fp, end);
+    int n = (int) (end - fp);
+    seek(end);
+    return n;
+  }
+
+  // -- DataInput API methods --
+
+  /* @see java.io.DataInput#skipBytes(int) */
+  @Override
+  public int skipBytes(int n) throws IOException {
+    restoreFilePointer();
+    int skipped = (int) Math.max(0, Math.min(n, length - fp));
+    seek(fp + skipped);
+    return skipped;
+  }
+
   // -- StreamHandle API methods --
 
   /* @see StreamHandle#resetStream() */
   @Override
   protected void resetStream() throws IOException {
+    if (blocks == null) {
+      blocks = new BlockInputStream();
+      stream = new DataInputStream(blocks);
+    }
+    blocks.seek(0);
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Decompresses the given range of uncompressed data, one block per
+   * thread, into the given array.
+   */
+  private void readBlocks(final byte[] b, final int off, final long start,
+    final long end) throws IOException
+  {
+    int first = index.findBlock(start);
+    int last = index.findBlock(end - 1);
+    ExecutorService service = getExecutor();
+    List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+    for (int i=first; i<=last; i++) {
+      final int block = i;
+      tasks.add(service.submit(new Callable<Object>() {
+        @Override
+        public Object call() throws IOException {
+          long from = Math.max(start, index.offsets[block]);
+          long to = Math.min(end, index.getBlockEnd(block));
+          CBZip2InputStream decoder = openBlock(block);
+          try {
+            skipFully(decoder, from - index.offsets[block]);
+            int offset = off + (int) (from - start);
+            readFully(decoder, b, offset, (int) (to - from));
+          }
+          finally {
+            decoder.close();
+          }
+          return null;
+        }
+      }));
+    }
+    IOException error = null;
+    for (Future<Object> task : tasks) {
+      try {
+        task.get();
+      }
+      catch (ExecutionException e) {
+        if (error == null) {
+          error = e.getCause() instanceof IOException ?
+            (IOException) e.getCause() : new IOException(e.getCause());
+        }
+      }
+      catch (InterruptedException e) {
+        if (error == null) {
+          error = new IOException(e);
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /** Opens a decoder for the given block. */
+  private CBZip2InputStream openBlock(int block) throws IOException {
+    long bit = index.bits[block];
+    FileInputStream source = new FileInputStream(file);
+    try {
+      source.getChannel().position(bit >>> 3);
+      return new CBZip2InputStream(new BufferedInputStream(source,
+        RandomAccessInputStream.MAX_OVERHEAD), index.blockSize100k,
+        (int) (bit & 7));
+    }
+    catch (IOException e) {
+      source.close();
+      throw e;
+    }
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException {
+    byte[] buf = new byte[(int) Math.min(n, 65536)];
+    while (n > 0) {
+      int r = in.read(buf, 0, (int) Math.min(n, buf.length));
+      if (r <= 0) {
+        throw new IOException("Unexpected end of BZip2 block");
+      }
+      n -= r;
+    }
+  }
+
+  private static void readFully(InputStream in, byte[] b, int off, int len)
+    throws IOException
+  {
+    while (len > 0) {
+      int r = in.read(b, off, len);
+      if (r <= 0) {
+        throw new IOException("Unexpected end of BZip2 block");
+      }
+      off += r;
+      len -= r;
+    }
+  }
+
+  private static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(threadCount,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "BZip2Handle");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    }
+    return executor;
+  }
+
+  /** Gets the block index for the given file, building it if necessary. */
+  private static Index getIndex(String file) throws IOException {
+    File f = new File(file);
+    String key =
+      f.getAbsolutePath() + ":" + f.length() + ":" + f.lastModified();
+    boolean persist;
+    synchronized (BZip2Handle.class) {
+      Index index = indices.get(key);
+      if (index != null) {
+        return index;
+      }
+      persist = persistIndices;
+    }
+
+    Index index = persist ? loadIndex(file) : null;
+    if (index == null) {
+      index = buildIndex(file);
+      if (persist) {
+        saveIndex(file, index);
+      }
+    }
+    synchronized (BZip2Handle.class) {
+      indices.put(key, index);
+    }
+    return index;
+  }
+
+  /** Decompresses the whole file, recording the position of each block. */
+  private static Index buildIndex(String file) throws IOException {
+    List<long[]> blockList = new ArrayList<long[]>();
     BufferedInputStream bis = new BufferedInputStream(
       new FileInputStream(file), RandomAccessInputStream.MAX_OVERHEAD);
-    int skipped = 0;
-    while (skipped < 2) {
-      skipped += bis.skip(2 - skipped);
+    try {
+      int skipped = 0;
+      while (skipped < 2) {
+        skipped += bis.skip(2 - skipped);
+      }
+      CBZip2InputStream s = new CBZip2InputStream(bis, blockList);
+      byte[] buf = new byte[65536];
+      long length = 0;
+      while (true) {
+        int n = s.read(buf, 0, buf.length);
+        if (n <= 0) {
+          break;
+        }
+        length += n;
+      }
+
+      Index index = new Index(s.getBlockSize100k(), blockList.size(), length);
+      for (int i=0; i<blockList.size(); i++) {
+        index.bits[i] = MAGIC_BITS + blockList.get(i)[0];
+        index.offsets[i] = blockList.get(i)[1];
+      }
+      return index;
+    }
+    finally {
+      bis.close();
     }
-    stream = new DataInputStream(new CBZip2InputStream(bis));
   }
 
+  /** Reads a persisted index, returning null if it is missing or stale. */
+  private static Index loadIndex(String file) {
+    File f = new File(file);
+    File indexFile = new File(file + INDEX_SUFFIX);
+    if (!indexFile.exists()) {
+      return null;
+    }
+    try {
+      DataInputStream s = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        if (s.readLong() != INDEX_MAGIC || s.readLong() != f.length() ||
+          s.readLong() != f.lastModified())
+        {
+          return null;
+        }
+        int blockSize100k = s.readInt();
+        long length = s.readLong();
+        Index index = new Index(blockSize100k, s.readInt(), length);
+        for (int i=0; i<index.bits.length; i++) {
+          index.bits[i] = s.readLong();
+          index.offsets[i] = s.readLong();
+        }
+        return index;
+      }
+      finally {
+        s.close();
+      }
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not read BZip2 index {}", indexFile, e);
+      return null;
+    }
+  }
+
+  /** Saves an index next to the file. */
+  private static void saveIndex(String file, Index index) {
+    File f = new File(file);
+    File indexFile = new File(file + INDEX_SUFFIX);
+    try {
+      DataOutputStream s = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(indexFile)));
+      try {
+        s.writeLong(INDEX_MAGIC);
+        s.writeLong(f.length());
+        s.writeLong(f.lastModified());
+        s.writeInt(index.blockSize100k);
+        s.writeLong(index.length);
+        s.writeInt(index.bits.length);
+        for (int i=0; i<index.bits.length; i++) {
+          s.writeLong(index.bits[i]);
+          s.writeLong(index.offsets[i]);
+        }
+      }
+      finally {
+        s.close();
+      }
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not write BZip2 index {}", indexFile, e);
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Positions of the blocks of one BZip2 file. */
+  private static class Index {
+    /** Block size of the stream, in units of 100 KB. */
+    final int blockSize100k;
+
+    /** Offset of each block header within the file, in bits. */
+    final long[] bits;
+
+    /** Uncompressed offset of each block. */
+    final long[] offsets;
+
+    /** Total uncompressed length. */
+    final long length;
+
+    Index(int blockSize100k, int count, long length) {
+      this.blockSize100k = blockSize100k;
+      this.bits = new long[count];
+      this.offsets = new long[count];
+      this.length = length;
+    }
+
+    /** Finds the block containing the given uncompressed offset. */
+    int findBlock(long pos) {
+      int low = 0;
+      int high = offsets.length - 1;
+      while (low < high) {
+        int mid = (low + high + 1) >>> 1;
+        if (offsets[mid] <= pos) {
+          low = mid;
+        }
+        else {
+          high = mid - 1;
+        }
+      }
+      return low;
+    }
+
+    /** Gets the uncompressed offset of the end of the given block. */
+    long getBlockEnd(int block) {
+      return block + 1 < offsets.length ? offsets[block + 1] : length;
+    }
+  }
+
+  /** Decompresses the block containing the requested offset. */
+  private class BlockInputStream extends InputStream {
+    /** Decoder for the current block. */
+    private CBZip2InputStream decoder;
+
+    /** Index of the current block. */
+    private int block = -1;
+
+    /** Uncompressed offset of the decoder's next byte. */
+    private long pos;
+
+    /** Uncompressed offset of the next byte to return. */
+    private long target;
+
+    void seek(long pos) {
+      target = pos;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (target >= length) {
+        return -1;
+      }
+      int next = index.findBlock(target);
+      if (decoder == null || next != block || target < pos) {
+        close();
+        decoder = openBlock(next);
+        block = next;
+        pos = index.offsets[next];
+      }
+      skipFully(decoder, target - pos);
+      pos = target;
+
+      len = (int) Math.min(len, index.getBlockEnd(block) - pos);
+      int n = decoder.read(b, off, len);
+      if (n <= 0) {
+        throw new IOException("Unexpected end of BZip2 block");
+      }
+      pos += n;
+      target = pos;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skip = Math.max(0, Math.min(n, length - target));
+      target += skip;
+      return skip;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (decoder != null) {
+        decoder.close();
+      }
+      decoder = null;
+      block = -1;
+    }
+  }
 
 }
@@ -173,6 +173,31 @@ public class ByteArrayHandle extends AbstractNIOHandle {
     return len;
   }
 
+  /* @see IRandomAccess.read(long, byte[], int, int) */
+  @Override
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    return read(pos, ByteBuffer.wrap(b, off, len));
+  }
+
+  /* @see IRandomAccess.read(long, ByteBuffer) */
+  @Override
+  public int read(long pos, ByteBuffer buf) throws IOException {
+    if (!buf.hasRemaining()) {
+      return 0;
+    }
+    long length = length();
+    if (pos >= length) {
+      return -1;
+    }
+    int len = (int) Math.min(buf.remaining(), length - pos);
+    // read from a private view so that the shared position is untouched
+    ByteBuffer view = buffer.duplicate();
+    view.limit((int) pos + len);
+    view.position((int) pos);
+    buf.put(view);
+    return len;
+  }
+
   /* @see IRandomAccess.seek(long) */
   @Override
   public void seek(long pos) throws IOException {
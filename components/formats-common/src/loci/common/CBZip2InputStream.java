@@ -57,6 +57,7 @@ package loci.common;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -225,6 +226,21 @@ public class CBZip2InputStream extends InputStream {
    */
   private CBZip2InputStream.Data data;
 
+  /** Whether or not to stop at the end of the first block. */
+  private boolean singleBlock;
+
+  /** Number of bytes read from the underlying stream. */
+  private long bytesRead;
+
+  /** Number of bytes returned so far. */
+  private long outputCount;
+
+  /**
+   * If non-null, receives the bit offset and uncompressed offset of each
+   * block as it is reached.
+   */
+  private List<long[]> blockIndex;
+
   // -- Constructor --
 
   /**
@@ -243,12 +259,47 @@ public class CBZip2InputStream extends InputStream {
    *   if <tt>in == null</tt>
    */
   public CBZip2InputStream(final InputStream in) throws IOException {
+    this(in, null);
+  }
+
+  /**
+   * Constructs a new CBZip2InputStream which records the position of
+   * each block in the given list.  Each entry holds the offset of the block
+   * header in bits, relative to the first byte after the magic, followed by
+   * the offset of the block's first uncompressed byte.
+   */
+  CBZip2InputStream(final InputStream in, final List<long[]> blockIndex)
+    throws IOException
+  {
     super();
 
     this.in = in;
+    this.blockIndex = blockIndex;
     init();
   }
 
+  /**
+   * Constructs a new CBZip2InputStream which decompresses a single block.
+   * The block header starts <tt>skipBits</tt> bits into the given stream.
+   */
+  CBZip2InputStream(final InputStream in, final int blockSize100k,
+    final int skipBits) throws IOException
+  {
+    super();
+
+    this.in = in;
+    this.blockSize100k = blockSize100k;
+    this.singleBlock = true;
+    if (skipBits > 0) bsR(skipBits);
+    initBlock();
+    setupBlock();
+  }
+
+  /** Returns the block size of the stream, in units of 100 KB. */
+  int getBlockSize100k() {
+    return blockSize100k;
+  }
+
   // -- InputStream API --
 
   @Override
@@ -284,6 +335,7 @@ public class CBZip2InputStream extends InputStream {
 
   private int read0() throws IOException {
     final int retChar = this.currentChar;
+    if (this.currentState != EOF) this.outputCount++;
 
     switch (this.currentState) {
       case EOF:
@@ -335,12 +387,14 @@ public class CBZip2InputStream extends InputStream {
     }
 
     this.blockSize100k = blockSize - '0';
+    this.bytesRead = 2;
 
     initBlock();
     setupBlock();
   }
 
   private void initBlock() throws IOException {
+    long blockStart = this.bytesRead * 8 - this.bsLive;
     char magic0 = bsGetUByte();
     char magic1 = bsGetUByte();
     char magic2 = bsGetUByte();
@@ -368,6 +422,9 @@ public class CBZip2InputStream extends InputStream {
       throw new IOException("bad block header");
     }
     else {
+      if (this.blockIndex != null) {
+        this.blockIndex.add(new long[] {blockStart, this.outputCount});
+      }
       this.storedBlockCRC = bsGetInt();
       this.blockRandomised = bsR(1) == 1;
 
@@ -441,6 +498,7 @@ public class CBZip2InputStream extends InputStream {
 
         bsBuffShadow = (bsBuffShadow << 8) | thech;
         bsLiveShadow += 8;
+        this.bytesRead++;
       }
       while (bsLiveShadow < n);
 
@@ -665,6 +723,7 @@ public class CBZip2InputStream extends InputStream {
             if (thech >= 0) {
               bsBuffShadow = (bsBuffShadow << 8) | thech;
               bsLiveShadow += 8;
+              this.bytesRead++;
               continue;
             }
             throw new IOException("unexpected end of stream");
@@ -679,6 +738,7 @@ public class CBZip2InputStream extends InputStream {
               if (thech >= 0) {
                 bsBuffShadow = (bsBuffShadow << 8) | thech;
                 bsLiveShadow += 8;
+                this.bytesRead++;
                 continue;
               }
               throw new IOException("unexpected end of stream");
@@ -736,6 +796,7 @@ public class CBZip2InputStream extends InputStream {
           if (thech >= 0) {
             bsBuffShadow = (bsBuffShadow << 8) | thech;
             bsLiveShadow += 8;
+            this.bytesRead++;
             continue;
           }
           throw new IOException("unexpected end of stream");
@@ -750,6 +811,7 @@ public class CBZip2InputStream extends InputStream {
             if (thech >= 0) {
               bsBuffShadow = (bsBuffShadow << 8) | thech;
               bsLiveShadow += 8;
+              this.bytesRead++;
               continue;
             }
             throw new IOException("unexpected end of stream");
@@ -786,6 +848,7 @@ public class CBZip2InputStream extends InputStream {
         if (thech >= 0) {
           bsBuffShadow = (bsBuffShadow << 8) | thech;
           bsLiveShadow += 8;
+          this.bytesRead++;
           continue;
         }
         throw new IOException("unexpected end of stream");
@@ -800,6 +863,17 @@ public class CBZip2InputStream extends InputStream {
     return dataShadow.perm[zt][zvec - dataShadow.base[zt][zn]];
   }
 
+  private void nextBlock() throws IOException {
+    endBlock();
+    if (this.singleBlock) {
+      this.currentState = EOF;
+      this.data = null;
+      return;
+    }
+    initBlock();
+    setupBlock();
+  }
+
   private void setupBlock() throws IOException {
     if (this.data == null) return;
 
@@ -851,11 +925,7 @@ public class CBZip2InputStream extends InputStream {
       this.currentState = RAND_PART_B_STATE;
       this.crc.updateCRC(suCh2Shadow);
     }
-    else {
-      endBlock();
-      initBlock();
-      setupBlock();
-    }
+    else nextBlock();
   }
 
   private void setupNoRandPartA() throws IOException {
@@ -871,9 +941,7 @@ public class CBZip2InputStream extends InputStream {
     }
     else {
       this.currentState = NO_RAND_PART_A_STATE;
-      endBlock();
-      initBlock();
-      setupBlock();
+      nextBlock();
     }
   }
 
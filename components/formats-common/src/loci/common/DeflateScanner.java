@@ -0,0 +1,547 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package loci.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Finds the deflate block boundaries in gzip-compressed data without
+ * producing any output.  Huffman codes are decoded only as far as needed to
+ * find where each block ends and how much data it expands to; the data
+ * itself is decompressed by {@link java.util.zip.Inflater}.
+ *
+ * Each call to {@link #next()} moves to the next block, which is described
+ * by its position within the file (in bits), the uncompressed offset at
+ * which it starts, and the uncompressed offset of its gzip member.
+ */
+class DeflateScanner {
+
+  // -- Constants --
+
+  /** Size of the compressed input buffer. */
+  private static final int INPUT_SIZE = 65536;
+
+  private static final int[] LENGTH_BASE = {
+    3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59,
+    67, 83, 99, 115, 131, 163, 195, 227, 258
+  };
+
+  private static final int[] LENGTH_EXTRA = {
+    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4,
+    5, 5, 5, 5, 0
+  };
+
+  private static final int[] DISTANCE_EXTRA = {
+    0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10,
+    11, 11, 12, 12, 13, 13
+  };
+
+  /** Order in which code length code lengths are stored. */
+  private static final int[] CODE_LENGTH_ORDER = {
+    16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+  };
+
+  /** Decoding table for the fixed literal/length code. */
+  private static final int[] FIXED_LITERALS = new int[1 << 9];
+
+  /** Decoding table for the fixed distance code. */
+  private static final int[] FIXED_DISTANCES = new int[1 << 5];
+
+  static {
+    int[] lengths = new int[288];
+    Arrays.fill(lengths, 0, 144, 8);
+    Arrays.fill(lengths, 144, 256, 9);
+    Arrays.fill(lengths, 256, 280, 7);
+    Arrays.fill(lengths, 280, 288, 8);
+    int[] distances = new int[30];
+    Arrays.fill(distances, 5);
+    try {
+      buildTable(lengths, 0, lengths.length, FIXED_LITERALS);
+      buildTable(distances, 0, distances.length, FIXED_DISTANCES);
+    }
+    catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // -- Fields --
+
+  /** Handle from which compressed data is read. */
+  private IRandomAccess source;
+
+  /** Whether or not the data is a raw deflate stream without gzip framing. */
+  private boolean raw;
+
+  /** Offset within the file of the gzip data, or -1 once it was parsed. */
+  private long dataStart;
+
+  /** Whether or not the end of the data was reached. */
+  private boolean done;
+
+  /** Position of the current block within the file, in bits. */
+  private long blockBit = -1;
+
+  /** Uncompressed offset of the current block, or -1 before the first. */
+  private long blockOffset = -1;
+
+  /** Uncompressed offset of the current block's gzip member. */
+  private long blockMember;
+
+  /** Uncompressed offset of the next unscanned data. */
+  private long outOffset;
+
+  /** Compressed input. */
+  private byte[] in = new byte[INPUT_SIZE];
+  private int inPos, inLen;
+
+  /** Offset within the file of in[0]. */
+  private long inOffset;
+
+  /** Bits read from the input but not yet consumed. */
+  private long bitBuffer;
+  private int bitCount;
+
+  /** Number of zero bytes appended to the bit buffer past end of file. */
+  private int padding;
+
+  /** Decoding tables of the current Huffman block. */
+  private int[] literalTable, distanceTable;
+  private int literalBits, distanceBits;
+
+  /** Storage for dynamic Huffman tables. */
+  private int[] dynamicLiterals = new int[1 << 15];
+  private int[] dynamicDistances = new int[1 << 15];
+  private int[] codeLengthTable = new int[1 << 7];
+  private int[] codeLengths = new int[320];
+
+  // -- Constructors --
+
+  /**
+   * Constructs a scanner positioned before the first block of the data that
+   * starts at the given offset within the file.
+   */
+  DeflateScanner(IRandomAccess source, long start, boolean raw) {
+    this.source = source;
+    this.raw = raw;
+    dataStart = start;
+  }
+
+  /**
+   * Constructs a scanner positioned at a known block.
+   *
+   * @param bit the position of the block within the file, in bits
+   * @param offset the uncompressed offset of the block
+   * @param member the uncompressed offset of the block's gzip member
+   */
+  DeflateScanner(IRandomAccess source, boolean raw, long bit, long offset,
+    long member) throws IOException
+  {
+    this.source = source;
+    this.raw = raw;
+    dataStart = -1;
+    blockBit = bit;
+    blockOffset = offset;
+    blockMember = member;
+    outOffset = offset;
+    seekBit(bit);
+  }
+
+  // -- DeflateScanner API methods --
+
+  /** Gets the position of the current block within the file, in bits. */
+  long getBit() {
+    return blockBit;
+  }
+
+  /**
+   * Gets the uncompressed offset of the current block, or -1 if
+   * {@link #next()} was not called yet.
+   */
+  long getOffset() {
+    return blockOffset;
+  }
+
+  /** Gets the uncompressed offset of the current block's gzip member. */
+  long getMember() {
+    return blockMember;
+  }
+
+  /**
+   * Moves to the next block.
+   * @return false if there are no more blocks.
+   */
+  boolean next() throws IOException {
+    if (done) {
+      return false;
+    }
+    if (dataStart >= 0) {
+      long data = raw ? dataStart : skipHeader(source, dataStart, true);
+      dataStart = -1;
+      seekBit(data * 8);
+      return setBlock();
+    }
+    if (skipBlock()) {
+      if (raw) {
+        done = true;
+        return false;
+      }
+      // skip to a byte boundary, then skip the CRC and uncompressed size
+      long trailer = (getPosition() + 7) >>> 3;
+      long data = skipHeader(source, trailer + 8, false);
+      if (data < 0) {
+        done = true;
+        return false;
+      }
+      seekBit(data * 8);
+      blockMember = outOffset;
+    }
+    return setBlock();
+  }
+
+  /**
+   * Skips the header of the gzip member at the given offset.
+   *
+   * @param first whether or not this is the first member, which must exist
+   * @return the offset of the member's deflate data, or -1 if there is no
+   *   further member
+   * @throws IOException if the first member is missing or the header is
+   *   invalid
+   */
+  static long skipHeader(IRandomAccess source, long offset, boolean first)
+    throws IOException
+  {
+    byte[] header = new byte[10];
+    int n = Math.max(source.read(offset, header, 0, header.length), 0);
+    if (n < 2 || (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b) {
+      if (!first) {
+        // ignore trailing garbage
+        return -1;
+      }
+      if (n == 0) {
+        throw new EOFException("Unexpected end of gzip stream");
+      }
+      throw new IOException("Not in GZIP format");
+    }
+    if (n < header.length) {
+      throw new EOFException("Unexpected end of gzip stream");
+    }
+    if (header[2] != 8) {
+      throw new IOException("Unsupported compression method");
+    }
+    int flags = header[3];
+    long pos = offset + header.length;
+    if ((flags & 4) != 0) {
+      pos += 2 + (readByte(source, pos) | (readByte(source, pos + 1) << 8));
+    }
+    if ((flags & 8) != 0) {
+      while (readByte(source, pos++) != 0);
+    }
+    if ((flags & 16) != 0) {
+      while (readByte(source, pos++) != 0);
+    }
+    if ((flags & 2) != 0) {
+      pos += 2;
+    }
+    return pos;
+  }
+
+  // -- Helper methods --
+
+  /** Records the current position as the start of a block. */
+  private boolean setBlock() throws IOException {
+    // make sure that the block header is not past the end of the file
+    need(3);
+    if (bitCount - 3 < padding * 8) {
+      throw new EOFException("Unexpected end of gzip stream");
+    }
+    blockBit = getPosition();
+    blockOffset = outOffset;
+    return true;
+  }
+
+  /**
+   * Skips the current block.
+   * @return true if it was the last block of its member.
+   */
+  private boolean skipBlock() throws IOException {
+    boolean last = bits(1) == 1;
+    int type = bits(2);
+    if (type == 0) {
+      bits(bitCount & 7);
+      int length = bits(16);
+      int complement = bits(16);
+      if (length != (~complement & 0xffff)) {
+        throw new IOException("Invalid stored block length");
+      }
+      long end = getPosition() + length * 8L;
+      if (end >>> 3 > source.length()) {
+        throw new EOFException("Unexpected end of gzip stream");
+      }
+      seekBit(end);
+      outOffset += length;
+      return last;
+    }
+    if (type == 1) {
+      literalTable = FIXED_LITERALS;
+      literalBits = 9;
+      distanceTable = FIXED_DISTANCES;
+      distanceBits = 5;
+    }
+    else if (type == 2) {
+      readDynamicTables();
+    }
+    else {
+      throw new IOException("Invalid block type");
+    }
+    skipHuffman();
+    return last;
+  }
+
+  /** Reads the code lengths of a dynamic Huffman block. */
+  private void readDynamicTables() throws IOException {
+    int literals = bits(5) + 257;
+    int distances = bits(5) + 1;
+    int codes = bits(4) + 4;
+    if (literals > 286 || distances > 30) {
+      throw new IOException("Invalid code lengths");
+    }
+    Arrays.fill(codeLengths, 0, 19, 0);
+    for (int i=0; i<codes; i++) {
+      codeLengths[CODE_LENGTH_ORDER[i]] = bits(3);
+    }
+    int tableBits = buildTable(codeLengths, 0, 19, codeLengthTable);
+
+    int total = literals + distances;
+    int i = 0;
+    while (i < total) {
+      int symbol = decode(codeLengthTable, tableBits);
+      if (symbol < 16) {
+        codeLengths[i++] = symbol;
+        continue;
+      }
+      int value = 0;
+      int repeat;
+      if (symbol == 16) {
+        if (i == 0) {
+          throw new IOException("Invalid code lengths");
+        }
+        value = codeLengths[i - 1];
+        repeat = 3 + bits(2);
+      }
+      else if (symbol == 17) {
+        repeat = 3 + bits(3);
+      }
+      else {
+        repeat = 11 + bits(7);
+      }
+      if (i + repeat > total) {
+        throw new IOException("Invalid code lengths");
+      }
+      while (repeat-- > 0) {
+        codeLengths[i++] = value;
+      }
+    }
+    if (codeLengths[256] == 0) {
+      throw new IOException("Missing end-of-block code");
+    }
+    literalBits = buildTable(codeLengths, 0, literals, dynamicLiterals);
+    distanceBits =
+      buildTable(codeLengths, literals, distances, dynamicDistances);
+    literalTable = dynamicLiterals;
+    distanceTable = dynamicDistances;
+  }
+
+  /** Skips the symbols of a Huffman block, counting the output length. */
+  private void skipHuffman() throws IOException {
+    while (true) {
+      int symbol = decode(literalTable, literalBits);
+      if (symbol < 256) {
+        outOffset++;
+      }
+      else if (symbol == 256) {
+        return;
+      }
+      else {
+        symbol -= 257;
+        if (symbol >= LENGTH_BASE.length) {
+          throw new IOException("Invalid length code");
+        }
+        outOffset += LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+        symbol = decode(distanceTable, distanceBits);
+        if (symbol >= DISTANCE_EXTRA.length) {
+          throw new IOException("Invalid distance code");
+        }
+        bits(DISTANCE_EXTRA[symbol]);
+      }
+    }
+  }
+
+  /** Decodes one symbol using the given table. */
+  private int decode(int[] table, int tableBits) throws IOException {
+    need(tableBits);
+    int entry = table[(int) bitBuffer & ((1 << tableBits) - 1)];
+    int length = entry & 15;
+    if (length == 0) {
+      throw new IOException("Invalid Huffman code");
+    }
+    drop(length);
+    return entry >>> 4;
+  }
+
+  /** Reads the given number of bits (at most 32). */
+  private int bits(int n) throws IOException {
+    need(n);
+    int value = (int) (bitBuffer & ((1L << n) - 1));
+    drop(n);
+    return value;
+  }
+
+  /** Ensures that at least n bits are in the bit buffer. */
+  private void need(int n) throws IOException {
+    while (bitCount < n) {
+      if (inPos == inLen && !fill()) {
+        // pad with zeros, which are only an error if they are consumed
+        padding++;
+        bitCount += 8;
+        continue;
+      }
+      bitBuffer |= (long) (in[inPos++] & 0xff) << bitCount;
+      bitCount += 8;
+    }
+  }
+
+  /** Consumes n bits from the bit buffer. */
+  private void drop(int n) throws IOException {
+    bitBuffer >>>= n;
+    bitCount -= n;
+    if (bitCount < padding * 8) {
+      throw new EOFException("Unexpected end of gzip stream");
+    }
+  }
+
+  /** Gets the position of the next unconsumed bit within the file. */
+  private long getPosition() {
+    return (inOffset + inPos + padding) * 8 - bitCount;
+  }
+
+  /** Moves to the given bit within the file. */
+  private void seekBit(long bit) throws IOException {
+    long offset = bit >>> 3;
+    if (offset >= inOffset && offset <= inOffset + inLen) {
+      inPos = (int) (offset - inOffset);
+    }
+    else {
+      inOffset = offset;
+      inPos = inLen = 0;
+    }
+    bitBuffer = 0;
+    bitCount = 0;
+    padding = 0;
+    int skip = (int) (bit & 7);
+    if (skip > 0) {
+      bits(skip);
+    }
+  }
+
+  /**
+   * Reads the next chunk of compressed data.
+   * @return false at end of file.
+   */
+  private boolean fill() throws IOException {
+    inOffset += inLen;
+    inPos = 0;
+    inLen = Math.max(source.read(inOffset, in, 0, in.length), 0);
+    return inLen > 0;
+  }
+
+  /** Reads the byte at the given offset within the file. */
+  private static int readByte(IRandomAccess source, long offset)
+    throws IOException
+  {
+    byte[] b = new byte[1];
+    if (source.read(offset, b, 0, 1) != 1) {
+      throw new EOFException("Unexpected end of gzip stream");
+    }
+    return b[0] & 0xff;
+  }
+
+  /**
+   * Builds a table for decoding a canonical Huffman code, indexed by the
+   * next bits of input.  Entries hold the symbol in the upper bits and the
+   * code length in the lower four bits.
+   *
+   * @return the number of bits used to index the table.
+   */
+  private static int buildTable(int[] lengths, int offset, int count,
+    int[] table) throws IOException
+  {
+    int[] lengthCounts = new int[16];
+    int maxLength = 0;
+    for (int i=0; i<count; i++) {
+      int length = lengths[offset + i];
+      lengthCounts[length]++;
+      maxLength = Math.max(maxLength, length);
+    }
+    lengthCounts[0] = 0;
+    int left = 1;
+    for (int length=1; length<16; length++) {
+      left = (left << 1) - lengthCounts[length];
+      if (left < 0) {
+        throw new IOException("Invalid Huffman code lengths");
+      }
+    }
+    int[] nextCode = new int[16];
+    int code = 0;
+    for (int length=1; length<16; length++) {
+      code = (code + lengthCounts[length - 1]) << 1;
+      nextCode[length] = code;
+    }
+    int size = 1 << maxLength;
+    Arrays.fill(table, 0, size, 0);
+    for (int i=0; i<count; i++) {
+      int length = lengths[offset + i];
+      if (length == 0) {
+        continue;
+      }
+      int reversed = Integer.reverse(nextCode[length]++) >>> (32 - length);
+      for (int j=reversed; j<size; j+=1<<length) {
+        table[j] = (i << 4) | length;
+      }
+    }
+    return maxLength;
+  }
+
+}
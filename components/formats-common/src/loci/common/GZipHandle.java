@@ -32,7 +32,6 @@
 
 package loci.common;
 
-import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -42,12 +41,21 @@ import java.util.zip.GZIPInputStream;
  * StreamHandle implementation for reading from gzip-compressed files
  * or byte arrays.  Instances of GZipHandle are read-only.
  *
+ * Seeking resumes decompression from the nearest checkpoint recorded by
+ * {@link IndexedGZipInputStream}, so random access does not require
+ * decompressing the file from the beginning.
+ *
  * @see StreamHandle
  *
  * @author Melissa Linkert melissa at glencoesoftware.com
  */
 public class GZipHandle extends StreamHandle {
 
+  // -- Fields --
+
+  /** Decompressed stream with checkpoints for random access. */
+  private IndexedGZipInputStream inflater;
+
   // -- Constructor --
 
   /**
@@ -62,15 +70,8 @@ public class GZipHandle extends StreamHandle {
       throw new HandleException(file + " is not a gzip file.");
     }
 
-    resetStream();
-
-    length = 0;
-    while (true) {
-      int skip = stream.skipBytes(1024);
-      if (skip <= 0) break;
-      length += skip;
-    }
-
+    inflater = new IndexedGZipInputStream(file);
+    length = inflater.length();
     resetStream();
   }
 
@@ -87,15 +88,36 @@ public class GZipHandle extends StreamHandle {
     return DataTools.bytesToInt(b, true) == GZIPInputStream.GZIP_MAGIC;
   }
 
+  // -- IRandomAccess API methods --
+
+  /* @see IRandomAccess#seek(long) */
+  @Override
+  public void seek(long pos) throws IOException {
+    pendingFp = -1;
+    inflater.seek(pos);
+    fp = pos;
+  }
+
+  // -- DataInput API methods --
+
+  /* @see java.io.DataInput#skipBytes(int) */
+  @Override
+  public int skipBytes(int n) throws IOException {
+    restoreFilePointer();
+    int skipped = (int) Math.max(0, Math.min(n, length - fp));
+    seek(fp + skipped);
+    return skipped;
+  }
+
   // -- StreamHandle API methods --
 
   /* @see StreamHandle#resetStream() */
   @Override
   protected void resetStream() throws IOException {
-    if (stream != null) stream.close();
-    BufferedInputStream bis = new BufferedInputStream(
-      new FileInputStream(file), RandomAccessInputStream.MAX_OVERHEAD);
-    stream = new DataInputStream(new GZIPInputStream(bis));
+    inflater.seek(0);
+    if (stream == null) {
+      stream = new DataInputStream(inflater);
+    }
   }
 
 }
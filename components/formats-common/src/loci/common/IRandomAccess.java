@@ -96,6 +96,31 @@ public interface IRandomAccess extends DataInput, DataOutput {
    */
   int read(ByteBuffer buffer, int offset, int len) throws IOException;
 
+  /**
+   * Reads up to len bytes of data, starting at the given absolute offset,
+   * into an array of bytes.  The current offset of the stream is neither
+   * used nor changed.
+   *
+   * Handles backed by a file channel or an array support concurrent calls
+   * to this method; stream based handles serialize them.
+   *
+   * @return the total number of bytes read into the array, or -1 if
+   *   <code>pos</code> is at or beyond the end of the stream.
+   */
+  int read(long pos, byte[] b, int off, int len) throws IOException;
+
+  /**
+   * Reads up to buffer.remaining() bytes of data, starting at the given
+   * absolute offset, into a ByteBuffer.  The buffer's position is advanced
+   * by the number of bytes read; the current offset of the stream is neither
+   * used nor changed.
+   *
+   * @return the total number of bytes read into the buffer, or -1 if
+   *   <code>pos</code> is at or beyond the end of the stream.
+   * @see #read(long, byte[], int, int)
+   */
+  int read(long pos, ByteBuffer buffer) throws IOException;
+
   /**
    * Sets the stream pointer offset, measured from the beginning
    * of this stream, at which the next read or write occurs.
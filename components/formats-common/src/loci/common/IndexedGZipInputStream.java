@@ -0,0 +1,883 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package loci.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * InputStream for reading gzip-compressed data with random access.
+ *
+ * While decompressing, the stream saves a checkpoint (the position of the
+ * next deflate block and the preceding 32 KB of output) every few MB of
+ * uncompressed data.  Seeking then resumes decompression from the nearest
+ * checkpoint instead of from the start of the stream, so reading any part
+ * of the data costs O(checkpoint spacing) once the relevant part of the
+ * index has been built.  Indices are shared by every stream on the same
+ * file, and may optionally be persisted next to the file.
+ *
+ * Data is decompressed by {@link Inflater}, which is restarted at a
+ * checkpoint with the saved window as its dictionary.  Block boundaries for
+ * new checkpoints are found by a {@link DeflateScanner} that runs alongside.
+ *
+ * Concatenated gzip members are supported.  The length in each member's
+ * trailer is always verified, and so is the CRC of every member that was
+ * read from its start.
+ */
+public class IndexedGZipInputStream extends InputStream {
+
+  // -- Constants --
+
+  /** Logger for this class. */
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(IndexedGZipInputStream.class);
+
+  /** Default spacing between checkpoints: 4 MB of uncompressed data. */
+  public static final long DEFAULT_SPACING = 4L * 1024 * 1024;
+
+  /** Suffix of persisted index files. */
+  public static final String INDEX_SUFFIX = ".bfgzidx";
+
+  /** Identifies persisted index files. */
+  private static final long INDEX_MAGIC = 0x4246475a49445832L; // BFGZIDX2
+
+  /** Size of the deflate history window. */
+  private static final int WINDOW_SIZE = 32768;
+
+  /** Maximum number of bytes decompressed ahead of the reader. */
+  private static final int MAX_UNREAD = 65536;
+
+  /** Size of the compressed input buffer. */
+  private static final int INPUT_SIZE = 65536;
+
+  /** Maximum number of indices kept in memory. */
+  private static final int MAX_CACHED_INDICES = 32;
+
+  private static final int STATE_HEADER = 0;
+  private static final int STATE_DEFLATE = 1;
+  private static final int STATE_DONE = 2;
+
+  /**
+   * Empty deflate blocks that are inflated before a checkpoint's block, so
+   * that the block starts at the same bit within a byte as it does in the
+   * file; otherwise the padding before stored blocks would be misplaced.
+   * Indexed by the bit at which the block starts; the last byte holds only
+   * that many bits.
+   */
+  private static final byte[][] PREAMBLES = new byte[8][];
+
+  // -- Static fields --
+
+  /** Spacing between checkpoints of newly created indices. */
+  private static long defaultSpacing = DEFAULT_SPACING;
+
+  /** Whether or not complete indices are saved next to the file. */
+  private static boolean persistIndices = false;
+
+  /** Indices in use or recently used, in access order. */
+  private static final LinkedHashMap<String, Index> indices =
+    new LinkedHashMap<String, Index>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Index> eldest) {
+        return size() > MAX_CACHED_INDICES;
+      }
+    };
+
+  static {
+    for (int shift=1; shift<8; shift++) {
+      PREAMBLES[shift] = buildPreamble(shift);
+    }
+
+    String spacing = System.getProperty("gzipIndexSpacing");
+    if (spacing != null) {
+      try {
+        defaultSpacing = Long.parseLong(spacing);
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid gzipIndexSpacing: {}", spacing);
+      }
+    }
+    persistIndices = Boolean.parseBoolean(System.getProperty("gzipIndexFiles"));
+  }
+
+  // -- Fields --
+
+  /** Name of the compressed file. */
+  private String file;
+
+  /** Handle from which compressed data is read. */
+  private IRandomAccess source;
+
+  /** Offset of the gzip data within the file. */
+  private long start;
+
+  /** Whether or not the data is a raw deflate stream without gzip framing. */
+  private boolean raw;
+
+  /** Checkpoints for this file, shared with other streams. */
+  private Index index;
+
+  /** Finds block boundaries for new checkpoints; created when needed. */
+  private DeflateScanner scanner;
+
+  /** Decompressor for the current deflate stream. */
+  private Inflater inflater = new Inflater(true);
+
+  /** Checksum of the current member's data. */
+  private CRC32 crc = new CRC32();
+
+  /** Whether or not the current member was read from its start. */
+  private boolean crcValid;
+
+  /** Uncompressed offset of the current member. */
+  private long memberStart;
+
+  /** Compressed input, with room for a preamble. */
+  private byte[] in = new byte[INPUT_SIZE + 16];
+
+  /** Offset within the file of the next compressed byte to read. */
+  private long inOffset;
+
+  /** Number of bits of the first byte that precede the current block. */
+  private int shift;
+
+  /** Whether or not the preamble still needs to be inflated. */
+  private boolean needPreamble;
+
+  /** Decompressed data, starting with up to 32 KB of history. */
+  private byte[] out = new byte[2 * WINDOW_SIZE + 2 * MAX_UNREAD];
+  private int outPos, outLen;
+
+  /** Uncompressed offset of out[0]. */
+  private long outBase;
+
+  /** Current decoding state. */
+  private int state;
+
+  /** Whether or not the first gzip member is being read. */
+  private boolean firstMember;
+
+  // -- Constructors --
+
+  /** Constructs a stream over the gzip-compressed file. */
+  public IndexedGZipInputStream(String file) throws IOException {
+    this(file, 0);
+  }
+
+  /**
+   * Constructs a stream over gzip-compressed data that starts at the given
+   * offset within the file.
+   *
+   * @throws IOException if the data is not in gzip format.
+   */
+  public IndexedGZipInputStream(String file, long start) throws IOException {
+    this(file, start, false);
+  }
+
+  /**
+   * Constructs a stream over gzip-compressed data, or over a raw deflate
+   * stream (as stored in Zip files) if <code>raw</code> is set.
+   */
+  IndexedGZipInputStream(String file, long start, boolean raw)
+    throws IOException
+  {
+    this.file = file;
+    this.start = start;
+    this.raw = raw;
+    source = Location.getHandle(file, false, false);
+    try {
+      byte[] magic = new byte[2];
+      if (!raw && (source.read(start, magic, 0, 2) != 2 ||
+        (magic[0] & 0xff) != 0x1f || (magic[1] & 0xff) != 0x8b))
+      {
+        throw new IOException("Not in GZIP format");
+      }
+      index = getIndex(file, start, raw);
+    }
+    catch (IOException e) {
+      source.close();
+      inflater.end();
+      throw e;
+    }
+    restart();
+  }
+
+  // -- IndexedGZipInputStream API methods --
+
+  /**
+   * Sets the spacing, in bytes of uncompressed data, between the checkpoints
+   * of indices created from now on.
+   */
+  public static synchronized void setDefaultSpacing(long spacing) {
+    if (spacing <= 0) {
+      throw new IllegalArgumentException("Invalid spacing: " + spacing);
+    }
+    defaultSpacing = spacing;
+  }
+
+  /**
+   * Sets whether or not complete indices are saved next to the compressed
+   * file (with the {@link #INDEX_SUFFIX} suffix), so that the file can later
+   * be opened without decompressing it.
+   */
+  public static synchronized void setPersistIndices(boolean persist) {
+    persistIndices = persist;
+  }
+
+  /** Discards all indices held in memory. */
+  public static synchronized void clearIndices() {
+    indices.clear();
+  }
+
+  /** Seeks to the given offset within the uncompressed data. */
+  public void seek(long pos) throws IOException {
+    if (pos < 0) {
+      throw new IOException("Invalid offset: " + pos);
+    }
+    if (pos >= outBase && pos <= outBase + outLen) {
+      outPos = (int) (pos - outBase);
+      return;
+    }
+    long current = outBase + outLen;
+    if (pos < current || pos - current > index.spacing) {
+      Checkpoint checkpoint = index.find(pos);
+      if (checkpoint != null && (pos < current || checkpoint.out > current)) {
+        restore(checkpoint);
+      }
+      else if (pos < current) {
+        restart();
+      }
+    }
+    while (outBase + outLen < pos) {
+      outPos = outLen;
+      if (!inflate()) {
+        break;
+      }
+    }
+    outPos = (int) Math.min(pos - outBase, outLen);
+  }
+
+  /** Gets the current offset within the uncompressed data. */
+  public long getFilePointer() {
+    return outBase + outPos;
+  }
+
+  /**
+   * Gets the length of the uncompressed data.  The first call decompresses
+   * any part of the file that has not been indexed yet.
+   */
+  public long length() throws IOException {
+    long length = index.getLength();
+    if (length >= 0) {
+      return length;
+    }
+    long pos = getFilePointer();
+    Checkpoint last = index.getLast();
+    if (last != null && last.out > outBase + outLen) {
+      restore(last);
+    }
+    outPos = outLen;
+    while (inflate()) {
+      outPos = outLen;
+    }
+    length = outBase + outLen;
+    seek(pos);
+    return length;
+  }
+
+  // -- InputStream API methods --
+
+  @Override
+  public int read() throws IOException {
+    if (outPos == outLen && !inflate()) {
+      return -1;
+    }
+    return out[outPos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (outPos == outLen && !inflate()) {
+      return -1;
+    }
+    int n = Math.min(len, outLen - outPos);
+    System.arraycopy(out, outPos, b, off, n);
+    outPos += n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0) {
+      return 0;
+    }
+    long pos = getFilePointer();
+    seek(pos + n);
+    return getFilePointer() - pos;
+  }
+
+  @Override
+  public int available() {
+    return outLen - outPos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (source != null) {
+      source.close();
+      inflater.end();
+    }
+    source = null;
+    scanner = null;
+  }
+
+  // -- Helper methods --
+
+  /** Restarts decompression from the beginning of the data. */
+  private void restart() {
+    outBase = 0;
+    outPos = outLen = 0;
+    memberStart = 0;
+    crc.reset();
+    crcValid = true;
+    firstMember = !raw;
+    if (raw) {
+      startDeflate(start, 0);
+    }
+    else {
+      inOffset = start;
+      state = STATE_HEADER;
+    }
+  }
+
+  /** Restarts decompression from the given checkpoint. */
+  private void restore(Checkpoint checkpoint) throws IOException {
+    checkpoint.getWindow(out);
+    outLen = checkpoint.windowLength;
+    outPos = outLen;
+    outBase = checkpoint.out - outLen;
+    memberStart = checkpoint.member;
+    crc.reset();
+    crcValid = checkpoint.out == checkpoint.member;
+    firstMember = false;
+    startDeflate(checkpoint.bit >>> 3, (int) (checkpoint.bit & 7));
+    // earlier members cannot be referred to
+    int history = (int) Math.min(outLen, checkpoint.out - checkpoint.member);
+    if (history > 0) {
+      inflater.setDictionary(out, outLen - history, history);
+    }
+  }
+
+  /** Starts inflating a deflate stream at the given position. */
+  private void startDeflate(long offset, int bits) {
+    inflater.reset();
+    inOffset = offset;
+    shift = bits;
+    needPreamble = bits > 0;
+    state = STATE_DEFLATE;
+  }
+
+  /**
+   * Decompresses more data into the output buffer.
+   * @return false if the end of the data was reached.
+   */
+  private boolean inflate() throws IOException {
+    makeRoom();
+    int end = outLen;
+    while (outLen == end) {
+      switch (state) {
+        case STATE_HEADER:
+          long data = DeflateScanner.skipHeader(source, inOffset, firstMember);
+          if (data < 0) {
+            state = STATE_DONE;
+            break;
+          }
+          firstMember = false;
+          memberStart = outBase + outLen;
+          crc.reset();
+          crcValid = true;
+          startDeflate(data, 0);
+          break;
+        case STATE_DEFLATE:
+          decompress();
+          break;
+        default:
+          if (index.setLength(outBase + outLen) && persistIndices && !raw) {
+            saveIndex(file, start, index);
+          }
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Ensures that at least MAX_UNREAD bytes can be added to the output
+   * buffer, keeping 32 KB of history.
+   */
+  private void makeRoom() {
+    int discard = Math.min(outPos, outLen - WINDOW_SIZE);
+    if (discard > 0 && outLen + MAX_UNREAD > out.length) {
+      System.arraycopy(out, discard, out, 0, outLen - discard);
+      outLen -= discard;
+      outPos -= discard;
+      outBase += discard;
+    }
+    if (outLen + MAX_UNREAD > out.length) {
+      out = Arrays.copyOf(out, out.length * 2);
+    }
+  }
+
+  /**
+   * Inflates the next part of the current deflate stream, stopping at the
+   * next block boundary at which a checkpoint is needed.
+   */
+  private void decompress() throws IOException {
+    long total = outBase + outLen;
+    long boundary = findBoundary(total);
+    if (boundary == total) {
+      int length = Math.min(outLen, WINDOW_SIZE);
+      index.add(new Checkpoint(total, scanner.getBit(), scanner.getMember(),
+        out, outLen - length, length));
+      boundary = findBoundary(total);
+    }
+    int length = MAX_UNREAD;
+    if (boundary > total) {
+      length = (int) Math.min(length, boundary - total);
+    }
+    try {
+      int n = 0;
+      while (n == 0) {
+        if (inflater.finished()) {
+          endDeflate();
+          return;
+        }
+        if (inflater.needsDictionary()) {
+          throw new IOException("Corrupt GZIP data");
+        }
+        if (inflater.needsInput()) {
+          feed();
+        }
+        n = inflater.inflate(out, outLen, length);
+      }
+      if (crcValid) {
+        crc.update(out, outLen, n);
+      }
+      outLen += n;
+    }
+    catch (DataFormatException e) {
+      throw new IOException("Corrupt GZIP data", e);
+    }
+  }
+
+  /**
+   * Finds the uncompressed offset of the block boundary at which the next
+   * checkpoint should be saved.
+   *
+   * @return the offset of the boundary, which is at least the given total,
+   *   or -1 if no checkpoint is needed within the next MAX_UNREAD bytes.
+   */
+  private long findBoundary(long total) throws IOException {
+    if (index.getLength() >= 0) {
+      return -1;
+    }
+    long target = Math.max(index.getNextOffset(), total);
+    if (target > total + MAX_UNREAD) {
+      return -1;
+    }
+    Checkpoint last = index.getLast();
+    if (scanner == null ||
+      (last != null && last.out > scanner.getOffset() && last.out <= target))
+    {
+      scanner = last == null ? new DeflateScanner(source, start, raw) :
+        new DeflateScanner(source, raw, last.bit, last.out, last.member);
+    }
+    while (scanner.getOffset() < target) {
+      if (!scanner.next()) {
+        return -1;
+      }
+    }
+    return scanner.getOffset();
+  }
+
+  /** Passes the next chunk of compressed data to the inflater. */
+  private void feed() throws IOException {
+    int prefix = 0;
+    byte[] preamble = PREAMBLES[shift];
+    if (needPreamble) {
+      prefix = preamble.length - 1;
+      System.arraycopy(preamble, 0, in, 0, prefix);
+    }
+    int n = source.read(inOffset, in, prefix, INPUT_SIZE);
+    if (n <= 0) {
+      throw new EOFException("Unexpected end of gzip stream");
+    }
+    if (needPreamble) {
+      // replace the bits that precede the block
+      in[prefix] = (byte) ((in[prefix] & (0xff << shift)) | preamble[prefix]);
+      needPreamble = false;
+    }
+    inflater.setInput(in, 0, prefix + n);
+    inOffset += n;
+  }
+
+  /** Verifies the trailer of a finished member and moves past it. */
+  private void endDeflate() throws IOException {
+    if (raw) {
+      state = STATE_DONE;
+      return;
+    }
+    long trailer = inOffset - inflater.getRemaining();
+    long length = outBase + outLen - memberStart;
+    byte[] b = new byte[8];
+    int n = 0;
+    while (n < b.length) {
+      int r = source.read(trailer + n, b, n, b.length - n);
+      if (r <= 0) {
+        throw new EOFException("Unexpected end of gzip stream");
+      }
+      n += r;
+    }
+    if (DataTools.bytesToInt(b, 4, 4, true) != (int) length ||
+      (crcValid && DataTools.bytesToInt(b, 0, 4, true) != (int) crc.getValue()))
+    {
+      throw new IOException("Corrupt GZIP trailer");
+    }
+    inOffset = trailer + 8;
+    state = STATE_HEADER;
+  }
+
+  /**
+   * Builds a sequence of empty deflate blocks whose length in bits is the
+   * given number modulo 8.  An empty fixed Huffman block is 10 bits long;
+   * odd lengths also need the 93 bit empty dynamic block below.
+   */
+  private static byte[] buildPreamble(int shift) {
+    byte[] b = new byte[16];
+    int bit = 0;
+    if (shift % 2 == 1) {
+      // not last, dynamic codes; 257 literal/length, 1 distance and 18 code
+      // length codes
+      bit = putBits(b, bit, 0, 1);
+      bit = putBits(b, bit, 2, 2);
+      bit = putBits(b, bit, 0, 5);
+      bit = putBits(b, bit, 0, 5);
+      bit = putBits(b, bit, 14, 4);
+      // code length code: '0' for 0, '10' for 1 and '11' for 18, in the
+      // order 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1
+      for (int i=0; i<18; i++) {
+        bit = putBits(b, bit, i == 2 || i == 17 ? 2 : i == 3 ? 1 : 0, 3);
+      }
+      // 256 zero literal lengths (138 + 118), end-of-block code length 1,
+      // and one zero distance length
+      bit = putBits(b, bit, 3, 2);
+      bit = putBits(b, bit, 127, 7);
+      bit = putBits(b, bit, 3, 2);
+      bit = putBits(b, bit, 107, 7);
+      bit = putBits(b, bit, 1, 2);
+      bit = putBits(b, bit, 0, 1);
+      // end-of-block
+      bit = putBits(b, bit, 0, 1);
+    }
+    while (bit % 8 != shift) {
+      // not last, fixed codes, end-of-block
+      bit = putBits(b, bit, 1 << 1, 3);
+      bit = putBits(b, bit, 0, 7);
+    }
+    return Arrays.copyOf(b, bit / 8 + 1);
+  }
+
+  /** Writes n bits, least significant first, at the given bit. */
+  private static int putBits(byte[] b, int bit, int value, int n) {
+    for (int i=0; i<n; i++, bit++) {
+      b[bit / 8] |= ((value >>> i) & 1) << (bit % 8);
+    }
+    return bit;
+  }
+
+  /** Gets the shared index for the given file, loading it if possible. */
+  private static synchronized Index getIndex(String file, long start,
+    boolean raw)
+  {
+    File f = new File(file);
+    String key = f.getAbsolutePath() + ":" + start + ":" + raw + ":" +
+      f.length() + ":" + f.lastModified();
+    Index index = indices.get(key);
+    if (index == null) {
+      if (persistIndices && !raw) {
+        index = loadIndex(file, start);
+      }
+      if (index == null) {
+        index = new Index(defaultSpacing);
+      }
+      indices.put(key, index);
+    }
+    return index;
+  }
+
+  /** Reads a persisted index, returning null if it is missing or stale. */
+  private static Index loadIndex(String file, long start) {
+    File f = new File(file);
+    File indexFile = new File(file + INDEX_SUFFIX);
+    if (!indexFile.exists()) {
+      return null;
+    }
+    try {
+      DataInputStream s = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(indexFile)));
+      try {
+        if (s.readLong() != INDEX_MAGIC || s.readLong() != f.length() ||
+          s.readLong() != f.lastModified() || s.readLong() != start)
+        {
+          return null;
+        }
+        Index index = new Index(s.readLong());
+        index.length = s.readLong();
+        int count = s.readInt();
+        for (int i=0; i<count; i++) {
+          long out = s.readLong();
+          long bit = s.readLong();
+          long member = s.readLong();
+          int windowLength = s.readInt();
+          byte[] window = new byte[s.readInt()];
+          s.readFully(window);
+          index.checkpoints.add(
+            new Checkpoint(out, bit, member, windowLength, window));
+        }
+        return index;
+      }
+      finally {
+        s.close();
+      }
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not read gzip index {}", indexFile, e);
+      return null;
+    }
+  }
+
+  /** Saves a complete index next to the file. */
+  private static void saveIndex(String file, long start, Index index) {
+    File f = new File(file);
+    File indexFile = new File(file + INDEX_SUFFIX);
+    try {
+      DataOutputStream s = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(indexFile)));
+      try {
+        s.writeLong(INDEX_MAGIC);
+        s.writeLong(f.length());
+        s.writeLong(f.lastModified());
+        s.writeLong(start);
+        synchronized (index) {
+          s.writeLong(index.spacing);
+          s.writeLong(index.length);
+          s.writeInt(index.checkpoints.size());
+          for (Checkpoint checkpoint : index.checkpoints) {
+            s.writeLong(checkpoint.out);
+            s.writeLong(checkpoint.bit);
+            s.writeLong(checkpoint.member);
+            s.writeInt(checkpoint.windowLength);
+            s.writeInt(checkpoint.window.length);
+            s.write(checkpoint.window);
+          }
+        }
+      }
+      finally {
+        s.close();
+      }
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not write gzip index {}", indexFile, e);
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Checkpoints of one gzip stream, sorted by uncompressed offset. */
+  private static class Index {
+    final long spacing;
+    final ArrayList<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+    long length = -1;
+
+    Index(long spacing) {
+      this.spacing = spacing;
+    }
+
+    /** Finds the last checkpoint at or before the given offset. */
+    synchronized Checkpoint find(long pos) {
+      int low = 0;
+      int high = checkpoints.size() - 1;
+      Checkpoint found = null;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        Checkpoint checkpoint = checkpoints.get(mid);
+        if (checkpoint.out <= pos) {
+          found = checkpoint;
+          low = mid + 1;
+        }
+        else {
+          high = mid - 1;
+        }
+      }
+      return found;
+    }
+
+    synchronized Checkpoint getLast() {
+      return checkpoints.isEmpty() ? null :
+        checkpoints.get(checkpoints.size() - 1);
+    }
+
+    /** Gets the offset after which the next checkpoint should be saved. */
+    synchronized long getNextOffset() {
+      Checkpoint last = getLast();
+      return (last == null ? 0 : last.out) + spacing;
+    }
+
+    synchronized void add(Checkpoint checkpoint) {
+      Checkpoint last = getLast();
+      if (last == null || checkpoint.out > last.out) {
+        checkpoints.add(checkpoint);
+      }
+    }
+
+    synchronized long getLength() {
+      return length;
+    }
+
+    /** Sets the length, returning true if it was not known before. */
+    synchronized boolean setLength(long length) {
+      boolean isNew = this.length < 0;
+      this.length = length;
+      return isNew;
+    }
+  }
+
+  /** Position of a deflate block and the data preceding it. */
+  private static class Checkpoint {
+    /** Uncompressed offset of the block. */
+    final long out;
+
+    /** Offset of the block within the file, in bits. */
+    final long bit;
+
+    /** Uncompressed offset of the block's gzip member. */
+    final long member;
+
+    /** Uncompressed length of the window. */
+    final int windowLength;
+
+    /** Compressed window. */
+    final byte[] window;
+
+    Checkpoint(long out, long bit, long member, byte[] data, int offset,
+      int length)
+    {
+      this.out = out;
+      this.bit = bit;
+      this.member = member;
+      this.windowLength = length;
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+      try {
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        byte[] buf = new byte[length + 64];
+        int n = 0;
+        while (!deflater.finished()) {
+          if (n == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+          }
+          n += deflater.deflate(buf, n, buf.length - n);
+        }
+        window = Arrays.copyOf(buf, n);
+      }
+      finally {
+        deflater.end();
+      }
+    }
+
+    Checkpoint(long out, long bit, long member, int windowLength,
+      byte[] window)
+    {
+      this.out = out;
+      this.bit = bit;
+      this.member = member;
+      this.windowLength = windowLength;
+      this.window = window;
+    }
+
+    /** Decompresses the window into the start of the given array. */
+    void getWindow(byte[] dest) throws IOException {
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(window);
+        int n = 0;
+        while (n < windowLength && !inflater.finished()) {
+          n += inflater.inflate(dest, n, windowLength - n);
+        }
+        if (n != windowLength) {
+          throw new IOException("Corrupt gzip index");
+        }
+      }
+      catch (DataFormatException e) {
+        throw new IOException("Corrupt gzip index", e);
+      }
+      finally {
+        inflater.end();
+      }
+    }
+  }
+
+}
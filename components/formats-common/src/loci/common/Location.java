@@ -77,6 +77,8 @@ public class Location {
 
   private static volatile boolean cacheListings = false;
 
+  private static volatile boolean cacheHandles = false;
+
   // By default, cache for one hour.
   private static volatile long cacheNanos = 60L * 60L * 1000L * 1000L * 1000L;
 
@@ -143,6 +145,10 @@ public class Location {
     cacheNanos = 60L * 60L * 1000L * 1000L * 1000L;
     fileListings.clear();
     getIdMap().clear();
+    cacheHandles = false;
+    NIOFileHandlePool.setSize(NIOFileHandlePool.DEFAULT_SIZE);
+    NIOFileHandlePool.setTimeout(NIOFileHandlePool.DEFAULT_TIMEOUT_NANOS);
+    NIOFileHandlePool.clear();
   }
 
   /**
@@ -184,6 +190,47 @@ public class Location {
     fileListings.clear();
   }
 
+  /**
+   * Turn cacheing of open file handles on or off.
+   * Cacheing is turned off by default.
+   *
+   * When cacheing is on, read-only handles on plain files returned by
+   * {@link #getHandle(String)} share files kept open by the
+   * {@link NIOFileHandlePool}, so readers that open a new stream for each
+   * plane or tile do not re-open the file every time.  Closing such a handle
+   * leaves the file open until it is evicted.
+   *
+   * @param cache - true to turn cacheing on, false to leave it off.
+   */
+  public static void cacheFileHandles(boolean cache) {
+    cacheHandles = cache;
+    if (!cache) {
+      NIOFileHandlePool.clear();
+    }
+  }
+
+  /**
+   * Keep at most this many cached file handles open; least recently used
+   * idle handles are closed first.
+   */
+  public static void setFileHandleCacheSize(int size) {
+    NIOFileHandlePool.setSize(size);
+  }
+
+  /**
+   * Close cached file handles that have been idle for this many seconds.
+   */
+  public static void setFileHandleCacheTimeout(double sec) {
+    NIOFileHandlePool.setTimeout((long) (sec * 1000. * 1000. * 1000.));
+  }
+
+  /**
+   * Close all idle cached file handles.
+   */
+  public static void clearFileHandleCache() {
+    NIOFileHandlePool.clear();
+  }
+
   /**
    * Remove any cached directory listings that have expired.
    */
@@ -296,6 +343,21 @@ public class Location {
 
   public static IRandomAccess getHandle(String id, boolean writable,
     boolean allowArchiveHandles, int bufferSize) throws IOException
+  {
+    return getHandle(id, writable, allowArchiveHandles, bufferSize, false);
+  }
+
+  /**
+   * Gets an IRandomAccess object that can read from or write to the given file.
+   * If <code>mapped</code> is set and the handle is backed by a plain file,
+   * the file is read through memory mapped windows that are shared with other
+   * handles on the same file.
+   * @see IRandomAccess
+   * @see NIOMappedWindowCache
+   */
+  public static IRandomAccess getHandle(String id, boolean writable,
+    boolean allowArchiveHandles, int bufferSize, boolean mapped)
+    throws IOException
   {
     LOGGER.trace("getHandle(id = {}, writable = {})", id, writable);
     IRandomAccess handle = getMappedFile(id);
@@ -316,9 +378,20 @@ public class Location {
         handle = new BZip2Handle(mapId);
       }
       else {
-        if (bufferSize > 0) {
-          handle = new NIOFileHandle(
-            new File(mapId), writable ? "rw" : "r", bufferSize);
+        if (cacheHandles && !writable) {
+          if (bufferSize <= 0) {
+            bufferSize = NIOFileHandle.defaultBufferSize;
+          }
+          handle = NIOFileHandlePool.getHandle(
+            new File(mapId), bufferSize, mapped);
+        }
+        else if (bufferSize > 0 || mapped) {
+          String mode = writable ? "rw" : "r";
+          if (bufferSize <= 0) {
+            bufferSize = writable ? NIOFileHandle.defaultRWBufferSize :
+              NIOFileHandle.defaultBufferSize;
+          }
+          handle = new NIOFileHandle(new File(mapId), mode, bufferSize, mapped);
         }
         else {
           handle = new NIOFileHandle(mapId, writable ? "rw" : "r");
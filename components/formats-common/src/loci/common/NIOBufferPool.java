@@ -0,0 +1,326 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide pool of direct byte buffers used by
+ * {@link NIOByteBufferProvider} for buffered reads.
+ *
+ * The total amount of direct memory held by the pool, whether the buffers
+ * are in use or waiting to be recycled, is capped by a configurable budget
+ * (the <code>nioBufferPoolSize</code> system property, in bytes, or
+ * {@link #setMaximumSize(long)}).  Requests that cannot be satisfied within
+ * the budget fall back to heap buffers, which are never pooled.
+ *
+ * Buffer capacities are rounded up to the next power of two so that buffers
+ * released by one handle can be picked up by another.  Buffers belonging to
+ * handles that are garbage collected without being closed are removed from
+ * the budget once the collector clears them.
+ */
+public final class NIOBufferPool {
+
+  // -- Constants --
+
+  /** Logger for this class. */
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(NIOBufferPool.class);
+
+  /** Default direct memory budget for the pool: 256 MB. */
+  public static final long DEFAULT_MAXIMUM_SIZE = 256L * 1024 * 1024;
+
+  /** Smallest buffer capacity handed out by the pool. */
+  private static final int MINIMUM_CAPACITY = 4096;
+
+  // -- Static fields --
+
+  /** Maximum number of bytes of direct memory held by the pool. */
+  private static long maximumSize = DEFAULT_MAXIMUM_SIZE;
+
+  /** Number of bytes of direct memory currently held by the pool. */
+  private static long allocatedSize = 0;
+
+  /** Released buffers, keyed by capacity. */
+  private static final TreeMap<Integer, ArrayDeque<ByteBuffer>> freeBuffers =
+    new TreeMap<Integer, ArrayDeque<ByteBuffer>>();
+
+  /** References to every direct buffer counted against the budget. */
+  private static final Set<BufferReference> pooledBuffers =
+    new HashSet<BufferReference>();
+
+  /** Queue of pooled buffers that have been garbage collected. */
+  private static final ReferenceQueue<ByteBuffer> collectedBuffers =
+    new ReferenceQueue<ByteBuffer>();
+
+  /** Number of direct buffers allocated by the pool. */
+  private static long allocations = 0;
+
+  /** Number of times an existing buffer was recycled. */
+  private static long reuses = 0;
+
+  /** Number of requests that could not be satisfied by the pool. */
+  private static long misses = 0;
+
+  static {
+    String size = System.getProperty("nioBufferPoolSize");
+    if (size != null) {
+      try {
+        maximumSize = Long.parseLong(size);
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid nioBufferPoolSize: {}", size);
+      }
+    }
+    LOGGER.debug("NIO buffer pool size: {}", maximumSize);
+  }
+
+  // -- Constructor --
+
+  private NIOBufferPool() { }
+
+  // -- NIOBufferPool API methods --
+
+  /**
+   * Retrieves a buffer with at least the given capacity.  A previously
+   * released direct buffer is returned if one is available; otherwise a new
+   * direct buffer is allocated if the budget allows it, and a heap buffer is
+   * allocated if it does not.
+   *
+   * The returned buffer is cleared and uses big endian byte ordering.
+   *
+   * @param size The minimum capacity of the buffer.
+   * @return A buffer with capacity of at least <code>size</code>.
+   */
+  static synchronized ByteBuffer acquire(int size) {
+    expunge();
+    int capacity = getCapacity(size);
+    ByteBuffer buffer = null;
+    ArrayDeque<ByteBuffer> queue = freeBuffers.get(capacity);
+    if (queue != null && !queue.isEmpty()) {
+      buffer = queue.pop();
+      reuses++;
+    }
+    else if (capacity > 0 && capacity <= maximumSize / 4) {
+      if (allocatedSize + capacity > maximumSize) {
+        trim(maximumSize - capacity);
+      }
+      if (allocatedSize + capacity <= maximumSize) {
+        try {
+          buffer = ByteBuffer.allocateDirect(capacity);
+          pooledBuffers.add(new BufferReference(buffer));
+          allocatedSize += capacity;
+          allocations++;
+        }
+        catch (OutOfMemoryError e) {
+          LOGGER.debug("Could not allocate direct buffer", e);
+        }
+      }
+    }
+    if (buffer == null) {
+      misses++;
+      return ByteBuffer.allocate(size);
+    }
+    buffer.clear();
+    buffer.order(ByteOrder.BIG_ENDIAN);
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer obtained from {@link #acquire(int)} to the pool so that
+   * it can be recycled.  Buffers that were not allocated by the pool are
+   * ignored.  The caller must not use the buffer after it has been released.
+   */
+  static synchronized void release(ByteBuffer buffer) {
+    expunge();
+    if (buffer == null || !buffer.isDirect() || find(buffer) == null) {
+      return;
+    }
+    int capacity = buffer.capacity();
+    if (allocatedSize > maximumSize) {
+      // the budget was lowered while the buffer was in use
+      discard(buffer);
+      return;
+    }
+    ArrayDeque<ByteBuffer> queue = freeBuffers.get(capacity);
+    if (queue == null) {
+      queue = new ArrayDeque<ByteBuffer>();
+      freeBuffers.put(capacity, queue);
+    }
+    queue.push(buffer);
+  }
+
+  /** Records that a buffer has been refilled in place by its owner. */
+  static synchronized void recordReuse() {
+    reuses++;
+  }
+
+  /**
+   * Sets the maximum number of bytes of direct memory that may be held by
+   * the pool.  Released buffers are discarded until the pool fits within
+   * the new budget.
+   */
+  public static synchronized void setMaximumSize(long size) {
+    maximumSize = size;
+    trim(maximumSize);
+  }
+
+  /** Gets the maximum number of bytes of direct memory held by the pool. */
+  public static synchronized long getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * Gets the number of bytes of direct memory currently held by the pool,
+   * including buffers that are in use.
+   */
+  public static synchronized long getAllocatedSize() {
+    expunge();
+    return allocatedSize;
+  }
+
+  /** Gets the number of direct buffers allocated by the pool. */
+  public static synchronized long getAllocationCount() {
+    return allocations;
+  }
+
+  /** Gets the number of times a buffer was recycled instead of allocated. */
+  public static synchronized long getReuseCount() {
+    return reuses;
+  }
+
+  /**
+   * Gets the number of requests that could not be satisfied from the pool's
+   * budget and were served with heap buffers instead.
+   */
+  public static synchronized long getMissCount() {
+    return misses;
+  }
+
+  /** Discards all released buffers and resets the usage counters. */
+  public static synchronized void clear() {
+    trim(0);
+    allocations = 0;
+    reuses = 0;
+    misses = 0;
+  }
+
+  // -- Helper methods --
+
+  /** Rounds the given size up to the capacity of a pooled buffer. */
+  private static int getCapacity(int size) {
+    if (size <= MINIMUM_CAPACITY) {
+      return MINIMUM_CAPACITY;
+    }
+    int capacity = Integer.highestOneBit(size);
+    if (capacity < size) {
+      capacity <<= 1;
+    }
+    return capacity < 0 ? Integer.MAX_VALUE : capacity;
+  }
+
+  /**
+   * Discards released buffers, largest first, until at most the given number
+   * of bytes are held by the pool.
+   */
+  private static void trim(long size) {
+    Iterator<Map.Entry<Integer, ArrayDeque<ByteBuffer>>> entries =
+      freeBuffers.descendingMap().entrySet().iterator();
+    while (allocatedSize > size && entries.hasNext()) {
+      Map.Entry<Integer, ArrayDeque<ByteBuffer>> entry = entries.next();
+      ArrayDeque<ByteBuffer> queue = entry.getValue();
+      while (allocatedSize > size && !queue.isEmpty()) {
+        discard(queue.pop());
+      }
+      if (queue.isEmpty()) {
+        entries.remove();
+      }
+    }
+  }
+
+  /** Finds the reference to the given pooled buffer. */
+  private static BufferReference find(ByteBuffer buffer) {
+    for (BufferReference ref : pooledBuffers) {
+      if (ref.get() == buffer) {
+        return ref;
+      }
+    }
+    return null;
+  }
+
+  /** Removes the given buffer from the pool and from the budget. */
+  private static void discard(ByteBuffer buffer) {
+    BufferReference ref = find(buffer);
+    if (ref != null) {
+      pooledBuffers.remove(ref);
+      ref.clear();
+      allocatedSize -= ref.capacity;
+    }
+  }
+
+  /** Removes garbage collected buffers from the budget. */
+  private static void expunge() {
+    Reference<? extends ByteBuffer> ref;
+    while ((ref = collectedBuffers.poll()) != null) {
+      if (pooledBuffers.remove(ref)) {
+        allocatedSize -= ((BufferReference) ref).capacity;
+      }
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Weak reference to a pooled buffer that remembers its capacity. */
+  private static class BufferReference extends WeakReference<ByteBuffer> {
+    private final int capacity;
+
+    BufferReference(ByteBuffer buffer) {
+      super(buffer, collectedBuffers);
+      capacity = buffer.capacity();
+    }
+  }
+
+}
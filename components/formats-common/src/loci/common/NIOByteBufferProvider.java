@@ -32,8 +32,10 @@
 
 package loci.common;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.StringTokenizer;
@@ -74,6 +76,24 @@ public class NIOByteBufferProvider {
   /** If we are to use memory mapped I/O, the map mode. */
   private MapMode mapMode;
 
+  /** Whether or not this provider uses memory mapped I/O. */
+  private boolean mapped;
+
+  /**
+   * Key of the file in the {@link NIOMappedWindowCache}, or null if shared
+   * mapped windows are not used.
+   */
+  private String windowKey;
+
+  /** Window of the last buffer served from the cache, or null. */
+  private NIOMappedWindowCache.Window window;
+
+  /**
+   * Buffer owned by this provider; refilled in place by each allocation that
+   * does not use memory mapped I/O.
+   */
+  private ByteBuffer pooledBuffer;
+
   static {
     String mapping = System.getProperty("mappedBuffers");
     useMappedByteBuffer = Boolean.parseBoolean(mapping);
@@ -91,6 +111,28 @@ public class NIOByteBufferProvider {
   public NIOByteBufferProvider(FileChannel channel, MapMode mapMode) {
     this.channel = channel;
     this.mapMode = mapMode;
+    this.mapped = useMappedByteBuffer;
+  }
+
+  /**
+   * Constructs a provider that may use memory mapped I/O regardless of the
+   * <code>mappedBuffers</code> system property.  Read-only data is then
+   * served from windows in the {@link NIOMappedWindowCache}, which are shared
+   * with every other handle on the same file.
+   * @param channel File channel to allocate or map byte buffers from.
+   * @param mapMode The map mode.
+   * @param file The file from which the channel was opened.
+   * @param mapped Whether or not to use memory mapped I/O.
+   * @throws IOException If the file's cache key cannot be determined.
+   */
+  public NIOByteBufferProvider(FileChannel channel, MapMode mapMode,
+    File file, boolean mapped) throws IOException
+  {
+    this(channel, mapMode);
+    this.mapped = mapped || useMappedByteBuffer;
+    if (this.mapped && mapMode == MapMode.READ_ONLY) {
+      windowKey = NIOMappedWindowCache.getKey(file);
+    }
   }
 
   // -- NIOByteBufferProvider API Methods --
@@ -106,25 +148,78 @@ public class NIOByteBufferProvider {
    */
   public ByteBuffer allocate(long bufferStartPosition, int newSize)
     throws IOException {
-    if (useMappedByteBuffer) {
+    if (windowKey != null) {
+      ByteBuffer buffer = window == null ? null :
+        window.getRegion(bufferStartPosition, newSize);
+      if (buffer == null) {
+        NIOMappedWindowCache.release(window);
+        window = NIOMappedWindowCache.acquire(
+          windowKey, channel, bufferStartPosition, newSize);
+        if (window != null) {
+          buffer = window.getRegion(bufferStartPosition, newSize);
+        }
+      }
+      if (buffer != null) {
+        return buffer;
+      }
+      // the region straddles two windows, or no window could be mapped
+      return allocateDirect(bufferStartPosition, newSize);
+    }
+    if (mapped) {
       return allocateMappedByteBuffer(bufferStartPosition, newSize);
     }
     return allocateDirect(bufferStartPosition, newSize);
   }
 
+  /** Returns true if this provider memory maps the file. */
+  boolean isMapped() {
+    return mapped || windowKey != null;
+  }
+
+  /**
+   * Returns the buffer owned by this provider to the {@link NIOBufferPool},
+   * and releases the mapped window it refers to, if any.  Buffers previously
+   * returned by {@link #allocate(long, int)} must not be used afterwards.
+   */
+  public void release() {
+    NIOBufferPool.release(pooledBuffer);
+    pooledBuffer = null;
+    NIOMappedWindowCache.release(window);
+    window = null;
+  }
+
   /**
-   * Allocates memory and copies the desired file data into it.
+   * Copies the desired file data into memory.  The buffer owned by this
+   * provider is refilled if it is large enough; otherwise it is exchanged for
+   * a larger one from the {@link NIOBufferPool}.  The returned buffer is only
+   * valid until the next call to this method.
    * @param bufferStartPosition The absolute position of the start of the
    * buffer.
    * @param newSize The buffer size.
-   * @return A newly allocated NIO byte buffer.
+   * @return An NIO byte buffer whose limit is <code>newSize</code>.
    * @throws IOException If there is an issue aligning or allocating
    * the buffer.
    */
   protected ByteBuffer allocateDirect(long bufferStartPosition, int newSize)
     throws IOException {
-    ByteBuffer buffer = ByteBuffer.allocate(newSize);
-    channel.read(buffer, bufferStartPosition);
+    ByteBuffer buffer = pooledBuffer;
+    if (buffer != null && buffer.capacity() >= newSize) {
+      NIOBufferPool.recordReuse();
+      buffer.clear();
+      buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+    else {
+      NIOBufferPool.release(buffer);
+      buffer = NIOBufferPool.acquire(newSize);
+      pooledBuffer = buffer;
+    }
+    buffer.limit(newSize);
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, bufferStartPosition + buffer.position());
+      if (n < 0) {
+        break;
+      }
+    }
     return buffer;
   }
 
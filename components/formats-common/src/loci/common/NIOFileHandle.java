@@ -105,6 +105,18 @@ public class NIOFileHandle extends AbstractNIOHandle {
   /** The original length of the file. */
   private Long defaultLength;
 
+  /** The file opened by this handle. */
+  private File file;
+
+  /** The pooled file backing this handle, or null if it is not shared. */
+  private NIOFileHandlePool.SharedFile sharedFile;
+
+  /** Whether or not this handle has been closed. */
+  private boolean closed = false;
+
+  /** Background read-ahead state, or null if read-ahead is not in use. */
+  private NIOReadAhead readAhead;
+
   // -- Constructors --
 
   /**
@@ -113,6 +125,30 @@ public class NIOFileHandle extends AbstractNIOHandle {
    */
   public NIOFileHandle(File file, String mode, int bufferSize)
     throws IOException
+  {
+    this(file, mode, bufferSize, false);
+  }
+
+  /**
+   * Creates a random access file stream to read from, and
+   * optionally to write to, the file specified by the File argument.
+   * If <code>mapped</code> is set, the file is read through memory mapped
+   * windows shared with other handles on the same file.
+   * @see NIOMappedWindowCache
+   */
+  public NIOFileHandle(File file, String mode, int bufferSize, boolean mapped)
+    throws IOException
+  {
+    this(file, mode, bufferSize, mapped, null);
+  }
+
+  /**
+   * Creates a handle on the given file that reads from a file opened by
+   * the {@link NIOFileHandlePool}, or opens the file itself if
+   * <code>sharedFile</code> is null.
+   */
+  NIOFileHandle(File file, String mode, int bufferSize, boolean mapped,
+    NIOFileHandlePool.SharedFile sharedFile) throws IOException
   {
     this.bufferSize = bufferSize;
     validateMode(mode);
@@ -120,14 +156,19 @@ public class NIOFileHandle extends AbstractNIOHandle {
       isReadWrite = true;
       mapMode = FileChannel.MapMode.READ_WRITE;
     }
-    raf = new RandomAccessFile(file, mode);
+    this.file = file;
+    this.sharedFile = sharedFile;
+    raf = sharedFile == null ?
+      new RandomAccessFile(file, mode) : sharedFile.raf;
     channel = raf.getChannel();
-    byteBufferProvider = new NIOByteBufferProvider(channel, mapMode);
+    byteBufferProvider =
+      new NIOByteBufferProvider(channel, mapMode, file, mapped);
     buffer(position, 0);
 
     // if we know the length won't change, cache the original length
     if (mode.equals("r")) {
       defaultLength = raf.length();
+      setReadAhead(NIOReadAhead.isEnabled());
     }
   }
 
@@ -170,15 +211,61 @@ public class NIOFileHandle extends AbstractNIOHandle {
     defaultRWBufferSize = size;
   }
 
+  /**
+   * Enables or disables reading ahead of sequential reads in the background.
+   * Read-ahead is only used by read-only handles that do not memory map the
+   * file; it has no effect on other handles.
+   * @see NIOReadAhead
+   */
+  public void setReadAhead(boolean enable) {
+    if (enable && readAhead == null && !isReadWrite &&
+      !byteBufferProvider.isMapped())
+    {
+      readAhead = new NIOReadAhead(channel);
+      if (buffer != null) {
+        try {
+          readAhead.update(bufferStartPosition,
+            bufferStartPosition + buffer.limit(), length(), bufferSize);
+        }
+        catch (IOException e) {
+          LOGGER.debug("Could not determine file length", e);
+        }
+      }
+    }
+    else if (!enable && readAhead != null) {
+      // the current buffer may belong to the read-ahead state
+      buffer = null;
+      readAhead.close();
+      readAhead = null;
+    }
+  }
+
+  /** Returns true if this handle reads ahead of sequential reads. */
+  public boolean isReadAhead() {
+    return readAhead != null;
+  }
+
   // -- FileHandle and Channel API methods --
 
-  /** Gets the random access file object backing this FileHandle. */
+  /**
+   * Gets the random access file object backing this FileHandle.  A handle
+   * obtained from the {@link NIOFileHandlePool} first opens the file for
+   * itself, so that the returned file can be closed without affecting other
+   * handles.
+   */
   public RandomAccessFile getRandomAccessFile() {
+    unpool();
     return raf;
   }
 
-  /** Gets the FileChannel from this FileHandle. */
+  /**
+   * Gets the FileChannel from this FileHandle.  The channel's position is
+   * moved to this handle's file pointer.  A handle obtained from the
+   * {@link NIOFileHandlePool} first opens the file for itself, so that the
+   * returned channel can be closed without affecting other handles.
+   */
   public FileChannel getFileChannel() {
+    unpool();
     try {
       channel.position(position);
     }
@@ -208,7 +295,23 @@ public class NIOFileHandle extends AbstractNIOHandle {
   /* @see IRandomAccess.close() */
   @Override
   public void close() throws IOException {
-    raf.close();
+    if (closed) {
+      return;
+    }
+    closed = true;
+    setReadAhead(false);
+    buffer = null;
+    byteBufferProvider.release();
+    if (sharedFile != null) {
+      NIOFileHandlePool.SharedFile shared = sharedFile;
+      sharedFile = null;
+      raf = null;
+      channel = null;
+      NIOFileHandlePool.release(shared);
+    }
+    else {
+      raf.close();
+    }
   }
 
   /* @see IRandomAccess.getFilePointer() */
@@ -268,20 +371,61 @@ public class NIOFileHandle extends AbstractNIOHandle {
       return -1;
     }
     buf.limit(off + realLength);
-    buffer(position, realLength);
-    position += realLength;
-    while (buf.hasRemaining()) {
-      try {
-        buf.put(buffer.get());
-      } catch (BufferUnderflowException e) {
-        EOFException eof = new EOFException(EOF_ERROR_MSG);
-        eof.initCause(e);
-        throw eof;
+    int remaining = realLength;
+    while (remaining > 0) {
+      int n = remaining;
+      if (readAhead != null) {
+        // copy one window at a time, so that each refill continues from the
+        // end of the previous window and can use the data read ahead
+        long end = buffer == null ? 0 : bufferStartPosition + buffer.limit();
+        if (position >= bufferStartPosition && position < end) {
+          n = (int) Math.min(n, end - position);
+        }
+        else {
+          n = Math.min(n, bufferSize);
+        }
+      }
+      buffer(position, n);
+      position += n;
+      if (buffer.remaining() < n) {
+        throw new EOFException(EOF_ERROR_MSG);
       }
+      // copy in bulk, as the buffer is usually direct
+      int limit = buffer.limit();
+      buffer.limit(buffer.position() + n);
+      buf.put(buffer);
+      buffer.limit(limit);
+      remaining -= n;
     }
     return realLength;
   }
 
+  /* @see IRandomAccess.read(long, byte[], int, int) */
+  @Override
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    return read(pos, ByteBuffer.wrap(b, off, len));
+  }
+
+  /* @see IRandomAccess.read(long, ByteBuffer) */
+  @Override
+  public int read(long pos, ByteBuffer buf) throws IOException {
+    if (!buf.hasRemaining()) {
+      return 0;
+    }
+    if (pos >= length()) {
+      return -1;
+    }
+    int total = 0;
+    while (buf.hasRemaining()) {
+      int n = channel.read(buf, pos + total);
+      if (n < 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
   /* @see IRandomAccess.seek(long) */
   @Override
   public void seek(long pos) throws IOException {
@@ -382,9 +526,15 @@ public class NIOFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataInput.readLine() */
   @Override
   public String readLine() throws IOException {
-    raf.seek(position);
-    String line = raf.readLine();
-    buffer(raf.getFilePointer(), 0);
+    long newPosition;
+    String line;
+    // the file pointer may be shared with other handles
+    synchronized (raf) {
+      raf.seek(position);
+      line = raf.readLine();
+      newPosition = raf.getFilePointer();
+    }
+    buffer(newPosition, 0);
     return line;
   }
 
@@ -431,9 +581,15 @@ public class NIOFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataInput.readUTF() */
   @Override
   public String readUTF() throws IOException {
-    raf.seek(position);
-    String utf8 = raf.readUTF();
-    buffer(raf.getFilePointer(), 0);
+    long newPosition;
+    String utf8;
+    // the file pointer may be shared with other handles
+    synchronized (raf) {
+      raf.seek(position);
+      utf8 = raf.readUTF();
+      newPosition = raf.getFilePointer();
+    }
+    buffer(newPosition, 0);
     return utf8;
   }
 
@@ -572,6 +728,35 @@ public class NIOFileHandle extends AbstractNIOHandle {
     buffer = null;
   }
 
+  /**
+   * Replaces the pooled file backing this handle with a file opened by this
+   * handle, so that its file and channel can be handed out.
+   */
+  private void unpool() {
+    if (sharedFile == null || closed) {
+      return;
+    }
+    try {
+      RandomAccessFile own = new RandomAccessFile(file, "r");
+      boolean ahead = isReadAhead();
+      setReadAhead(false);
+      boolean mapped = byteBufferProvider.isMapped();
+      buffer = null;
+      byteBufferProvider.release();
+      raf = own;
+      channel = own.getChannel();
+      byteBufferProvider =
+        new NIOByteBufferProvider(channel, mapMode, file, mapped);
+      NIOFileHandlePool.SharedFile shared = sharedFile;
+      sharedFile = null;
+      NIOFileHandlePool.release(shared);
+      setReadAhead(ahead);
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("Could not reopen " + file, e);
+    }
+  }
+
   /**
    * Aligns the NIO buffer, maps it if it is not currently and sets all
    * relevant positions and offsets.
@@ -586,19 +771,32 @@ public class NIOFileHandle extends AbstractNIOHandle {
     if (newPosition < bufferStartPosition ||
       newPosition > bufferStartPosition + bufferSize || buffer == null)
     {
-      bufferStartPosition = offset;
-      if (length() > 0 && length() - 1 < bufferStartPosition) {
-        bufferStartPosition = length() - 1;
+      ByteOrder byteOrder = buffer == null ? order : getOrder();
+      ByteBuffer prefetched =
+        readAhead == null ? null : readAhead.take(offset, size);
+      if (prefetched != null) {
+        bufferStartPosition = readAhead.getPendingStart();
+        buffer = prefetched;
       }
-      long newSize = Math.min(length() - bufferStartPosition, bufferSize);
-      if (newSize < size && newSize == bufferSize) newSize = size;
-      if (newSize + bufferStartPosition > length()) {
-        newSize = length() - bufferStartPosition;
+      else {
+        bufferStartPosition = offset;
+        if (length() > 0 && length() - 1 < bufferStartPosition) {
+          bufferStartPosition = length() - 1;
+        }
+        long newSize = Math.min(length() - bufferStartPosition, bufferSize);
+        if (newSize < size && newSize == bufferSize) newSize = size;
+        if (newSize + bufferStartPosition > length()) {
+          newSize = length() - bufferStartPosition;
+        }
+        offset = bufferStartPosition;
+        buffer =
+          byteBufferProvider.allocate(bufferStartPosition, (int) newSize);
       }
-      offset = bufferStartPosition;
-      ByteOrder byteOrder = buffer == null ? order : getOrder();
-      buffer = byteBufferProvider.allocate(bufferStartPosition, (int) newSize);
       if (byteOrder != null) setOrder(byteOrder);
+      if (readAhead != null) {
+        readAhead.update(bufferStartPosition,
+          bufferStartPosition + buffer.limit(), length(), bufferSize);
+      }
     }
     buffer.position((int) (offset - bufferStartPosition));
     if (buffer.position() + size > buffer.limit() &&
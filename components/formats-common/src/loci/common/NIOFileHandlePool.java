@@ -0,0 +1,327 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide pool of open files shared by {@link NIOFileHandle} instances.
+ *
+ * Each pooled file is opened once, keyed by path and mode, and shared by
+ * every handle leased from it; handles keep their own file pointer and
+ * buffer and read through positional channel reads, so they can be used
+ * from different threads.  Files are reference counted: closing a leased
+ * handle only releases it, and the file stays open so that the next lease
+ * is served without re-opening it.  Unreferenced files are closed once the
+ * number of open files exceeds the pool size (least recently used first) or
+ * once they have been idle for longer than the timeout.  Idle files are
+ * checked whenever the pool is used.
+ *
+ * Only read-only files are pooled.  Files whose length or modification time
+ * changed since they were opened are not reused.
+ *
+ * @see Location#cacheFileHandles(boolean)
+ */
+public final class NIOFileHandlePool {
+
+  // -- Constants --
+
+  /** Logger for this class. */
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(NIOFileHandlePool.class);
+
+  /** Default maximum number of unreferenced files kept open. */
+  public static final int DEFAULT_SIZE = 64;
+
+  /** Default idle timeout: one minute. */
+  public static final long DEFAULT_TIMEOUT_NANOS = 60L * 1000 * 1000 * 1000;
+
+  // -- Static fields --
+
+  /** Open files, in access order. */
+  private static final LinkedHashMap<String, SharedFile> files =
+    new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
+
+  /** Maximum number of open files before idle ones are closed. */
+  private static int size = DEFAULT_SIZE;
+
+  /** Time after which an unreferenced file is closed. */
+  private static long timeoutNanos = DEFAULT_TIMEOUT_NANOS;
+
+  /** Number of files opened by the pool. */
+  private static long opens = 0;
+
+  /** Number of leases served by an already open file. */
+  private static long reuses = 0;
+
+  // -- Constructor --
+
+  private NIOFileHandlePool() { }
+
+  // -- NIOFileHandlePool API methods --
+
+  /**
+   * Creates a read-only handle on the given file, sharing an open file from
+   * the pool if possible.  Closing the handle releases the shared file.
+   *
+   * @param file The file to read.
+   * @param bufferSize The handle's buffer size.
+   * @param mapped Whether or not the handle uses memory mapped I/O.
+   */
+  public static NIOFileHandle getHandle(File file, int bufferSize,
+    boolean mapped) throws IOException
+  {
+    SharedFile shared = acquire(file, "r");
+    try {
+      return new NIOFileHandle(file, "r", bufferSize, mapped, shared);
+    }
+    catch (IOException e) {
+      release(shared);
+      throw e;
+    }
+  }
+
+  /** Sets the maximum number of open files before idle ones are closed. */
+  public static void setSize(int newSize) {
+    List<SharedFile> closed;
+    synchronized (NIOFileHandlePool.class) {
+      size = newSize;
+      closed = evict();
+    }
+    close(closed);
+  }
+
+  /** Gets the maximum number of open files before idle ones are closed. */
+  public static synchronized int getSize() {
+    return size;
+  }
+
+  /** Sets the time in nanoseconds after which an idle file is closed. */
+  public static void setTimeout(long nanos) {
+    List<SharedFile> closed;
+    synchronized (NIOFileHandlePool.class) {
+      timeoutNanos = nanos;
+      closed = evict();
+    }
+    close(closed);
+  }
+
+  /** Gets the time in nanoseconds after which an idle file is closed. */
+  public static synchronized long getTimeout() {
+    return timeoutNanos;
+  }
+
+  /** Gets the number of files currently held open by the pool. */
+  public static synchronized int getOpenCount() {
+    return files.size();
+  }
+
+  /** Gets the number of files opened by the pool. */
+  public static synchronized long getOpenedCount() {
+    return opens;
+  }
+
+  /** Gets the number of handles served by an already open file. */
+  public static synchronized long getReuseCount() {
+    return reuses;
+  }
+
+  /**
+   * Closes every unreferenced file and resets the usage counters.  Files
+   * still in use are closed when their last handle is closed.
+   */
+  public static void clear() {
+    List<SharedFile> closed = new ArrayList<SharedFile>();
+    synchronized (NIOFileHandlePool.class) {
+      Iterator<SharedFile> it = files.values().iterator();
+      while (it.hasNext()) {
+        SharedFile shared = it.next();
+        it.remove();
+        shared.pooled = false;
+        if (shared.references == 0) {
+          closed.add(shared);
+        }
+      }
+      opens = 0;
+      reuses = 0;
+    }
+    close(closed);
+  }
+
+  // -- Package-private API methods --
+
+  /** Releases a file acquired for a handle that is being closed. */
+  static void release(SharedFile shared) throws IOException {
+    List<SharedFile> closed;
+    synchronized (NIOFileHandlePool.class) {
+      shared.references--;
+      shared.lastUsed = System.nanoTime();
+      if (shared.references == 0 && !shared.pooled) {
+        closed = new ArrayList<SharedFile>();
+        closed.add(shared);
+      }
+      else {
+        closed = evict();
+      }
+    }
+    close(closed);
+  }
+
+  // -- Helper methods --
+
+  /** Leases the shared file for the given path and mode, opening it lazily. */
+  private static SharedFile acquire(File file, String mode)
+    throws IOException
+  {
+    String key = mode + ":" + file.getAbsolutePath();
+    long length = file.length();
+    long lastModified = file.lastModified();
+    List<SharedFile> closed;
+    SharedFile shared;
+    synchronized (NIOFileHandlePool.class) {
+      shared = files.get(key);
+      if (shared != null &&
+        (shared.length != length || shared.lastModified != lastModified))
+      {
+        // the file changed; let the stale copy be closed once unused
+        files.remove(key);
+        shared.pooled = false;
+        if (shared.references > 0) {
+          shared = null;
+        }
+      }
+      if (shared != null && shared.pooled) {
+        shared.references++;
+        reuses++;
+        closed = evict();
+      }
+      else {
+        closed = new ArrayList<SharedFile>();
+        if (shared != null) {
+          closed.add(shared);
+        }
+        shared = null;
+      }
+    }
+    close(closed);
+    if (shared != null) {
+      return shared;
+    }
+
+    SharedFile opened = new SharedFile(new RandomAccessFile(file, mode),
+      length, lastModified);
+    synchronized (NIOFileHandlePool.class) {
+      opens++;
+      // another thread may have opened the same file in the meantime
+      SharedFile existing = files.get(key);
+      if (existing == null || !existing.pooled) {
+        files.put(key, opened);
+      }
+      else {
+        opened.pooled = false;
+      }
+      closed = evict();
+    }
+    close(closed);
+    return opened;
+  }
+
+  /**
+   * Removes unreferenced files that are past the timeout or beyond the pool
+   * size, least recently used first.  The caller must hold the class lock
+   * and close the returned files once it has been released.
+   */
+  private static List<SharedFile> evict() {
+    List<SharedFile> closed = new ArrayList<SharedFile>();
+    long now = System.nanoTime();
+    int open = files.size();
+    Iterator<SharedFile> it = files.values().iterator();
+    while (it.hasNext()) {
+      SharedFile shared = it.next();
+      if (shared.references == 0 &&
+        (open > size || now - shared.lastUsed > timeoutNanos))
+      {
+        it.remove();
+        shared.pooled = false;
+        closed.add(shared);
+        open--;
+      }
+    }
+    return closed;
+  }
+
+  private static void close(List<SharedFile> closed) {
+    for (SharedFile shared : closed) {
+      try {
+        shared.raf.close();
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not close pooled file", e);
+      }
+    }
+  }
+
+  // -- Helper classes --
+
+  /** An open file shared by one or more handles. */
+  static final class SharedFile {
+    final RandomAccessFile raf;
+    final long length;
+    final long lastModified;
+
+    /** Number of handles using this file. */
+    int references = 1;
+
+    /** Whether or not this file is still held by the pool. */
+    boolean pooled = true;
+
+    /** Time at which the last handle released this file. */
+    long lastUsed = System.nanoTime();
+
+    SharedFile(RandomAccessFile raf, long length, long lastModified) {
+      this.raf = raf;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+  }
+
+}
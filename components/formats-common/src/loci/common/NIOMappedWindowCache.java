@@ -0,0 +1,301 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide LRU cache of large, read-only memory mapped windows.
+ *
+ * Files are divided into fixed size windows (64 MB by default, see the
+ * <code>mappedWindowSize</code> system property) which are mapped on first
+ * use and shared by every handle reading the same file.  Handles hold a
+ * reference to the window they are reading from, which they release when
+ * they move to another window or are closed.  The number of live mappings,
+ * i.e. windows that are referenced by a handle or cached for later use, is
+ * capped (16 by default, see the <code>mappedWindowCount</code> system
+ * property).  Unreferenced windows are evicted in least recently used order
+ * to make room for new ones; if every live window is referenced, no new
+ * window is mapped and the handle reads the region into memory instead.
+ * Evicted windows are unmapped by the garbage collector.
+ *
+ * @see NIOByteBufferProvider
+ */
+public final class NIOMappedWindowCache {
+
+  // -- Constants --
+
+  /** Logger for this class. */
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(NIOMappedWindowCache.class);
+
+  /** Default size of a mapped window: 64 MB. */
+  public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /** Default maximum number of live mapped windows. */
+  public static final int DEFAULT_WINDOW_COUNT = 16;
+
+  // -- Static fields --
+
+  /** Size of each mapped window. */
+  private static int windowSize = DEFAULT_WINDOW_SIZE;
+
+  /** Maximum number of live mapped windows. */
+  private static int windowCount = DEFAULT_WINDOW_COUNT;
+
+  /** Live mapped windows, in access order. */
+  private static final LinkedHashMap<String, Window> windows =
+    new LinkedHashMap<String, Window>(16, 0.75f, true);
+
+  /** Number of requests served from an existing mapping. */
+  private static long hits = 0;
+
+  /** Number of windows that had to be mapped. */
+  private static long misses = 0;
+
+  /** Number of windows that were not mapped to stay within the cap. */
+  private static long refusals = 0;
+
+  static {
+    windowSize = getIntProperty("mappedWindowSize", windowSize);
+    windowCount = getIntProperty("mappedWindowCount", windowCount);
+    LOGGER.debug("Mapped window size: {}, count: {}", windowSize, windowCount);
+  }
+
+  // -- Constructor --
+
+  private NIOMappedWindowCache() { }
+
+  // -- NIOMappedWindowCache API methods --
+
+  /**
+   * Builds the key identifying the given file in the cache.  The key changes
+   * whenever the file's length or modification time changes, so that stale
+   * windows are never served.
+   */
+  public static String getKey(File file) throws IOException {
+    return file.getCanonicalPath() + ":" + file.length() + ":" +
+      file.lastModified();
+  }
+
+  /**
+   * Acquires a reference to the window containing the given region of the
+   * file, mapping the window if it is not already live.  The reference must
+   * be released with {@link #release(Window)}.
+   *
+   * @param key The file's cache key, as returned by {@link #getKey(File)}.
+   * @param channel Channel from which the window can be mapped if it is not
+   *   already live.
+   * @param start The absolute position of the start of the region.
+   * @param size The length of the region.
+   * @return The window, or null if the region spans more than one window or
+   *   if mapping the window would exceed the maximum number of live windows.
+   * @throws IOException If the window cannot be mapped.
+   */
+  public static synchronized Window acquire(String key, FileChannel channel,
+    long start, int size) throws IOException
+  {
+    long windowStart = start / windowSize * windowSize;
+    if (start + size > windowStart + windowSize) {
+      return null;
+    }
+    String windowKey = key + "@" + windowStart + "+" + windowSize;
+    Window window = windows.get(windowKey);
+    if (window == null) {
+      trim(windowCount - 1);
+      if (windows.size() >= windowCount) {
+        refusals++;
+        return null;
+      }
+      long length = Math.min(windowSize, channel.size() - windowStart);
+      window = new Window(windowStart, channel.map(
+        FileChannel.MapMode.READ_ONLY, windowStart, Math.max(length, 0)));
+      windows.put(windowKey, window);
+      misses++;
+    }
+    else {
+      hits++;
+    }
+    window.references++;
+    return window;
+  }
+
+  /**
+   * Releases a reference acquired with
+   * {@link #acquire(String, FileChannel, long, int)}.  The window stays
+   * cached until room is needed for another window.
+   */
+  public static synchronized void release(Window window) {
+    if (window != null && window.references > 0) {
+      window.references--;
+    }
+  }
+
+  /**
+   * Sets the size of each mapped window.  Windows that are already cached
+   * are discarded.
+   */
+  public static synchronized void setWindowSize(int size) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("Invalid window size: " + size);
+    }
+    windowSize = size;
+    trim(0);
+  }
+
+  /** Gets the size of each mapped window. */
+  public static synchronized int getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * Sets the maximum number of live mapped windows.  Unreferenced windows
+   * are discarded until the cache fits within the new limit; referenced
+   * windows are discarded once they are released.
+   */
+  public static synchronized void setWindowCount(int count) {
+    windowCount = count;
+    trim(windowCount);
+  }
+
+  /** Gets the maximum number of live mapped windows. */
+  public static synchronized int getWindowCount() {
+    return windowCount;
+  }
+
+  /**
+   * Gets the number of live mapped windows, including windows that are only
+   * referenced by handles.
+   */
+  public static synchronized int getMappingCount() {
+    return windows.size();
+  }
+
+  /** Gets the number of requests served from an already mapped window. */
+  public static synchronized long getHitCount() {
+    return hits;
+  }
+
+  /** Gets the number of windows that were mapped. */
+  public static synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * Gets the number of windows that were not mapped because every live
+   * window was referenced.
+   */
+  public static synchronized long getRefusalCount() {
+    return refusals;
+  }
+
+  /**
+   * Discards all unreferenced windows and resets the usage counters.
+   */
+  public static synchronized void clear() {
+    trim(0);
+    hits = 0;
+    misses = 0;
+    refusals = 0;
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Discards unreferenced windows, least recently used first, until at most
+   * the given number of windows are live.
+   */
+  private static void trim(int count) {
+    Iterator<Window> live = windows.values().iterator();
+    while (windows.size() > count && live.hasNext()) {
+      if (live.next().references == 0) {
+        live.remove();
+      }
+    }
+  }
+
+  private static int getIntProperty(String name, int defaultValue) {
+    String value = System.getProperty(name);
+    if (value != null) {
+      try {
+        return Integer.parseInt(value);
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid {}: {}", name, value);
+      }
+    }
+    return defaultValue;
+  }
+
+  // -- Helper classes --
+
+  /** A mapped window, and the number of handles that refer to it. */
+  public static final class Window {
+    private final long start;
+    private final MappedByteBuffer buffer;
+    private int references;
+
+    private Window(long start, MappedByteBuffer buffer) {
+      this.start = start;
+      this.buffer = buffer;
+    }
+
+    /**
+     * Returns a read-only view of the given region of the file.
+     * @return A buffer of <code>size</code> bytes whose position 0
+     *   corresponds to <code>start</code>, or null if the region is not
+     *   within this window.
+     */
+    public ByteBuffer getRegion(long start, int size) {
+      if (start < this.start ||
+        start + size > this.start + buffer.capacity())
+      {
+        return null;
+      }
+      ByteBuffer region = buffer.duplicate();
+      region.position((int) (start - this.start));
+      region.limit(region.position() + size);
+      return region.slice();
+    }
+  }
+
+}
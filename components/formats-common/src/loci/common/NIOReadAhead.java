@@ -0,0 +1,354 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background read-ahead for read-only {@link NIOFileHandle}s.
+ *
+ * Read-ahead is disabled by default; it is enabled for newly opened handles
+ * by setting the <code>nioReadAhead</code> system property to
+ * <code>true</code> or by calling {@link #setEnabled(boolean)}, and for an
+ * individual stream with {@link NIOFileHandle#setReadAhead(boolean)}.
+ *
+ * Once a handle has refilled its buffer with two consecutive windows of the
+ * file, the window that follows is read on a shared pool of background
+ * threads while the caller consumes the current one.  Each handle owns two
+ * prefetch buffers, so that one can be filled while the other is being read.
+ * A refill that does not continue from the current window stops read-ahead
+ * until the access pattern becomes sequential again.
+ */
+public final class NIOReadAhead {
+
+  // -- Constants --
+
+  /** Logger for this class. */
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(NIOReadAhead.class);
+
+  /** Default number of read-ahead threads. */
+  public static final int DEFAULT_THREAD_COUNT = 2;
+
+  /**
+   * Number of bytes by which a window read ahead overlaps the window before
+   * it, so that primitive values straddling the two can be read from it.
+   */
+  private static final int OVERLAP = 8;
+
+  // -- Static fields --
+
+  /** Whether newly opened handles use read-ahead. */
+  private static boolean enabled =
+    Boolean.parseBoolean(System.getProperty("nioReadAhead"));
+
+  /** Number of read-ahead threads. */
+  private static int threadCount = DEFAULT_THREAD_COUNT;
+
+  /** Shared pool of read-ahead threads, created when first needed. */
+  private static ExecutorService executor;
+
+  /** Number of windows read in the background. */
+  private static long prefetches = 0;
+
+  /** Number of prefetched windows that were used by a handle. */
+  private static long hits = 0;
+
+  /** Number of prefetched windows that were discarded without being used. */
+  private static long wasted = 0;
+
+  static {
+    String threads = System.getProperty("nioReadAheadThreads");
+    if (threads != null) {
+      try {
+        threadCount = Math.max(1, Integer.parseInt(threads));
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid nioReadAheadThreads: {}", threads);
+      }
+    }
+  }
+
+  // -- Fields --
+
+  /** The channel from which windows are read. */
+  private final FileChannel channel;
+
+  /** The two prefetch buffers owned by this handle. */
+  private final ByteBuffer[] buffers = new ByteBuffer[2];
+
+  /** Index of the prefetch buffer currently used by the handle, or -1. */
+  private int current = -1;
+
+  /** Start of the window currently used by the handle. */
+  private long windowStart = -1;
+
+  /** End of the window currently used by the handle. */
+  private long windowEnd = -1;
+
+  /** Number of consecutive refills that continued the previous window. */
+  private int sequential = 0;
+
+  /** The pending background read, or null. */
+  private Future<ByteBuffer> pending;
+
+  /** Index of the prefetch buffer being filled by the pending read. */
+  private int pendingIndex;
+
+  /** Start of the window being read by the pending read. */
+  private long pendingStart;
+
+  /** Length of the window being read by the pending read. */
+  private int pendingLength;
+
+  // -- Constructor --
+
+  /** Constructs read-ahead state for a handle reading the given channel. */
+  NIOReadAhead(FileChannel channel) {
+    this.channel = channel;
+  }
+
+  // -- NIOReadAhead API methods --
+
+  /** Sets whether newly opened read-only handles use read-ahead. */
+  public static synchronized void setEnabled(boolean enable) {
+    enabled = enable;
+  }
+
+  /** Gets whether newly opened read-only handles use read-ahead. */
+  public static synchronized boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Sets the number of threads shared by all handles for read-ahead. */
+  public static void setThreadCount(int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("Invalid thread count: " + count);
+    }
+    synchronized (NIOReadAhead.class) {
+      threadCount = count;
+      if (executor != null) {
+        executor.shutdown();
+        executor = null;
+      }
+    }
+  }
+
+  /** Gets the number of windows that have been read in the background. */
+  public static synchronized long getPrefetchCount() {
+    return prefetches;
+  }
+
+  /** Gets the number of prefetched windows that were used. */
+  public static synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * Gets the number of prefetched windows that were discarded because the
+   * handle was closed or moved elsewhere in the file.
+   */
+  public static synchronized long getWasteCount() {
+    return wasted;
+  }
+
+  /** Resets the read-ahead counters. */
+  public static synchronized void resetCounters() {
+    prefetches = 0;
+    hits = 0;
+    wasted = 0;
+  }
+
+  /**
+   * Returns the prefetched window containing the given region of the file,
+   * or null if the region has not been read ahead.  The returned buffer
+   * starts at {@link #getPendingStart()}, has its limit set to the length of
+   * the window and remains valid until the next call to this method.
+   */
+  ByteBuffer take(long offset, int size) {
+    if (offset >= windowStart && offset <= windowEnd) {
+      sequential++;
+    }
+    else {
+      sequential = 0;
+    }
+    if (pending == null) {
+      return null;
+    }
+    Future<ByteBuffer> task = pending;
+    pending = null;
+    if (offset >= pendingStart &&
+      offset + size <= pendingStart + pendingLength)
+    {
+      try {
+        ByteBuffer buffer = task.get();
+        if (buffer.limit() == pendingLength) {
+          current = pendingIndex;
+          sequential = Math.max(sequential, 1);
+          recordHit();
+          return buffer;
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      catch (ExecutionException e) {
+        LOGGER.debug("Read-ahead failed", e.getCause());
+      }
+    }
+    discard(task, pendingIndex);
+    current = -1;
+    return null;
+  }
+
+  /** Gets the position in the file of the last window read ahead. */
+  long getPendingStart() {
+    return pendingStart;
+  }
+
+  /**
+   * Records the window that the handle now reads from, and starts reading
+   * the next window in the background if the handle is reading the file
+   * sequentially.
+   * @param start The position in the file of the current window.
+   * @param end The position in the file of the end of the current window.
+   * @param length The length of the file.
+   * @param size The size of the next window.
+   */
+  void update(long start, long end, long length, int size) {
+    windowStart = start;
+    windowEnd = end;
+    if (sequential == 0 || end >= length || size <= 0) {
+      return;
+    }
+    final int index = current == 0 ? 1 : 0;
+    if (buffers[index] == null || buffers[index].capacity() < size) {
+      NIOBufferPool.release(buffers[index]);
+      buffers[index] = NIOBufferPool.acquire(size);
+    }
+    final ByteBuffer buffer = buffers[index];
+    final long position = Math.max(start, end - OVERLAP);
+    final int count = (int) Math.min(size, length - position);
+    buffer.clear();
+    buffer.order(ByteOrder.BIG_ENDIAN);
+    buffer.limit(count);
+    pendingIndex = index;
+    pendingStart = position;
+    pendingLength = count;
+    pending = getExecutor().submit(new Callable<ByteBuffer>() {
+      @Override
+      public ByteBuffer call() throws IOException {
+        while (buffer.hasRemaining()) {
+          int n = channel.read(buffer, position + buffer.position());
+          if (n < 0) {
+            break;
+          }
+        }
+        buffer.flip();
+        return buffer;
+      }
+    });
+    recordPrefetch();
+  }
+
+  /** Discards any pending read and returns the buffers to the pool. */
+  void close() {
+    if (pending != null) {
+      discard(pending, pendingIndex);
+      pending = null;
+    }
+    for (int i=0; i<buffers.length; i++) {
+      NIOBufferPool.release(buffers[i]);
+      buffers[i] = null;
+    }
+    current = -1;
+    windowStart = -1;
+    windowEnd = -1;
+    sequential = 0;
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Abandons a background read.  A read that has not finished keeps the
+   * buffer it fills, which is then left to the garbage collector.
+   */
+  private void discard(Future<ByteBuffer> task, int index) {
+    if (!task.isDone()) {
+      // the read may already be running, so its buffer cannot be reused
+      task.cancel(false);
+      buffers[index] = null;
+    }
+    recordWaste();
+  }
+
+  private static synchronized void recordPrefetch() {
+    prefetches++;
+  }
+
+  private static synchronized void recordHit() {
+    hits++;
+  }
+
+  private static synchronized void recordWaste() {
+    wasted++;
+  }
+
+  private static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(threadCount,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "NIOReadAhead");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    }
+    return executor;
+  }
+
+}
@@ -34,6 +34,7 @@ package loci.common;
 
 import java.io.Closeable;
 import java.io.DataInput;
+import java.io.EOFException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
@@ -73,6 +74,15 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
   /** Maximum number of bytes to search when searching through the stream. */
   protected static final int MAX_SEARCH_SIZE = 512 * 1024 * 1024; // 512 MB
 
+  /** Maximum size of the blocks read by {@link #readStrided}. */
+  protected static final int STRIDED_BLOCK_SIZE = 1024 * 1024; // 1 MB
+
+  /**
+   * Gap between rows above which {@link #readStrided} reads each row
+   * separately rather than reading the gap along with the rows.
+   */
+  protected static final int STRIDED_MAX_GAP = 64 * 1024; // 64 KB
+
   /** Various bitmasks for the 0000xxxx side of a byte. */
   private static final int[] BACK_MASK = {
     0x00, // 00000000
@@ -169,6 +179,14 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
     this.encoding = encoding;
   }
 
+  /**
+   * Gets the path of the file associated with this stream, or null if the
+   * stream was constructed from a handle without a path.
+   */
+  public String getFileName() {
+    return file;
+  }
+
   /** Seeks to the given offset within the stream. */
   public void seek(long pos) throws IOException {
     raf.seek(pos);
@@ -217,6 +235,18 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
     }
   }
 
+  /**
+   * Enables or disables background read-ahead of sequential reads.  This has
+   * no effect unless the stream reads from an {@link NIOFileHandle}.
+   *
+   * @see NIOReadAhead
+   */
+  public void setReadAhead(boolean readAhead) {
+    if (raf instanceof NIOFileHandle) {
+      ((NIOFileHandle) raf).setReadAhead(readAhead);
+    }
+  }
+
   /** Gets the endianness of the stream. */
   public boolean isLittleEndian() {
     return raf.getOrder() == ByteOrder.LITTLE_ENDIAN;
@@ -620,6 +650,150 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
     return raf.read(buf, offset, n);
   }
 
+  /**
+   * Read up to n bytes, starting at the given absolute offset, into the given
+   * array at the specified offset.  The file pointer is neither used nor
+   * changed, so handles that support it (e.g. {@link NIOFileHandle}) may be
+   * read concurrently from several threads.
+   *
+   * @return the number of bytes read, or -1 if <code>pos</code> is at or
+   *   beyond the end of the stream.
+   * @see IRandomAccess#read(long, byte[], int, int)
+   */
+  public int read(long pos, byte[] array, int offset, int n)
+    throws IOException
+  {
+    long remaining = length() - pos;
+    if (remaining <= 0) {
+      return n == 0 ? 0 : -1;
+    }
+    return raf.read(pos, array, offset, (int) Math.min(n, remaining));
+  }
+
+  /**
+   * Read up to buf.remaining() bytes, starting at the given absolute offset,
+   * into the given buffer without using or changing the file pointer.
+   *
+   * @return the number of bytes read, or -1 if <code>pos</code> is at or
+   *   beyond the end of the stream.
+   * @see #read(long, byte[], int, int)
+   */
+  public int read(long pos, ByteBuffer buf) throws IOException {
+    long remaining = length() - pos;
+    if (remaining <= 0) {
+      return buf.hasRemaining() ? -1 : 0;
+    }
+    if (buf.remaining() <= remaining) {
+      return raf.read(pos, buf);
+    }
+    ByteBuffer view = buf.duplicate();
+    view.limit(view.position() + (int) remaining);
+    int n = raf.read(pos, view);
+    buf.position(view.position());
+    return n;
+  }
+
+  /**
+   * Read exactly n bytes, starting at the given absolute offset, into the
+   * given array at the specified offset, without using or changing the file
+   * pointer.
+   *
+   * @throws EOFException if the stream ends before n bytes are read.
+   * @see #read(long, byte[], int, int)
+   */
+  public void readFully(long pos, byte[] array, int offset, int n)
+    throws IOException
+  {
+    int total = 0;
+    while (total < n) {
+      int r = read(pos + total, array, offset + total, n - total);
+      if (r <= 0) {
+        throw new EOFException();
+      }
+      total += r;
+    }
+  }
+
+  /**
+   * Read <code>rowCount</code> rows of <code>rowLength</code> bytes into
+   * consecutive positions of the given array.  The first row starts at the
+   * absolute offset <code>pos</code>, and each subsequent row starts
+   * <code>stride</code> bytes after the previous one.
+   *
+   * Neighbouring rows are fetched together in blocks of up to
+   * {@link #STRIDED_BLOCK_SIZE} bytes, so that extracting a narrow region of
+   * a wide image does not require one read per row.  Rows of a
+   * {@link StreamHandle} are read in order with forward seeks instead, as
+   * compressed streams cannot be read at an arbitrary offset cheaply.  The
+   * file pointer is left immediately after the last row.
+   *
+   * @return the number of bytes stored, which is less than
+   *   <code>rowLength * rowCount</code> only if the end of the stream was
+   *   reached.
+   */
+  public int readStrided(long pos, int rowLength, long stride, int rowCount,
+    byte[] array, int offset) throws IOException
+  {
+    if (rowLength <= 0 || rowCount <= 0) {
+      return 0;
+    }
+    int total = 0;
+    long gap = stride - rowLength;
+    if (raf instanceof StreamHandle && gap >= 0) {
+      for (int row=0; row<rowCount; row++) {
+        long start = pos + row * stride;
+        int n = (int) Math.max(0, Math.min(rowLength, length() - start));
+        if (n > 0) {
+          seek(start);
+          readFully(array, offset + total, n);
+          total += n;
+        }
+        if (n < rowLength) {
+          break;
+        }
+      }
+    }
+    else if (gap == 0 || rowCount == 1) {
+      total = readAvailable(pos, array, offset, rowLength * rowCount);
+    }
+    else if (gap < 0 || gap > STRIDED_MAX_GAP ||
+      rowLength + stride > STRIDED_BLOCK_SIZE)
+    {
+      for (int row=0; row<rowCount; row++) {
+        int n = readAvailable(pos + row * stride, array, offset + total,
+          rowLength);
+        total += n;
+        if (n < rowLength) {
+          break;
+        }
+      }
+    }
+    else {
+      int rowsPerBlock = (int)
+        Math.min(rowCount, (STRIDED_BLOCK_SIZE - rowLength) / stride + 1);
+      byte[] block = new byte[(int) ((rowsPerBlock - 1) * stride + rowLength)];
+      for (int row=0; row<rowCount; row+=rowsPerBlock) {
+        int rows = Math.min(rowsPerBlock, rowCount - row);
+        int span = (int) ((rows - 1) * stride + rowLength);
+        int n = readAvailable(pos + row * stride, block, 0, span);
+        for (int r=0; r<rows; r++) {
+          int start = (int) (r * stride);
+          int copy = Math.min(rowLength, n - start);
+          if (copy <= 0) {
+            break;
+          }
+          System.arraycopy(block, start, array, offset + total, copy);
+          total += copy;
+        }
+        if (n < span) {
+          break;
+        }
+      }
+    }
+    seek(Math.min(pos + (rowCount - 1) * stride + rowLength, length()));
+    return total;
+  }
+
   /** Read bytes from the stream into the given array. */
   @Override
   public void readFully(byte[] array) throws IOException {
@@ -699,4 +873,24 @@ public class RandomAccessInputStream extends InputStream implements DataInput, C
     kryo.writeObject(out, encoding);
   }
 
+  // -- Helper methods --
+
+  /**
+   * Read up to n bytes, starting at the given absolute offset, stopping
+   * only at the end of the stream.
+   */
+  private int readAvailable(long pos, byte[] array, int offset, int n)
+    throws IOException
+  {
+    int total = 0;
+    while (total < n) {
+      int r = read(pos + total, array, offset + total, n - total);
+      if (r <= 0) {
+        break;
+      }
+      total += r;
+    }
+    return total;
+  }
+
 }
@@ -72,6 +72,13 @@ public abstract class StreamHandle implements IRandomAccess {
   /** Byte ordering of this stream. */
   protected ByteOrder order;
 
+  /**
+   * Position to seek back to before the next relative read, or -1.
+   * Positional reads leave the stream where they stopped, as seeking back
+   * may require decompressing the stream again.
+   */
+  protected long pendingFp = -1;
+
   // -- Constructor --
 
   /**
@@ -90,6 +97,7 @@ public abstract class StreamHandle implements IRandomAccess {
   @Override
   public void close() throws IOException {
     length = fp = mark = 0;
+    pendingFp = -1;
     if (stream != null) stream.close();
     if (outStream != null) outStream.close();
     stream = null;
@@ -100,7 +108,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see IRandomAccess#getFilePointer() */
   @Override
   public long getFilePointer() throws IOException {
-    return fp;
+    return pendingFp >= 0 ? pendingFp : fp;
   }
 
   /* @see IRandomAccess#length() */
@@ -118,6 +126,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see IRandomAccess#read(byte[], int, int) */
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
+    restoreFilePointer();
     int n = stream.read(b, off, len);
     if (n >= 0) fp += n;
     else n = 0;
@@ -149,9 +158,65 @@ public abstract class StreamHandle implements IRandomAccess {
     return n;
   }
 
+  /**
+   * Streams cannot be read at an arbitrary offset, so this seeks to the
+   * requested offset; calls are serialized.  The file pointer is restored
+   * lazily, before the next relative read, so that consecutive positional
+   * reads do not seek back and forth.  Seeking backwards may still be
+   * expensive on compressed streams.
+   * @see IRandomAccess#read(long, byte[], int, int)
+   */
+  @Override
+  public synchronized int read(long pos, byte[] b, int off, int len)
+    throws IOException
+  {
+    if (len == 0) {
+      return 0;
+    }
+    if (pos >= length()) {
+      return -1;
+    }
+    len = (int) Math.min(len, length() - pos);
+    long oldFp = getFilePointer();
+    pendingFp = -1;
+    try {
+      if (pos != fp) {
+        seek(pos);
+      }
+      return read(b, off, len);
+    }
+    finally {
+      pendingFp = oldFp == fp ? -1 : oldFp;
+    }
+  }
+
+  /* @see IRandomAccess#read(long, ByteBuffer) */
+  @Override
+  public synchronized int read(long pos, ByteBuffer buffer)
+    throws IOException
+  {
+    int n;
+    if (buffer.hasArray()) {
+      n = read(pos, buffer.array(), buffer.arrayOffset() + buffer.position(),
+        buffer.remaining());
+      if (n > 0) {
+        buffer.position(buffer.position() + n);
+      }
+    }
+    else {
+      byte[] b = new byte[buffer.remaining()];
+      n = read(pos, b, 0, b.length);
+      if (n > 0) {
+        buffer.put(b, 0, n);
+      }
+    }
+    return n;
+  }
+
   /* @see IRandomAccess#seek(long) */
   @Override
   public void seek(long pos) throws IOException {
+    pendingFp = -1;
     long diff = pos - fp;
     fp = pos;
 
@@ -204,6 +269,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see java.io.DataInput#readBoolean() */
   @Override
   public boolean readBoolean() throws IOException {
+    restoreFilePointer();
     fp++;
     return stream.readBoolean();
   }
@@ -211,6 +277,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see java.io.DataInput#readByte() */
   @Override
   public byte readByte() throws IOException {
+    restoreFilePointer();
     fp++;
     return stream.readByte();
   }
@@ -218,6 +285,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see java.io.DataInput#readChar() */
   @Override
   public char readChar() throws IOException {
+    restoreFilePointer();
     fp++;
     return stream.readChar();
   }
@@ -225,6 +293,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see java.io.DataInput#readDouble() */
   @Override
   public double readDouble() throws IOException {
+    restoreFilePointer();
     fp += 8;
     double v = stream.readDouble();
     return order.equals(ByteOrder.LITTLE_ENDIAN) ? DataTools.swap(v) : v;
@@ -233,6 +302,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see java.io.DataInput#readFloat() */
   @Override
   public float readFloat() throws IOException {
+    restoreFilePointer();
     fp += 4;
     float v = stream.readFloat();
     return order.equals(ByteOrder.LITTLE_ENDIAN) ? DataTools.swap(v) : v;
@@ -241,6 +311,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see java.io.DataInput#readFully(byte[]) */
   @Override
   public void readFully(byte[] b) throws IOException {
+    restoreFilePointer();
     stream.readFully(b);
     fp += b.length;
   }
@@ -248,6 +319,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see java.io.DataInput#readFully(byte[], int, int) */
   @Override
   public void readFully(byte[] b, int off, int len) throws IOException {
+    restoreFilePointer();
     stream.readFully(b, off, len);
     fp += len;
   }
@@ -255,6 +327,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see java.io.DataInput#readInt() */
   @Override
   public int readInt() throws IOException {
+    restoreFilePointer();
     fp += 4;
     int v = stream.readInt();
     return order.equals(ByteOrder.LITTLE_ENDIAN) ? DataTools.swap(v) : v;
@@ -269,6 +342,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see java.io.DataInput#readLong() */
   @Override
   public long readLong() throws IOException {
+    restoreFilePointer();
     fp += 8;
     long v = stream.readLong();
     return order.equals(ByteOrder.LITTLE_ENDIAN) ? DataTools.swap(v) : v;
@@ -277,6 +351,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see java.io.DataInput#readShort() */
   @Override
   public short readShort() throws IOException {
+    restoreFilePointer();
     fp += 2;
     short v = stream.readShort();
     return order.equals(ByteOrder.LITTLE_ENDIAN) ? DataTools.swap(v) : v;
@@ -285,6 +360,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see java.io.DataInput#readUnsignedByte() */
   @Override
   public int readUnsignedByte() throws IOException {
+    restoreFilePointer();
     fp++;
     return stream.readUnsignedByte();
   }
@@ -298,6 +374,7 @@ public abstract class StreamHandle implements IRandomAccess {
   /* @see java.io.DataInput#readUTF() */
   @Override
   public String readUTF() throws IOException {
+    restoreFilePointer();
     String s = stream.readUTF();
     fp += s.length();
     return s;
@@ -462,6 +539,15 @@ public abstract class StreamHandle implements IRandomAccess {
    */
   protected abstract void resetStream() throws IOException;
 
+  /** Seeks back to the position left by a positional read, if necessary. */
+  protected void restoreFilePointer() throws IOException {
+    if (pendingFp >= 0) {
+      long pos = pendingFp;
+      pendingFp = -1;
+      seek(pos);
+    }
+  }
+
   /** Reset the marked position, if necessary. */
   private void markManager() {
     if (fp >= mark + RandomAccessInputStream.MAX_OVERHEAD - 1) {
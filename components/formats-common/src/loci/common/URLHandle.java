@@ -34,14 +34,43 @@ package loci.common;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Provides random access to URLs using the IRandomAccess interface.
  * Instances of URLHandle are read-only.
  *
+ * HTTP servers that support range requests are read in fixed-size blocks,
+ * which are kept in a least recently used cache shared by all handles.
+ * Adjacent blocks missing from the cache are fetched with a single request,
+ * and independent runs of blocks are fetched in parallel.  If the server
+ * does not honour range requests, the URL is streamed from the beginning
+ * instead.
+ *
+ * The block size, cache size and number of fetching threads can be set with
+ * the <code>urlBlockSize</code>, <code>urlCacheSize</code> and
+ * <code>urlThreads</code> system properties, or with the corresponding
+ * static setters.
+ *
  * @see IRandomAccess
  * @see StreamHandle
  * @see java.net.URLConnection
@@ -50,6 +79,54 @@ import java.net.URLConnection;
  */
 public class URLHandle extends StreamHandle {
 
+  // -- Constants --
+
+  /** Logger for this class. */
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(URLHandle.class);
+
+  /** Default size of the blocks requested from HTTP servers: 256 KB. */
+  public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+  /** Default number of bytes of cached blocks: 64 MB. */
+  public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+
+  /** Default number of threads fetching blocks in parallel. */
+  public static final int DEFAULT_THREAD_COUNT = 4;
+
+  /** Maximum number of blocks fetched by a single request. */
+  private static final int MAX_REQUEST_BLOCKS = 16;
+
+  // -- Static fields --
+
+  /** Size of the blocks requested by newly opened handles. */
+  private static int blockSize = DEFAULT_BLOCK_SIZE;
+
+  /** Maximum number of bytes of cached blocks. */
+  private static long cacheSize = DEFAULT_CACHE_SIZE;
+
+  /** Number of threads fetching blocks in parallel. */
+  private static int threadCount = DEFAULT_THREAD_COUNT;
+
+  /** Shared pool of fetching threads, created when first needed. */
+  private static ExecutorService executor;
+
+  /** Cached blocks, in access order. */
+  private static final LinkedHashMap<String, byte[]> blocks =
+    new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+  /** Number of bytes of cached blocks. */
+  private static long cachedSize = 0;
+
+  /** Number of range requests sent. */
+  private static long requests = 0;
+
+  static {
+    blockSize = (int) getProperty("urlBlockSize", blockSize);
+    cacheSize = getProperty("urlCacheSize", cacheSize);
+    threadCount = (int) getProperty("urlThreads", threadCount);
+  }
+
   // -- Fields --
 
   /** URL of open socket */
@@ -58,6 +135,18 @@ public class URLHandle extends StreamHandle {
   /** Socket underlying this stream */
   private URLConnection conn;
 
+  /**
+   * Prefix identifying this URL's blocks in the cache, or null if the
+   * server does not support range requests.
+   */
+  private String cacheKey;
+
+  /** Size of the blocks read by this handle. */
+  private int handleBlockSize;
+
+  /** Stream reading blocks at the file pointer. */
+  private BlockInputStream blockStream;
+
   // -- Constructors --
 
   /**
@@ -68,15 +157,103 @@ public class URLHandle extends StreamHandle {
       url = "http://" + url;
     }
     this.url = url;
-    resetStream();
+    if (!openRanges()) {
+      resetStream();
+    }
+  }
+
+  // -- URLHandle API methods --
+
+  /** Sets the size of the blocks requested by newly opened handles. */
+  public static synchronized void setBlockSize(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Invalid block size: " + size);
+    }
+    blockSize = size;
+  }
+
+  /** Gets the size of the blocks requested by newly opened handles. */
+  public static synchronized int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Sets the maximum number of bytes of blocks kept in the cache shared by
+   * all handles.  Least recently used blocks are discarded until the cache
+   * fits within the new size.
+   */
+  public static synchronized void setCacheSize(long size) {
+    cacheSize = size;
+    trim();
+  }
+
+  /** Gets the maximum number of bytes of blocks kept in the cache. */
+  public static synchronized long getCacheSize() {
+    return cacheSize;
+  }
+
+  /** Sets the number of threads used to fetch blocks in parallel. */
+  public static void setThreadCount(int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("Invalid thread count: " + count);
+    }
+    synchronized (URLHandle.class) {
+      threadCount = count;
+      if (executor != null) {
+        executor.shutdown();
+        executor = null;
+      }
+    }
+  }
+
+  /** Gets the number of range requests sent to HTTP servers. */
+  public static synchronized long getRequestCount() {
+    return requests;
+  }
+
+  /** Discards all cached blocks and resets the request counter. */
+  public static synchronized void clearCache() {
+    blocks.clear();
+    cachedSize = 0;
+    requests = 0;
+  }
+
+  /** Returns true if this handle reads the URL with range requests. */
+  public boolean isRangeSupported() {
+    return cacheKey != null;
   }
 
   // -- IRandomAccess API methods --
 
+  /* @see IRandomAccess#close() */
+  @Override
+  public void close() throws IOException {
+    super.close();
+    cacheKey = null;
+    blockStream = null;
+  }
+
+  /* @see IRandomAccess#read(long, byte[], int, int) */
+  @Override
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    if (cacheKey == null) {
+      return super.read(pos, b, off, len);
+    }
+    if (len == 0) {
+      return 0;
+    }
+    return readBlocks(pos, b, off, len);
+  }
+
   /* @see IRandomAccess#seek(long) */
   @Override
   public void seek(long pos) throws IOException {
-    if (pos < fp && pos >= mark) {
+    pendingFp = -1;
+    if (cacheKey != null) {
+      fp = pos;
+      blockStream.position = pos;
+    }
+    else if (pos < fp && pos >= mark) {
       stream.reset();
       fp = mark;
       skip(pos - fp);
@@ -84,6 +261,20 @@ public class URLHandle extends StreamHandle {
     else super.seek(pos);
   }
 
+  // -- DataInput API methods --
+
+  /* @see java.io.DataInput#skipBytes(int) */
+  @Override
+  public int skipBytes(int n) throws IOException {
+    if (cacheKey == null) {
+      return super.skipBytes(n);
+    }
+    restoreFilePointer();
+    int skipped = (int) Math.max(0, Math.min(n, length - fp));
+    seek(fp + skipped);
+    return skipped;
+  }
+
   // -- StreamHandle API methods --
 
   /* @see StreamHandle#resetStream() */
@@ -113,4 +304,353 @@ public class URLHandle extends StreamHandle {
     }
   }
 
+  /**
+   * Requests the first block of an HTTP URL.  If the server answers with
+   * the requested range, the handle is set up to read blocks; otherwise
+   * the handle is left to stream the URL.
+   * @return true if the server supports range requests.
+   */
+  private boolean openRanges() throws IOException {
+    if (!url.startsWith("http")) {
+      return false;
+    }
+    int size = getBlockSize();
+    HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+    c.setRequestProperty("Range", "bytes=0-" + (size - 1));
+    int code = c.getResponseCode();
+    long total = -1;
+    if (code == HttpURLConnection.HTTP_PARTIAL) {
+      long[] range = parseContentRange(c.getHeaderField("Content-Range"));
+      if (range != null && range[0] == 0) {
+        total = range[2];
+      }
+    }
+    if (total < 0) {
+      LOGGER.debug("Range requests not supported by {}", url);
+      disconnect(c);
+      return false;
+    }
+    recordRequest();
+
+    handleBlockSize = size;
+    length = total;
+    String validator = c.getHeaderField("ETag");
+    if (validator == null) {
+      validator = String.valueOf(c.getLastModified());
+    }
+    cacheKey = url + "|" + total + "|" + validator + "|" + size + "#";
+    byte[] first = new byte[(int) Math.min(size, total)];
+    InputStream in = c.getInputStream();
+    try {
+      readFully(in, first);
+    }
+    finally {
+      in.close();
+    }
+    cache(0, first);
+
+    blockStream = new BlockInputStream();
+    stream = new DataInputStream(blockStream);
+    fp = 0;
+    mark = 0;
+    return true;
+  }
+
+  /**
+   * Copies the given range of the URL into an array, fetching the blocks
+   * that are not cached.
+   * @return the number of bytes copied, or -1 if <code>pos</code> is at or
+   *   beyond the end of the URL.
+   */
+  private int readBlocks(long pos, byte[] b, int off, int len)
+    throws IOException
+  {
+    if (pos >= length) {
+      return -1;
+    }
+    len = (int) Math.min(len, length - pos);
+    long first = pos / handleBlockSize;
+    long last = (pos + len - 1) / handleBlockSize;
+    byte[][] data = getBlocks(first, last);
+    int copied = 0;
+    for (int i=0; i<data.length; i++) {
+      long blockStart = (first + i) * handleBlockSize;
+      int start = (int) Math.max(0, pos - blockStart);
+      int n = Math.min(data[i].length - start, len - copied);
+      System.arraycopy(data[i], start, b, off + copied, n);
+      copied += n;
+    }
+    return copied;
+  }
+
+  /**
+   * Gets the given blocks, fetching runs of adjacent blocks missing from the
+   * cache with one request each and in parallel.
+   */
+  private byte[][] getBlocks(long first, long last) throws IOException {
+    final byte[][] data = new byte[(int) (last - first + 1)][];
+    List<int[]> runs = new ArrayList<int[]>();
+    synchronized (URLHandle.class) {
+      for (int i=0; i<data.length; i++) {
+        data[i] = blocks.get(cacheKey + (first + i));
+        if (data[i] == null) {
+          int[] run = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+          if (run != null && run[0] + run[1] == i &&
+            run[1] < MAX_REQUEST_BLOCKS)
+          {
+            run[1]++;
+          }
+          else {
+            runs.add(new int[] {i, 1});
+          }
+        }
+      }
+    }
+    if (runs.isEmpty()) {
+      return data;
+    }
+
+    List<Future<byte[][]>> tasks = new ArrayList<Future<byte[][]>>();
+    ExecutorService service = runs.size() > 1 ? getExecutor() : null;
+    for (int r=1; r<runs.size(); r++) {
+      final long block = first + runs.get(r)[0];
+      final int count = runs.get(r)[1];
+      tasks.add(service.submit(new Callable<byte[][]>() {
+        @Override
+        public byte[][] call() throws IOException {
+          return fetch(block, count);
+        }
+      }));
+    }
+    int[] run = runs.get(0);
+    copyRun(fetch(first + run[0], run[1]), data, run[0]);
+    for (int r=1; r<runs.size(); r++) {
+      try {
+        copyRun(tasks.get(r - 1).get(), data, runs.get(r)[0]);
+      }
+      catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+    return data;
+  }
+
+  /** Fetches the given number of blocks with a single request. */
+  private byte[][] fetch(long block, int count) throws IOException {
+    long start = block * handleBlockSize;
+    long end = Math.min(length, (block + count) * handleBlockSize);
+    HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+    c.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+    int code = c.getResponseCode();
+    recordRequest();
+    if (code == HttpURLConnection.HTTP_PARTIAL) {
+      long[] range = parseContentRange(c.getHeaderField("Content-Range"));
+      if (range == null || range[0] != start) {
+        disconnect(c);
+        throw new IOException("Unexpected range " +
+          c.getHeaderField("Content-Range") + " from " + url);
+      }
+    }
+    else if (code != HttpURLConnection.HTTP_OK) {
+      disconnect(c);
+      throw new IOException("HTTP " + code + " reading " + url);
+    }
+    InputStream in = c.getInputStream();
+    try {
+      if (code == HttpURLConnection.HTTP_OK) {
+        // the server ignored the range and is sending the whole URL
+        LOGGER.debug("Range request ignored by {}", url);
+        skipFully(in, start);
+      }
+      byte[][] result = new byte[count][];
+      for (int i=0; i<count; i++) {
+        long blockStart = start + (long) i * handleBlockSize;
+        result[i] = new byte[(int) Math.min(handleBlockSize, end - blockStart)];
+        readFully(in, result[i]);
+        cache(block + i, result[i]);
+      }
+      return result;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /** Adds a block to the cache. */
+  private void cache(long block, byte[] data) {
+    synchronized (URLHandle.class) {
+      byte[] old = blocks.put(cacheKey + block, data);
+      if (old != null) {
+        cachedSize -= old.length;
+      }
+      cachedSize += data.length;
+      trim();
+    }
+  }
+
+  /** Discards least recently used blocks until the cache fits its size. */
+  private static void trim() {
+    Iterator<Map.Entry<String, byte[]>> entries = blocks.entrySet().iterator();
+    while (cachedSize > cacheSize && entries.hasNext()) {
+      cachedSize -= entries.next().getValue().length;
+      entries.remove();
+    }
+  }
+
+  private static synchronized void recordRequest() {
+    requests++;
+  }
+
+  /** Copies a fetched run of blocks into the given array of blocks. */
+  private static void copyRun(byte[][] run, byte[][] data, int index) {
+    System.arraycopy(run, 0, data, index, run.length);
+  }
+
+  /**
+   * Parses a Content-Range header of the form
+   * <code>bytes first-last/length</code>.
+   * @return the first byte, last byte and length, or null if the header is
+   *   missing, malformed or does not specify the length.
+   */
+  private static long[] parseContentRange(String header) {
+    if (header == null || !header.startsWith("bytes ")) {
+      return null;
+    }
+    int dash = header.indexOf('-');
+    int slash = header.indexOf('/');
+    if (dash < 0 || slash < dash) {
+      return null;
+    }
+    try {
+      return new long[] {
+        Long.parseLong(header.substring(6, dash).trim()),
+        Long.parseLong(header.substring(dash + 1, slash).trim()),
+        Long.parseLong(header.substring(slash + 1).trim())
+      };
+    }
+    catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Closes the response stream of a connection that will not be read. */
+  private static void disconnect(HttpURLConnection c) {
+    try {
+      InputStream in = c.getInputStream();
+      in.close();
+    }
+    catch (IOException e) {
+      LOGGER.trace("Could not close connection", e);
+    }
+    c.disconnect();
+  }
+
+  private static void readFully(InputStream in, byte[] b) throws IOException {
+    int n = 0;
+    while (n < b.length) {
+      int r = in.read(b, n, b.length - n);
+      if (r < 0) {
+        throw new EOFException();
+      }
+      n += r;
+    }
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long s = in.skip(n);
+      if (s <= 0) {
+        if (in.read() < 0) {
+          throw new EOFException();
+        }
+        s = 1;
+      }
+      n -= s;
+    }
+  }
+
+  private static long getProperty(String name, long defaultValue) {
+    String value = System.getProperty(name);
+    if (value != null) {
+      try {
+        return Long.parseLong(value);
+      }
+      catch (NumberFormatException e) {
+        LOGGER.warn("Invalid {}: {}", name, value);
+      }
+    }
+    return defaultValue;
+  }
+
+  private static synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(threadCount,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "URLHandle");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    }
+    return executor;
+  }
+
+  // -- Helper classes --
+
+  /** Stream reading the cached blocks at the file pointer. */
+  private class BlockInputStream extends InputStream {
+    /** Position of the next byte to read. */
+    private long position;
+
+    /** The block containing the last byte read, and its index. */
+    private byte[] block;
+    private long blockIndex = -1;
+
+    @Override
+    public int read() throws IOException {
+      if (position >= length) {
+        return -1;
+      }
+      long index = position / handleBlockSize;
+      if (index != blockIndex) {
+        block = getBlocks(index, index)[0];
+        blockIndex = index;
+      }
+      return block[(int) (position++ - index * handleBlockSize)] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int n = readBlocks(position, b, off, len);
+      if (n > 0) {
+        position += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, length - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, Math.max(0, length - position));
+    }
+  }
+
 }
@@ -32,27 +32,76 @@
 
 package loci.common;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 /**
  * StreamHandle implementation for reading from Zip-compressed files
  * or byte arrays.  Instances of ZipHandle are read-only.
  *
+ * Entries are located using the Zip file's central directory.  Stored
+ * (uncompressed) entries are read directly from the underlying file, and
+ * deflated entries are decompressed by an {@link IndexedGZipInputStream},
+ * so that seeking does not require decompressing the entry from the start.
+ *
  * @see StreamHandle
  *
  * @author Melissa Linkert melissa at glencoesoftware.com
  */
 public class ZipHandle extends StreamHandle {
 
+  // -- Constants --
+
+  private static final int LOCAL_HEADER = 0x04034b50;
+  private static final int CENTRAL_HEADER = 0x02014b50;
+  private static final int END_HEADER = 0x06054b50;
+  private static final int ZIP64_END_HEADER = 0x06064b50;
+  private static final int ZIP64_LOCATOR = 0x07064b50;
+
+  /** Length of the end of central directory record, without comment. */
+  private static final int END_LENGTH = 22;
+
+  /** Maximum number of central directories kept in memory. */
+  private static final int MAX_CACHED_DIRECTORIES = 16;
+
+  // -- Static fields --
+
+  /** Recently read central directories, in access order. */
+  private static final LinkedHashMap<String, List<DirectoryEntry>> directories =
+    new LinkedHashMap<String, List<DirectoryEntry>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(
+        Map.Entry<String, List<DirectoryEntry>> eldest)
+      {
+        return size() > MAX_CACHED_DIRECTORIES;
+      }
+    };
+
   // -- Fields --
 
-  private RandomAccessInputStream in;
-  private ZipInputStream zip;
+  /** Handle on the Zip file itself. */
+  private IRandomAccess raw;
+
+  /** Offset of the entry's data within the Zip file, if it is stored. */
+  private long dataOffset;
+
+  /** Stream over a stored entry. */
+  private StoredInputStream stored;
+
+  /** Stream over a deflated entry. */
+  private IndexedGZipInputStream inflater;
+
   private String entryName;
   private int entryCount;
 
@@ -62,10 +111,8 @@ public class ZipHandle extends StreamHandle {
     super();
     this.file = file;
 
-    in = openStream(file);
-    zip = new ZipInputStream(in);
-    entryName = null;
-    entryCount = 0;
+    List<DirectoryEntry> entries = getDirectory(file);
+    entryCount = entries.size();
 
     // strip off .zip extension and directory prefix
     String innerFile = file.substring(0, file.length() - 4);
@@ -74,25 +121,15 @@ public class ZipHandle extends StreamHandle {
     if (slash >= 0) innerFile = innerFile.substring(slash + 1);
 
     // look for Zip entry with same prefix as the Zip file itself
-    boolean matchFound = false;
-    length = 0;
-    while (true) {
-      ZipEntry ze = zip.getNextEntry();
-      if (ze == null) break;
-      if (entryName == null) entryName = ze.getName();
-      if (!matchFound && ze.getName().startsWith(innerFile)) {
+    DirectoryEntry match = entries.isEmpty() ? null : entries.get(0);
+    for (DirectoryEntry entry : entries) {
+      if (entry.name.startsWith(innerFile)) {
         // found entry with matching name
-        entryName = ze.getName();
-        matchFound = true;
+        match = entry;
+        break;
       }
-      entryCount++;
-      length += ze.getSize();
-    }
-    resetStream();
-
-    if (length <= 0) {
-      populateLength();
     }
+    open(match);
   }
 
   /**
@@ -105,17 +142,18 @@ public class ZipHandle extends StreamHandle {
     super();
     this.file = file;
 
-    in = openStream(file);
-    zip = new ZipInputStream(in);
-    entryName = entry.getName();
-    entryCount = 1;
-
-    seekToEntry();
-    resetStream();
-    length = entry.getSize();
-    if (length <= 0) {
-      populateLength();
+    DirectoryEntry match = null;
+    for (DirectoryEntry e : getDirectory(file)) {
+      if (e.name.equals(entry.getName())) {
+        match = e;
+        break;
+      }
     }
+    if (match == null) {
+      throw new HandleException(entry.getName() + " not found in " + file);
+    }
+    entryCount = 1;
+    open(match);
   }
 
   // -- ZipHandle API methods --
@@ -133,6 +171,24 @@ public class ZipHandle extends StreamHandle {
     return new String(b, Constants.ENCODING).equals("PK");
   }
 
+  /**
+   * Lists the entries of the given Zip file, in central directory order,
+   * without decompressing any of them.
+   */
+  public static List<ZipEntry> getEntries(String file) throws IOException {
+    List<ZipEntry> entries = new ArrayList<ZipEntry>();
+    for (DirectoryEntry e : getDirectory(file)) {
+      ZipEntry entry = new ZipEntry(e.name);
+      if (e.method == ZipEntry.STORED || e.method == ZipEntry.DEFLATED) {
+        entry.setMethod(e.method);
+      }
+      entry.setSize(e.size);
+      entry.setCompressedSize(e.compressedSize);
+      entries.add(entry);
+    }
+    return entries;
+  }
+
   /** Get the name of the backing Zip entry. */
   public String getEntryName() {
     return entryName;
@@ -154,54 +210,330 @@ public class ZipHandle extends StreamHandle {
   @Override
   public void close() throws IOException {
     super.close();
-    zip = null;
     entryName = null;
-    if (in != null) in.close();
-    in = null;
+    if (raw != null) raw.close();
+    raw = null;
+    stored = null;
+    inflater = null;
     entryCount = 0;
   }
 
+  /* @see IRandomAccess#seek(long) */
+  @Override
+  public void seek(long pos) throws IOException {
+    pendingFp = -1;
+    if (stored != null) {
+      stored.pos = pos;
+    }
+    else if (inflater != null) {
+      inflater.seek(pos);
+    }
+    fp = pos;
+  }
+
+  /**
+   * Stored entries are read directly from the Zip file.
+   * @see IRandomAccess#read(long, byte[], int, int)
+   */
+  @Override
+  public int read(long pos, byte[] b, int off, int len) throws IOException {
+    if (stored == null) {
+      return super.read(pos, b, off, len);
+    }
+    if (len == 0) {
+      return 0;
+    }
+    if (pos >= length) {
+      return -1;
+    }
+    len = (int) Math.min(len, length - pos);
+    return raw.read(dataOffset + pos, b, off, len);
+  }
+
+  /**
+   * Stored entries are read directly from the Zip file.
+   * @see IRandomAccess#read(long, ByteBuffer)
+   */
+  @Override
+  public int read(long pos, ByteBuffer buffer) throws IOException {
+    if (stored == null) {
+      return super.read(pos, buffer);
+    }
+    if (!buffer.hasRemaining()) {
+      return 0;
+    }
+    if (pos >= length) {
+      return -1;
+    }
+    int limit = buffer.limit();
+    if (buffer.remaining() > length - pos) {
+      buffer.limit(buffer.position() + (int) (length - pos));
+    }
+    try {
+      return raw.read(dataOffset + pos, buffer);
+    }
+    finally {
+      buffer.limit(limit);
+    }
+  }
+
+  // -- DataInput API methods --
+
+  /* @see java.io.DataInput#skipBytes(int) */
+  @Override
+  public int skipBytes(int n) throws IOException {
+    restoreFilePointer();
+    int skipped = (int) Math.max(0, Math.min(n, length - fp));
+    seek(fp + skipped);
+    return skipped;
+  }
+
   // -- StreamHandle API methods --
 
   /* @see StreamHandle#resetStream() */
   @Override
   protected void resetStream() throws IOException {
-    if (stream != null) stream.close();
-    if (in != null) {
-      in.close();
-      in = openStream(file);
-    }
-    if (zip != null) zip.close();
-    zip = new ZipInputStream(in);
-    if (entryName != null) seekToEntry();
-    stream = new DataInputStream(new BufferedInputStream(
-      zip, RandomAccessInputStream.MAX_OVERHEAD));
-    stream.mark(RandomAccessInputStream.MAX_OVERHEAD);
+    seek(0);
   }
 
   // -- Helper methods --
 
-  private void seekToEntry() throws IOException {
-    while (!entryName.equals(zip.getNextEntry().getName()));
-  }
+  /** Opens a stream over the given entry. */
+  private void open(DirectoryEntry entry) throws IOException {
+    if (entry == null) {
+      length = 0;
+      stream = new DataInputStream(new ByteArrayInputStream(new byte[0]));
+      return;
+    }
+    entryName = entry.name;
+    length = entry.size;
+    raw = getHandle(file);
+    try {
+      byte[] header = new byte[30];
+      readFully(raw, entry.headerOffset, header);
+      if (getInt(header, 0) != LOCAL_HEADER) {
+        throw new HandleException("Invalid Zip entry header: " + entryName);
+      }
+      dataOffset = entry.headerOffset + header.length +
+        getShort(header, 26) + getShort(header, 28);
 
-  private void populateLength() throws IOException {
-    length = -1;
-    while (stream.available() > 0) {
-      stream.skip(1);
-      length++;
+      if (entry.method == ZipEntry.STORED) {
+        stored = new StoredInputStream();
+        stream = new DataInputStream(stored);
+      }
+      else if (entry.method == ZipEntry.DEFLATED) {
+        inflater = new IndexedGZipInputStream(file, dataOffset, true);
+        stream = new DataInputStream(inflater);
+      }
+      else {
+        throw new HandleException("Unsupported Zip compression method: " +
+          entry.method);
+      }
+    }
+    catch (IOException e) {
+      raw.close();
+      raw = null;
+      throw e;
     }
-    resetStream();
   }
 
   private static IRandomAccess getHandle(String file) throws IOException {
     return Location.getHandle(file, false, false);
   }
 
-  private static RandomAccessInputStream openStream(String file)
+  /** Gets the central directory of the given file. */
+  private static List<DirectoryEntry> getDirectory(String file)
+    throws IOException
+  {
+    Location location = new Location(file);
+    String key = location.getAbsolutePath() + ":" + location.length() + ":" +
+      location.lastModified();
+    synchronized (directories) {
+      List<DirectoryEntry> entries = directories.get(key);
+      if (entries != null) {
+        return entries;
+      }
+    }
+    IRandomAccess handle = getHandle(file);
+    List<DirectoryEntry> entries;
+    try {
+      entries = Collections.unmodifiableList(readDirectory(handle));
+    }
+    finally {
+      handle.close();
+    }
+    synchronized (directories) {
+      directories.put(key, entries);
+    }
+    return entries;
+  }
+
+  /** Reads the central directory. */
+  private static List<DirectoryEntry> readDirectory(IRandomAccess handle)
+    throws IOException
+  {
+    // the end of central directory record is followed by a comment
+    // of up to 65535 bytes
+    long fileLength = handle.length();
+    int tailLength = (int) Math.min(fileLength, END_LENGTH + 65535);
+    long tailOffset = fileLength - tailLength;
+    byte[] tail = new byte[tailLength];
+    readFully(handle, tailOffset, tail);
+    int end = tailLength - END_LENGTH;
+    while (end >= 0 && getInt(tail, end) != END_HEADER) {
+      end--;
+    }
+    if (end < 0) {
+      throw new HandleException("Zip central directory not found");
+    }
+    long count = getShort(tail, end + 10);
+    long size = getUnsignedInt(tail, end + 12);
+    long offset = getUnsignedInt(tail, end + 16);
+
+    if ((count == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) &&
+      tailOffset + end >= 20)
+    {
+      byte[] b = new byte[56];
+      readFully(handle, tailOffset + end - 20, b, 20);
+      if (getInt(b, 0) == ZIP64_LOCATOR) {
+        readFully(handle, getLong(b, 8), b, 56);
+        if (getInt(b, 0) != ZIP64_END_HEADER) {
+          throw new HandleException("Invalid Zip64 central directory");
+        }
+        count = getLong(b, 32);
+        size = getLong(b, 40);
+        offset = getLong(b, 48);
+      }
+    }
+    if (size > Integer.MAX_VALUE) {
+      throw new HandleException("Zip central directory is too large");
+    }
+
+    byte[] dir = new byte[(int) size];
+    readFully(handle, offset, dir);
+    List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+    int p = 0;
+    for (long i=0; i<count; i++) {
+      if (p + 46 > dir.length || getInt(dir, p) != CENTRAL_HEADER) {
+        throw new HandleException("Invalid Zip central directory");
+      }
+      DirectoryEntry entry = new DirectoryEntry();
+      entry.method = getShort(dir, p + 10);
+      entry.compressedSize = getUnsignedInt(dir, p + 20);
+      entry.size = getUnsignedInt(dir, p + 24);
+      int nameLength = getShort(dir, p + 28);
+      int extraLength = getShort(dir, p + 30);
+      int commentLength = getShort(dir, p + 32);
+      entry.headerOffset = getUnsignedInt(dir, p + 42);
+      entry.name = new String(dir, p + 46, nameLength, Constants.ENCODING);
+
+      // Zip64 sizes and offset are only present if the 32-bit value is -1
+      int extra = p + 46 + nameLength;
+      int extraEnd = Math.min(extra + extraLength, dir.length);
+      while (extra + 4 <= extraEnd) {
+        int id = getShort(dir, extra);
+        int length = getShort(dir, extra + 2);
+        int q = extra + 4;
+        if (id == 1) {
+          if (entry.size == 0xffffffffL && q + 8 <= extraEnd) {
+            entry.size = getLong(dir, q);
+            q += 8;
+          }
+          if (entry.compressedSize == 0xffffffffL && q + 8 <= extraEnd) {
+            entry.compressedSize = getLong(dir, q);
+            q += 8;
+          }
+          if (entry.headerOffset == 0xffffffffL && q + 8 <= extraEnd) {
+            entry.headerOffset = getLong(dir, q);
+          }
+        }
+        extra += 4 + length;
+      }
+      entries.add(entry);
+      p += 46 + nameLength + extraLength + commentLength;
+    }
+    return entries;
+  }
+
+  private static void readFully(IRandomAccess handle, long pos, byte[] b)
     throws IOException
   {
-    return new RandomAccessInputStream(getHandle(file), file);
+    readFully(handle, pos, b, b.length);
+  }
+
+  private static void readFully(IRandomAccess handle, long pos, byte[] b,
+    int len) throws IOException
+  {
+    int n = 0;
+    while (n < len) {
+      int r = handle.read(pos + n, b, n, len - n);
+      if (r <= 0) {
+        throw new EOFException();
+      }
+      n += r;
+    }
+  }
+
+  private static int getShort(byte[] b, int off) {
+    return DataTools.bytesToInt(b, off, 2, true);
+  }
+
+  private static int getInt(byte[] b, int off) {
+    return DataTools.bytesToInt(b, off, 4, true);
+  }
+
+  private static long getUnsignedInt(byte[] b, int off) {
+    return getInt(b, off) & 0xffffffffL;
+  }
+
+  private static long getLong(byte[] b, int off) {
+    return DataTools.bytesToLong(b, off, 8, true);
+  }
+
+  // -- Helper classes --
+
+  /** Central directory entry. */
+  private static class DirectoryEntry {
+    String name;
+    int method;
+    long size;
+    long compressedSize;
+    long headerOffset;
+  }
+
+  /** Reads a stored entry directly from the Zip file. */
+  private class StoredInputStream extends InputStream {
+    long pos;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int n = ZipHandle.this.read(pos, b, off, len);
+      if (n > 0) {
+        pos += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skip = Math.max(0, Math.min(n, length - pos));
+      pos += skip;
+      return skip;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, Math.max(0, length - pos));
+    }
   }
 
 }
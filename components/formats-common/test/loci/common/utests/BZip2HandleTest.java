@@ -0,0 +1,153 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.BZip2Handle;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.BZip2Handle}.
+ */
+public class BZip2HandleTest {
+
+  private byte[] data;
+  private File file;
+
+  @BeforeMethod
+  public void setUp() throws IOException, InterruptedException {
+    // with 100 KB blocks, this spans several blocks
+    data = new byte[650000];
+    Random random = new Random(99);
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i % 5 == 0 ? random.nextInt() : i / 1000);
+    }
+
+    File raw = File.createTempFile("blocks", ".dat");
+    raw.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(raw);
+    out.write(data);
+    out.close();
+
+    try {
+      Process p = Runtime.getRuntime().exec(
+        new String[] {"bzip2", "-1", raw.getAbsolutePath()});
+      p.waitFor();
+    }
+    catch (IOException e) {
+      throw new SkipException("bzip2 is not installed");
+    }
+    file = new File(raw.getAbsolutePath() + ".bz2");
+    file.deleteOnExit();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    BZip2Handle.setThreadCount(Runtime.getRuntime().availableProcessors());
+    BZip2Handle.setPersistIndices(false);
+    BZip2Handle.clearIndices();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testRandomAccess() throws IOException {
+    BZip2Handle handle = new BZip2Handle(file.getAbsolutePath());
+    assertEquals(data.length, handle.length());
+    Random random = new Random(7);
+    byte[] b = new byte[2000];
+    for (int i=0; i<50; i++) {
+      int pos = random.nextInt(data.length - b.length);
+      handle.seek(pos);
+      handle.readFully(b);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(data, pos, pos + 2000), b));
+      assertEquals(pos + b.length, handle.getFilePointer());
+    }
+    handle.close();
+  }
+
+  @Test
+  public void testParallelRead() throws IOException {
+    checkFullRead(4);
+  }
+
+  @Test
+  public void testSerialRead() throws IOException {
+    checkFullRead(1);
+  }
+
+  @Test
+  public void testPersistedIndex() throws IOException {
+    BZip2Handle.setPersistIndices(true);
+    File indexFile = new File(file.getPath() + BZip2Handle.INDEX_SUFFIX);
+    indexFile.deleteOnExit();
+    new BZip2Handle(file.getAbsolutePath()).close();
+    assertTrue(indexFile.exists());
+
+    BZip2Handle.clearIndices();
+    checkFullRead(2);
+  }
+
+  // -- Helper methods --
+
+  private void checkFullRead(int threads) throws IOException {
+    BZip2Handle.setThreadCount(threads);
+    BZip2Handle handle = new BZip2Handle(file.getAbsolutePath());
+    handle.seek(12345);
+    byte[] b = new byte[data.length - 12345];
+    assertEquals(b.length, handle.read(b));
+    assertTrue(Arrays.equals(
+      Arrays.copyOfRange(data, 12345, data.length), b));
+    assertEquals(data.length, handle.getFilePointer());
+
+    // sequential reads continue from the end of a parallel read
+    handle.seek(99000);
+    b = new byte[250000];
+    handle.readFully(b);
+    assertEquals(data[349000], handle.readByte());
+    handle.close();
+  }
+
+}
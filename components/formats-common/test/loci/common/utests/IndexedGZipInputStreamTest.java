@@ -0,0 +1,241 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import loci.common.GZipHandle;
+import loci.common.IndexedGZipInputStream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.IndexedGZipInputStream}.
+ */
+public class IndexedGZipInputStreamTest {
+
+  private static final int SPACING = 65536;
+
+  private byte[] data;
+
+  @BeforeMethod
+  public void setUp() {
+    IndexedGZipInputStream.setDefaultSpacing(SPACING);
+    IndexedGZipInputStream.setPersistIndices(false);
+
+    // mix of random and repetitive data, so that blocks of every type occur
+    Random random = new Random(1234);
+    data = new byte[1024 * 1024 + 12345];
+    for (int i=0; i<data.length; i+=4096) {
+      int end = Math.min(i + 4096, data.length);
+      if ((i / 4096) % 3 == 0) {
+        for (int j=i; j<end; j++) {
+          data[j] = (byte) random.nextInt();
+        }
+      }
+      else {
+        for (int j=i; j<end; j++) {
+          data[j] = (byte) ((j % 17) * (i / 4096));
+        }
+      }
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    IndexedGZipInputStream.setDefaultSpacing(
+      IndexedGZipInputStream.DEFAULT_SPACING);
+    IndexedGZipInputStream.setPersistIndices(false);
+    IndexedGZipInputStream.clearIndices();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testRandomAccess() throws IOException {
+    checkRandomAccess(write(Deflater.DEFAULT_COMPRESSION, 1));
+  }
+
+  @Test
+  public void testStoredBlocks() throws IOException {
+    checkRandomAccess(write(Deflater.NO_COMPRESSION, 1));
+  }
+
+  @Test
+  public void testMultipleMembers() throws IOException {
+    checkRandomAccess(write(Deflater.BEST_COMPRESSION, 5));
+  }
+
+  @Test
+  public void testGZipHandle() throws IOException {
+    File file = write(Deflater.DEFAULT_COMPRESSION, 2);
+    GZipHandle handle = new GZipHandle(file.getAbsolutePath());
+    assertEquals(data.length, handle.length());
+    byte[] b = new byte[1000];
+    for (long pos : new long[] {900000, 10, 500000, 0, data.length - 1000}) {
+      handle.seek(pos);
+      handle.readFully(b);
+      assertTrue(Arrays.equals(
+        Arrays.copyOfRange(data, (int) pos, (int) pos + b.length), b));
+    }
+    handle.close();
+  }
+
+  @Test
+  public void testPersistedIndex() throws IOException {
+    IndexedGZipInputStream.setPersistIndices(true);
+    File file = write(Deflater.DEFAULT_COMPRESSION, 1);
+    File indexFile =
+      new File(file.getPath() + IndexedGZipInputStream.INDEX_SUFFIX);
+    indexFile.deleteOnExit();
+
+    IndexedGZipInputStream s =
+      new IndexedGZipInputStream(file.getAbsolutePath());
+    assertEquals(data.length, s.length());
+    s.close();
+    assertTrue(indexFile.exists());
+
+    IndexedGZipInputStream.clearIndices();
+    checkRandomAccess(file);
+  }
+
+  @Test(expectedExceptions={IOException.class})
+  public void testNotGZip() throws IOException {
+    File file = File.createTempFile("indexed", ".gz");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(data, 0, 100);
+    out.close();
+    new IndexedGZipInputStream(file.getAbsolutePath());
+  }
+
+  @Test(expectedExceptions={IOException.class})
+  public void testCorruptCRC() throws IOException {
+    File file = write(Deflater.DEFAULT_COMPRESSION, 1);
+    corrupt(file, file.length() - 8);
+    new IndexedGZipInputStream(file.getAbsolutePath()).length();
+  }
+
+  @Test(expectedExceptions={IOException.class})
+  public void testCorruptLength() throws IOException {
+    File file = write(Deflater.DEFAULT_COMPRESSION, 2);
+    IndexedGZipInputStream s =
+      new IndexedGZipInputStream(file.getAbsolutePath());
+    s.length();
+    s.close();
+
+    // keep the modification time, so that the index is reused and reading
+    // starts from a checkpoint in the middle of the last member
+    long modified = file.lastModified();
+    corrupt(file, file.length() - 4);
+    file.setLastModified(modified);
+    s = new IndexedGZipInputStream(file.getAbsolutePath());
+    s.seek(data.length - 1000);
+    s.skip(1000);
+    s.read();
+  }
+
+  // -- Helper methods --
+
+  /** Flips the bits of the byte at the given offset. */
+  private void corrupt(File file, long offset) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(offset);
+    int b = raf.read();
+    raf.seek(offset);
+    raf.write(~b);
+    raf.close();
+  }
+
+  private void checkRandomAccess(File file) throws IOException {
+    IndexedGZipInputStream s =
+      new IndexedGZipInputStream(file.getAbsolutePath());
+    assertEquals(data.length, s.length());
+    Random random = new Random(5678);
+    byte[] b = new byte[3000];
+    for (int i=0; i<200; i++) {
+      int pos = random.nextInt(data.length);
+      int len = Math.min(b.length, data.length - pos);
+      s.seek(pos);
+      assertEquals(pos, s.getFilePointer());
+      int n = 0;
+      while (n < len) {
+        int r = s.read(b, n, len - n);
+        assertTrue(r > 0);
+        n += r;
+      }
+      for (int j=0; j<len; j++) {
+        assertEquals(data[pos + j], b[j]);
+      }
+    }
+    s.seek(data.length);
+    assertEquals(-1, s.read());
+    s.close();
+  }
+
+  private File write(final int level, int members) throws IOException {
+    File file = File.createTempFile("indexed", ".gz");
+    file.deleteOnExit();
+    OutputStream out = new FileOutputStream(file);
+    int memberSize = data.length / members + 1;
+    for (int offset=0; offset<data.length; offset+=memberSize) {
+      GZIPOutputStream gz = new GZIPOutputStream(out) {
+        {
+          def.setLevel(level);
+        }
+        @Override
+        public void close() throws IOException {
+          finish();
+        }
+      };
+      gz.write(data, offset, Math.min(memberSize, data.length - offset));
+      gz.close();
+    }
+    out.close();
+    return file;
+  }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import loci.common.NIOBufferPool;
+import loci.common.NIOFileHandle;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.NIOBufferPool}.
+ */
+public class NIOBufferPoolTest {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private File file;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    NIOBufferPool.setMaximumSize(NIOBufferPool.DEFAULT_MAXIMUM_SIZE);
+    NIOBufferPool.clear();
+    file = File.createTempFile("pool", ".dat");
+    file.deleteOnExit();
+    byte[] data = new byte[BUFFER_SIZE * 4];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) i;
+    }
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    NIOBufferPool.setMaximumSize(NIOBufferPool.DEFAULT_MAXIMUM_SIZE);
+    NIOBufferPool.clear();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testRefillReusesBuffer() throws IOException {
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+    try {
+      for (int i=0; i<4; i++) {
+        handle.seek(i * BUFFER_SIZE + 1);
+        assertEquals((byte) (i * BUFFER_SIZE + 1), handle.readByte());
+      }
+    }
+    finally {
+      handle.close();
+    }
+    assertEquals(1, NIOBufferPool.getAllocationCount());
+    assertTrue(NIOBufferPool.getReuseCount() >= 3);
+    assertEquals(0, NIOBufferPool.getMissCount());
+  }
+
+  @Test
+  public void testReleasedBufferIsRecycled() throws IOException {
+    new NIOFileHandle(file, "r", BUFFER_SIZE).close();
+    long reuses = NIOBufferPool.getReuseCount();
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+    try {
+      assertEquals(0, handle.readByte());
+    }
+    finally {
+      handle.close();
+    }
+    assertEquals(1, NIOBufferPool.getAllocationCount());
+    assertEquals(reuses + 1, NIOBufferPool.getReuseCount());
+  }
+
+  @Test
+  public void testBudgetExhausted() throws IOException {
+    NIOBufferPool.setMaximumSize(0);
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+    try {
+      handle.seek(BUFFER_SIZE * 2 + 5);
+      assertEquals((byte) (BUFFER_SIZE * 2 + 5), handle.readByte());
+    }
+    finally {
+      handle.close();
+    }
+    assertEquals(0, NIOBufferPool.getAllocationCount());
+    assertTrue(NIOBufferPool.getMissCount() > 0);
+  }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import loci.common.IRandomAccess;
+import loci.common.Location;
+import loci.common.NIOFileHandle;
+import loci.common.NIOFileHandlePool;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.NIOFileHandlePool}.
+ */
+public class NIOFileHandlePoolTest {
+
+  private File file;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    Location.reset();
+    Location.cacheFileHandles(true);
+    file = File.createTempFile("handles", ".dat");
+    file.deleteOnExit();
+    write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Location.reset();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testReopenReusesFile() throws IOException {
+    Location.getHandle(file.getAbsolutePath()).close();
+    IRandomAccess handle = Location.getHandle(file.getAbsolutePath());
+    assertEquals(1, handle.readByte());
+    handle.close();
+    assertEquals(1, NIOFileHandlePool.getOpenedCount());
+    assertEquals(1, NIOFileHandlePool.getReuseCount());
+    assertEquals(1, NIOFileHandlePool.getOpenCount());
+  }
+
+  @Test
+  public void testSharedHandlesAreIndependent() throws IOException {
+    IRandomAccess a = Location.getHandle(file.getAbsolutePath());
+    IRandomAccess b = Location.getHandle(file.getAbsolutePath());
+    a.seek(4);
+    assertEquals(5, a.readByte());
+    assertEquals(1, b.readByte());
+    a.close();
+    assertEquals(2, b.readByte());
+    b.close();
+    assertEquals(1, NIOFileHandlePool.getOpenedCount());
+  }
+
+  @Test
+  public void testRepeatedClose() throws IOException {
+    IRandomAccess a = Location.getHandle(file.getAbsolutePath());
+    IRandomAccess b = Location.getHandle(file.getAbsolutePath());
+    a.close();
+    a.close();
+    assertEquals(1, b.readByte());
+    b.close();
+    assertEquals(1, NIOFileHandlePool.getOpenCount());
+    IRandomAccess c = Location.getHandle(file.getAbsolutePath());
+    assertEquals(1, c.readByte());
+    c.close();
+    assertEquals(1, NIOFileHandlePool.getOpenedCount());
+  }
+
+  @Test
+  public void testClosedChannelIsNotShared() throws IOException {
+    String path = file.getAbsolutePath();
+    NIOFileHandle a = (NIOFileHandle) Location.getHandle(path);
+    IRandomAccess b = Location.getHandle(path);
+    a.seek(2);
+    FileChannel channel = a.getFileChannel();
+    assertEquals(2, channel.position());
+    assertEquals(3, a.readByte());
+    channel.close();
+    a.getRandomAccessFile().close();
+    a.close();
+    assertEquals(1, b.readByte());
+    b.close();
+    assertEquals(1, NIOFileHandlePool.getOpenedCount());
+  }
+
+  @Test
+  public void testModifiedFileIsReopened() throws IOException {
+    Location.getHandle(file.getAbsolutePath()).close();
+    write(new byte[] {9, 10, 11});
+    IRandomAccess handle = Location.getHandle(file.getAbsolutePath());
+    assertEquals(3, handle.length());
+    assertEquals(9, handle.readByte());
+    handle.close();
+    assertEquals(2, NIOFileHandlePool.getOpenedCount());
+    assertEquals(1, NIOFileHandlePool.getOpenCount());
+  }
+
+  @Test
+  public void testSizeLimit() throws IOException {
+    Location.setFileHandleCacheSize(0);
+    IRandomAccess handle = Location.getHandle(file.getAbsolutePath());
+    assertEquals(1, NIOFileHandlePool.getOpenCount());
+    handle.close();
+    assertEquals(0, NIOFileHandlePool.getOpenCount());
+  }
+
+  @Test
+  public void testTimeout() throws IOException {
+    Location.setFileHandleCacheTimeout(0);
+    Location.getHandle(file.getAbsolutePath()).close();
+    Location.clearFileHandleCache();
+    assertEquals(0, NIOFileHandlePool.getOpenCount());
+  }
+
+  @Test
+  public void testWritableHandlesAreNotPooled() throws IOException {
+    Location.getHandle(file.getAbsolutePath(), true).close();
+    assertEquals(0, NIOFileHandlePool.getOpenedCount());
+  }
+
+  // -- Helper methods --
+
+  private void write(byte[] data) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+}
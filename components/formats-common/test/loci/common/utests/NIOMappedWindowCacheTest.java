@@ -0,0 +1,153 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import loci.common.NIOFileHandle;
+import loci.common.NIOMappedWindowCache;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.NIOMappedWindowCache}.
+ */
+public class NIOMappedWindowCacheTest {
+
+  private static final int WINDOW_SIZE = 4096;
+
+  private static final int WINDOWS = 4;
+
+  private File file;
+
+  /** Number of windows still referenced by handles of other tests. */
+  private int pinned;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    NIOMappedWindowCache.setWindowSize(WINDOW_SIZE);
+    NIOMappedWindowCache.clear();
+    pinned = NIOMappedWindowCache.getMappingCount();
+    NIOMappedWindowCache.setWindowCount(pinned + 2);
+    file = File.createTempFile("windows", ".dat");
+    file.deleteOnExit();
+    byte[] data = new byte[WINDOW_SIZE * WINDOWS];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i / WINDOW_SIZE + i);
+    }
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(data);
+    out.close();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    NIOMappedWindowCache.setWindowSize(
+      NIOMappedWindowCache.DEFAULT_WINDOW_SIZE);
+    NIOMappedWindowCache.setWindowCount(
+      NIOMappedWindowCache.DEFAULT_WINDOW_COUNT);
+    NIOMappedWindowCache.clear();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testSharedWindow() throws IOException {
+    NIOFileHandle a = open();
+    NIOFileHandle b = open();
+    assertWindow(a, 1);
+    long misses = NIOMappedWindowCache.getMissCount();
+    assertWindow(b, 1);
+    assertEquals(misses, NIOMappedWindowCache.getMissCount());
+
+    // the first window, mapped when the handles were opened, stays cached
+    assertEquals(pinned + 2, NIOMappedWindowCache.getMappingCount());
+    a.close();
+    b.close();
+  }
+
+  @Test
+  public void testReferencedWindowsAreCounted() throws IOException {
+    NIOFileHandle a = open();
+    NIOFileHandle b = open();
+    NIOFileHandle c = open();
+    assertWindow(a, 0);
+    assertWindow(b, 1);
+
+    // both live windows are referenced, so none is mapped for the third
+    // handle, which still reads the right data
+    assertWindow(c, 2);
+    assertEquals(pinned + 2, NIOMappedWindowCache.getMappingCount());
+    assertEquals(2, NIOMappedWindowCache.getMissCount());
+    assertEquals(1, NIOMappedWindowCache.getRefusalCount());
+
+    // closing a handle releases its window, which can then be replaced
+    a.close();
+    assertWindow(c, 3);
+    assertEquals(pinned + 2, NIOMappedWindowCache.getMappingCount());
+    assertEquals(3, NIOMappedWindowCache.getMissCount());
+
+    // moving to another window releases the previous one
+    assertWindow(b, 2);
+    assertEquals(pinned + 2, NIOMappedWindowCache.getMappingCount());
+    assertEquals(4, NIOMappedWindowCache.getMissCount());
+    b.close();
+    c.close();
+    assertEquals(pinned + 2, NIOMappedWindowCache.getMappingCount());
+    NIOMappedWindowCache.clear();
+    assertEquals(pinned, NIOMappedWindowCache.getMappingCount());
+  }
+
+  // -- Helper methods --
+
+  private NIOFileHandle open() throws IOException {
+    return new NIOFileHandle(file, "r", 1024, true);
+  }
+
+  /** Reads from the given window and checks the data. */
+  private void assertWindow(NIOFileHandle handle, int window)
+    throws IOException
+  {
+    long pos = (long) window * WINDOW_SIZE + 100;
+    handle.seek(pos);
+    assertEquals((byte) (window + pos), handle.readByte());
+  }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.NIOFileHandle;
+import loci.common.NIOReadAhead;
+import loci.common.RandomAccessInputStream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.NIOReadAhead}.
+ */
+public class NIOReadAheadTest {
+
+  private static final int BUFFER_SIZE = 4096;
+
+  private byte[] data;
+  private File file;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    data = new byte[BUFFER_SIZE * 50 + 123];
+    new Random(7).nextBytes(data);
+    file = File.createTempFile("readahead", ".dat");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(data);
+    out.close();
+    NIOReadAhead.resetCounters();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testDisabledByDefault() throws IOException {
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+    try {
+      assertFalse(handle.isReadAhead());
+    }
+    finally {
+      handle.close();
+    }
+    NIOFileHandle rw = new NIOFileHandle(file, "rw", BUFFER_SIZE);
+    try {
+      rw.setReadAhead(true);
+      assertFalse(rw.isReadAhead());
+    }
+    finally {
+      rw.close();
+    }
+  }
+
+  @Test
+  public void testSequentialRead() throws IOException {
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+    handle.setReadAhead(true);
+    assertTrue(handle.isReadAhead());
+    byte[] read = new byte[data.length];
+    int offset = 0;
+    try {
+      while (offset < read.length) {
+        int len = Math.min(1000, read.length - offset);
+        assertEquals(len, handle.read(read, offset, len));
+        offset += len;
+      }
+    }
+    finally {
+      handle.close();
+    }
+    assertTrue(Arrays.equals(data, read));
+    assertTrue(NIOReadAhead.getPrefetchCount() > 0);
+    assertTrue(NIOReadAhead.getHitCount() > 0);
+    assertTrue(NIOReadAhead.getHitCount() <= NIOReadAhead.getPrefetchCount());
+  }
+
+  @Test
+  public void testLargeRead() throws IOException {
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+    handle.setReadAhead(true);
+    byte[] read = new byte[data.length - 10];
+    try {
+      handle.seek(10);
+      assertEquals(read.length, handle.read(read));
+    }
+    finally {
+      handle.close();
+    }
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10, data.length), read));
+    assertTrue(NIOReadAhead.getHitCount() > 0);
+  }
+
+  @Test
+  public void testSequentialPrimitives() throws IOException {
+    RandomAccessInputStream stream =
+      new RandomAccessInputStream(file.getAbsolutePath(), BUFFER_SIZE);
+    stream.setReadAhead(true);
+    stream.order(true);
+    try {
+      for (int i=0; i+4<=data.length; i+=3) {
+        stream.seek(i);
+        int expected = (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8) |
+          ((data[i + 2] & 0xff) << 16) | ((data[i + 3] & 0xff) << 24);
+        assertEquals(expected, stream.readInt());
+      }
+    }
+    finally {
+      stream.close();
+    }
+    assertTrue(NIOReadAhead.getHitCount() > 0);
+  }
+
+  @Test
+  public void testRandomRead() throws IOException {
+    NIOFileHandle handle = new NIOFileHandle(file, "r", BUFFER_SIZE);
+    handle.setReadAhead(true);
+    Random random = new Random(11);
+    byte[] read = new byte[100];
+    try {
+      for (int i=0; i<200; i++) {
+        long pos = random.nextInt(data.length - read.length);
+        handle.seek(pos);
+        handle.readFully(read);
+        for (int j=0; j<read.length; j++) {
+          assertEquals(data[(int) pos + j], read[j]);
+        }
+      }
+    }
+    finally {
+      handle.close();
+    }
+    // random reads almost never continue the previous window
+    assertTrue(NIOReadAhead.getPrefetchCount() < 20);
+    assertEquals(NIOReadAhead.getPrefetchCount(),
+      NIOReadAhead.getHitCount() + NIOReadAhead.getWasteCount());
+  }
+
+}
@@ -118,6 +118,37 @@ public class RandomAccessInputStreamTest {
     }
   }
 
+  @Test
+  public void testPositionalRead() throws IOException {
+    stream.seek(5);
+    byte[] buf = new byte[PAGE.length];
+    stream.readFully(PAGE.length - 20, buf, 0, 20);
+    for (int i=0; i<20; i++) {
+      assertEquals(PAGE[PAGE.length - 20 + i], buf[i]);
+    }
+    assertEquals(4, stream.read(PAGE.length - 4, buf, 0, buf.length));
+    assertEquals(-1, stream.read(PAGE.length, buf, 0, buf.length));
+    assertEquals(5, stream.getFilePointer());
+  }
+
+  @Test
+  public void testStridedRead() throws IOException {
+    byte[] buf = new byte[21];
+    assertEquals(21, stream.readStrided(5, 3, 8, 7, buf, 0));
+    for (int row=0; row<7; row++) {
+      for (int i=0; i<3; i++) {
+        assertEquals(PAGE[5 + row * 8 + i], buf[row * 3 + i]);
+      }
+    }
+    assertEquals(56, stream.getFilePointer());
+
+    // rows are truncated at the end of the stream
+    assertEquals(5, stream.readStrided(58, 4, 5, 3, buf, 1));
+    assertEquals(PAGE[58], buf[1]);
+    assertEquals(PAGE[63], buf[5]);
+    assertEquals(PAGE.length, stream.getFilePointer());
+  }
+
   @Test
   public void testRandomRead() throws IOException {
     long fp = PAGE.length / 2;
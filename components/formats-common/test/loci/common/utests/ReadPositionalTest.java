@@ -0,0 +1,159 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import loci.common.IRandomAccess;
+import loci.common.utests.providers.IRandomAccessProvider;
+import loci.common.utests.providers.IRandomAccessProviderFactory;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for reading at an absolute offset from a loci.common.IRandomAccess.
+ *
+ * @see loci.common.IRandomAccess
+ */
+@Test(groups="readTests")
+public class ReadPositionalTest {
+
+  private static final byte[] PAGE = new byte[] {
+    (byte) 0x01, (byte) 0x02, (byte) 0x03, (byte) 0x04,
+    (byte) 0x05, (byte) 0x06, (byte) 0x07, (byte) 0x08,
+    (byte) 0x09, (byte) 0x0A, (byte) 0x0B, (byte) 0x0C,
+    (byte) 0x0D, (byte) 0x0E, (byte) 0xFF, (byte) 0xFE
+  };
+
+  private static final String MODE = "r";
+
+  private static final int BUFFER_SIZE = 1024;
+
+  private IRandomAccess fileHandle;
+
+  @Parameters({"provider"})
+  @BeforeMethod
+  public void setUp(String provider) throws IOException {
+    IRandomAccessProviderFactory factory = new IRandomAccessProviderFactory();
+    IRandomAccessProvider instance = factory.getInstance(provider);
+    fileHandle = instance.createMock(PAGE, MODE, BUFFER_SIZE);
+  }
+
+  @Test
+  public void testReadArray() throws IOException {
+    byte[] b = new byte[6];
+    assertEquals(4, fileHandle.read(6, b, 1, 4));
+    assertEquals(0, b[0]);
+    assertEquals(0x07, b[1]);
+    assertEquals(0x08, b[2]);
+    assertEquals(0x09, b[3]);
+    assertEquals(0x0A, b[4]);
+    assertEquals(0, b[5]);
+    assertEquals(0, fileHandle.getFilePointer());
+  }
+
+  @Test
+  public void testReadDoesNotMoveFilePointer() throws IOException {
+    fileHandle.seek(3);
+    byte[] b = new byte[2];
+    assertEquals(2, fileHandle.read(12, b, 0, 2));
+    assertEquals(0x0D, b[0]);
+    assertEquals(0x0E, b[1]);
+    assertEquals(3, fileHandle.getFilePointer());
+    assertEquals(0x04, fileHandle.readByte());
+  }
+
+  @Test
+  public void testConsecutiveReads() throws IOException {
+    fileHandle.seek(2);
+    byte[] b = new byte[2];
+    for (int pos=4; pos<PAGE.length; pos+=4) {
+      assertEquals(2, fileHandle.read(pos, b, 0, 2));
+      assertEquals(PAGE[pos], b[0]);
+      assertEquals(PAGE[pos + 1], b[1]);
+      assertEquals(2, fileHandle.getFilePointer());
+    }
+    assertEquals(0x03, fileHandle.readByte());
+    assertEquals(3, fileHandle.getFilePointer());
+  }
+
+  @Test
+  public void testSeekAfterRead() throws IOException {
+    fileHandle.seek(1);
+    byte[] b = new byte[2];
+    assertEquals(2, fileHandle.read(10, b, 0, 2));
+    fileHandle.seek(5);
+    assertEquals(5, fileHandle.getFilePointer());
+    assertEquals(0x06, fileHandle.readByte());
+    assertEquals(2, fileHandle.read(0, b, 0, 2));
+    assertEquals(1, fileHandle.skipBytes(1));
+    assertEquals(0x08, fileHandle.readByte());
+  }
+
+  @Test
+  public void testReadPastEnd() throws IOException {
+    byte[] b = new byte[8];
+    assertEquals(2, fileHandle.read(14, b, 0, 8));
+    assertEquals(-1, b[0]);
+    assertEquals(-2, b[1]);
+    assertEquals(-1, fileHandle.read(16, b, 0, 8));
+  }
+
+  @Test
+  public void testReadByteBuffer() throws IOException {
+    ByteBuffer b = ByteBuffer.allocate(4);
+    b.position(1);
+    assertEquals(3, fileHandle.read(0, b));
+    assertEquals(4, b.position());
+    assertEquals(0, b.get(0));
+    assertEquals(0x01, b.get(1));
+    assertEquals(0x02, b.get(2));
+    assertEquals(0x03, b.get(3));
+    assertEquals(0, fileHandle.getFilePointer());
+  }
+
+  @Test
+  public void testReadDirectByteBuffer() throws IOException {
+    ByteBuffer b = ByteBuffer.allocateDirect(4);
+    assertEquals(2, fileHandle.read(14, b));
+    assertEquals(2, b.position());
+    assertEquals(-1, b.get(0));
+    assertEquals(-2, b.get(1));
+  }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import loci.common.RandomAccessInputStream;
+import loci.common.StreamHandle;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that positional and strided reads from a
+ * {@link loci.common.StreamHandle} do not seek backwards more often than
+ * necessary.
+ */
+public class StreamHandleTest {
+
+  private static final int LENGTH = 4096;
+
+  private CountingHandle handle;
+
+  /** Stream handle that counts how often the stream is reopened. */
+  private static class CountingHandle extends StreamHandle {
+
+    private byte[] data;
+
+    private int resets;
+
+    public CountingHandle(byte[] data) throws IOException {
+      this.data = data;
+      length = data.length;
+      resetStream();
+      resets = 0;
+    }
+
+    @Override
+    protected void resetStream() throws IOException {
+      stream = new DataInputStream(new ByteArrayInputStream(data));
+      fp = 0;
+      mark = 0;
+      resets++;
+    }
+  }
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    byte[] data = new byte[LENGTH];
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) i;
+    }
+    handle = new CountingHandle(data);
+  }
+
+  @Test
+  public void testForwardReads() throws IOException {
+    byte[] b = new byte[16];
+    for (int pos=0; pos<LENGTH; pos+=64) {
+      assertEquals(b.length, handle.read(pos, b, 0, b.length));
+      assertEquals((byte) pos, b[0]);
+      assertEquals(0, handle.getFilePointer());
+    }
+    assertEquals(0, handle.resets);
+
+    // the file pointer is only restored by the next relative read
+    assertEquals(0, handle.readByte());
+    assertEquals(1, handle.resets);
+    assertEquals(1, handle.readByte());
+    assertEquals(1, handle.resets);
+  }
+
+  @Test
+  public void testSeekAfterReads() throws IOException {
+    byte[] b = new byte[16];
+    handle.seek(100);
+    assertEquals(b.length, handle.read(1000, b, 0, b.length));
+    assertEquals(b.length, handle.read(2000, b, 0, b.length));
+    handle.seek(3000);
+    assertEquals((byte) 3000, handle.readByte());
+    assertEquals(0, handle.resets);
+  }
+
+  @Test
+  public void testReadStrided() throws IOException {
+    RandomAccessInputStream stream = new RandomAccessInputStream(handle);
+    int[][] layouts = {{100, 8, 64, 40}, {0, 16, 16, 10}, {3000, 5, 200, 5}};
+    for (int[] layout : layouts) {
+      int pos = layout[0], rowLength = layout[1];
+      int stride = layout[2], rows = layout[3];
+      byte[] b = new byte[rowLength * rows];
+      if (layout[0] == 0) {
+        stream.seek(0);
+      }
+      assertEquals(b.length,
+        stream.readStrided(pos, rowLength, stride, rows, b, 0));
+      for (int row=0; row<rows; row++) {
+        for (int i=0; i<rowLength; i++) {
+          assertEquals((byte) (pos + row * stride + i), b[row * rowLength + i]);
+        }
+      }
+      assertEquals(pos + (rows - 1) * stride + rowLength,
+        stream.getFilePointer());
+    }
+    // only the explicit seek back to the start rewinds the stream
+    assertEquals(1, handle.resets);
+
+    // rows past the end of the stream are not read
+    byte[] b = new byte[64];
+    assertEquals(24, stream.readStrided(LENGTH - 40, 8, 16, 8, b, 0));
+    assertEquals(LENGTH, stream.getFilePointer());
+    assertEquals(1, handle.resets);
+  }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import loci.common.URLHandle;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for range requests in {@link loci.common.URLHandle}, using a
+ * local HTTP server.
+ */
+public class URLHandleRangeTest {
+
+  private static final int BLOCK_SIZE = 1024;
+
+  private byte[] data;
+  private HttpServer server;
+  private String base;
+
+  @BeforeClass
+  public void startServer() throws IOException {
+    data = new byte[BLOCK_SIZE * 20 + 77];
+    new Random(3).nextBytes(data);
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/range/", new DataHandler(true));
+    server.createContext("/norange/", new DataHandler(false));
+    server.start();
+    base = "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @BeforeMethod
+  public void setUp() {
+    URLHandle.setBlockSize(BLOCK_SIZE);
+    URLHandle.clearCache();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    URLHandle.setBlockSize(URLHandle.DEFAULT_BLOCK_SIZE);
+    URLHandle.clearCache();
+  }
+
+  @Test
+  public void testRandomAccess() throws IOException {
+    URLHandle handle = new URLHandle(base + "/range/a.tif");
+    assertTrue(handle.isRangeSupported());
+    assertEquals(data.length, handle.length());
+    Random random = new Random(5);
+    for (int i=0; i<100; i++) {
+      int pos = random.nextInt(data.length);
+      int len = Math.min(random.nextInt(3 * BLOCK_SIZE), data.length - pos);
+      byte[] b = new byte[len];
+      handle.seek(pos);
+      handle.readFully(b);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(data, pos, pos + len), b));
+      assertEquals(pos + len, handle.getFilePointer());
+    }
+    handle.close();
+  }
+
+  @Test
+  public void testCoalescedRequests() throws IOException {
+    URLHandle handle = new URLHandle(base + "/range/b.tif");
+    assertEquals(1, URLHandle.getRequestCount());
+    byte[] b = new byte[BLOCK_SIZE * 4];
+    assertEquals(b.length, handle.read(2L * BLOCK_SIZE + 10, b, 0, b.length));
+    assertEquals(2, URLHandle.getRequestCount());
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data,
+      2 * BLOCK_SIZE + 10, 6 * BLOCK_SIZE + 10), b));
+
+    // cached blocks are not requested again
+    assertEquals(b.length, handle.read(2L * BLOCK_SIZE, b, 0, b.length));
+    assertEquals(2, URLHandle.getRequestCount());
+    assertEquals(0, handle.getFilePointer());
+    handle.close();
+  }
+
+  @Test
+  public void testParallelRequests() throws IOException {
+    URLHandle handle = new URLHandle(base + "/range/c.tif");
+    byte[] b = new byte[BLOCK_SIZE];
+    handle.read(10L * BLOCK_SIZE, b, 0, b.length);
+    assertEquals(2, URLHandle.getRequestCount());
+
+    // blocks 8-9 and 11-12 are missing, and are fetched separately
+    b = new byte[BLOCK_SIZE * 5];
+    assertEquals(b.length, handle.read(8L * BLOCK_SIZE, b, 0, b.length));
+    assertEquals(4, URLHandle.getRequestCount());
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data,
+      8 * BLOCK_SIZE, 13 * BLOCK_SIZE), b));
+    handle.close();
+  }
+
+  @Test
+  public void testPrimitives() throws IOException {
+    URLHandle handle = new URLHandle(base + "/range/d.tif");
+    for (int pos=BLOCK_SIZE-8; pos<BLOCK_SIZE+8; pos++) {
+      handle.seek(pos);
+      int expected = ((data[pos] & 0xff) << 24) |
+        ((data[pos + 1] & 0xff) << 16) | ((data[pos + 2] & 0xff) << 8) |
+        (data[pos + 3] & 0xff);
+      assertEquals(expected, handle.readInt());
+      assertEquals(pos + 4, handle.getFilePointer());
+    }
+    handle.seek(data.length - 1);
+    assertEquals(data[data.length - 1], handle.readByte());
+    assertEquals(-1, handle.read(data.length, new byte[1], 0, 1));
+    handle.close();
+  }
+
+  @Test
+  public void testRangesIgnored() throws IOException {
+    URLHandle handle = new URLHandle(base + "/norange/e.tif");
+    assertFalse(handle.isRangeSupported());
+    assertEquals(data.length, handle.length());
+    byte[] b = new byte[100];
+    handle.seek(5000);
+    handle.readFully(b);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, 5000, 5100), b));
+    handle.seek(10);
+    handle.readFully(b);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10, 110), b));
+    handle.close();
+  }
+
+  // -- Helper classes --
+
+  /** Serves the test data, honouring single range requests if requested. */
+  private class DataHandler implements HttpHandler {
+    private final boolean ranges;
+
+    DataHandler(boolean ranges) {
+      this.ranges = ranges;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      int start = 0;
+      int end = data.length - 1;
+      int code = 200;
+      if (ranges && range != null && range.startsWith("bytes=")) {
+        String[] bounds = range.substring(6).split("-");
+        start = Integer.parseInt(bounds[0]);
+        if (bounds.length > 1) {
+          end = Math.min(end, Integer.parseInt(bounds[1]));
+        }
+        code = 206;
+        exchange.getResponseHeaders().set("Content-Range",
+          "bytes " + start + "-" + end + "/" + data.length);
+      }
+      exchange.sendResponseHeaders(code, end - start + 1);
+      OutputStream out = exchange.getResponseBody();
+      out.write(data, start, end - start + 1);
+      out.close();
+    }
+  }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * #%L
+ * Common package for I/O and related utilities
+ * %%
+ * Copyright (C) 2005 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.common.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import loci.common.ZipHandle;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link loci.common.ZipHandle}.
+ */
+public class ZipHandleTest {
+
+  private byte[] data;
+  private File file;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    data = new byte[300000];
+    Random random = new Random(42);
+    for (int i=0; i<data.length; i++) {
+      data[i] = (byte) (i % 3 == 0 ? random.nextInt() : i / 100);
+    }
+
+    file = File.createTempFile("entries", ".zip");
+    file.deleteOnExit();
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+    out.putNextEntry(new ZipEntry("empty/"));
+    out.closeEntry();
+
+    ZipEntry stored = new ZipEntry("stored.dat");
+    stored.setMethod(ZipEntry.STORED);
+    stored.setSize(data.length);
+    stored.setCompressedSize(data.length);
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    stored.setCrc(crc.getValue());
+    out.putNextEntry(stored);
+    out.write(data);
+    out.closeEntry();
+
+    out.putNextEntry(new ZipEntry("deflated.dat"));
+    out.write(data);
+    out.closeEntry();
+    out.close();
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testEntries() throws IOException {
+    List<ZipEntry> entries = ZipHandle.getEntries(file.getAbsolutePath());
+    assertEquals(3, entries.size());
+    assertEquals("empty/", entries.get(0).getName());
+    assertEquals("stored.dat", entries.get(1).getName());
+    assertEquals(ZipEntry.STORED, entries.get(1).getMethod());
+    assertEquals(data.length, entries.get(1).getSize());
+    assertEquals("deflated.dat", entries.get(2).getName());
+    assertEquals(ZipEntry.DEFLATED, entries.get(2).getMethod());
+    assertEquals(data.length, entries.get(2).getSize());
+
+    ZipHandle handle = new ZipHandle(file.getAbsolutePath());
+    assertEquals(3, handle.getEntryCount());
+    assertEquals("empty/", handle.getEntryName());
+    assertEquals(0, handle.length());
+    handle.close();
+  }
+
+  @Test
+  public void testStoredEntry() throws IOException {
+    checkEntry(new ZipEntry("stored.dat"));
+  }
+
+  @Test
+  public void testDeflatedEntry() throws IOException {
+    checkEntry(new ZipEntry("deflated.dat"));
+  }
+
+  @Test(expectedExceptions={IOException.class})
+  public void testMissingEntry() throws IOException {
+    new ZipHandle(file.getAbsolutePath(), new ZipEntry("missing.dat"));
+  }
+
+  // -- Helper methods --
+
+  private void checkEntry(ZipEntry entry) throws IOException {
+    ZipHandle handle = new ZipHandle(file.getAbsolutePath(), entry);
+    assertEquals(data.length, handle.length());
+    byte[] b = new byte[1000];
+    for (int pos : new int[] {250000, 17, 120000, 0, data.length - 1000}) {
+      handle.seek(pos);
+      handle.readFully(b);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(data, pos, pos + 1000), b));
+      assertEquals(pos + 1000, handle.getFilePointer());
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(2000);
+    assertEquals(1000, handle.read(data.length - 1000, buffer));
+    buffer.flip();
+    buffer.get(b);
+    assertTrue(Arrays.equals(
+      Arrays.copyOfRange(data, data.length - 1000, data.length), b));
+    buffer.clear();
+    assertEquals(-1, handle.read(data.length, buffer));
+    handle.close();
+  }
+
+}
@@ -233,6 +233,14 @@ public class LeicaSCNReader extends BaseTiffReader {
     return super.getOptimalTileHeight();
   }
 
+  // -- Internal MinimalTiffReader API methods --
+
+  /* @see loci.formats.in.MinimalTiffReader#getCompressedTileIFD(int) */
+  @Override
+  protected IFD getCompressedTileIFD(int no) throws FormatException {
+    return ifds.get(imageIFD(no));
+  }
+
   // -- Internal BaseTiffReader API methods --
 
   protected void initCoreMetadata(int s, int resolution) throws FormatException, IOException {
@@ -116,6 +116,14 @@ public class PyramidTiffReader extends BaseTiffReader {
     return super.getOptimalTileHeight();
   }
 
+  // -- Internal MinimalTiffReader API methods --
+
+  /* @see loci.formats.in.MinimalTiffReader#getCompressedTileIFD(int) */
+  @Override
+  protected IFD getCompressedTileIFD(int no) throws FormatException {
+    return ifds.get(getCoreIndex());
+  }
+
   // -- Internal BaseTiffReader API methods --
 
   /* @see loci.formats.in.BaseTiffReader#initStandardMetadata() */
@@ -245,6 +245,17 @@ public class SVSReader extends BaseTiffReader {
     return super.getOptimalTileHeight();
   }
 
+  // -- Internal MinimalTiffReader API methods --
+
+  /* @see loci.formats.in.MinimalTiffReader#getCompressedTileIFD(int) */
+  @Override
+  protected IFD getCompressedTileIFD(int no) throws FormatException {
+    if (core.size() == 1) {
+      return ifds.get(no);
+    }
+    return ifds.get(ifdmap[getCoreIndex()]);
+  }
+
   // -- Internal BaseTiffReader API methods --
 
   /* @see loci.formats.BaseTiffReader#initStandardMetadata() */
@@ -0,0 +1,132 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.tests;
+import java.io.File;
+import java.io.IOException;
+
+import loci.common.RandomAccessOutputStream;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffSaver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A class for measuring the speed of
+ * {@link TiffSaver#writeImage(byte[], IFD, int, int, boolean)} when writing
+ * planes to a file, for strips and tiles of common pixel layouts.
+ */
+public class TiffSaverTester {
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(TiffSaverTester.class);
+
+  private static final int WIDTH = 4000;
+  private static final int HEIGHT = 3000;
+  private static final int PLANES = 4;
+
+  public IFD createIFD(TiffCompression compression, int tileSize,
+    boolean planar)
+  {
+    IFD ifd = new IFD();
+    ifd.put(IFD.LITTLE_ENDIAN, true);
+    ifd.put(IFD.IMAGE_WIDTH, WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, HEIGHT);
+    ifd.put(IFD.COMPRESSION, compression.getCode());
+    ifd.put(IFD.PLANAR_CONFIGURATION, planar ? 2 : 1);
+    if (tileSize > 0) {
+      ifd.put(IFD.TILE_WIDTH, tileSize);
+      ifd.put(IFD.TILE_LENGTH, tileSize);
+    }
+    return ifd;
+  }
+
+  /** Writes several planes to a file and logs the write rate. */
+  public void testWrite(String name, TiffCompression compression,
+    int tileSize, int pixelType, int channels, boolean planar)
+    throws FormatException, IOException
+  {
+    int bytes = FormatTools.getBytesPerPixel(pixelType);
+    byte[] plane = new byte[WIDTH * HEIGHT * bytes * channels];
+    for (int i=0; i<plane.length; i++) {
+      plane[i] = (byte) ((i % WIDTH) / 16 + i / (WIDTH * 64));
+    }
+    File file = File.createTempFile("TiffSaverTester", ".tif");
+    try {
+      long start = System.nanoTime();
+      RandomAccessOutputStream out =
+        new RandomAccessOutputStream(file.getAbsolutePath());
+      TiffSaver saver = new TiffSaver(out, file.getAbsolutePath());
+      saver.setLittleEndian(true);
+      saver.setWritingSequentially(true);
+      saver.writeHeader();
+      for (int no=0; no<PLANES; no++) {
+        saver.writeImage(plane, createIFD(compression, tileSize, planar), no,
+          pixelType, no == PLANES - 1);
+      }
+      out.close();
+      long time = System.nanoTime() - start;
+      double mb = (double) plane.length * PLANES / (1024 * 1024);
+      LOGGER.info("{}: {} ms, {} MB/s", new Object[] {name, time / 1000000,
+        String.format("%.1f", mb / (time / 1e9))});
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  public void testAll() throws FormatException, IOException {
+    LOGGER.info("Writing {} planes of {}x{} pixels",
+      new Object[] {PLANES, WIDTH, HEIGHT});
+    // warm up once before timing
+    testWrite("warm-up", TiffCompression.UNCOMPRESSED, 512,
+      FormatTools.UINT8, 1, false);
+    testWrite("uint8 strips", TiffCompression.UNCOMPRESSED, 0,
+      FormatTools.UINT8, 1, false);
+    testWrite("uint8 512x512 tiles", TiffCompression.UNCOMPRESSED, 512,
+      FormatTools.UINT8, 1, false);
+    testWrite("uint16 512x512 tiles", TiffCompression.UNCOMPRESSED, 512,
+      FormatTools.UINT16, 1, false);
+    testWrite("uint8 RGB 512x512 tiles", TiffCompression.UNCOMPRESSED, 512,
+      FormatTools.UINT8, 3, false);
+    testWrite("uint8 planar RGB 512x512 tiles", TiffCompression.UNCOMPRESSED,
+      512, FormatTools.UINT8, 3, true);
+    testWrite("uint16 512x512 tiles, LZW", TiffCompression.LZW, 512,
+      FormatTools.UINT16, 1, false);
+    testWrite("uint8 512x512 tiles, Deflate", TiffCompression.DEFLATE, 512,
+      FormatTools.UINT8, 1, false);
+  }
+
+  public static void main(String[] args)
+    throws FormatException, IOException
+  {
+    new TiffSaverTester().testAll();
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * OME Bio-Formats manual and automated test suite.
+ * %%
+ * Copyright (C) 2006 - 2015 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.tests;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import loci.common.ByteArrayHandle;
+import loci.common.DataTools;
+import loci.common.RandomAccessInputStream;
+import loci.formats.FormatException;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.PhotoInterp;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A class for measuring the speed of
+ * {@link TiffParser#unpackBytes(byte[], int, byte[], IFD)} for common pixel
+ * types, compared with a general per-sample unpacking loop.
+ */
+public class UnpackBytesTester {
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(UnpackBytesTester.class);
+
+  private static final int WIDTH = 1024;
+  private static final int HEIGHT = 1024;
+  private static final int ITERATIONS = 20;
+
+  public IFD createIFD(int bits, int channels, PhotoInterp photoInterp) {
+    IFD ifd = new IFD();
+    ifd.put(IFD.LITTLE_ENDIAN, true);
+    ifd.put(IFD.IMAGE_WIDTH, WIDTH);
+    ifd.put(IFD.IMAGE_LENGTH, HEIGHT);
+    int[] bitsPerSample = new int[channels];
+    Arrays.fill(bitsPerSample, bits);
+    ifd.put(IFD.BITS_PER_SAMPLE, bitsPerSample);
+    ifd.put(IFD.SAMPLES_PER_PIXEL, channels);
+    ifd.put(IFD.PHOTOMETRIC_INTERPRETATION, photoInterp.getCode());
+    ifd.put(IFD.COMPRESSION, TiffCompression.UNCOMPRESSED.getCode());
+    return ifd;
+  }
+
+  /**
+   * Unpacks samples one at a time with {@link DataTools} and
+   * {@link RandomAccessInputStream#readBits(int)}, as
+   * {@link TiffParser#unpackBytes(byte[], int, byte[], IFD)} does for layouts
+   * that have no dedicated loop.
+   */
+  public void unpackGeneral(byte[] samples, byte[] bytes, IFD ifd)
+    throws FormatException, IOException
+  {
+    PhotoInterp photoInterp = ifd.getPhotometricInterpretation();
+    int[] bitsPerSample = ifd.getBitsPerSample();
+    int nChannels = bitsPerSample.length;
+    int bps0 = bitsPerSample[0];
+    int numBytes = ifd.getBytesPerSample()[0];
+    int nSamples = samples.length / (nChannels * numBytes);
+    int sampleCount = (int) (((long) 8 * bytes.length) / bps0) / nChannels;
+    long imageWidth = ifd.getImageWidth();
+    boolean noDiv8 = bps0 % 8 != 0;
+    boolean littleEndian = ifd.isLittleEndian();
+    long maxValue = (long) Math.pow(2, bps0) - 1;
+    int skipBits = (int) (8 - ((imageWidth * bps0 * nChannels) % 8));
+    if (skipBits == 8) skipBits = 0;
+
+    RandomAccessInputStream bb =
+      new RandomAccessInputStream(new ByteArrayHandle(bytes));
+    for (int sample=0; sample<sampleCount && sample<nSamples; sample++) {
+      for (int channel=0; channel<nChannels; channel++) {
+        long value;
+        if (noDiv8) {
+          value = bb.readBits(bps0) & 0xffff;
+          if ((sample % imageWidth) == imageWidth - 1) {
+            bb.skipBits(skipBits);
+          }
+        }
+        else {
+          int index = numBytes * (sample * nChannels + channel);
+          value = DataTools.bytesToLong(bytes, index, numBytes, littleEndian);
+        }
+        if (photoInterp == PhotoInterp.WHITE_IS_ZERO) {
+          value = maxValue - value;
+        }
+        DataTools.unpackBytes(value, samples,
+          (channel * nSamples + sample) * numBytes, numBytes, littleEndian);
+      }
+    }
+    bb.close();
+  }
+
+  /** Times both unpacking methods on one plane of the given layout. */
+  public void testUnpack(String name, int bits, int channels,
+    PhotoInterp photoInterp) throws FormatException, IOException
+  {
+    IFD ifd = createIFD(bits, channels, photoInterp);
+    int numBytes = ifd.getBytesPerSample()[0];
+    long rowBytes = ((long) WIDTH * bits * channels + 7) / 8;
+    byte[] bytes = new byte[(int) (rowBytes * HEIGHT)];
+    new Random(bits).nextBytes(bytes);
+    byte[] general = new byte[WIDTH * HEIGHT * channels * numBytes];
+    byte[] samples = new byte[general.length];
+
+    // warm up both methods before timing them
+    for (int i=0; i<ITERATIONS / 4; i++) {
+      unpackGeneral(general, bytes, ifd);
+      TiffParser.unpackBytes(samples, 0, bytes, ifd);
+    }
+    if (!Arrays.equals(general, samples)) {
+      LOGGER.warn("{}: unpacked samples do not match", name);
+    }
+
+    long start = System.nanoTime();
+    for (int i=0; i<ITERATIONS; i++) {
+      unpackGeneral(general, bytes, ifd);
+    }
+    long generalTime = (System.nanoTime() - start) / ITERATIONS;
+
+    start = System.nanoTime();
+    for (int i=0; i<ITERATIONS; i++) {
+      TiffParser.unpackBytes(samples, 0, bytes, ifd);
+    }
+    long time = (System.nanoTime() - start) / ITERATIONS;
+
+    LOGGER.info("{}: general {} us, unpackBytes {} us -- {}x", new Object[] {
+      name, generalTime / 1000, time / 1000,
+      String.format("%.1f", (double) generalTime / Math.max(time, 1))});
+  }
+
+  public void testAll() throws FormatException, IOException {
+    LOGGER.info("Unpacking {}x{} planes, average of {} iterations",
+      new Object[] {WIDTH, HEIGHT, ITERATIONS});
+    testUnpack("uint8", 8, 1, PhotoInterp.BLACK_IS_ZERO);
+    testUnpack("uint16", 16, 1, PhotoInterp.BLACK_IS_ZERO);
+    testUnpack("uint32/float", 32, 1, PhotoInterp.BLACK_IS_ZERO);
+    testUnpack("double", 64, 1, PhotoInterp.BLACK_IS_ZERO);
+    testUnpack("uint8 RGB", 8, 3, PhotoInterp.RGB);
+    testUnpack("uint16 RGB", 16, 3, PhotoInterp.RGB);
+    testUnpack("uint8 WhiteIsZero", 8, 1, PhotoInterp.WHITE_IS_ZERO);
+    testUnpack("uint16 WhiteIsZero", 16, 1, PhotoInterp.WHITE_IS_ZERO);
+    testUnpack("1-bit", 1, 1, PhotoInterp.BLACK_IS_ZERO);
+    testUnpack("12-bit", 12, 1, PhotoInterp.BLACK_IS_ZERO);
+  }
+
+  public static void main(String[] args)
+    throws FormatException, IOException
+  {
+    new UnpackBytesTester().testAll();
+  }
+
+}